@@ -0,0 +1,113 @@
+package edu.umn.aerowx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * Connectivity as Android sees it, from the ConnectivityManager. Listeners
+ * are called on the UI thread when the connectivity broadcast comes in.
+ * 
+ * Needs the ACCESS_NETWORK_STATE permission.
+ */
+public class AndroidConnectivitySource implements ConnectivitySource
+{
+	/** Where the connectivity comes from */
+	private final ConnectivityManager connectivityManager;
+
+	/** Who to tell about changes */
+	private final List<Listener> listeners = new ArrayList<Listener>();
+
+	/** Connectivity when listeners were last told */
+	private boolean connected;
+
+	/**
+	 * Constructor. Starts listening for connectivity broadcasts for the life
+	 * of the app.
+	 * 
+	 * @param context
+	 *            any context of the app
+	 */
+	public AndroidConnectivitySource(Context context)
+	{
+		super();
+		Context appContext = context.getApplicationContext();
+		connectivityManager = (ConnectivityManager) appContext
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		connected = isConnected();
+		appContext.registerReceiver(new BroadcastReceiver()
+		{
+			@Override
+			public void onReceive(Context context, Intent intent)
+			{
+				changed();
+			}
+		}, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see edu.umn.aerowx.ConnectivitySource#isConnected()
+	 */
+	public boolean isConnected()
+	{
+		NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+		return info != null && info.isConnected();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * edu.umn.aerowx.ConnectivitySource#addListener(edu.umn.aerowx.
+	 * ConnectivitySource.Listener)
+	 */
+	public synchronized void addListener(Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * edu.umn.aerowx.ConnectivitySource#removeListener(edu.umn.aerowx.
+	 * ConnectivitySource.Listener)
+	 */
+	public synchronized void removeListener(Listener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Tell the listeners if connectivity has changed. The broadcast also
+	 * comes for changes that don't matter here, like Wi-Fi to mobile.
+	 */
+	private void changed()
+	{
+		boolean now = isConnected();
+		List<Listener> toTell;
+		synchronized (this)
+		{
+			if (now == connected)
+			{
+				return;
+			}
+			connected = now;
+			toTell = new ArrayList<Listener>(listeners);
+		}
+		Log.i(AndroidConnectivitySource.class.toString(), "connected: " + now);
+		for (Listener listener : toTell)
+		{
+			listener.onConnectivityChanged(now);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package edu.umn.aerowx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a few byte and char buffers around for reading responses, so that
+ * refreshing several stations over and over doesn't allocate (and leave the
+ * garbage collector to sweep up) new buffers for every response.
+ * 
+ * Buffers that aren't handed back are simply collected; handing back more
+ * than the pool keeps is harmless.
+ */
+public class BufferPool
+{
+	/** Size of each buffer (bytes or chars) */
+	public static final int BUFFER_SIZE = 4096;
+
+	/** Most buffers of each kind kept for reuse */
+	public static final int MAX_POOLED = 4;
+
+	/** The pool the app uses */
+	private static BufferPool instance;
+
+	/** Byte buffers ready for reuse */
+	private final List<byte[]> byteBuffers = new ArrayList<byte[]>(MAX_POOLED);
+
+	/** Char buffers ready for reuse */
+	private final List<char[]> charBuffers = new ArrayList<char[]>(MAX_POOLED);
+
+	/**
+	 * Get the pool the app uses.
+	 * 
+	 * @return the shared BufferPool
+	 */
+	public static synchronized BufferPool getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new BufferPool();
+		}
+		return instance;
+	}
+
+	/**
+	 * Get a byte buffer of BUFFER_SIZE bytes. Its contents are garbage.
+	 * 
+	 * @return buffer, which should be handed back with recycle() when done.
+	 */
+	public synchronized byte[] getBytes()
+	{
+		int size = byteBuffers.size();
+		if (size > 0)
+		{
+			return byteBuffers.remove(size - 1);
+		}
+		return new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * Get a char buffer of BUFFER_SIZE chars. Its contents are garbage.
+	 * 
+	 * @return buffer, which should be handed back with recycle() when done.
+	 */
+	public synchronized char[] getChars()
+	{
+		int size = charBuffers.size();
+		if (size > 0)
+		{
+			return charBuffers.remove(size - 1);
+		}
+		return new char[BUFFER_SIZE];
+	}
+
+	/**
+	 * Hand back a byte buffer. It must not be used afterwards.
+	 * 
+	 * @param buffer
+	 *            buffer from getBytes(), or null
+	 */
+	public synchronized void recycle(byte buffer[])
+	{
+		if (buffer != null && buffer.length == BUFFER_SIZE
+				&& byteBuffers.size() < MAX_POOLED)
+		{
+			byteBuffers.add(buffer);
+		}
+	}
+
+	/**
+	 * Hand back a char buffer. It must not be used afterwards.
+	 * 
+	 * @param buffer
+	 *            buffer from getChars(), or null
+	 */
+	public synchronized void recycle(char buffer[])
+	{
+		if (buffer != null && buffer.length == BUFFER_SIZE
+				&& charBuffers.size() < MAX_POOLED)
+		{
+			charBuffers.add(buffer);
+		}
+	}
+
+	/**
+	 * Get the number of buffers waiting for reuse.
+	 * 
+	 * @return byte buffers plus char buffers in the pool
+	 */
+	public synchronized int size()
+	{
+		return byteBuffers.size() + charBuffers.size();
+	}
+}
@@ -0,0 +1,47 @@
+package edu.umn.aerowx;
+
+/**
+ * Tells whether the phone can reach the network, and when that changes.
+ * 
+ * The app uses AndroidConnectivitySource. Tests can use a stand-in they
+ * switch on and off themselves.
+ */
+public interface ConnectivitySource
+{
+	/**
+	 * Callback for changes in connectivity.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called when the network comes or goes.
+		 * 
+		 * @param connected
+		 *            true if the network can be used now
+		 */
+		void onConnectivityChanged(boolean connected);
+	}
+
+	/**
+	 * Can the network be used right now?
+	 * 
+	 * @return true if there's a network connection
+	 */
+	boolean isConnected();
+
+	/**
+	 * Start telling a listener about changes.
+	 * 
+	 * @param listener
+	 *            who to tell
+	 */
+	void addListener(Listener listener);
+
+	/**
+	 * Stop telling a listener about changes.
+	 * 
+	 * @param listener
+	 *            who to stop telling
+	 */
+	void removeListener(Listener listener);
+}
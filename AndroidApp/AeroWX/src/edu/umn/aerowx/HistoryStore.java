@@ -0,0 +1,333 @@
+package edu.umn.aerowx;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+/**
+ * Recent observations for each station looked at, for trend displays. Every
+ * METAR the app sees is added to its station's ObservationHistory.
+ * 
+ * Each station's history is a fixed size, and only the MAX_STATIONS most
+ * recently used stations are kept, so the whole store stays small (about 1 KB
+ * a station by default).
+ * 
+ * Once load() has been called, each station's history is also kept on the
+ * phone, one file a station packed with ObservationHistory.toByteArray(), so
+ * trends survive the process being killed. save() writes a station's file;
+ * it's up to the caller to call it off the UI thread.
+ * 
+ * All methods are thread-safe.
+ */
+public class HistoryStore
+{
+	/** Default most stations kept */
+	public static final int MAX_STATIONS = 64;
+
+	/** Extension of the files histories are kept in */
+	private static final String EXTENSION = ".hist";
+
+	/** Observations kept for each station */
+	private final int capacity;
+
+	/** Histories, least recently used first */
+	private final Map<String, ObservationHistory> histories;
+
+	/** Directory the histories are kept in, or null if only in memory */
+	private File directory;
+
+	/**
+	 * Constructor, keeping MAX_STATIONS stations of
+	 * ObservationHistory.DEFAULT_CAPACITY observations.
+	 */
+	public HistoryStore()
+	{
+		this(MAX_STATIONS, ObservationHistory.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param maxStations
+	 *            most stations kept
+	 * @param capacity
+	 *            observations kept for each station
+	 */
+	public HistoryStore(final int maxStations, int capacity)
+	{
+		super();
+		this.capacity = capacity;
+		histories = new LinkedHashMap<String, ObservationHistory>(16, 0.75f,
+				true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, ObservationHistory> eldest)
+			{
+				return size() > maxStations;
+			}
+		};
+	}
+
+	/**
+	 * Add an observation to its station's history.
+	 * 
+	 * @param metar
+	 *            the observation
+	 * @return true if it was added, false if it was already there
+	 */
+	public synchronized boolean add(MetarData metar)
+	{
+		if (metar.wxid == null)
+		{
+			return false;
+		}
+		String key = getKey(metar.wxid);
+		ObservationHistory history = histories.get(key);
+		if (history == null)
+		{
+			history = new ObservationHistory(key, capacity);
+			histories.put(key, history);
+		}
+		return history.add(metar);
+	}
+
+	/**
+	 * Get the number of observations kept for a station.
+	 * 
+	 * @param wxid
+	 *            the station
+	 * @return number kept
+	 */
+	public synchronized int size(String wxid)
+	{
+		ObservationHistory history = histories.get(getKey(wxid));
+		return (history == null) ? 0 : history.size();
+	}
+
+	/**
+	 * Copy a station's observations at or after a time into arrays the caller
+	 * keeps, oldest first. See ObservationHistory.copy().
+	 * 
+	 * @param wxid
+	 *            the station
+	 * @param field
+	 *            which value
+	 * @param since
+	 *            earliest time wanted (milliseconds)
+	 * @param timesOut
+	 *            filled with the observation times, or null if not wanted
+	 * @param valuesOut
+	 *            filled with the values
+	 * @return number of observations copied
+	 */
+	public synchronized int copy(String wxid, ObservationHistory.Field field,
+			long since, long timesOut[], int valuesOut[])
+	{
+		ObservationHistory history = histories.get(getKey(wxid));
+		if (history == null)
+		{
+			return 0;
+		}
+		return history.copy(field, since, timesOut, valuesOut);
+	}
+
+	/**
+	 * Get how much a value changed at a station since a time. See
+	 * ObservationHistory.getChange().
+	 * 
+	 * @param wxid
+	 *            the station
+	 * @param field
+	 *            which value
+	 * @param since
+	 *            time (milliseconds)
+	 * @return the change, or ObservationHistory.MISSING
+	 */
+	public synchronized int getChange(String wxid,
+			ObservationHistory.Field field, long since)
+	{
+		ObservationHistory history = histories.get(getKey(wxid));
+		if (history == null)
+		{
+			return ObservationHistory.MISSING;
+		}
+		return history.getChange(field, since);
+	}
+
+	/**
+	 * Get the number of stations kept.
+	 * 
+	 * @return number of stations
+	 */
+	public synchronized int stationCount()
+	{
+		return histories.size();
+	}
+
+	/**
+	 * Forget every station.
+	 */
+	public synchronized void clear()
+	{
+		histories.clear();
+	}
+
+	/**
+	 * Read back the histories kept in a directory, and keep them there from
+	 * now on. Stations beyond the most kept are dropped, least recently saved
+	 * first, and so are their files.
+	 * 
+	 * @param directory
+	 *            directory to keep the files in. It's created if need be.
+	 */
+	public void load(File directory)
+	{
+		File files[] = directory.listFiles();
+		if (files == null)
+		{
+			files = new File[0];
+		}
+		// Oldest first, so the most recent end up most recently used
+		Arrays.sort(files, new Comparator<File>()
+		{
+			public int compare(File a, File b)
+			{
+				long difference = a.lastModified() - b.lastModified();
+				return (difference < 0) ? -1 : (difference > 0) ? 1 : 0;
+			}
+		});
+
+		for (File file : files)
+		{
+			String name = file.getName();
+			if (!name.endsWith(EXTENSION))
+			{
+				continue;
+			}
+			String key = name.substring(0, name.length() - EXTENSION.length())
+					.toUpperCase(Locale.US);
+			try
+			{
+				byte block[] = new AtomicFile(file).readFully();
+				synchronized (this)
+				{
+					ObservationHistory history = histories.get(key);
+					if (history == null)
+					{
+						history = new ObservationHistory(key, capacity);
+						histories.put(key, history);
+					}
+					history.addAll(block);
+				}
+			} catch (FileNotFoundException e)
+			{
+				// Deleted since it was listed
+			} catch (IOException e)
+			{
+				// Corrupt or from an older version. It'll be replaced.
+				Log.i(HistoryStore.class.toString(), "can't read " + name
+						+ ": " + e);
+			}
+		}
+
+		// Drop the files of stations that didn't fit, without touching the
+		// order of the ones kept
+		synchronized (this)
+		{
+			this.directory = directory;
+			for (File file : files)
+			{
+				String name = file.getName();
+				if (name.endsWith(EXTENSION)
+						&& !histories.containsKey(getKey(name.substring(0,
+								name.length() - EXTENSION.length()))))
+				{
+					new AtomicFile(file).delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a station's history to its file, if the histories are kept on
+	 * the phone (see load()).
+	 * 
+	 * @param wxid
+	 *            the station
+	 */
+	public void save(String wxid)
+	{
+		String key = getKey(wxid);
+		File file;
+		byte block[];
+		synchronized (this)
+		{
+			ObservationHistory history = histories.get(key);
+			if (directory == null || history == null || !isFileName(key))
+			{
+				return;
+			}
+			file = new File(directory, key.toLowerCase(Locale.US) + EXTENSION);
+			block = history.toByteArray();
+		}
+
+		AtomicFile atomicFile = new AtomicFile(file);
+		FileOutputStream out = null;
+		try
+		{
+			file.getParentFile().mkdirs();
+			out = atomicFile.startWrite();
+			out.write(block);
+			atomicFile.finishWrite(out);
+		} catch (IOException e)
+		{
+			Log.i(HistoryStore.class.toString(), "can't write " + key + ": "
+					+ e);
+			if (out != null)
+			{
+				atomicFile.failWrite(out);
+			}
+		}
+	}
+
+	/**
+	 * Can the station be kept in a file named after it? Station names are
+	 * letters and digits, but anything else is just kept in memory.
+	 */
+	private static boolean isFileName(String key)
+	{
+		if (key.length() == 0)
+		{
+			return false;
+		}
+		for (int i = 0; i < key.length(); ++i)
+		{
+			char c = key.charAt(i);
+			if (!((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the name a station is kept under.
+	 */
+	private static String getKey(String wxid)
+	{
+		return wxid.trim().toUpperCase(Locale.US);
+	}
+}
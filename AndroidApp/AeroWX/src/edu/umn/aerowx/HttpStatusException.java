@@ -0,0 +1,37 @@
+package edu.umn.aerowx;
+
+import java.io.IOException;
+
+/**
+ * The server answered, but not with OK.
+ */
+public class HttpStatusException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	/** HTTP status code the server returned */
+	public final int statusCode;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param statusCode
+	 *            HTTP status code the server returned
+	 */
+	public HttpStatusException(int statusCode)
+	{
+		super("Server returned HTTP status " + statusCode);
+		this.statusCode = statusCode;
+	}
+
+	/**
+	 * Is this a status that may go away if the request is tried again? That's
+	 * a server error (5xx), a request timeout (408) or too many requests (429).
+	 * 
+	 * @return true if the request is worth retrying
+	 */
+	public boolean isTransient()
+	{
+		return statusCode >= 500 || statusCode == 408 || statusCode == 429;
+	}
+}
@@ -0,0 +1,137 @@
+package edu.umn.aerowx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The piece that actually moves bytes to and from the weather server.
+ * 
+ * Implementations must be safe to call from several threads at once.
+ */
+public interface HttpTransport
+{
+	/**
+	 * POST a request body to a URL.
+	 * 
+	 * @param url
+	 *            where to send it
+	 * @param body
+	 *            request body
+	 * @param headers
+	 *            request headers to send
+	 * @param timeout
+	 *            longest to wait to connect, or between bytes of the response
+	 *            (milliseconds), 0 for no limit
+	 * @return the response. The caller must close it.
+	 * @throws IOException
+	 *             on network error, or if the timeout passes
+	 *             (SocketTimeoutException)
+	 */
+	Response post(String url, byte[] body, Map<String, String> headers,
+			int timeout) throws IOException;
+
+	/**
+	 * Close any connections being kept alive. The transport may not be used
+	 * afterwards.
+	 */
+	void shutdown();
+
+	/**
+	 * Response from the server.
+	 */
+	public static class Response
+	{
+		/** HTTP status code */
+		public final int statusCode;
+
+		/** Response headers, by lower case name */
+		public final Map<String, String> headers;
+
+		/** Response body */
+		public final InputStream content;
+
+		/** Time to get a connection (nanoseconds), -1 if not measured */
+		public final long connectTime;
+
+		/**
+		 * Time from sending the request to the response headers (nanoseconds),
+		 * -1 if not measured
+		 */
+		public final long firstByteTime;
+
+		/**
+		 * Constructor, without timing.
+		 * 
+		 * @param statusCode
+		 *            HTTP status code
+		 * @param headers
+		 *            response headers, by lower case name
+		 * @param content
+		 *            response body
+		 */
+		public Response(int statusCode, Map<String, String> headers,
+				InputStream content)
+		{
+			this(statusCode, headers, content, -1, -1);
+		}
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param statusCode
+		 *            HTTP status code
+		 * @param headers
+		 *            response headers, by lower case name
+		 * @param content
+		 *            response body
+		 * @param connectTime
+		 *            time to get a connection (nanoseconds), -1 if not measured
+		 * @param firstByteTime
+		 *            time from sending the request to the response headers
+		 *            (nanoseconds), -1 if not measured
+		 */
+		public Response(int statusCode, Map<String, String> headers,
+				InputStream content, long connectTime, long firstByteTime)
+		{
+			super();
+			this.statusCode = statusCode;
+			this.headers = (headers == null) ? new HashMap<String, String>()
+					: headers;
+			this.content = content;
+			this.connectTime = connectTime;
+			this.firstByteTime = firstByteTime;
+		}
+
+		/**
+		 * Look up a response header.
+		 * 
+		 * @param name
+		 *            header name, in any case
+		 * @return header value, or null if it wasn't sent
+		 */
+		public String getHeader(String name)
+		{
+			return headers.get(name.toLowerCase(Locale.US));
+		}
+
+		/**
+		 * Done with the response. This lets the connection be used again.
+		 */
+		public void close()
+		{
+			if (content != null)
+			{
+				try
+				{
+					content.close();
+				} catch (IOException e)
+				{
+					// Nothing more we can do with it
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package edu.umn.aerowx;
+
+/**
+ * When new weather data comes out. A routine METAR is observed just before
+ * the hour and reaches the server a few minutes later; the GFS MOS MAV is run
+ * four times a day, at 00, 06, 12 and 18Z, and comes out about four hours
+ * after each run.
+ * 
+ * Anything fetched since the last issue is as new as it gets, so there's no
+ * point asking again until the next one.
+ * 
+ * All times are milliseconds since the epoch, which is UTC, so there's no
+ * time zone or daylight saving to worry about.
+ */
+public class IssueSchedule
+{
+	private static final long MINUTE = 60 * 1000;
+
+	private static final long HOUR = 60 * MINUTE;
+
+	/** Time between METARs */
+	public static final long METAR_PERIOD = HOUR;
+
+	/** When past the hour a new METAR is available */
+	public static final long METAR_OFFSET = 55 * MINUTE;
+
+	/** Time between MAV runs */
+	public static final long MAV_PERIOD = 6 * HOUR;
+
+	/** When past 00Z (and every 6 hours after) a new MAV is available */
+	public static final long MAV_OFFSET = 4 * HOUR;
+
+	/**
+	 * Find when data for a source next comes out.
+	 * 
+	 * @param source
+	 *            WeatherRequest.METAR or WeatherRequest.MAV
+	 * @param after
+	 *            time to look from
+	 * @return first issue time later than after
+	 */
+	public static long nextIssue(String source, long after)
+	{
+		return lastIssue(source, after) + getPeriod(source);
+	}
+
+	/**
+	 * Find when data from any source next comes out.
+	 * 
+	 * @param after
+	 *            time to look from
+	 * @return first time later than after that METAR or MAV data comes out
+	 */
+	public static long nextIssue(long after)
+	{
+		return Math.min(nextIssue(WeatherRequest.METAR, after), nextIssue(
+				WeatherRequest.MAV, after));
+	}
+
+	/**
+	 * Find when data for a source last came out.
+	 * 
+	 * @param source
+	 *            WeatherRequest.METAR or WeatherRequest.MAV
+	 * @param time
+	 *            time to look back from
+	 * @return last issue time at or before time
+	 */
+	public static long lastIssue(String source, long time)
+	{
+		long period = getPeriod(source);
+		long offset = getOffset(source);
+		long cycles = (time - offset) / period;
+		if (time - offset < 0 && (time - offset) % period != 0)
+		{
+			--cycles;
+		}
+		return cycles * period + offset;
+	}
+
+	/**
+	 * Is data fetched at a given time still the latest?
+	 * 
+	 * @param source
+	 *            WeatherRequest.METAR or WeatherRequest.MAV
+	 * @param fetched
+	 *            when the data was fetched
+	 * @param now
+	 *            current time
+	 * @return true if nothing newer has come out since
+	 */
+	public static boolean isFresh(String source, long fetched, long now)
+	{
+		return now < nextIssue(source, fetched);
+	}
+
+	/**
+	 * Get the time between issues of a source.
+	 * 
+	 * @param source
+	 *            WeatherRequest.METAR or WeatherRequest.MAV
+	 * @return period (milliseconds)
+	 */
+	public static long getPeriod(String source)
+	{
+		return WeatherRequest.MAV.equals(source) ? MAV_PERIOD : METAR_PERIOD;
+	}
+
+	/**
+	 * Get when in each period a source comes out.
+	 * 
+	 * @param source
+	 *            WeatherRequest.METAR or WeatherRequest.MAV
+	 * @return offset from the start of the period (milliseconds)
+	 */
+	private static long getOffset(String source)
+	{
+		return WeatherRequest.MAV.equals(source) ? MAV_OFFSET : METAR_OFFSET;
+	}
+}
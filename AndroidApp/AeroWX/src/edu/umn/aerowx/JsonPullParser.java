@@ -0,0 +1,923 @@
+package edu.umn.aerowx;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * Pull parser for JSON text. It reads one token at a time straight from a
+ * stream, so data can be decoded into objects without first building the
+ * whole document as a String and a tree of JSONObjects.
+ * 
+ * Usage follows the structure of the document:
+ * 
+ * <pre>
+ * parser.beginObject();
+ * while (parser.hasNext())
+ * {
+ * 	String name = parser.nextName();
+ * 	if (name.equals(&quot;station&quot;))
+ * 		station = parser.nextString();
+ * 	else
+ * 		parser.skipValue();
+ * }
+ * parser.endObject();
+ * </pre>
+ * 
+ * Given an InputStream, the parser decodes UTF-8 itself, straight from one
+ * pooled byte buffer into one pooled char buffer, rather than stacking an
+ * InputStreamReader (with its own buffers and decoder) on top.
+ */
+public class JsonPullParser implements Closeable
+{
+	/**
+	 * Kinds of token in a JSON document.
+	 */
+	public enum Token
+	{
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+	}
+
+	/* Where we are in the document */
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_ARRAY = 2;
+	private static final int NONEMPTY_ARRAY = 3;
+	private static final int EMPTY_OBJECT = 4;
+	private static final int DANGLING_NAME = 5;
+	private static final int NONEMPTY_OBJECT = 6;
+
+	/** Replaces bytes that aren't valid UTF-8 */
+	private static final char REPLACEMENT = '\uFFFD';
+
+	/** Smallest code point each length of UTF-8 sequence may encode */
+	private static final int MIN_CODE_POINT[] = { 0, 0, 0x80, 0x800, 0x10000 };
+
+	/** Where the text comes from, if it's given as text */
+	private final Reader in;
+
+	/** Where the text comes from, if it's given as UTF-8 bytes */
+	private final InputStream stream;
+
+	/** Text read but not yet parsed */
+	private char buffer[];
+
+	/** UTF-8 read but not yet decoded, for a stream */
+	private byte bytes[];
+
+	/** Next byte to decode in bytes */
+	private int bytePos = 0;
+
+	/** End of valid bytes in bytes */
+	private int byteLimit = 0;
+
+	/** Next character to parse in buffer */
+	private int pos = 0;
+
+	/** End of valid text in buffer */
+	private int limit = 0;
+
+	/** Scratch space for building strings */
+	private final StringBuilder builder = new StringBuilder();
+
+	/** Nesting of arrays and objects */
+	private int stack[] = new int[32];
+
+	/** Depth of stack */
+	private int stackSize = 0;
+
+	/** Token found by peek() and not yet consumed, or null */
+	private Token peeked;
+
+	/** Text of the peeked NAME, STRING, NUMBER or BOOLEAN */
+	private String value;
+
+	/** Time spent scanning tokens, including reads (nanoseconds) */
+	private long scanTime = 0;
+
+	/** Time spent waiting for input (nanoseconds) */
+	private long readTime = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param in
+	 *            JSON text
+	 */
+	public JsonPullParser(Reader in)
+	{
+		super();
+		this.in = in;
+		this.stream = null;
+		buffer = BufferPool.getInstance().getChars();
+		push(EMPTY_DOCUMENT);
+	}
+
+	/**
+	 * Constructor for UTF-8 text.
+	 * 
+	 * @param stream
+	 *            JSON text, UTF-8 encoded
+	 */
+	public JsonPullParser(InputStream stream)
+	{
+		super();
+		this.in = null;
+		this.stream = stream;
+		buffer = BufferPool.getInstance().getChars();
+		bytes = BufferPool.getInstance().getBytes();
+		push(EMPTY_DOCUMENT);
+	}
+
+	/**
+	 * Look at the next token without consuming it.
+	 * 
+	 * @return kind of the next token
+	 * @throws IOException
+	 *             on read error or malformed JSON
+	 */
+	public Token peek() throws IOException
+	{
+		if (peeked != null)
+		{
+			return peeked;
+		}
+
+		long start = System.nanoTime();
+		try
+		{
+			return scan();
+		} finally
+		{
+			scanTime += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Get the time spent waiting for input, which on a network stream is the
+	 * time spent downloading.
+	 * 
+	 * @return time (nanoseconds)
+	 */
+	public long getReadTime()
+	{
+		return readTime;
+	}
+
+	/**
+	 * Get the time spent scanning tokens, not counting waiting for input.
+	 * 
+	 * @return time (nanoseconds)
+	 */
+	public long getTokenizeTime()
+	{
+		return scanTime - readTime;
+	}
+
+	/**
+	 * Scan the next token.
+	 * 
+	 * @return kind of the next token
+	 * @throws IOException
+	 *             on read error or malformed JSON
+	 */
+	private Token scan() throws IOException
+	{
+		int c;
+		switch (stack[stackSize - 1])
+		{
+		case EMPTY_DOCUMENT:
+			stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+			return readValue(nextNonWhitespace());
+
+		case NONEMPTY_DOCUMENT:
+			c = nextNonWhitespace();
+			if (c != -1)
+			{
+				throw syntaxError("Text after end of document");
+			}
+			return peeked = Token.END_DOCUMENT;
+
+		case EMPTY_ARRAY:
+			stack[stackSize - 1] = NONEMPTY_ARRAY;
+			c = nextNonWhitespace();
+			if (c == ']')
+			{
+				return peeked = Token.END_ARRAY;
+			}
+			return readValue(c);
+
+		case NONEMPTY_ARRAY:
+			c = nextNonWhitespace();
+			if (c == ']')
+			{
+				return peeked = Token.END_ARRAY;
+			}
+			if (c != ',')
+			{
+				throw (c == -1) ? cutShort() : syntaxError("Expected ',' or ']'");
+			}
+			return readValue(nextNonWhitespace());
+
+		case EMPTY_OBJECT:
+		case NONEMPTY_OBJECT:
+			c = nextNonWhitespace();
+			if (c == '}')
+			{
+				return peeked = Token.END_OBJECT;
+			}
+			if (stack[stackSize - 1] == NONEMPTY_OBJECT)
+			{
+				if (c != ',')
+				{
+					throw (c == -1) ? cutShort()
+							: syntaxError("Expected ',' or '}'");
+				}
+				c = nextNonWhitespace();
+			}
+			if (c != '"')
+			{
+				throw (c == -1) ? cutShort() : syntaxError("Expected name");
+			}
+			stack[stackSize - 1] = DANGLING_NAME;
+			value = readString();
+			return peeked = Token.NAME;
+
+		case DANGLING_NAME:
+			c = nextNonWhitespace();
+			if (c != ':')
+			{
+				throw (c == -1) ? cutShort() : syntaxError("Expected ':'");
+			}
+			stack[stackSize - 1] = NONEMPTY_OBJECT;
+			return readValue(nextNonWhitespace());
+		}
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * Are there more elements in the current array or object?
+	 * 
+	 * @return true unless the next token ends the array or object
+	 * @throws IOException
+	 *             on read error or malformed JSON
+	 */
+	public boolean hasNext() throws IOException
+	{
+		Token token = peek();
+		return token != Token.END_OBJECT && token != Token.END_ARRAY
+				&& token != Token.END_DOCUMENT;
+	}
+
+	/**
+	 * Consume the start of an object.
+	 * 
+	 * @throws IOException
+	 *             if the next token isn't the start of an object
+	 */
+	public void beginObject() throws IOException
+	{
+		expect(Token.BEGIN_OBJECT);
+	}
+
+	/**
+	 * Consume the end of an object.
+	 * 
+	 * @throws IOException
+	 *             if the next token isn't the end of an object
+	 */
+	public void endObject() throws IOException
+	{
+		expect(Token.END_OBJECT);
+		stackSize--;
+	}
+
+	/**
+	 * Consume the start of an array.
+	 * 
+	 * @throws IOException
+	 *             if the next token isn't the start of an array
+	 */
+	public void beginArray() throws IOException
+	{
+		expect(Token.BEGIN_ARRAY);
+	}
+
+	/**
+	 * Consume the end of an array.
+	 * 
+	 * @throws IOException
+	 *             if the next token isn't the end of an array
+	 */
+	public void endArray() throws IOException
+	{
+		expect(Token.END_ARRAY);
+		stackSize--;
+	}
+
+	/**
+	 * Consume a property name.
+	 * 
+	 * @return the name
+	 * @throws IOException
+	 *             if the next token isn't a name
+	 */
+	public String nextName() throws IOException
+	{
+		expect(Token.NAME);
+		return value;
+	}
+
+	/**
+	 * Consume a string, number or boolean value as text.
+	 * 
+	 * @return the text of the value, or null for a JSON null
+	 * @throws IOException
+	 *             if the next token isn't a simple value
+	 */
+	public String nextString() throws IOException
+	{
+		Token token = peek();
+		if (token == Token.NULL)
+		{
+			peeked = null;
+			return null;
+		}
+		if (token != Token.STRING && token != Token.NUMBER
+				&& token != Token.BOOLEAN)
+		{
+			throw syntaxError("Expected a value but was " + token);
+		}
+		peeked = null;
+		return value;
+	}
+
+	/**
+	 * Check that the document is finished: the top-level value has been read
+	 * and nothing but whitespace follows it.
+	 * 
+	 * @throws IOException
+	 *             if there is more to the document, or anything after it
+	 */
+	public void endDocument() throws IOException
+	{
+		expect(Token.END_DOCUMENT);
+	}
+
+	/**
+	 * Skip the next value, including everything in it if it is an array or
+	 * object.
+	 * 
+	 * @throws IOException
+	 *             on read error or malformed JSON
+	 */
+	public void skipValue() throws IOException
+	{
+		int depth = 0;
+		do
+		{
+			Token token = peek();
+			peeked = null;
+			if (token == Token.BEGIN_ARRAY || token == Token.BEGIN_OBJECT)
+			{
+				depth++;
+			} else if (token == Token.END_ARRAY || token == Token.END_OBJECT)
+			{
+				stackSize--;
+				depth--;
+			} else if (token == Token.END_DOCUMENT)
+			{
+				throw cutShort();
+			}
+		} while (depth > 0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() throws IOException
+	{
+		// Hand the buffers back for the next response.
+		BufferPool.getInstance().recycle(buffer);
+		BufferPool.getInstance().recycle(bytes);
+		buffer = null;
+		bytes = null;
+		pos = limit = bytePos = byteLimit = 0;
+
+		if (in != null)
+		{
+			in.close();
+		} else
+		{
+			stream.close();
+		}
+	}
+
+	/**
+	 * Consume the next token, which must be of the given kind.
+	 * 
+	 * @param expected
+	 *            kind of token wanted
+	 * @throws IOException
+	 *             if the next token is something else
+	 */
+	private void expect(Token expected) throws IOException
+	{
+		Token token = peek();
+		if (token != expected)
+		{
+			throw syntaxError("Expected " + expected + " but was " + token);
+		}
+		peeked = null;
+	}
+
+	/**
+	 * Start reading the value that begins with character c.
+	 * 
+	 * @param c
+	 *            first character of the value
+	 * @return kind of value
+	 * @throws IOException
+	 *             on read error or malformed JSON
+	 */
+	private Token readValue(int c) throws IOException
+	{
+		switch (c)
+		{
+		case '{':
+			push(EMPTY_OBJECT);
+			return peeked = Token.BEGIN_OBJECT;
+		case '[':
+			push(EMPTY_ARRAY);
+			return peeked = Token.BEGIN_ARRAY;
+		case '"':
+			value = readString();
+			return peeked = Token.STRING;
+		case -1:
+			throw cutShort();
+		}
+
+		// Anything else is a literal: number, true, false or null
+		builder.setLength(0);
+		builder.append((char) c);
+		while (true)
+		{
+			if (pos == limit && !fill())
+			{
+				break;
+			}
+			char ch = buffer[pos];
+			if (ch == ',' || ch == '}' || ch == ']' || ch == ':' || ch == ' '
+					|| ch == '\t' || ch == '\r' || ch == '\n')
+			{
+				break;
+			}
+			builder.append(ch);
+			pos++;
+		}
+		value = builder.toString();
+
+		if (value.equals("null"))
+		{
+			return peeked = Token.NULL;
+		}
+		if (value.equals("true") || value.equals("false"))
+		{
+			return peeked = Token.BOOLEAN;
+		}
+		if (isNumber(value))
+		{
+			return peeked = Token.NUMBER;
+		}
+		throw syntaxError("Unexpected value " + value);
+	}
+
+	/**
+	 * Is the text a JSON number: an optional minus sign, an integer part with
+	 * no leading zeros, then an optional fraction and exponent?
+	 * 
+	 * @param text
+	 *            literal read from the document
+	 * @return true if it's a number
+	 */
+	private static boolean isNumber(String text)
+	{
+		int length = text.length();
+		int i = 0;
+		if (i < length && text.charAt(i) == '-')
+		{
+			++i;
+		}
+		if (i < length && text.charAt(i) == '0')
+		{
+			++i;
+		} else
+		{
+			int start = i;
+			i = skipDigits(text, i);
+			if (i == start)
+			{
+				return false;
+			}
+		}
+		if (i < length && text.charAt(i) == '.')
+		{
+			int start = ++i;
+			i = skipDigits(text, i);
+			if (i == start)
+			{
+				return false;
+			}
+		}
+		if (i < length && (text.charAt(i) == 'e' || text.charAt(i) == 'E'))
+		{
+			++i;
+			if (i < length && (text.charAt(i) == '+' || text.charAt(i) == '-'))
+			{
+				++i;
+			}
+			int start = i;
+			i = skipDigits(text, i);
+			if (i == start)
+			{
+				return false;
+			}
+		}
+		return i == length;
+	}
+
+	/**
+	 * Skip a run of decimal digits.
+	 * 
+	 * @param text
+	 *            text to look at
+	 * @param i
+	 *            where to start
+	 * @return index of the first character that isn't a digit
+	 */
+	private static int skipDigits(String text, int i)
+	{
+		while (i < text.length() && text.charAt(i) >= '0'
+				&& text.charAt(i) <= '9')
+		{
+			++i;
+		}
+		return i;
+	}
+
+	/**
+	 * Read the rest of a string whose opening quote has been consumed.
+	 * 
+	 * @return the unescaped string
+	 * @throws IOException
+	 *             on read error or malformed JSON
+	 */
+	private String readString() throws IOException
+	{
+		builder.setLength(0);
+		while (true)
+		{
+			// Copy runs of plain characters in one go
+			int start = pos;
+			while (pos < limit)
+			{
+				char c = buffer[pos];
+				if (c == '"')
+				{
+					builder.append(buffer, start, pos - start);
+					pos++;
+					return builder.toString();
+				}
+				if (c == '\\')
+				{
+					builder.append(buffer, start, pos - start);
+					pos++;
+					builder.append(readEscape());
+					start = pos;
+					continue;
+				}
+				pos++;
+			}
+			builder.append(buffer, start, pos - start);
+			if (!fill())
+			{
+				throw cutShort();
+			}
+		}
+	}
+
+	/**
+	 * Read an escape sequence whose backslash has been consumed.
+	 * 
+	 * @return the escaped character
+	 * @throws IOException
+	 *             on read error or malformed JSON
+	 */
+	private char readEscape() throws IOException
+	{
+		int c = read();
+		switch (c)
+		{
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'u':
+			int code = 0;
+			for (int i = 0; i < 4; i++)
+			{
+				int ch = read();
+				if (ch == -1)
+				{
+					throw cutShort();
+				}
+				int digit = Character.digit(ch, 16);
+				if (digit < 0)
+				{
+					throw syntaxError("Bad \\u escape");
+				}
+				code = (code << 4) + digit;
+			}
+			return (char) code;
+		case -1:
+			throw cutShort();
+		default:
+			// \" \\ \/ and anything else stand for themselves
+			return (char) c;
+		}
+	}
+
+	/**
+	 * Skip whitespace.
+	 * 
+	 * @return next character, or -1 at end of input
+	 * @throws IOException
+	 *             on read error
+	 */
+	private int nextNonWhitespace() throws IOException
+	{
+		while (true)
+		{
+			int c = read();
+			if (c != ' ' && c != '\t' && c != '\r' && c != '\n')
+			{
+				return c;
+			}
+		}
+	}
+
+	/**
+	 * Read one character.
+	 * 
+	 * @return next character, or -1 at end of input
+	 * @throws IOException
+	 *             on read error
+	 */
+	private int read() throws IOException
+	{
+		if (pos == limit && !fill())
+		{
+			return -1;
+		}
+		return buffer[pos++];
+	}
+
+	/**
+	 * Refill the buffer once everything in it has been parsed.
+	 * 
+	 * @return false at end of input
+	 * @throws IOException
+	 *             on read error
+	 */
+	private boolean fill() throws IOException
+	{
+		if (buffer == null)
+		{
+			throw new IOException("Parser is closed");
+		}
+
+		int count;
+		long start = System.nanoTime();
+		if (stream != null)
+		{
+			count = decode();
+		} else
+		{
+			do
+			{
+				count = in.read(buffer, 0, buffer.length);
+			} while (count == 0);
+		}
+		readTime += System.nanoTime() - start;
+		if (count < 0)
+		{
+			pos = limit = 0;
+			return false;
+		}
+		pos = 0;
+		limit = count;
+		return true;
+	}
+
+	/**
+	 * Decode UTF-8 from the stream into the char buffer. Only blocks for more
+	 * input when nothing at all is left to decode.
+	 * 
+	 * @return number of chars decoded, or -1 at end of input
+	 * @throws IOException
+	 *             on read error
+	 */
+	private int decode() throws IOException
+	{
+		// Leave room for a surrogate pair at the end.
+		int max = buffer.length - 1;
+		int count = 0;
+
+		while (count < max)
+		{
+			if (bytePos == byteLimit)
+			{
+				if (count > 0)
+				{
+					break;
+				}
+				if (!readBytes(1))
+				{
+					return -1;
+				}
+			}
+
+			// Almost all of it is ASCII.
+			while (bytePos < byteLimit && count < max && bytes[bytePos] >= 0)
+			{
+				buffer[count++] = (char) bytes[bytePos++];
+			}
+			if (bytePos == byteLimit || count == max)
+			{
+				continue;
+			}
+
+			int lead = bytes[bytePos] & 0xff;
+			int length;
+			int codePoint;
+			if ((lead & 0xe0) == 0xc0)
+			{
+				length = 2;
+				codePoint = lead & 0x1f;
+			} else if ((lead & 0xf0) == 0xe0)
+			{
+				length = 3;
+				codePoint = lead & 0x0f;
+			} else if ((lead & 0xf8) == 0xf0)
+			{
+				length = 4;
+				codePoint = lead & 0x07;
+			} else
+			{
+				// Stray continuation byte, or not UTF-8 at all
+				buffer[count++] = REPLACEMENT;
+				bytePos++;
+				continue;
+			}
+
+			if (byteLimit - bytePos < length)
+			{
+				// The sequence is split across reads.
+				if (count > 0)
+				{
+					break;
+				}
+				if (!readBytes(length))
+				{
+					// Cut off by the end of input
+					buffer[count++] = REPLACEMENT;
+					bytePos = byteLimit;
+					continue;
+				}
+			}
+
+			int i;
+			for (i = 1; i < length; ++i)
+			{
+				int b = bytes[bytePos + i];
+				if ((b & 0xc0) != 0x80)
+				{
+					break;
+				}
+				codePoint = (codePoint << 6) | (b & 0x3f);
+			}
+			if (i < length)
+			{
+				// Cut short: replace what there was of it.
+				buffer[count++] = REPLACEMENT;
+				bytePos += i;
+				continue;
+			}
+			if (codePoint < MIN_CODE_POINT[length]
+					|| codePoint > Character.MAX_CODE_POINT
+					|| (codePoint >= Character.MIN_SURROGATE
+					&& codePoint <= Character.MAX_SURROGATE))
+			{
+				// Overlong or out of range: the lead byte is bad, and the
+				// rest are stray.
+				buffer[count++] = REPLACEMENT;
+				bytePos++;
+				continue;
+			}
+			bytePos += length;
+
+			if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+			{
+				buffer[count++] = (char) codePoint;
+			} else
+			{
+				codePoint -= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+				buffer[count++] = (char) (Character.MIN_HIGH_SURROGATE
+						+ (codePoint >>> 10));
+				buffer[count++] = (char) (Character.MIN_LOW_SURROGATE
+						+ (codePoint & 0x3ff));
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Read from the stream until at least the given number of bytes are
+	 * waiting to be decoded. Undecoded bytes are moved to the front of the
+	 * buffer first.
+	 * 
+	 * @param wanted
+	 *            number of bytes needed
+	 * @return false if the end of input came first
+	 * @throws IOException
+	 *             on read error
+	 */
+	private boolean readBytes(int wanted) throws IOException
+	{
+		int remaining = byteLimit - bytePos;
+		System.arraycopy(bytes, bytePos, bytes, 0, remaining);
+		bytePos = 0;
+		byteLimit = remaining;
+		while (byteLimit < wanted)
+		{
+			int count = stream.read(bytes, byteLimit, bytes.length
+					- byteLimit);
+			if (count < 0)
+			{
+				return false;
+			}
+			byteLimit += count;
+		}
+		return true;
+	}
+
+	/**
+	 * Enter an array or object.
+	 * 
+	 * @param scope
+	 *            kind of scope entered
+	 */
+	private void push(int scope)
+	{
+		if (stackSize == stack.length)
+		{
+			int newStack[] = new int[stackSize * 2];
+			System.arraycopy(stack, 0, newStack, 0, stackSize);
+			stack = newStack;
+		}
+		stack[stackSize++] = scope;
+	}
+
+	/**
+	 * Build an exception for malformed JSON.
+	 * 
+	 * @param message
+	 *            what's wrong
+	 * @return exception to throw
+	 */
+	private IOException syntaxError(String message)
+	{
+		return new IOException("Malformed JSON: " + message);
+	}
+
+	/**
+	 * Build an exception for input that ends part way through the document.
+	 * It's an EOFException, since that's most likely a response cut short.
+	 * 
+	 * @return exception to throw
+	 */
+	private IOException cutShort()
+	{
+		return new EOFException("Malformed JSON: Unexpected end of document");
+	}
+}
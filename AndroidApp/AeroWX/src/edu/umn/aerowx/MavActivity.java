@@ -1,10 +1,7 @@
 package edu.umn.aerowx;
 
-import java.io.IOException;
 import java.text.SimpleDateFormat;
-
-import org.json.JSONArray;
-import org.json.JSONObject;
+import java.util.Date;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
@@ -12,6 +9,7 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -23,10 +21,22 @@ import edu.umn.aerowx.MavData.Period;
 public class MavActivity extends Activity
 {
 
+	/** Views the screen fills in with data, kept in its snapshot */
+	private static final int DATA_IDS[] = { R.id.station, R.id.periodDate,
+			R.id.periodTime, R.id.tempRow, R.id.dewptRow, R.id.skyRow,
+			R.id.windRow, R.id.precipRow, R.id.thundRow, R.id.visRow,
+			R.id.ceilRow };
+
 	/** 
 	 * Values from settings.
 	 */
 	SettingsData settings;
+
+	/** Listener for the screen's data, null when nobody is looking */
+	private WeatherRepository.Listener<MavData> pendingListener;
+
+	/** When the screen was created or restarted (uptime milliseconds) */
+	private long startTime;
 	
 	@SuppressLint("SimpleDateFormat")
 	/** Format for display date */
@@ -44,14 +54,26 @@ public class MavActivity extends Activity
 	@Override
 	protected void onCreate(Bundle savedInstanceState)
 	{
+		startTime = SystemClock.uptimeMillis();
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_gfs);
 	}
 
+	/** 
+	 * Called when activity is restarted after being stopped.
+	 */
+	@Override
+	protected void onRestart()
+	{
+		startTime = SystemClock.uptimeMillis();
+		super.onRestart();
+	}
+
 	/** 
 	 * Called when activity is started or restarted.
 	 *   
-	 * Calls the server for data and populates the activity View. 
+	 * Shows what was on the screen last time (or just the station) and asks
+	 * for data. The periods are filled in when it arrives.
 	 */
 	@Override
 	protected void onStart()
@@ -60,26 +82,57 @@ public class MavActivity extends Activity
 		
 		settings = new SettingsData(this);
 
-		MavData gfs = null;
-		try
+		// Put back what was on the screen last time, before any other work.
+		if (ScreenSnapshot.show(this, DATA_IDS, settings.wxid,
+				R.string.title_activity_gfs))
 		{
-			gfs = requestGFS(settings.baseUrl);
-		} catch (Exception e)
+			Log.i(MavActivity.class.toString(), "snapshot shown after "
+					+ (SystemClock.uptimeMillis() - startTime) + " ms");
+		} else
 		{
-			Log.i(MetarActivity.class.toString(), e.getMessage());
-			errorDialog(e.getMessage());
-			return;
+			((TextView) findViewById(R.id.station)).setText(settings.wxid);
 		}
 
+		requestGFS(settings.baseUrl);
+	}
+
+	/** 
+	 * Called when activity is no longer visible.
+	 *   
+	 * Drops any response still on its way, and sets the next prefetch.
+	 */
+	@Override
+	protected void onStop()
+	{
+		WeatherRepository.getInstance(this).cancel(pendingListener);
+		pendingListener = null;
+
+		// Have the next data waiting when the screen comes back.
+		PrefetchService.schedule(this);
+		super.onStop();
+	}
+
+	/**
+	 * Copy all the MavData that fits to the view.
+	 * 
+	 * @param gfs MavData to display
+	 */
+	private void displayGFS(MavData gfs)
+	{
 		((TextView) findViewById(R.id.station)).setText(gfs.wxid);
 
 		// Find number of rows available on this layout
 		TableRow row = (TableRow) findViewById(R.id.periodDate);
 		int columns=row.getVirtualChildCount(); 
 		
-		for (int i = 0; i < Math.min(columns-1, gfs.periods.length); ++i)
+		// Only the periods shown are decoded
+		for (int i = 0; i < Math.min(columns-1, gfs.getPeriodCount()); ++i)
 		{
-			displayPeriod(i, gfs.periods[i]);
+			Period period = gfs.getPeriod(i);
+			if (period != null)
+			{
+				displayPeriod(i, period);
+			}
 		}
 	}
 
@@ -123,6 +176,39 @@ public class MavActivity extends Activity
 		return "unknown";
 	}
 
+	/**
+	 * Convert a ceiling category to display data.
+	 * 
+	 * @param ceiling MAV ceiling category
+	 * @return String with display data
+	 */
+	private String convertCeiling(short ceiling)
+	{
+		switch (ceiling)
+		{
+		case 1: return "<200ft";
+		case 2: return "200-400ft";
+		case 3: return "500-900ft";
+		case 4: return "1000-1900ft";
+		case 5: return "2000-3000ft";
+		case 6: return "3100-6500ft";
+		case 7: return "6600-12000ft";
+		case 8: return ">12000ft";
+		}
+		return "unknown";
+	}
+
+	/**
+	 * Convert a period number to display data.
+	 * 
+	 * @param value number, or MavData.MISSING
+	 * @return String with display data
+	 */
+	private String convertNumber(short value)
+	{
+		return (value == MavData.MISSING) ? "" : Integer.toString(value);
+	}
+
 	/**
 	 * Convenience method to set text into the view rows
 	 * @param id	id of row of view
@@ -151,17 +237,39 @@ public class MavActivity extends Activity
 	@SuppressLint({ "DefaultLocale", "SimpleDateFormat" })
 	private void displayPeriod(int periodIndex, Period period)
 	{
-		setView(R.id.periodDate, periodIndex, sdfDate.format(period.time));
-		setView(R.id.periodTime, periodIndex, sdfTime.format(period.time));
+		if (period.time != MavData.NO_TIME)
+		{
+			Date time = new Date(period.time);
+			setView(R.id.periodDate, periodIndex, sdfDate.format(time));
+			setView(R.id.periodTime, periodIndex, sdfTime.format(time));
+		}
 		
-		setView(R.id.tempRow, periodIndex, period.temp);
-		setView(R.id.dewptRow, periodIndex, period.dewpoint);
+		setView(R.id.tempRow, periodIndex, convertNumber(period.temp));
+		setView(R.id.dewptRow, periodIndex, convertNumber(period.dewpoint));
 		setView(R.id.skyRow, periodIndex, convertCover(period.cover));
-		setView(R.id.windRow, periodIndex, period.wind.direction + "@" + period.wind.speed);
-		setView(R.id.precipRow, periodIndex, period.pop6);
-		setView(R.id.thundRow, periodIndex, period.thund6);
+		setView(R.id.windRow, periodIndex, convertNumber(period.windDirection)
+				+ "@" + convertNumber(period.windSpeed));
+		setView(R.id.precipRow, periodIndex, convertNumber(period.pop6));
+		String thund = convertNumber(period.thund6);
+		if (period.severe6 != MavData.MISSING)
+		{
+			// Chance of severe storms, after the chance of any storm
+			thund += "/" + convertNumber(period.severe6);
+		}
+		setView(R.id.thundRow, periodIndex, thund);
 		setView(R.id.visRow, periodIndex, convertVisibility(period.visibility));
-		setView(R.id.ceilRow, periodIndex, period.ceiling);
+		setView(R.id.ceilRow, periodIndex, convertCeiling(period.ceiling));
+	}
+
+	/* (non-Javadoc)
+	 * @see android.app.Activity#onLowMemory()
+	 */
+	@Override
+	public void onLowMemory()
+	{
+		// The weather data can all be read back from the phone.
+		WeatherRepository.getInstance(this).trimMemory();
+		super.onLowMemory();
 	}
 
 	/**
@@ -193,67 +301,59 @@ public class MavActivity extends Activity
 	}
 
 	/**
-	 * request METAR data from server.
+	 * request MAV data from server.
 	 * 
-	 * If the server returns an array, pluck an object out of it.
+	 * The request runs in the background. The view is filled in with the copy
+	 * kept on the phone, if any, then again when fresh data arrives.
 	 * 
 	 * @param baseUrl
 	 *            Base URL of server.
-	 * @return METARData object
-	 * @throws Exception
-	 * 
-	 * @throws IOException
-	 *             on server error
 	 */
-	private MavData requestGFS(String baseUrl) throws Exception
+	private void requestGFS(String baseUrl)
 	{
-		MavData gfsData = null;
-
 		Log.i(MetarActivity.class.toString(), "requestGFS(" + baseUrl + ")");
 
-		JSONObject requestObject = new JSONObject();
-		requestObject.put("location", settings.wxid);
-		requestObject.put("time", "");
-		requestObject.put("source", "mav");
-
-		// The server want's it's request(s) in an array.
-		JSONArray requestArray = new JSONArray();
-		requestArray.put(requestObject);
-
-		Object responseObject = Utils.postJSON(baseUrl, requestArray);
-
-		// // At this point, all we know is that we received back a JSONArray or
-		// // JSONObject
-		JSONObject object = null;
-		if (responseObject instanceof JSONArray)
+		pendingListener = new WeatherRepository.Listener<MavData>()
 		{
-			JSONArray array = (JSONArray) responseObject;
-			if (array.length() < 1)
+			@Override
+			public void onResponse(MavData gfsData, long fetched,
+					boolean current)
 			{
-				throw new Exception("Server returned empty JSON Array");
+				if (pendingListener != this)
+				{
+					return;
+				}
+				// The kept copy may be followed by fresh data, so keep
+				// listening.
+				Log.i(MetarActivity.class.toString(), "response: "
+						+ gfsData.wxid + " " + gfsData.time);
+				displayGFS(gfsData);
+				ScreenSnapshot.keep(MavActivity.this, DATA_IDS, settings.wxid,
+						R.string.title_activity_gfs, fetched, current);
 			}
 
-			// Grab the first object in the array
-			object = array.getJSONObject(0);
-		} else
-		{
-			// It's just a plain old object. Treat it as METAR data.
-			object = (JSONObject) responseObject;
-		}
-
-		// If the object has the key "error", throw up
-		if (object.has("error"))
-		{
-			throw new Exception("Server returned error: "
-					+ object.getString("error"));
-		} else if (object.has("mav"))
-		{
-			object = (JSONObject) object.get("mav");
-		}
-
-		gfsData = new MavData(object);
-		Log.i(MetarActivity.class.toString(), "response: " + gfsData);
-		return gfsData;
+			public void onError(Exception e)
+			{
+				if (pendingListener != this)
+				{
+					return;
+				}
+				Log.i(MetarActivity.class.toString(), String.valueOf(e.getMessage()));
+				if (e instanceof OfflineException)
+				{
+					// The request goes out when the network comes back, so
+					// keep listening.
+					setTitle(getString(R.string.Offline,
+							getString(R.string.title_activity_gfs)));
+					return;
+				}
+				pendingListener = null;
+				errorDialog(e.getMessage());
+			}
+		};
+		WeatherRepository.getInstance(this).request(baseUrl,
+				new WeatherRequest(WeatherRequest.MAV, settings.wxid),
+				MavData.class, pendingListener);
 	}
 
 	/**
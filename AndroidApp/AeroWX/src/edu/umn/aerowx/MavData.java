@@ -3,18 +3,16 @@
  */
 package edu.umn.aerowx;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.TimeZone;
+import java.util.HashMap;
+import java.util.Iterator;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.annotation.SuppressLint;
 import android.util.Log;
 
 /**
@@ -39,15 +37,57 @@ public class MavData
 	// * low temperature */
 	public String low;
 
-	// * forecast periods */
+	/**
+	 * Forecast periods. Data read from JSON or WeatherCodec decodes each
+	 * period the first time it's asked for, so read them with getPeriod()
+	 * and getPeriodCount(); until then an entry here is null.
+	 */
 	public Period periods[];
 
-	/** Timezone for the Mav data (GMT) */
-	private static final TimeZone timeZone = TimeZone.getTimeZone("GMT");
+	/** Where periods not yet decoded come from; null once they all are */
+	private PeriodSource source;
+
+	/** Which periods are still to be decoded from source */
+	private boolean pending[];
+
+	/** Number of periods still to be decoded */
+	private int pendingCount;
+
+	/** Most periods in a MAV message */
+	private static final int MAX_PERIODS = 21;
+
+	/** A period number the forecast doesn't give */
+	public static final short MISSING = Short.MIN_VALUE;
+
+	/** A period time the forecast doesn't give */
+	public static final long NO_TIME = Long.MIN_VALUE;
+
+	/** The server's text for each QPF category */
+	private static final String QPF_TEXT[] = { "no precipitation",
+			"0.01 to 0.09 inches", "0.10 to 0.24 inches",
+			"0.25 to 0.49 inches", "0.50 to 0.99 inches",
+			"1.00 to 1.99 inches", "2.00 inches or greater" };
 
-	/** Format of the date and time we get from the server. */
-	@SuppressLint("SimpleDateFormat")
-	private static final SimpleDateFormat sdfMETAR = new SimpleDateFormat("MMMMM dd HH:mm yyyy zzz");
+	/** The server's text for each snowfall category (not all are used) */
+	private static final String SNOW_TEXT[] = {
+			"no snow or a trace expected", "> a trace to < 2 inches",
+			"2 to < 4 inches", null, "4 to 6 inches", null,
+			"6 to < 8 inches", null, ">= 8 inches" };
+
+	/** The server's text for each ceiling category (they start at 1) */
+	private static final String CEILING_TEXT[] = { null, "< 200 feet",
+			"200 - 400 feet", "500 - 900 feet", "1,000 - 1,900 feet",
+			"2,000 - 3,000 feet", "3,100 - 6,500 feet", "6,600 - 12,000 feet",
+			"> 12,000 feet or unlimited ceiling" };
+
+	/** Period fields read from text, the wind and time aside */
+	private static final String PERIOD_NAMES[] = { "temp", "dewpoint",
+			"cover", "pop6", "pop12", "qpf6", "qpf12", "thund6", "thund12",
+			"popz", "pops", "type", "snow", "visibility", "obscurity",
+			"ceiling" };
+
+	/** Wind fields */
+	private static final String WIND_NAMES[] = { "direction", "speed", "gust" };
 
 	/**
 	 * Constructor for empty GFSMOSMAVData
@@ -75,7 +115,205 @@ public class MavData
 		high = object.optString("high");
 		low = object.optString("low");
 
-		periods = getPeriodsArray(object.getJSONArray("periods"));
+		JSONArray array = object.getJSONArray("periods");
+		setSource(new JsonPeriods(array, System.currentTimeMillis()), array
+				.length());
+	}
+
+	/**
+	 * Constructor to create GFSMOSMAVData straight from a JSON stream.
+	 * 
+	 * The parser must be positioned at the object inside the "mav" wrapper.
+	 * A stream can't be gone back over, so the periods are all decoded here.
+	 * 
+	 * @param parser
+	 *            JSON stream from which to create GFSMOSMAVData object.
+	 * @throws IOException
+	 *             on read error, or when JSON data is invalid.
+	 */
+	public MavData(JsonPullParser parser) throws IOException
+	{
+		super();
+
+		high = "";
+		low = "";
+		periods = new Period[0];
+
+		parser.beginObject();
+		while (parser.hasNext())
+		{
+			String name = parser.nextName();
+			if (name.equals("wxid"))
+			{
+				wxid = parser.nextString();
+			} else if (name.equals("time"))
+			{
+				time = parser.nextString();
+			} else if (name.equals("high"))
+			{
+				high = parser.nextString();
+			} else if (name.equals("low"))
+			{
+				low = parser.nextString();
+			} else if (name.equals("periods"))
+			{
+				periods = getPeriodsArray(parser);
+			} else
+			{
+				parser.skipValue();
+			}
+		}
+		parser.endObject();
+	}
+
+	/**
+	 * Decodes periods one at a time, the first time each is asked for.
+	 */
+	interface PeriodSource
+	{
+		/**
+		 * Decode a period.
+		 * 
+		 * @param index
+		 *            which period
+		 * @return the period, or null if the MAV doesn't have it
+		 * @throws IOException
+		 *             if it can't be read
+		 */
+		Period decode(int index) throws IOException;
+	}
+
+	/**
+	 * Periods left as the JSON objects they came in.
+	 */
+	private static class JsonPeriods implements PeriodSource
+	{
+		private final JSONArray array;
+
+		/** When the MAV was read, for the years of the period times */
+		private final long now;
+
+		JsonPeriods(JSONArray array, long now)
+		{
+			this.array = array;
+			this.now = now;
+		}
+
+		@Override
+		public Period decode(int index) throws IOException
+		{
+			if (array.opt(index) == JSONObject.NULL)
+			{
+				return null;
+			}
+			try
+			{
+				return new Period(array.getJSONObject(index), now);
+			} catch (JSONException e)
+			{
+				IOException exception = new IOException("bad period " + index);
+				exception.initCause(e);
+				throw exception;
+			}
+		}
+	}
+
+	/**
+	 * Leave the periods to be decoded as they're asked for.
+	 * 
+	 * @param source
+	 *            where they come from
+	 * @param count
+	 *            how many there are
+	 */
+	synchronized void setSource(PeriodSource source, int count)
+	{
+		periods = new Period[count];
+		pending = new boolean[count];
+		Arrays.fill(pending, true);
+		pendingCount = count;
+		this.source = (count > 0) ? source : null;
+	}
+
+	/**
+	 * Get where a period not yet decoded comes from.
+	 * 
+	 * @param index
+	 *            which period
+	 * @return its source, or null if it's been decoded (or was never left
+	 *         to be)
+	 */
+	synchronized PeriodSource getSource(int index)
+	{
+		return (source != null && pending[index]) ? source : null;
+	}
+
+	/**
+	 * Get the number of forecast periods.
+	 * 
+	 * @return number of periods, 0 if there are none
+	 */
+	public synchronized int getPeriodCount()
+	{
+		return (periods == null) ? 0 : periods.length;
+	}
+
+	/**
+	 * Get a forecast period, decoding it the first time it's asked for.
+	 * Periods a layout doesn't show are never decoded.
+	 * 
+	 * @param index
+	 *            which period, 0 to getPeriodCount() - 1
+	 * @return the period, or null if the MAV doesn't have it (or it can't be
+	 *         read)
+	 */
+	public synchronized Period getPeriod(int index)
+	{
+		if (source != null && pending[index])
+		{
+			pending[index] = false;
+			try
+			{
+				periods[index] = source.decode(index);
+			} catch (IOException e)
+			{
+				Log.i(MavData.class.toString(), "can't decode period " + index
+						+ " for " + wxid + ": " + e);
+			}
+			if (--pendingCount == 0)
+			{
+				source = null;
+				pending = null;
+			}
+		}
+		return periods[index];
+	}
+
+	/**
+	 * Replace a forecast period, whether or not it's been decoded.
+	 * 
+	 * @param index
+	 *            which period, 0 to getPeriodCount() - 1
+	 * @param period
+	 *            the period, or null for none
+	 */
+	public synchronized void setPeriod(int index, Period period)
+	{
+		getPeriod(index);
+		periods[index] = period;
+	}
+
+	/**
+	 * Decode every period not yet decoded, for comparing or writing them
+	 * all.
+	 */
+	private void decodeAll()
+	{
+		int count = getPeriodCount();
+		for (int i = 0; i < count; ++i)
+		{
+			getPeriod(i);
+		}
 	}
 
 	/**
@@ -93,6 +331,7 @@ public class MavData
 		object.put("time", time);
 		object.put("high", high);
 		object.put("low", low);
+		decodeAll();
 		if (periods != null)
 		{
 			object.put("periods", toJSONArray(periods));
@@ -100,13 +339,15 @@ public class MavData
 		return object;
 	}
 
-	/** Quintessential toString method */
+	/**
+	 * Quintessential toString method. Gives the number of periods, not what's
+	 * in them, so logging a MAV doesn't decode them.
+	 */
 	@Override
 	public String toString()
 	{
 		return "GFSData [wxid=" + wxid + ", time=" + time + ", high=" + high
-				+ ", low=" + low + ", periods=" + Arrays.toString(periods)
-				+ "]";
+				+ ", low=" + low + ", periods=" + getPeriodCount() + "]";
 	}
 
 	/*
@@ -117,11 +358,12 @@ public class MavData
 	@Override
 	public int hashCode()
 	{
+		// Leaves out the periods, so it doesn't decode them
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + ((high == null) ? 0 : high.hashCode());
 		result = prime * result + ((low == null) ? 0 : low.hashCode());
-		result = prime * result + Arrays.hashCode(periods);
+		result = prime * result + getPeriodCount();
 		result = prime * result + ((time == null) ? 0 : time.hashCode());
 		result = prime * result + ((wxid == null) ? 0 : wxid.hashCode());
 		return result;
@@ -175,6 +417,8 @@ public class MavData
 			Log.d(getClass().getName(), "low="+low+" && other.low="+other.low);
 			return false;
 		}
+		decodeAll();
+		other.decodeAll();
 		if (!Arrays.equals(periods, other.periods))
 		{
 			Log.d(getClass().getName(), "Arrays !=");
@@ -212,7 +456,34 @@ public class MavData
 	 */
 	public enum Cover
 	{
-		CLEAR, FEW, SCATTERED, BROKEN, OVERCAST, UNKNOWN;
+		CLEAR("clear"),
+		FEW("few > 0 to 2 octas"),
+		SCATTERED("scattered > 2 to 4 octas"),
+		BROKEN("broken > 4 to < 8 octas"),
+		OVERCAST("overcast"),
+		UNKNOWN(null);
+
+		/** What the server sends */
+		private final String text;
+
+		/** Each value by its text and by its name (stored on the phone) */
+		private static final HashMap<String, Cover> lookup = new HashMap<String, Cover>();
+		static
+		{
+			for (Cover value : values())
+			{
+				lookup.put(value.name(), value);
+				if (value.text != null)
+				{
+					lookup.put(value.text, value);
+				}
+			}
+		}
+
+		private Cover(String text)
+		{
+			this.text = text;
+		}
 
 		/**
 		 * The JSON field for cover contains some (IMHO) extraneous text. This
@@ -223,12 +494,8 @@ public class MavData
 		 */
 		public static Cover convert(String cover)
 		{
-			if (cover.contains("clear")) return Cover.CLEAR;
-			if (cover.contains("few")) return Cover.FEW;
-			if (cover.contains("scattered")) return Cover.SCATTERED;
-			if (cover.contains("broken")) return Cover.BROKEN;
-			if (cover.contains("overcast")) return Cover.OVERCAST;
-			return Cover.UNKNOWN;
+			Cover value = lookup.get(cover);
+			return (value == null) ? Cover.UNKNOWN : value;
 		}
 	}
 
@@ -237,100 +504,223 @@ public class MavData
 	 */
 	public enum Visibility
 	{
-		V1,		//"< 1/2 miles" 
-		V2,		//"1/2 - < 1 miles"
-		V3,		//"1 - < 2 miles"
-		V4,		//"2 - < 3 miles"
-		V5,		//"3 - 5 miles"
-		V6,		//"6 miles"
-		V7,		//"> 6 miles"}
-		UNKNOWN;
+		V1("< 1/2 miles"),
+		V2("1/2 - < 1 miles"),
+		V3("1 - < 2 miles"),
+		V4("2 - < 3 miles"),
+		V5("3 - 5 miles"),
+		V6("6 miles"),
+		V7("> 6 miles"),
+		UNKNOWN(null);
+
+		/** What the server sends */
+		private final String text;
+
+		/** Each value by its text and by its name (stored on the phone) */
+		private static final HashMap<String, Visibility> lookup = new HashMap<String, Visibility>();
+		static
+		{
+			for (Visibility value : values())
+			{
+				lookup.put(value.name(), value);
+				if (value.text != null)
+				{
+					lookup.put(value.text, value);
+				}
+			}
+		}
+
+		private Visibility(String text)
+		{
+			this.text = text;
+		}
 
 		/**
 		 * The JSON field for visibility contains some (IMHO) extraneous text. This
 		 * converts to a more compact form.
 		 * 
-		 * @param cover Verbose string
+		 * @param visibility Verbose string
 		 * @return 
 		 */
-		public static Visibility convert(String cover)
+		public static Visibility convert(String visibility)
 		{
-			if (cover.contains("< 1/2 miles" )) return Visibility.V1;
-			if (cover.contains("1/2 - < 1 miles")) return Visibility.V2;
-			if (cover.contains("1 - < 2 miles")) return Visibility.V3;
-			if (cover.contains("2 - < 3 miles")) return Visibility.V4;
-			if (cover.contains("3 - 5 miles")) return Visibility.V5;
-			if (cover.contains("6 miles")) return Visibility.V6;
-			if (cover.contains("> 6 miles")) return Visibility.V7;
-			return Visibility.UNKNOWN;
+			Visibility value = lookup.get(visibility);
+			return (value == null) ? Visibility.UNKNOWN : value;
 		}
 	}
-	
-	
+
+	/**
+	 * Enum for precipitation type values.
+	 */
+	public enum Precipitation
+	{
+		SNOW("pure snow or snow grains"),
+		FREEZING("freezing rain/drizzle, ice pellets, or anything mixed with freezing precip"),
+		RAIN("pure rain/drizzle or rain mixed with snow"),
+		UNKNOWN(null);
+
+		/** What the server sends */
+		private final String text;
+
+		/** Each value by its text and by its name (stored on the phone) */
+		private static final HashMap<String, Precipitation> lookup = new HashMap<String, Precipitation>();
+		static
+		{
+			for (Precipitation value : values())
+			{
+				lookup.put(value.name(), value);
+				if (value.text != null)
+				{
+					lookup.put(value.text, value);
+				}
+			}
+		}
+
+		private Precipitation(String text)
+		{
+			this.text = text;
+		}
+
+		/**
+		 * Convert the server's text, or a name stored on the phone.
+		 * 
+		 * @param type Verbose string
+		 * @return 
+		 */
+		public static Precipitation convert(String type)
+		{
+			Precipitation value = lookup.get(type);
+			return (value == null) ? Precipitation.UNKNOWN : value;
+		}
+	}
+
+	/**
+	 * Enum for obstruction to vision values.
+	 */
+	public enum Obscurity
+	{
+		NONE("none"),
+		HAZE("haze, smoke, dust"),
+		MIST("mist (fog with visibility >= 5/8 mile)"),
+		FOG("fog or ground fog (visibility < 5/8 mile)"),
+		BLOWING("blowing dust, sand, snow"),
+		UNKNOWN(null);
+
+		/** What the server sends */
+		private final String text;
+
+		/** Each value by its text and by its name (stored on the phone) */
+		private static final HashMap<String, Obscurity> lookup = new HashMap<String, Obscurity>();
+		static
+		{
+			for (Obscurity value : values())
+			{
+				lookup.put(value.name(), value);
+				if (value.text != null)
+				{
+					lookup.put(value.text, value);
+				}
+			}
+		}
+
+		private Obscurity(String text)
+		{
+			this.text = text;
+		}
+
+		/**
+		 * Convert the server's text, or a name stored on the phone.
+		 * 
+		 * @param obscurity Verbose string
+		 * @return 
+		 */
+		public static Obscurity convert(String obscurity)
+		{
+			Obscurity value = lookup.get(obscurity);
+			return (value == null) ? Obscurity.UNKNOWN : value;
+		}
+	}
+
 	/**
-	 * Subclass for Period information
+	 * Subclass for Period information.
+	 * 
+	 * Numbers are parsed once, when the period is read, and kept as shorts;
+	 * MISSING marks one the forecast doesn't give. Categories (QPF, snow,
+	 * ceiling) are kept as the MAV's own category number.
 	 */
-	public class Period
+	public static class Period
 	{
-		/** Time of period */
-		public Date time;
+		/** Time of period (milliseconds), or NO_TIME */
+		public long time = NO_TIME;
 
-		/** Temperature */
-		public String temp;
+		/** Temperature (F) */
+		public short temp = MISSING;
 
-		/** Dewpoint */
-		public String dewpoint;
+		/** Dewpoint (F) */
+		public short dewpoint = MISSING;
 
 		/** Cloud cover */
 		public Cover cover;
 
-		/** Surface wind */
-		public Wind wind;
+		/** Surface wind direction (degrees true) */
+		public short windDirection = MISSING;
+
+		/** Surface wind speed (knots) */
+		public short windSpeed = MISSING;
+
+		/** Surface wind gust speed (knots) */
+		public short windGust = MISSING;
 
-		/** Probability of precipitation for previous 6 hours */
-		public String pop6;
+		/** Probability of precipitation for previous 6 hours (percent) */
+		public short pop6 = MISSING;
 
-		/** Probability of precipitation for previous 12 hours */
-		public String pop12;
+		/** Probability of precipitation for previous 12 hours (percent) */
+		public short pop12 = MISSING;
 
 		/**
 		 * Quantitative precipitation forecast (accumulation) for previous 6
-		 * hours
+		 * hours (category 0-6)
 		 */
-		public String qpf6;
+		public short qpf6 = MISSING;
 
 		/**
 		 * Quantitative precipitation forecast (accumulation) for previous 12
-		 * hours
+		 * hours (category 0-6)
 		 */
-		public String qpf12;
+		public short qpf12 = MISSING;
 
-		/** Probability of thunderstorms for previous 6 hours */
-		public String thund6;
+		/** Probability of thunderstorms for previous 6 hours (percent) */
+		public short thund6 = MISSING;
 
-		/** Probability of thunderstorms for previous 12 hours */
-		public String thund12;
+		/** Probability of severe thunderstorms for previous 6 hours, if any */
+		public short severe6 = MISSING;
 
-		/** Probability of freezing precipitation */
-		public String popz;
+		/** Probability of thunderstorms for previous 12 hours (percent) */
+		public short thund12 = MISSING;
 
-		/** Probability of snow */
-		public String pops;
+		/** Probability of severe thunderstorms for previous 12 hours, if any */
+		public short severe12 = MISSING;
+
+		/** Probability of freezing precipitation (percent) */
+		public short popz = MISSING;
+
+		/** Probability of snow (percent) */
+		public short pops = MISSING;
 
 		/** Precipitation type */
-		public String type;
+		public Precipitation type;
 
-		/** Snowfall accumulation */
-		public String snow;
+		/** Snowfall accumulation (category 0, 1, 2, 4, 6 or 8) */
+		public short snow = MISSING;
 
 		/** Visibility */
 		public Visibility visibility;
 
 		/** possible reason for obscurity (fog, smoke, etc) */
-		public String obscurity;
+		public Obscurity obscurity;
 
-		/** Ceiling altitude */
-		public String ceiling;
+		/** Ceiling altitude (category 1-8) */
+		public short ceiling = MISSING;
 
 		/**
 		 * Constructor for empty Period data
@@ -338,7 +728,6 @@ public class MavData
 		public Period()
 		{
 			super();
-			wind = new Wind();
 		}
 
 		/**
@@ -352,423 +741,226 @@ public class MavData
 		 */
 		public Period(JSONObject object) throws JSONException
 		{
-			String date = object.optString("date");
-			String hour = object.optString("hour");
-			time = convertTime(date, hour);
-			temp = object.optString("temp");
-			dewpoint = object.optString("dewpoint");
-			cover = Cover.convert(object.optString("cover"));
-			wind = new Wind(object.getJSONObject("wind"));
-			pop6 = object.optString("pop6");
-			pop12 = object.optString("pop12");
-			qpf6 = object.optString("qpf6");
-			qpf12 = object.optString("qpf12");
-			thund6 = object.optString("thund6");
-			thund12 = object.optString("thund12");
-			popz = object.optString("popz");
-			pops = object.optString("pops");
-			type = object.optString("type");
-			snow = object.optString("snow");
-			visibility = Visibility.convert(object.optString("visibility"));
-			obscurity = object.optString("obscurity");
-			ceiling = object.optString("ceiling");
-		}
-
-		private Date convertTime(String dateString, String hourString)
-		{
-			Calendar currentDate=Calendar.getInstance(timeZone);
-			
-			Date date = null;
-			try
-			{
-				date=sdfMETAR.parse(dateString+" "+hourString+":00 "+currentDate.get(Calendar.YEAR)+" GMT");
-			} catch (ParseException e)
-			{
-				return null;
-			}
-			
-			return date;
+			this(object, System.currentTimeMillis());
 		}
 
 		/**
-		 * Serialize a Period object into JSON
+		 * Constructor to create Period from JSONObject, one of a batch.
 		 * 
-		 * @return JSONObject containing all the stuff.
+		 * @param object
+		 *            JSON object from which to create Period object.
+		 * @param now
+		 *            time the batch is read, for working out the year
 		 * 
 		 * @throws JSONException
-		 *             When JSON barfs on bad data.
+		 *             when JSON data is invalid.
 		 */
-		public Object toJSONObject() throws JSONException
+		Period(JSONObject object, long now) throws JSONException
 		{
-			JSONObject object = new JSONObject();
+			setUnknown();
 
-			object.put("time", time);
-			object.put("temp", temp);
-			object.put("dewpoint", dewpoint);
-			object.put("cover", cover);
-			if (wind != null)
-			{
-				object.put("wind", wind.toJSONObject());
-			}
-			object.put("pop6", pop6);
-			object.put("pop12", pop12);
-			object.put("qpf6", qpf6);
-			object.put("qpf12", qpf12);
-			object.put("thund6", thund6);
-			object.put("thund12", thund12);
-			object.put("popz", popz);
-			object.put("pops", pops);
-			object.put("type", type);
-			object.put("snow", snow);
-			object.put("visibility", visibility);
-			object.put("obscurity", obscurity);
-			object.put("ceiling", ceiling);
+			Iterator<?> names = object.keys();
+			while (names.hasNext())
+			{
+				String name = (String) names.next();
+				if (!name.equals("wind") && !name.equals("time"))
+				{
+					set(name, object.optString(name));
+				}
+			}
 
-			return object;
-		}
+			JSONObject wind = object.getJSONObject("wind");
+			names = wind.keys();
+			while (names.hasNext())
+			{
+				String name = (String) names.next();
+				setWind(name, wind.optString(name));
+			}
 
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see java.lang.Object#toString()
-		 */
-		@Override
-		public String toString()
-		{
-			return "Period [time=" + time + ", temp=" + temp
-					+ ", dewpoint=" + dewpoint + ", cover=" + cover + ", wind="
-					+ wind + ", pop6=" + pop6 + ", pop12=" + pop12 + ", qpf6="
-					+ qpf6 + ", qpf12=" + qpf12 + ", thund6=" + thund6
-					+ ", thund12=" + thund12 + ", popz=" + popz + ", pops="
-					+ pops + ", type=" + type + ", snow=" + snow
-					+ ", visibility=" + visibility + ", obscurity=" + obscurity
-					+ ", ceiling=" + ceiling + "]";
+			Object timeValue = object.opt("time");
+			time = (timeValue instanceof Number) ? ((Number) timeValue)
+					.longValue() : convertTime(object.optString("date"),
+					object.optString("hour"), now);
 		}
 
-		/*
-		 * (non-Javadoc)
+		/**
+		 * Constructor to create Period straight from a JSON stream.
 		 * 
-		 * @see java.lang.Object#hashCode()
+		 * @param parser
+		 *            JSON stream from which to create Period object.
+		 * 
+		 * @throws IOException
+		 *             on read error, or when JSON data is invalid.
 		 */
-		@Override
-		public int hashCode()
+		public Period(JsonPullParser parser) throws IOException
 		{
-			final int prime = 31;
-			int result = 1;
-			result = prime * result
-					+ ((ceiling == null) ? 0 : ceiling.hashCode());
-			result = prime * result + ((cover == null) ? 0 : cover.hashCode());
-			result = prime * result + ((time == null) ? 0 : time.hashCode());
-			result = prime * result
-					+ ((dewpoint == null) ? 0 : dewpoint.hashCode());
-			result = prime * result
-					+ ((obscurity == null) ? 0 : obscurity.hashCode());
-			result = prime * result + ((pop12 == null) ? 0 : pop12.hashCode());
-			result = prime * result + ((pop6 == null) ? 0 : pop6.hashCode());
-			result = prime * result + ((pops == null) ? 0 : pops.hashCode());
-			result = prime * result + ((popz == null) ? 0 : popz.hashCode());
-			result = prime * result + ((qpf12 == null) ? 0 : qpf12.hashCode());
-			result = prime * result + ((qpf6 == null) ? 0 : qpf6.hashCode());
-			result = prime * result + ((snow == null) ? 0 : snow.hashCode());
-			result = prime * result + ((temp == null) ? 0 : temp.hashCode());
-			result = prime * result
-					+ ((thund12 == null) ? 0 : thund12.hashCode());
-			result = prime * result
-					+ ((thund6 == null) ? 0 : thund6.hashCode());
-			result = prime * result + ((type == null) ? 0 : type.hashCode());
-			result = prime * result
-					+ ((visibility == null) ? 0 : visibility.hashCode());
-			result = prime * result + ((wind == null) ? 0 : wind.hashCode());
-			return result;
+			this(parser, System.currentTimeMillis());
 		}
 
-		/*
-		 * (non-Javadoc)
+		/**
+		 * Constructor to create Period straight from a JSON stream, one of a
+		 * batch.
 		 * 
-		 * @see java.lang.Object#equals(java.lang.Object)
+		 * @param parser
+		 *            JSON stream from which to create Period object.
+		 * @param now
+		 *            time the batch is read, for working out the year
+		 * 
+		 * @throws IOException
+		 *             on read error, or when JSON data is invalid.
 		 */
-		@Override
-		public boolean equals(Object obj)
+		Period(JsonPullParser parser, long now) throws IOException
 		{
-			if (this == obj)
-			{
-				return true;
-			}
-			if (obj == null)
-			{
-				return false;
-			}
-			if (getClass() != obj.getClass())
-			{
-				return false;
-			}
-			Period other = (Period) obj;
-			if (ceiling == null)
-			{
-				if (other.ceiling != null)
-				{
-					return false;
-				}
-			} else if (!ceiling.equals(other.ceiling))
-			{
-				return false;
-			}
-			if (cover == null)
-			{
-				if (other.cover != null)
-				{
-					return false;
-				}
-			} else if (!cover.equals(other.cover))
-			{
-				return false;
-			}
-			if (time == null)
-			{
-				if (other.time != null)
-				{
-					return false;
-				}
-			} else if (!time.equals(other.time))
-			{
-				return false;
-			}
-			if (dewpoint == null)
+			String date = "";
+			String hour = "";
+			long millis = -1;
+			boolean hasWind = false;
+			setUnknown();
+
+			parser.beginObject();
+			while (parser.hasNext())
 			{
-				if (other.dewpoint != null)
+				String name = parser.nextName();
+				if (name.equals("date"))
 				{
-					return false;
-				}
-			} else if (!dewpoint.equals(other.dewpoint))
-			{
-				return false;
-			}
-			if (obscurity == null)
-			{
-				if (other.obscurity != null)
+					date = parser.nextString();
+				} else if (name.equals("hour"))
 				{
-					return false;
-				}
-			} else if (!obscurity.equals(other.obscurity))
-			{
-				return false;
-			}
-			if (pop12 == null)
-			{
-				if (other.pop12 != null)
+					hour = parser.nextString();
+				} else if (name.equals("time"))
 				{
-					return false;
-				}
-			} else if (!pop12.equals(other.pop12))
-			{
-				return false;
-			}
-			if (pop6 == null)
-			{
-				if (other.pop6 != null)
+					// Milliseconds when stored on the phone
+					millis = Long.parseLong(parser.nextString());
+				} else if (name.equals("wind"))
 				{
-					return false;
-				}
-			} else if (!pop6.equals(other.pop6))
-			{
-				return false;
-			}
-			if (pops == null)
-			{
-				if (other.pops != null)
+					hasWind = true;
+					parser.beginObject();
+					while (parser.hasNext())
+					{
+						String windName = parser.nextName();
+						if (isName(windName, WIND_NAMES))
+						{
+							setWind(windName, parser.nextString());
+						} else
+						{
+							parser.skipValue();
+						}
+					}
+					parser.endObject();
+				} else if (isName(name, PERIOD_NAMES))
 				{
-					return false;
-				}
-			} else if (!pops.equals(other.pops))
-			{
-				return false;
-			}
-			if (popz == null)
-			{
-				if (other.popz != null)
+					set(name, parser.nextString());
+				} else
 				{
-					return false;
+					parser.skipValue();
 				}
-			} else if (!popz.equals(other.popz))
-			{
-				return false;
 			}
-			if (qpf12 == null)
-			{
-				if (other.qpf12 != null)
-				{
-					return false;
-				}
-			} else if (!qpf12.equals(other.qpf12))
+			parser.endObject();
+
+			if (!hasWind)
 			{
-				return false;
+				throw new IOException("Period has no wind");
 			}
-			if (qpf6 == null)
+			time = (millis >= 0) ? millis : convertTime(date, hour, now);
+		}
+
+		/**
+		 * What a period read from the server has before its fields are set.
+		 */
+		private void setUnknown()
+		{
+			cover = Cover.convert("");
+			type = Precipitation.convert("");
+			visibility = Visibility.convert("");
+			obscurity = Obscurity.convert("");
+		}
+
+		/**
+		 * Set one field from the server's text for it.
+		 * 
+		 * Names that aren't a field here are left alone.
+		 */
+		private void set(String name, String value)
+		{
+			if (name.equals("temp"))
 			{
-				if (other.qpf6 != null)
-				{
-					return false;
-				}
-			} else if (!qpf6.equals(other.qpf6))
+				temp = parseNumber(value, 0);
+			} else if (name.equals("dewpoint"))
 			{
-				return false;
-			}
-			if (snow == null)
+				dewpoint = parseNumber(value, 0);
+			} else if (name.equals("cover"))
 			{
-				if (other.snow != null)
-				{
-					return false;
-				}
-			} else if (!snow.equals(other.snow))
+				cover = Cover.convert(value);
+			} else if (name.equals("pop6"))
 			{
-				return false;
-			}
-			if (temp == null)
+				pop6 = parseNumber(value, 0);
+			} else if (name.equals("pop12"))
 			{
-				if (other.temp != null)
-				{
-					return false;
-				}
-			} else if (!temp.equals(other.temp))
+				pop12 = parseNumber(value, 0);
+			} else if (name.equals("qpf6"))
 			{
-				return false;
-			}
-			if (thund12 == null)
+				qpf6 = category(value, QPF_TEXT);
+			} else if (name.equals("qpf12"))
 			{
-				if (other.thund12 != null)
-				{
-					return false;
-				}
-			} else if (!thund12.equals(other.thund12))
+				qpf12 = category(value, QPF_TEXT);
+			} else if (name.equals("thund6"))
 			{
-				return false;
-			}
-			if (thund6 == null)
+				thund6 = parseNumber(value, 0);
+				severe6 = parseSevere(value);
+			} else if (name.equals("thund12"))
 			{
-				if (other.thund6 != null)
-				{
-					return false;
-				}
-			} else if (!thund6.equals(other.thund6))
+				thund12 = parseNumber(value, 0);
+				severe12 = parseSevere(value);
+			} else if (name.equals("popz"))
 			{
-				return false;
-			}
-			if (type == null)
+				popz = parseNumber(value, 0);
+			} else if (name.equals("pops"))
 			{
-				if (other.type != null)
-				{
-					return false;
-				}
-			} else if (!type.equals(other.type))
+				pops = parseNumber(value, 0);
+			} else if (name.equals("type"))
 			{
-				return false;
-			}
-			if (visibility == null)
+				type = Precipitation.convert(value);
+			} else if (name.equals("snow"))
 			{
-				if (other.visibility != null)
-				{
-					return false;
-				}
-			} else if (!visibility.equals(other.visibility))
+				snow = category(value, SNOW_TEXT);
+			} else if (name.equals("visibility"))
 			{
-				return false;
-			}
-			if (wind == null)
+				visibility = Visibility.convert(value);
+			} else if (name.equals("obscurity"))
 			{
-				if (other.wind != null)
-				{
-					return false;
-				}
-			} else if (!wind.equals(other.wind))
+				obscurity = Obscurity.convert(value);
+			} else if (name.equals("ceiling"))
 			{
-				return false;
+				ceiling = category(value, CEILING_TEXT);
 			}
-			return true;
-		}
-	}
-
-	/**
-	 * Create Period array from JSON
-	 * 
-	 * @param jsonArray
-	 *            JSONArray containing period data
-	 * @return Period array.
-	 * @throws JSONException
-	 *             when JSON data is invalid.
-	 */
-	private Period[] getPeriodsArray(JSONArray jsonArray) throws JSONException
-	{
-		int length = jsonArray.length();
-		Period periods[] = new Period[length];
-
-		for (int i = 0; i < jsonArray.length(); i++)
-		{
-			periods[i] = new MavData.Period(
-					(JSONObject) (jsonArray.get(i)));
-		}
-		return periods;
-	}
-
-	/**
-	 * Serialize a Period array into JSON
-	 * 
-	 * @param periods
-	 *            period array
-	 * @return JSONObject containing all the stuff.
-	 * @throws JSONException
-	 *             When JSON barfs on bad data.
-	 */
-	private Object toJSONArray(Period[] periods) throws JSONException
-	{
-		JSONArray jsonArray = new JSONArray();
-
-		for (Period period : periods)
-		{
-			jsonArray.put(period.toJSONObject());
 		}
-		return jsonArray;
-	}
-
-	/**
-	 * Subclass for Wind information
-	 */
-	public class Wind
-	{
-		/** direction */
-		public String direction;
-
-		/** speed */
-		public String speed;
-
-		/** optional wind gust speed */
-		public String gust;
 
 		/**
-		 * Constructor for empty Wind data
-		 */
-		public Wind()
-		{
-			super();
-		}
-
-		/**
-		 * Constructor to create Wind from JSONObject.
-		 * 
-		 * @param object
-		 *            JSON object from which to create Wind object.
+		 * Set one wind field from the server's text for it.
 		 * 
-		 * @throws JSONException
-		 *             when JSON data is invalid.
+		 * Names that aren't a wind field are left alone.
 		 */
-		public Wind(JSONObject object) throws JSONException
+		private void setWind(String name, String value)
 		{
-			direction = object.optString("direction");
-			speed = object.optString("speed");
-			gust = object.optString("gust", null);
+			if (name.equals("direction"))
+			{
+				// Tens of degrees in the MAV
+				windDirection = parseNumber(value, 0);
+				if (windDirection != MISSING)
+				{
+					windDirection *= 10;
+				}
+			} else if (name.equals("speed"))
+			{
+				windSpeed = parseNumber(value, 0);
+			} else if (name.equals("gust"))
+			{
+				windGust = parseNumber(value, 0);
+			}
 		}
 
 		/**
-		 * Serialize a Wind object into JSON
+		 * Serialize a Period object into JSON, as the server sends it.
 		 * 
 		 * @return JSONObject containing all the stuff.
 		 * 
@@ -778,21 +970,69 @@ public class MavData
 		public Object toJSONObject() throws JSONException
 		{
 			JSONObject object = new JSONObject();
-			object.put("direction", direction);
-			object.put("speed", speed);
-			if (gust != null)
+
+			if (time != NO_TIME)
+			{
+				object.put("time", time);
+			}
+			object.put("temp", format(temp));
+			object.put("dewpoint", format(dewpoint));
+			if (cover != null)
 			{
-				object.put("gust", gust);
+				object.put("cover", cover.name());
 			}
+
+			JSONObject wind = new JSONObject();
+			wind.put("direction", (windDirection == MISSING) ? format(MISSING)
+					: Integer.toString(windDirection / 10));
+			wind.put("speed", format(windSpeed));
+			wind.put("gust", format(windGust));
+			object.put("wind", wind);
+
+			object.put("pop6", format(pop6));
+			object.put("pop12", format(pop12));
+			object.put("qpf6", format(qpf6, QPF_TEXT));
+			object.put("qpf12", format(qpf12, QPF_TEXT));
+			object.put("thund6", format(thund6, severe6));
+			object.put("thund12", format(thund12, severe12));
+			object.put("popz", format(popz));
+			object.put("pops", format(pops));
+			if (type != null)
+			{
+				object.put("type", type.name());
+			}
+			object.put("snow", format(snow, SNOW_TEXT));
+			if (visibility != null)
+			{
+				object.put("visibility", visibility.name());
+			}
+			if (obscurity != null)
+			{
+				object.put("obscurity", obscurity.name());
+			}
+			object.put("ceiling", format(ceiling, CEILING_TEXT));
+
 			return object;
 		}
 
-		/** Quintessential toString method */
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
 		@Override
 		public String toString()
 		{
-			return "Wind [direction=" + direction + ", speed=" + speed
-					+ ", gust=" + gust + "]";
+			return "Period [time=" + time + ", temp=" + temp
+					+ ", dewpoint=" + dewpoint + ", cover=" + cover
+					+ ", windDirection=" + windDirection + ", windSpeed="
+					+ windSpeed + ", windGust=" + windGust + ", pop6=" + pop6
+					+ ", pop12=" + pop12 + ", qpf6=" + qpf6 + ", qpf12="
+					+ qpf12 + ", thund6=" + thund6 + ", severe6=" + severe6
+					+ ", thund12=" + thund12 + ", severe12=" + severe12
+					+ ", popz=" + popz + ", pops=" + pops + ", type=" + type
+					+ ", snow=" + snow + ", visibility=" + visibility
+					+ ", obscurity=" + obscurity + ", ceiling=" + ceiling + "]";
 		}
 
 		/*
@@ -805,10 +1045,30 @@ public class MavData
 		{
 			final int prime = 31;
 			int result = 1;
+			result = prime * result + (int) (time ^ (time >>> 32));
+			result = prime * result + temp;
+			result = prime * result + dewpoint;
+			result = prime * result + ((cover == null) ? 0 : cover.hashCode());
+			result = prime * result + windDirection;
+			result = prime * result + windSpeed;
+			result = prime * result + windGust;
+			result = prime * result + pop6;
+			result = prime * result + pop12;
+			result = prime * result + qpf6;
+			result = prime * result + qpf12;
+			result = prime * result + thund6;
+			result = prime * result + severe6;
+			result = prime * result + thund12;
+			result = prime * result + severe12;
+			result = prime * result + popz;
+			result = prime * result + pops;
+			result = prime * result + ((type == null) ? 0 : type.hashCode());
+			result = prime * result + snow;
+			result = prime * result
+					+ ((visibility == null) ? 0 : visibility.hashCode());
 			result = prime * result
-					+ ((direction == null) ? 0 : direction.hashCode());
-			result = prime * result + ((gust == null) ? 0 : gust.hashCode());
-			result = prime * result + ((speed == null) ? 0 : speed.hashCode());
+					+ ((obscurity == null) ? 0 : obscurity.hashCode());
+			result = prime * result + ceiling;
 			return result;
 		}
 
@@ -832,38 +1092,191 @@ public class MavData
 			{
 				return false;
 			}
-			Wind other = (Wind) obj;
-			if (direction == null)
+			Period other = (Period) obj;
+			return time == other.time && temp == other.temp
+					&& dewpoint == other.dewpoint && cover == other.cover
+					&& windDirection == other.windDirection
+					&& windSpeed == other.windSpeed
+					&& windGust == other.windGust && pop6 == other.pop6
+					&& pop12 == other.pop12 && qpf6 == other.qpf6
+					&& qpf12 == other.qpf12 && thund6 == other.thund6
+					&& severe6 == other.severe6 && thund12 == other.thund12
+					&& severe12 == other.severe12 && popz == other.popz
+					&& pops == other.pops && type == other.type
+					&& snow == other.snow && visibility == other.visibility
+					&& obscurity == other.obscurity
+					&& ceiling == other.ceiling;
+		}
+	}
+
+	/**
+	 * Read a whole number from some text, as the server sends them ("45",
+	 * "-3", either half of "12/3"). Spaces around it are skipped: the server
+	 * leaves the MAV's column padding on some fields (" 30").
+	 * 
+	 * @param text
+	 *            text from the server
+	 * @param start
+	 *            where the number starts
+	 * @return the number, or MISSING if there isn't one ("None", "", too big)
+	 */
+	static short parseNumber(String text, int start)
+	{
+		int length = text.length();
+		while (start < length && Character.isWhitespace(text.charAt(start)))
+		{
+			++start;
+		}
+		boolean negative = start < length && text.charAt(start) == '-';
+		int first = negative ? start + 1 : start;
+		int value = 0;
+		int i = first;
+		for (; i < length; ++i)
+		{
+			char c = text.charAt(i);
+			if (c < '0' || c > '9')
 			{
-				if (other.direction != null)
-				{
-					return false;
-				}
-			} else if (!direction.equals(other.direction))
+				break;
+			}
+			value = value * 10 + (c - '0');
+			if (value > Short.MAX_VALUE)
 			{
-				return false;
+				return MISSING;
 			}
-			if (gust == null)
+		}
+		if (i == first)
+		{
+			return MISSING;
+		}
+		return (short) (negative ? -value : value);
+	}
+
+	/**
+	 * Read the severe thunderstorm half of "12/3".
+	 * 
+	 * @return the number after the slash, or MISSING if there isn't one
+	 */
+	private static short parseSevere(String text)
+	{
+		int slash = text.indexOf('/');
+		return (slash < 0) ? MISSING : parseNumber(text, slash + 1);
+	}
+
+	/**
+	 * Is a name one of some field names?
+	 */
+	private static boolean isName(String name, String names[])
+	{
+		for (String known : names)
+		{
+			if (known.equals(name))
 			{
-				if (other.gust != null)
-				{
-					return false;
-				}
-			} else if (!gust.equals(other.gust))
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Look up a category by the server's text for it.
+	 * 
+	 * @return the category, or MISSING if the text isn't one
+	 */
+	private static short category(String text, String table[])
+	{
+		text = text.trim();
+		for (short i = 0; i < table.length; ++i)
+		{
+			if (table[i] != null && table[i].equals(text))
 			{
-				return false;
+				return i;
 			}
-			if (speed == null)
+		}
+		return MISSING;
+	}
+
+	/** A number as the server sends it */
+	private static String format(short value)
+	{
+		return (value == MISSING) ? "None" : Integer.toString(value);
+	}
+
+	/** A category as the server sends it */
+	private static String format(short value, String table[])
+	{
+		return (value >= 0 && value < table.length && table[value] != null) ? table[value]
+				: "None";
+	}
+
+	/** A thunderstorm probability as the server sends it */
+	private static String format(short thund, short severe)
+	{
+		return (thund == MISSING || severe == MISSING) ? format(thund) : thund
+				+ "/" + severe;
+	}
+
+	/**
+	 * Work out the time of a period from the server's date and hour.
+	 * 
+	 * @return milliseconds, or NO_TIME if they can't be read
+	 */
+	private static long convertTime(String dateString, String hourString,
+			long now)
+	{
+		long time = WeatherTime.parseMav(dateString, hourString, now);
+		return (time == WeatherTime.INVALID) ? NO_TIME : time;
+	}
+
+	/**
+	 * Create Period array straight from a JSON stream
+	 * 
+	 * @param parser
+	 *            JSON stream positioned at an array of period data
+	 * @return Period array.
+	 * @throws IOException
+	 *             on read error, or when JSON data is invalid.
+	 */
+	private Period[] getPeriodsArray(JsonPullParser parser) throws IOException
+	{
+		ArrayList<Period> periodList = new ArrayList<Period>(MAX_PERIODS);
+		long now = System.currentTimeMillis();
+
+		parser.beginArray();
+		while (parser.hasNext())
+		{
+			if (parser.peek() == JsonPullParser.Token.NULL)
 			{
-				if (other.speed != null)
-				{
-					return false;
-				}
-			} else if (!speed.equals(other.speed))
+				parser.skipValue();
+				periodList.add(null);
+			} else
 			{
-				return false;
+				periodList.add(new MavData.Period(parser, now));
 			}
-			return true;
 		}
+		parser.endArray();
+
+		return periodList.toArray(new Period[periodList.size()]);
+	}
+
+	/**
+	 * Serialize a Period array into JSON. A period that's null (missing, or
+	 * couldn't be decoded) is written as null, keeping the others' places.
+	 * 
+	 * @param periods
+	 *            period array
+	 * @return JSONObject containing all the stuff.
+	 * @throws JSONException
+	 *             When JSON barfs on bad data.
+	 */
+	private Object toJSONArray(Period[] periods) throws JSONException
+	{
+		JSONArray jsonArray = new JSONArray();
+
+		for (Period period : periods)
+		{
+			jsonArray.put((period == null) ? JSONObject.NULL : period
+					.toJSONObject());
+		}
+		return jsonArray;
 	}
 }
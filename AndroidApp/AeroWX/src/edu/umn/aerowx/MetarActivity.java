@@ -1,17 +1,14 @@
 package edu.umn.aerowx;
 
-import java.io.IOException;
 import java.text.SimpleDateFormat;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -28,8 +25,22 @@ import android.widget.TextView;
 public class MetarActivity extends Activity
 {
 
+	/** Views the screen fills in with data, kept in its snapshot */
+	private static final int DATA_IDS[] = { R.id.station, R.id.time,
+			R.id.temp, R.id.dewpoint, R.id.pressure, R.id.wind, R.id.vis,
+			R.id.wx, R.id.sky };
+
 	SettingsData settings;
 
+	/** Listener for the screen's data, null when nobody is looking */
+	private WeatherRepository.Listener<MetarData> pendingListener;
+
+	/** When the screen was created or restarted (uptime milliseconds) */
+	private long startTime;
+
+	/** True while the saved snapshot is showing rather than new data */
+	private boolean snapshotShown;
+
 	@SuppressLint("SimpleDateFormat")
 	/** Format for display date */
 	private SimpleDateFormat sdfTime = new SimpleDateFormat("EEE MMMMM dd HH:mm yyyy");
@@ -40,10 +51,21 @@ public class MetarActivity extends Activity
 	@Override
 	protected void onCreate(Bundle savedInstanceState)
 	{
+		startTime = SystemClock.uptimeMillis();
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_metar);
 	}
 
+	/* (non-Javadoc)
+	 * @see android.app.Activity#onRestart()
+	 */
+	@Override
+	protected void onRestart()
+	{
+		startTime = SystemClock.uptimeMillis();
+		super.onRestart();
+	}
+
 	/* (non-Javadoc)
 	 * @see android.app.Activity#onStart()
 	 */
@@ -54,24 +76,57 @@ public class MetarActivity extends Activity
 		
 		settings = new SettingsData(this);
 
-		MetarData metar = null;
-		try
+		// Put back what was on the screen last time, before any other work.
+		// Failing that, show what we already know. Either way the rest fills
+		// in when the data arrives.
+		snapshotShown = ScreenSnapshot.show(this, DATA_IDS, settings.wxid,
+				R.string.title_activity_metar);
+		if (snapshotShown)
 		{
-			metar = requestMETAR(settings.baseUrl);
-		} catch (Exception e)
+			Log.i(MetarActivity.class.toString(), "snapshot shown after "
+					+ (SystemClock.uptimeMillis() - startTime) + " ms");
+		} else
 		{
-			Log.i(MetarActivity.class.toString(), e.getMessage());
-			errorDialog(e.getMessage());
-			return;
+			clearMetar();
+			TextView stationView = (TextView) findViewById(R.id.station);
+			stationView.setText(settings.wxid);
+			TextView timeView = (TextView) findViewById(R.id.time);
+			timeView.setText(R.string.Loading);
 		}
 
+		requestMETAR(settings.baseUrl);
+	}
+
+	/* (non-Javadoc)
+	 * @see android.app.Activity#onStop()
+	 */
+	@Override
+	protected void onStop()
+	{
+		// Nobody is looking any more, so drop any answer still on its way.
+		WeatherRepository.getInstance(this).cancel(pendingListener);
+		pendingListener = null;
+
+		// Have the next data waiting when the screen comes back.
+		PrefetchService.schedule(this);
+		super.onStop();
+	}
+
+	/**
+	 * Copy MetarData to the view.
+	 * 
+	 * @param metar
+	 *            METAR data to display
+	 */
+	private void displayMetar(MetarData metar)
+	{
 		// Create the wxid view
 		TextView stationView = (TextView) findViewById(R.id.station);
 		stationView.setText(metar.wxid);
 
 		// Create the time view
 		TextView timeView = (TextView) findViewById(R.id.time);
-		timeView.setText(sdfTime.format(metar.time));
+		timeView.setText(metar.time != null ? sdfTime.format(metar.time) : "");
 
 		// Create the temp view
 		TextView tempView = (TextView) findViewById(R.id.temp);
@@ -103,6 +158,30 @@ public class MetarActivity extends Activity
 
 	}
 
+	/**
+	 * Blank out the METAR views while we wait for the server.
+	 */
+	private void clearMetar()
+	{
+		int ids[] = { R.id.time, R.id.temp, R.id.dewpoint, R.id.pressure,
+				R.id.wind, R.id.vis, R.id.wx, R.id.sky };
+		for (int id : ids)
+		{
+			((TextView) findViewById(id)).setText("");
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see android.app.Activity#onLowMemory()
+	 */
+	@Override
+	public void onLowMemory()
+	{
+		// The weather data can all be read back from the phone.
+		WeatherRepository.getInstance(this).trimMemory();
+		super.onLowMemory();
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu)
 	{
@@ -128,62 +207,62 @@ public class MetarActivity extends Activity
 	/**
 	 * request METAR data from server.
 	 * 
-	 * If the server returns an array, pluck an object out of it.
+	 * The request runs in the background. The view is filled in with the copy
+	 * kept on the phone, if any, then again when fresh data arrives.
 	 * 
 	 * @param baseUrl
 	 *            Base URL of server.
-	 * @return METARData object
-	 * @throws Exception
-	 * 
-	 * @throws IOException
-	 *             on server error
 	 */
-	private MetarData requestMETAR(String baseUrl) throws Exception
+	private void requestMETAR(String baseUrl)
 	{
-		MetarData metarData = null;
-
 		Log.i(MetarActivity.class.toString(), "requestMETAR(" + baseUrl + ")");
 
-		JSONObject requestObject = new JSONObject();
-		requestObject.put("location", settings.wxid);
-		requestObject.put("time", "");
-		requestObject.put("source", "metar");
-
-		// The server want's it's request(s) in an array.
-		JSONArray requestArray = new JSONArray();
-		requestArray.put(requestObject);
-
-		Object responseObject = Utils.postJSON(baseUrl, requestArray);
-
-		// At this point, all we know is that we received back a JSONArray or
-		// JSONObject
-		JSONObject object = null;
-		if (responseObject instanceof JSONArray)
+		pendingListener = new WeatherRepository.Listener<MetarData>()
 		{
-			JSONArray array = (JSONArray) responseObject;
-			if (array.length() < 1)
+			@Override
+			public void onResponse(MetarData metarData, long fetched,
+					boolean current)
 			{
-				throw new Exception("Server returned empty JSON Array");
+				if (pendingListener != this)
+				{
+					return;
+				}
+				// The kept copy may be followed by fresh data, so keep
+				// listening.
+				Log.i(MetarActivity.class.toString(), "response: " + metarData);
+				displayMetar(metarData);
+				snapshotShown = false;
+				ScreenSnapshot.keep(MetarActivity.this, DATA_IDS,
+						settings.wxid, R.string.title_activity_metar, fetched,
+						current);
 			}
 
-			// Grab the first object in the array
-			object = array.getJSONObject(0);
-		} else
-		{
-			// It's just a plain old object. Treat it as METAR data.
-			object = (JSONObject) responseObject;
-		}
-
-		// If the object has the key "error", throw up
-		if (object.has("error"))
-		{
-			throw new Exception("Server returned error: "
-					+ object.getString("error"));
-		}
-
-		metarData = new MetarData(object);
-		Log.i(MetarActivity.class.toString(), "response: " + metarData);
-		return metarData;
+			public void onError(Exception e)
+			{
+				if (pendingListener != this)
+				{
+					return;
+				}
+				Log.i(MetarActivity.class.toString(), String.valueOf(e.getMessage()));
+				if (!snapshotShown)
+				{
+					((TextView) findViewById(R.id.time)).setText("");
+				}
+				if (e instanceof OfflineException)
+				{
+					// The request goes out when the network comes back, so
+					// keep listening.
+					setTitle(getString(R.string.Offline,
+							getString(R.string.title_activity_metar)));
+					return;
+				}
+				pendingListener = null;
+				errorDialog(e.getMessage());
+			}
+		};
+		WeatherRepository.getInstance(this).request(baseUrl,
+				new WeatherRequest(WeatherRequest.METAR, settings.wxid),
+				MetarData.class, pendingListener);
 	}
 
 	/**
@@ -1,17 +1,18 @@
 package edu.umn.aerowx;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
 import java.util.Date;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.annotation.SuppressLint;
-
 /**
  * This class manages data coming from the METAR weather server.
  * 
+ * The server's text is kept for display. The numbers in it (temperature,
+ * pressure, wind, visibility, sky layers) are also read out once, when the
+ * data is decoded, so trends and alerts can use them without parsing text.
+ * 
  * @author Wayne Johnson
  * 
  */
@@ -51,8 +52,59 @@ public class MetarData
 	/** various optional remarks */
 	public String remarks;
 
-	@SuppressLint("SimpleDateFormat")
-	private final static SimpleDateFormat sdfMETAR = new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy zzz");
+	/* Numbers read from the text; see parseValues() */
+
+	/** Value of a number the observation didn't have */
+	public static final short MISSING = Short.MIN_VALUE;
+
+	/** Temperature, tenths of a degree C */
+	public short tempTenths = MISSING;
+
+	/** Dewpoint, tenths of a degree C */
+	public short dewpointTenths = MISSING;
+
+	/** Pressure, tenths of a millibar */
+	public short pressureTenths = MISSING;
+
+	/** Direction the wind is from, degrees true; MISSING if variable or calm */
+	public short windDirection = MISSING;
+
+	/** Wind speed, knots (0 if calm) */
+	public short windSpeed = MISSING;
+
+	/** Gust speed, knots */
+	public short windGust = MISSING;
+
+	/** Visibility, hundredths of a statute mile */
+	public short visibilityHundredths = MISSING;
+
+	/** Cover of each sky layer, lowest first */
+	public SkyCover skyCover[] = NO_COVER;
+
+	/** Base of each sky layer, hundreds of feet (MISSING if it's clear) */
+	public short skyBase[] = NO_BASE;
+
+	/**
+	 * How much of the sky a layer covers.
+	 */
+	public enum SkyCover
+	{
+		CLEAR, FEW, SCATTERED, BROKEN, OVERCAST,
+		/** Sky hidden, "indefinite ceiling"; the base is the vertical visibility */
+		OBSCURED, UNKNOWN
+	}
+
+	/** Sky layers when there aren't any */
+	private static final SkyCover NO_COVER[] = new SkyCover[0];
+	private static final short NO_BASE[] = new short[0];
+
+	/** Compass points, in the order the server names them */
+	private static final String COMPASS[] = { "N", "NNE", "NE", "ENE", "E",
+			"ESE", "SE", "SSE", "S", "SSW", "SW", "WSW", "W", "WNW", "NW",
+			"NNW" };
+
+	/** Statute miles in a meter, for stations that report visibility in meters */
+	private static final double MILES_PER_METER = 1 / 1609.344;
 
 	/**
 	 * Constructor for empty METARData
@@ -80,7 +132,10 @@ public class MetarData
 
 		// All these are required in a METAR message
 		wxid = metarObject.optString("station", null);
-		time = convertTime(metarObject.optString("time", null));
+		Object timeValue = metarObject.opt("time");
+		time = (timeValue instanceof Number) ? new Date(
+				((Number) timeValue).longValue()) : convertTime(metarObject
+				.optString("time", null));
 		temp = metarObject.optString("temperature", null);
 		dewpoint = metarObject.optString("dew point", null);
 		pressure = metarObject.optString("pressure", null);
@@ -90,20 +145,420 @@ public class MetarData
 		weather = metarObject.optString("weather", null);
 		sky = metarObject.optString("sky", null);
 		remarks = metarObject.optString("remarks", null);
+
+		parseValues();
 	}
 
-	private Date convertTime(String timeString)
+	/**
+	 * Constructor to create METARData straight from a JSON stream.
+	 * 
+	 * The parser must be positioned at the object inside the "metar" wrapper.
+	 * 
+	 * @param parser
+	 *            JSON stream from which to create METARData object.
+	 * 
+	 * @throws IOException
+	 *             on read error, or when JSON data is invalid.
+	 */
+	public MetarData(JsonPullParser parser) throws IOException
+	{
+		super();
+
+		parser.beginObject();
+		while (parser.hasNext())
+		{
+			String name = parser.nextName();
+			if (name.equals("station"))
+			{
+				wxid = parser.nextString();
+			} else if (name.equals("time"))
+			{
+				// Milliseconds when stored on the phone
+				time = (parser.peek() == JsonPullParser.Token.NUMBER) ? new Date(
+						Long.parseLong(parser.nextString()))
+						: convertTime(parser.nextString());
+			} else if (name.equals("temperature"))
+			{
+				temp = parser.nextString();
+			} else if (name.equals("dew point"))
+			{
+				dewpoint = parser.nextString();
+			} else if (name.equals("pressure"))
+			{
+				pressure = parser.nextString();
+			} else if (name.equals("type"))
+			{
+				obsType = parser.nextString();
+			} else if (name.equals("wind"))
+			{
+				wind = parser.nextString();
+			} else if (name.equals("visibility"))
+			{
+				visibility = parser.nextString();
+			} else if (name.equals("weather"))
+			{
+				weather = parser.nextString();
+			} else if (name.equals("sky"))
+			{
+				sky = parser.nextString();
+			} else if (name.equals("remarks"))
+			{
+				remarks = parser.nextString();
+			} else
+			{
+				parser.skipValue();
+			}
+		}
+		parser.endObject();
+
+		parseValues();
+	}
+
+	/**
+	 * Read the numbers out of the text fields. The constructors do this;
+	 * call it again after setting text fields by hand.
+	 */
+	public void parseValues()
+	{
+		tempTenths = toShort(parseTenths(temp, 0));
+		dewpointTenths = toShort(parseTenths(dewpoint, 0));
+		pressureTenths = toShort(parseTenths(pressure, 0));
+		parseWind();
+		visibilityHundredths = parseVisibility(visibility);
+		parseSky();
+	}
+
+	/**
+	 * Lowest broken, overcast or obscured layer.
+	 * 
+	 * @return its base in hundreds of feet, or MISSING if there's no ceiling
+	 */
+	public short getCeiling()
+	{
+		for (int i = 0; i < skyCover.length; ++i)
+		{
+			SkyCover cover = skyCover[i];
+			if (cover == SkyCover.BROKEN || cover == SkyCover.OVERCAST
+					|| cover == SkyCover.OBSCURED)
+			{
+				return skyBase[i];
+			}
+		}
+		return MISSING;
+	}
+
+	/**
+	 * Read wind like "ESE at 6 knots, gusting to 15 knots", "variable at 4
+	 * knots", "calm" or "missing".
+	 */
+	private void parseWind()
+	{
+		windDirection = MISSING;
+		windSpeed = MISSING;
+		windGust = MISSING;
+		if (wind == null)
+		{
+			return;
+		}
+		if (wind.startsWith("calm"))
+		{
+			windSpeed = 0;
+			return;
+		}
+		windDirection = (short) parseCompass(wind);
+		int at = wind.indexOf(" at ");
+		windSpeed = toWhole(parseTenths(wind, (at < 0) ? 0 : at));
+		int gusting = wind.indexOf("gusting");
+		if (gusting >= 0)
+		{
+			windGust = toWhole(parseTenths(wind, gusting));
+		}
+	}
+
+	/**
+	 * Read the sky layers, one a line: "a few clouds at 4000 feet", "overcast
+	 * at 800 feet", "indefinite ceiling, visibility to 200 feet", "clear".
+	 */
+	private void parseSky()
+	{
+		skyCover = NO_COVER;
+		skyBase = NO_BASE;
+		if (sky == null || sky.length() == 0 || sky.equals("None")
+				|| sky.equals("missing"))
+		{
+			return;
+		}
+
+		int layers = 1;
+		for (int i = sky.indexOf('\n'); i >= 0; i = sky.indexOf('\n', i + 1))
+		{
+			++layers;
+		}
+		skyCover = new SkyCover[layers];
+		skyBase = new short[layers];
+
+		int start = 0;
+		for (int layer = 0; layer < layers; ++layer)
+		{
+			int end = sky.indexOf('\n', start);
+			if (end < 0)
+			{
+				end = sky.length();
+			}
+			while (start < end && sky.charAt(start) == ' ')
+			{
+				++start;
+			}
+			skyCover[layer] = parseCover(sky, start);
+			skyBase[layer] = parseBase(sky, start, end);
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Read the cover a sky layer starts with.
+	 */
+	private static SkyCover parseCover(String sky, int start)
+	{
+		if (sky.startsWith("clear", start))
+		{
+			return SkyCover.CLEAR;
+		} else if (sky.startsWith("a few", start))
+		{
+			return SkyCover.FEW;
+		} else if (sky.startsWith("scattered", start))
+		{
+			return SkyCover.SCATTERED;
+		} else if (sky.startsWith("broken", start))
+		{
+			return SkyCover.BROKEN;
+		} else if (sky.startsWith("overcast", start))
+		{
+			return SkyCover.OVERCAST;
+		} else if (sky.startsWith("indefinite ceiling", start))
+		{
+			return SkyCover.OBSCURED;
+		}
+		return SkyCover.UNKNOWN;
+	}
+
+	/**
+	 * Read the base of a sky layer: the number before " feet".
+	 * 
+	 * @return hundreds of feet, or MISSING if there isn't one
+	 */
+	private static short parseBase(String sky, int start, int end)
+	{
+		int feet = sky.lastIndexOf(" feet", end);
+		if (feet < start)
+		{
+			return MISSING;
+		}
+		int digits = feet;
+		while (digits > start && Character.isDigit(sky.charAt(digits - 1)))
+		{
+			--digits;
+		}
+		if (digits == feet)
+		{
+			return MISSING;
+		}
+		return toShort((parseTenths(sky, digits) + 500) / 1000);
+	}
+
+	/**
+	 * Read visibility like "10 miles", "1 1/2 miles", "less than 1/4 miles"
+	 * or "9999 meters". Anything after the first distance (a direction, a
+	 * second visibility) is ignored.
+	 * 
+	 * @param visibility
+	 *            visibility text from the server, or null
+	 * @return hundredths of a statute mile, or MISSING if there isn't one
+	 */
+	static short parseVisibility(String visibility)
+	{
+		if (visibility == null)
+		{
+			return MISSING;
+		}
+		int length = visibility.length();
+		int i = 0;
+		while (i < length && !Character.isDigit(visibility.charAt(i)))
+		{
+			++i;
+		}
+		if (i == length)
+		{
+			return MISSING;
+		}
+
+		// Whole miles, then maybe a fraction after it ("1 1/2") or instead
+		// of it ("3/4")
+		long whole = 0;
+		for (; i < length && Character.isDigit(visibility.charAt(i)); ++i)
+		{
+			whole = Math.min(whole * 10 + visibility.charAt(i) - '0',
+					100000);
+		}
+		long numerator = 0;
+		long denominator = 1;
+		int j = i;
+		boolean mixed = j + 1 < length && visibility.charAt(j) == ' '
+				&& Character.isDigit(visibility.charAt(j + 1));
+		if (mixed)
+		{
+			for (++j; j < length && Character.isDigit(visibility.charAt(j)); ++j)
+			{
+				numerator = Math.min(numerator * 10 + visibility.charAt(j) - '0',
+					100000);
+			}
+		} else
+		{
+			numerator = whole;
+		}
+		if (j + 1 < length && visibility.charAt(j) == '/'
+				&& Character.isDigit(visibility.charAt(j + 1)))
+		{
+			long bottom = 0;
+			for (++j; j < length && Character.isDigit(visibility.charAt(j)); ++j)
+			{
+				bottom = Math.min(bottom * 10 + visibility.charAt(j) - '0',
+					100000);
+			}
+			if (bottom > 0)
+			{
+				if (!mixed)
+				{
+					whole = 0;
+				}
+				denominator = bottom;
+				i = j;
+			} else
+			{
+				numerator = 0;
+			}
+		} else
+		{
+			numerator = 0;
+		}
+
+		double miles = whole + (double) numerator / denominator;
+		if (visibility.startsWith(" meters", i))
+		{
+			miles *= MILES_PER_METER;
+		} else if (visibility.startsWith(" km", i))
+		{
+			miles *= 1000 * MILES_PER_METER;
+		}
+		return toShort((int) Math.round(miles * 100));
+	}
+
+	/**
+	 * Keep a value in a short, as MISSING if it doesn't fit.
+	 */
+	static short toShort(int value)
 	{
-		Date date = null;
-		try
+		if (value <= Short.MIN_VALUE || value > Short.MAX_VALUE)
 		{
-			date=sdfMETAR.parse(timeString+" GMT");
-		} catch (ParseException e)
+			return MISSING;
+		}
+		return (short) value;
+	}
+
+	/**
+	 * Round tenths to a whole number, keeping MISSING.
+	 */
+	private static short toWhole(int tenths)
+	{
+		if (tenths == MISSING)
 		{
-			return null;
+			return MISSING;
 		}
-		
-		return date;
+		return toShort((tenths < 0) ? (tenths - 5) / 10 : (tenths + 5) / 10);
+	}
+
+	/**
+	 * Read the first number in some text, in tenths, like "12.0 C" or
+	 * "1013.2 mb". Doesn't allocate.
+	 * 
+	 * @param text
+	 *            text from the server, or null
+	 * @param start
+	 *            where to start looking
+	 * @return the number times ten, rounded, or MISSING if there isn't one
+	 */
+	static int parseTenths(String text, int start)
+	{
+		if (text == null)
+		{
+			return MISSING;
+		}
+		int length = text.length();
+		int i = start;
+		while (i < length && !Character.isDigit(text.charAt(i)))
+		{
+			++i;
+		}
+		if (i == length)
+		{
+			return MISSING;
+		}
+		boolean negative = i > start && text.charAt(i - 1) == '-';
+
+		long value = 0;
+		while (i < length && Character.isDigit(text.charAt(i)))
+		{
+			value = value * 10 + (text.charAt(i) - '0');
+			if (value > Integer.MAX_VALUE / 100)
+			{
+				return MISSING;
+			}
+			++i;
+		}
+		value *= 10;
+		if (i + 1 < length && text.charAt(i) == '.'
+				&& Character.isDigit(text.charAt(i + 1)))
+		{
+			value += text.charAt(i + 1) - '0';
+			if (i + 2 < length && Character.isDigit(text.charAt(i + 2))
+					&& text.charAt(i + 2) >= '5')
+			{
+				++value;
+			}
+		}
+		return (int) (negative ? -value : value);
+	}
+
+	/**
+	 * Read the compass point the wind is from, like the "ESE" in "ESE at 6
+	 * knots".
+	 * 
+	 * @param wind
+	 *            wind text from the server
+	 * @return direction in degrees, or MISSING if it's variable or unknown
+	 */
+	static int parseCompass(String wind)
+	{
+		int end = 0;
+		while (end < wind.length() && Character.isLetter(wind.charAt(end)))
+		{
+			++end;
+		}
+		for (int i = 0; i < COMPASS.length; ++i)
+		{
+			String point = COMPASS[i];
+			if (point.length() == end && wind.startsWith(point))
+			{
+				return (i * 225 + 5) / 10;
+			}
+		}
+		return MISSING;
+	}
+
+	private Date convertTime(String timeString)
+	{
+		long time = WeatherTime.parseMetar(timeString);
+		return (time == WeatherTime.INVALID) ? null : new Date(time);
 	}
 
 	/**
@@ -118,7 +573,10 @@ public class MetarData
 	{
 		JSONObject object = new JSONObject();
 		object.put("station", wxid);
-		object.put("time", time);
+		if (time != null)
+		{
+			object.put("time", time.getTime());
+		}
 		object.put("temperature", temp);
 		object.put("dew point", dewpoint);
 		object.put("pressure", pressure);
@@ -0,0 +1,306 @@
+package edu.umn.aerowx;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import android.util.Log;
+
+/**
+ * Where the time goes in a weather request, phase by phase, kept as rolling
+ * histograms of the most recent requests so the slow phase shows up in the
+ * field. Dump it with toString(), or read single percentiles in tests.
+ * 
+ * The body is parsed as it downloads, so the download, tokenize and model
+ * phases overlap in wall time. They are separated by what the time was spent
+ * on: waiting for input, scanning JSON tokens, or building MetarData and
+ * MavData.
+ */
+public class NetworkMetrics
+{
+	/** Parts of a request that are timed */
+	public enum Phase
+	{
+		/** Getting a connection: pool, DNS, TCP and TLS */
+		CONNECT,
+		/** Sending the request until the response headers arrive */
+		FIRST_BYTE,
+		/** Waiting for the response body (including gunzip) */
+		BODY,
+		/** Scanning JSON tokens */
+		TOKENIZE,
+		/** Building MetarData and MavData from the tokens */
+		MODEL,
+		/** The whole request, start to finish */
+		TOTAL
+	}
+
+	/** Default number of recent requests each histogram keeps */
+	public static final int DEFAULT_WINDOW = 128;
+
+	/** The metrics the app records into */
+	private static NetworkMetrics instance;
+
+	/** One histogram per phase */
+	private final Histogram histograms[];
+
+	/** Timing of the last request recorded */
+	private Timing lastTiming;
+
+	/**
+	 * Get the metrics the app records into.
+	 * 
+	 * @return the shared NetworkMetrics
+	 */
+	public static synchronized NetworkMetrics getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new NetworkMetrics(DEFAULT_WINDOW);
+		}
+		return instance;
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param window
+	 *            number of recent requests each histogram keeps
+	 */
+	public NetworkMetrics(int window)
+	{
+		super();
+		Phase phases[] = Phase.values();
+		histograms = new Histogram[phases.length];
+		for (int i = 0; i < phases.length; ++i)
+		{
+			histograms[i] = new Histogram(window);
+		}
+	}
+
+	/**
+	 * Add the phases of one request to the histograms.
+	 * 
+	 * @param timing
+	 *            times of the request
+	 */
+	public void record(Timing timing)
+	{
+		for (Phase phase : Phase.values())
+		{
+			long nanos = timing.get(phase);
+			if (nanos >= 0)
+			{
+				histograms[phase.ordinal()].add(nanos);
+			}
+		}
+		synchronized (this)
+		{
+			lastTiming = timing;
+		}
+		Log.i(NetworkMetrics.class.toString(), timing.toString());
+	}
+
+	/**
+	 * Get the histogram of a phase.
+	 * 
+	 * @param phase
+	 *            which phase
+	 * @return its histogram
+	 */
+	public Histogram getHistogram(Phase phase)
+	{
+		return histograms[phase.ordinal()];
+	}
+
+	/**
+	 * Get the timing of the last request recorded.
+	 * 
+	 * @return times of the request, or null if none has been recorded.
+	 */
+	public synchronized Timing getLastTiming()
+	{
+		return lastTiming;
+	}
+
+	/**
+	 * Forget everything recorded.
+	 */
+	public void reset()
+	{
+		for (Histogram histogram : histograms)
+		{
+			histogram.clear();
+		}
+		synchronized (this)
+		{
+			lastTiming = null;
+		}
+	}
+
+	/**
+	 * Table of p50/p95/p99 per phase, in milliseconds.
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append("phase        count     p50     p95     p99 (ms)\n");
+		for (Phase phase : Phase.values())
+		{
+			Histogram histogram = getHistogram(phase);
+			builder.append(String.format(Locale.US,
+					"%-10s %7d %7.1f %7.1f %7.1f\n", phase, histogram.getCount(),
+					histogram.getPercentile(0.50) / 1e6,
+					histogram.getPercentile(0.95) / 1e6,
+					histogram.getPercentile(0.99) / 1e6));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Times of each phase of one request.
+	 */
+	public static class Timing
+	{
+		/** Time per phase (nanoseconds), -1 where it wasn't measured */
+		private final long nanos[] = new long[Phase.values().length];
+
+		/**
+		 * Constructor, with nothing measured.
+		 */
+		public Timing()
+		{
+			super();
+			Arrays.fill(nanos, -1);
+		}
+
+		/**
+		 * Set the time of a phase.
+		 * 
+		 * @param phase
+		 *            which phase
+		 * @param time
+		 *            time taken (nanoseconds), -1 if not measured
+		 */
+		public void set(Phase phase, long time)
+		{
+			nanos[phase.ordinal()] = time;
+		}
+
+		/**
+		 * Get the time of a phase.
+		 * 
+		 * @param phase
+		 *            which phase
+		 * @return time taken (nanoseconds), -1 if not measured
+		 */
+		public long get(Phase phase)
+		{
+			return nanos[phase.ordinal()];
+		}
+
+		/** Phases in milliseconds, for the log */
+		@Override
+		public String toString()
+		{
+			StringBuilder builder = new StringBuilder("Timing [");
+			for (Phase phase : Phase.values())
+			{
+				if (phase.ordinal() > 0)
+				{
+					builder.append(", ");
+				}
+				builder.append(phase.name().toLowerCase()).append('=');
+				long time = get(phase);
+				if (time < 0)
+				{
+					builder.append('-');
+				} else
+				{
+					builder.append(String.format(Locale.US, "%.1f",
+							time / 1e6));
+				}
+			}
+			return builder.append(" ms]").toString();
+		}
+	}
+
+	/**
+	 * Times of the most recent requests, for percentiles.
+	 */
+	public static class Histogram
+	{
+		/** Recent times (nanoseconds), used as a ring */
+		private final long samples[];
+
+		/** Number of times ever added */
+		private long count = 0;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param window
+		 *            number of recent times kept
+		 */
+		public Histogram(int window)
+		{
+			super();
+			samples = new long[window];
+		}
+
+		/**
+		 * Add a time.
+		 * 
+		 * @param nanos
+		 *            time (nanoseconds)
+		 */
+		public synchronized void add(long nanos)
+		{
+			samples[(int) (count % samples.length)] = nanos;
+			++count;
+		}
+
+		/**
+		 * Get the number of times ever added.
+		 * 
+		 * @return count, including those that have rolled out of the window
+		 */
+		public synchronized long getCount()
+		{
+			return count;
+		}
+
+		/**
+		 * Get a percentile of the recent times.
+		 * 
+		 * @param fraction
+		 *            percentile wanted, 0 to 1 (0.95 for p95)
+		 * @return time (nanoseconds), or 0 if there are none.
+		 */
+		public long getPercentile(double fraction)
+		{
+			long sorted[];
+			synchronized (this)
+			{
+				int size = (int) Math.min(count, samples.length);
+				if (size == 0)
+				{
+					return 0;
+				}
+				sorted = new long[size];
+				System.arraycopy(samples, 0, sorted, 0, size);
+			}
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(fraction * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+		}
+
+		/**
+		 * Forget all times.
+		 */
+		public synchronized void clear()
+		{
+			count = 0;
+		}
+	}
+}
@@ -0,0 +1,385 @@
+package edu.umn.aerowx;
+
+import java.io.IOException;
+
+/**
+ * The last few METAR observations for one station, for showing trends:
+ * pressure falling, wind picking up, the dewpoint spread closing.
+ * 
+ * Observations are kept as numbers in preallocated arrays used as a ring, one
+ * array per field, not as MetarData objects. Adding one is O(1) and allocates
+ * nothing, and a station's history takes the same small amount of memory
+ * however long it's kept (about 20 bytes an observation).
+ * 
+ * Values are in tenths (of a degree C, a millibar or a knot), wind direction
+ * in whole degrees. MISSING marks a value the observation didn't have.
+ * 
+ * toByteArray() packs a history small enough to keep on disk or send
+ * somewhere (see TimeSeriesCodec).
+ * 
+ * Not thread-safe; HistoryStore does the locking.
+ */
+public class ObservationHistory
+{
+	/** Default number of observations kept: two days of hourly METARs */
+	public static final int DEFAULT_CAPACITY = 48;
+
+	/** Value for a field an observation didn't have */
+	public static final int MISSING = Short.MIN_VALUE;
+
+	/**
+	 * The numbers kept from each observation.
+	 */
+	public enum Field
+	{
+		/** Temperature, tenths of a degree C */
+		TEMPERATURE,
+		/** Dewpoint, tenths of a degree C */
+		DEWPOINT,
+		/** Temperature less dewpoint, tenths of a degree C (worked out) */
+		SPREAD,
+		/** Pressure, tenths of a millibar */
+		PRESSURE,
+		/** Direction the wind is from, degrees true */
+		WIND_DIRECTION,
+		/** Wind speed, tenths of a knot */
+		WIND_SPEED,
+		/** Gust speed, tenths of a knot */
+		WIND_GUST
+	}
+
+	/** Fields that are stored, rather than worked out */
+	private static final Field STORED[] = { Field.TEMPERATURE,
+			Field.DEWPOINT, Field.PRESSURE, Field.WIND_DIRECTION,
+			Field.WIND_SPEED, Field.WIND_GUST };
+
+	/** Station the history is for */
+	public final String wxid;
+
+	/** Observation times (milliseconds) */
+	private final long times[];
+
+	/** Stored values, by Field ordinal; null for worked out fields */
+	private final short values[][];
+
+	/** Where the next observation goes */
+	private int next;
+
+	/** Number of observations kept */
+	private int size;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param wxid
+	 *            station the history is for
+	 * @param capacity
+	 *            most observations kept
+	 */
+	public ObservationHistory(String wxid, int capacity)
+	{
+		super();
+		this.wxid = wxid;
+		times = new long[capacity];
+		values = new short[Field.values().length][];
+		for (Field field : STORED)
+		{
+			values[field.ordinal()] = new short[capacity];
+		}
+	}
+
+	/**
+	 * Add an observation, from the numbers already read out of it (see
+	 * MetarData.parseValues()). One no newer than the latest kept is
+	 * ignored, so the same METAR fetched twice is only kept once.
+	 * 
+	 * @param metar
+	 *            the observation
+	 * @return true if it was added
+	 */
+	public boolean add(MetarData metar)
+	{
+		if (metar.time == null)
+		{
+			return false;
+		}
+		long time = metar.time.getTime();
+		if (size > 0 && time <= getTime(size - 1))
+		{
+			return false;
+		}
+
+		int i = next;
+		times[i] = time;
+		values[Field.TEMPERATURE.ordinal()][i] = metar.tempTenths;
+		values[Field.DEWPOINT.ordinal()][i] = metar.dewpointTenths;
+		values[Field.PRESSURE.ordinal()][i] = metar.pressureTenths;
+		values[Field.WIND_DIRECTION.ordinal()][i] = metar.windDirection;
+		values[Field.WIND_SPEED.ordinal()][i] = toTenths(metar.windSpeed);
+		values[Field.WIND_GUST.ordinal()][i] = toTenths(metar.windGust);
+
+		advance();
+		return true;
+	}
+
+	/**
+	 * Pack the observations kept into a block, oldest first, with a column
+	 * for each stored field (see TimeSeriesCodec).
+	 * 
+	 * @return the block
+	 */
+	public byte[] toByteArray()
+	{
+		TimeSeriesCodec.Encoder encoder = new TimeSeriesCodec.Encoder(
+				STORED.length);
+		int row[] = new int[STORED.length];
+		for (int i = 0; i < size; ++i)
+		{
+			for (int column = 0; column < STORED.length; ++column)
+			{
+				row[column] = get(STORED[column], i);
+			}
+			encoder.add(getTime(i), row);
+		}
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Add the observations packed by toByteArray(). Those no newer than the
+	 * latest kept are skipped.
+	 * 
+	 * @param block
+	 *            packed observations
+	 * @return number added
+	 * @throws IOException
+	 *             if the block isn't from toByteArray()
+	 */
+	public int addAll(byte block[]) throws IOException
+	{
+		TimeSeriesCodec.Decoder decoder = new TimeSeriesCodec.Decoder(block);
+		if (decoder.columns() != STORED.length)
+		{
+			throw new IOException(decoder.columns()
+					+ " columns in observation history");
+		}
+		int added = 0;
+		while (decoder.next())
+		{
+			long time = decoder.getTime();
+			if (size > 0 && time <= getTime(size - 1))
+			{
+				continue;
+			}
+			times[next] = time;
+			for (int column = 0; column < STORED.length; ++column)
+			{
+				values[STORED[column].ordinal()][next] = toShort(decoder
+						.getValue(column));
+			}
+			advance();
+			++added;
+		}
+		return added;
+	}
+
+	/**
+	 * Get the number of observations kept.
+	 * 
+	 * @return number kept
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Get the most observations kept.
+	 * 
+	 * @return capacity
+	 */
+	public int capacity()
+	{
+		return times.length;
+	}
+
+	/**
+	 * Get the time of an observation.
+	 * 
+	 * @param index
+	 *            0 for the oldest kept, size() - 1 for the latest
+	 * @return observation time (milliseconds)
+	 */
+	public long getTime(int index)
+	{
+		return times[slot(index)];
+	}
+
+	/**
+	 * Get a value from an observation.
+	 * 
+	 * @param field
+	 *            which value
+	 * @param index
+	 *            0 for the oldest kept, size() - 1 for the latest
+	 * @return the value, or MISSING
+	 */
+	public int get(Field field, int index)
+	{
+		int slot = slot(index);
+		if (field == Field.SPREAD)
+		{
+			int temperature = values[Field.TEMPERATURE.ordinal()][slot];
+			int dewpoint = values[Field.DEWPOINT.ordinal()][slot];
+			if (temperature == MISSING || dewpoint == MISSING)
+			{
+				return MISSING;
+			}
+			return temperature - dewpoint;
+		}
+		return values[field.ordinal()][slot];
+	}
+
+	/**
+	 * Find the first observation at or after a time.
+	 * 
+	 * @param since
+	 *            time (milliseconds)
+	 * @return its index, or size() if there's none
+	 */
+	public int indexOf(long since)
+	{
+		// Times are in order, so search
+		int low = 0;
+		int high = size;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (getTime(middle) < since)
+			{
+				low = middle + 1;
+			} else
+			{
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Copy the observations at or after a time into arrays the caller keeps,
+	 * oldest first, for drawing a trend.
+	 * 
+	 * @param field
+	 *            which value
+	 * @param since
+	 *            earliest time wanted (milliseconds)
+	 * @param timesOut
+	 *            filled with the observation times, or null if not wanted
+	 * @param valuesOut
+	 *            filled with the values (MISSING where there's none)
+	 * @return number of observations copied; no more than the arrays hold
+	 */
+	public int copy(Field field, long since, long timesOut[], int valuesOut[])
+	{
+		int first = indexOf(since);
+		int count = Math.min(size - first, valuesOut.length);
+		if (timesOut != null)
+		{
+			count = Math.min(count, timesOut.length);
+		}
+		for (int i = 0; i < count; ++i)
+		{
+			if (timesOut != null)
+			{
+				timesOut[i] = getTime(first + i);
+			}
+			valuesOut[i] = get(field, first + i);
+		}
+		return count;
+	}
+
+	/**
+	 * Get how much a value changed since a time: the latest value less the
+	 * first one at or after that time.
+	 * 
+	 * @param field
+	 *            which value
+	 * @param since
+	 *            time (milliseconds)
+	 * @return the change, or MISSING if there aren't two values to compare
+	 */
+	public int getChange(Field field, long since)
+	{
+		int first = MISSING;
+		int firstIndex = indexOf(since);
+		for (int i = firstIndex; i < size && first == MISSING; ++i)
+		{
+			first = get(field, i);
+			firstIndex = i;
+		}
+		int last = MISSING;
+		for (int i = size - 1; i > firstIndex && last == MISSING; --i)
+		{
+			last = get(field, i);
+		}
+		if (first == MISSING || last == MISSING)
+		{
+			return MISSING;
+		}
+		return last - first;
+	}
+
+	/**
+	 * Forget every observation.
+	 */
+	public void clear()
+	{
+		next = 0;
+		size = 0;
+	}
+
+	/**
+	 * Keep the observation just written at next.
+	 */
+	private void advance()
+	{
+		next = (next + 1) % times.length;
+		if (size < times.length)
+		{
+			++size;
+		}
+	}
+
+	/**
+	 * Turn an index (0 is the oldest) into a place in the arrays.
+	 */
+	private int slot(int index)
+	{
+		if (index < 0 || index >= size)
+		{
+			throw new IndexOutOfBoundsException("index " + index + " of "
+					+ size);
+		}
+		return (next - size + index + times.length) % times.length;
+	}
+
+	/**
+	 * Turn whole knots into tenths, keeping MISSING.
+	 */
+	private static short toTenths(short knots)
+	{
+		return (knots == MISSING) ? knots : toShort(knots * 10);
+	}
+
+	/**
+	 * Keep a value in a short, as MISSING if it doesn't fit.
+	 */
+	private static short toShort(int value)
+	{
+		if (value <= Short.MIN_VALUE || value > Short.MAX_VALUE)
+		{
+			return Short.MIN_VALUE;
+		}
+		return (short) value;
+	}
+}
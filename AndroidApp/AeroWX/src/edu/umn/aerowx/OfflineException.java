@@ -0,0 +1,19 @@
+package edu.umn.aerowx;
+
+import java.io.IOException;
+
+/**
+ * There's no network connection, so the request wasn't even tried.
+ */
+public class OfflineException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor.
+	 */
+	public OfflineException()
+	{
+		super("No network connection");
+	}
+}
@@ -0,0 +1,188 @@
+package edu.umn.aerowx;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * HttpTransport on top of the Apache HttpClient, with a thread safe pool of
+ * connections that are kept alive between requests.
+ * 
+ * Setting up TCP (and TLS) takes several round trips, which on a cell link
+ * costs more than the request itself. Reusing a connection skips all that.
+ */
+public class PooledHttpTransport implements HttpTransport
+{
+	/** Default number of parallel connections to one server */
+	public static final int DEFAULT_CONNECTIONS_PER_HOST = 2;
+
+	/** How long to keep an idle connection open (milliseconds) */
+	public static final long KEEP_ALIVE = 30 * 1000;
+
+	/** Context attribute holding when the connection was ready (nanoTime) */
+	private static final String CONNECTED = "edu.umn.aerowx.connected";
+
+	/** Client that does the work */
+	private final DefaultHttpClient client;
+
+	/**
+	 * Constructor for the default number of connections per host.
+	 */
+	public PooledHttpTransport()
+	{
+		this(DEFAULT_CONNECTIONS_PER_HOST);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param connectionsPerHost
+	 *            most parallel connections to one server
+	 */
+	public PooledHttpTransport(int connectionsPerHost)
+	{
+		super();
+
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+		// Expect: 100-continue costs a round trip for a body this small.
+		HttpProtocolParams.setUseExpectContinue(params, false);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(connectionsPerHost));
+		ConnManagerParams.setMaxTotalConnections(params,
+				connectionsPerHost * 2);
+
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", PlainSocketFactory
+				.getSocketFactory(), 80));
+		registry.register(new Scheme("https", SSLSocketFactory
+				.getSocketFactory(), 443));
+
+		client = new DefaultHttpClient(new ThreadSafeClientConnManager(params,
+				registry), params);
+		client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy()
+		{
+			public long getKeepAliveDuration(HttpResponse response,
+					HttpContext context)
+			{
+				return KEEP_ALIVE;
+			}
+		});
+		// Request interceptors run once the connection is set up, so this
+		// marks the end of the connect phase.
+		client.addRequestInterceptor(new HttpRequestInterceptor()
+		{
+			public void process(HttpRequest request, HttpContext context)
+					throws HttpException, IOException
+			{
+				context.setAttribute(CONNECTED, Long.valueOf(System.nanoTime()));
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see edu.umn.aerowx.HttpTransport#post(java.lang.String, byte[],
+	 * java.util.Map, int)
+	 */
+	public Response post(String url, byte[] body, Map<String, String> headers,
+			int timeout) throws IOException
+	{
+		// Don't hand out a connection the server has long since given up on.
+		client.getConnectionManager().closeIdleConnections(KEEP_ALIVE,
+				TimeUnit.MILLISECONDS);
+
+		final HttpPost httpPost = new HttpPost(url);
+		httpPost.setEntity(new ByteArrayEntity(body));
+		for (Map.Entry<String, String> header : headers.entrySet())
+		{
+			httpPost.setHeader(header.getKey(), header.getValue());
+		}
+
+		// Per request limits, on top of the client's parameters.
+		HttpParams params = httpPost.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, timeout);
+		HttpConnectionParams.setSoTimeout(params, timeout);
+		ConnManagerParams.setTimeout(params, timeout);
+
+		// Aborting the request closes its connection and frees its place in
+		// the pool, even part way through reading the response.
+		RequestPolicy.setAbortable(new RequestPolicy.Abortable()
+		{
+			public void abort()
+			{
+				httpPost.abort();
+			}
+		});
+
+		HttpContext context = new BasicHttpContext();
+		long start = System.nanoTime();
+		HttpResponse response = client.execute(httpPost, context);
+		long firstByte = System.nanoTime();
+		Long connected = (Long) context.getAttribute(CONNECTED);
+		long connectTime = -1;
+		long firstByteTime = -1;
+		if (connected != null)
+		{
+			connectTime = connected.longValue() - start;
+			firstByteTime = firstByte - connected.longValue();
+		}
+
+		Map<String, String> responseHeaders = new HashMap<String, String>();
+		for (Header header : response.getAllHeaders())
+		{
+			responseHeaders.put(header.getName().toLowerCase(Locale.US),
+					header.getValue());
+		}
+
+		// Closing the content stream hands the connection back to the pool.
+		HttpEntity entity = response.getEntity();
+		InputStream content = (entity != null) ? entity.getContent()
+				: new ByteArrayInputStream(new byte[0]);
+		return new Response(response.getStatusLine().getStatusCode(),
+				responseHeaders, content, connectTime, firstByteTime);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see edu.umn.aerowx.HttpTransport#shutdown()
+	 */
+	public void shutdown()
+	{
+		client.getConnectionManager().shutdown();
+	}
+}
@@ -0,0 +1,192 @@
+package edu.umn.aerowx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Fetches the configured station's weather shortly after new data comes out,
+ * so opening the app finds it already on the phone.
+ * 
+ * An alarm wakes the service just after the next METAR or MAV issue (see
+ * IssueSchedule), plus a little random delay so every phone doesn't hit the
+ * server in the same second. The alarm doesn't wake the phone; if it's
+ * asleep the fetch happens when it wakes, which is usually when someone is
+ * about to look at it. Each run asks for whatever is out of date in one
+ * request, then sets the next alarm.
+ * 
+ * The alarms stop if the app hasn't been opened for MAX_IDLE, and start
+ * again the next time it is.
+ */
+public class PrefetchService extends IntentService
+{
+	/** Longest the app can go unopened before prefetching stops */
+	public static final long MAX_IDLE = 3 * 24 * 60 * 60 * 1000L;
+
+	/** Longest random delay after an issue (milliseconds) */
+	public static final long MAX_JITTER = 2 * 60 * 1000;
+
+	/** Name of the preferences file the prefetch state is kept in */
+	private static final String PREFERENCES = "prefetch";
+
+	/** Preference holding when the app was last opened */
+	private static final String LAST_USED = "lastUsed";
+
+	/** Sources fetched for the station */
+	private static final String SOURCES[] = { WeatherRequest.METAR,
+			WeatherRequest.MAV };
+
+	/** Spreads the alarms out */
+	private static final Random random = new Random();
+
+	/** Thread that does the scheduling, off the UI thread */
+	private static final ExecutorService scheduler = Executors
+			.newSingleThreadExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "PrefetchService");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Constructor.
+	 */
+	public PrefetchService()
+	{
+		super("PrefetchService");
+	}
+
+	/**
+	 * Note that the app is being used, and make sure the next prefetch is
+	 * set. The screens call it as they stop, so the next data is waiting when
+	 * they come back; setting the alarm again just replaces it. The
+	 * preference write and the alarm are done in the background.
+	 * 
+	 * @param context
+	 *            any context of the app
+	 */
+	public static void schedule(Context context)
+	{
+		final Context appContext = context.getApplicationContext();
+		final long now = System.currentTimeMillis();
+		scheduler.execute(new Runnable()
+		{
+			public void run()
+			{
+				getPreferences(appContext).edit().putLong(LAST_USED, now)
+						.commit();
+				setAlarm(appContext);
+			}
+		});
+	}
+
+	/**
+	 * Fetch whatever is out of date for the station, then set the next
+	 * alarm. This runs on the service's own thread.
+	 */
+	@Override
+	protected void onHandleIntent(Intent intent)
+	{
+		try
+		{
+			prefetch();
+		} finally
+		{
+			long lastUsed = getPreferences(this).getLong(LAST_USED, 0);
+			if (System.currentTimeMillis() - lastUsed < MAX_IDLE)
+			{
+				setAlarm(this);
+			} else
+			{
+				Log.i(PrefetchService.class.toString(),
+						"app not used lately, prefetch stopped");
+			}
+		}
+	}
+
+	/**
+	 * Fetch whatever is out of date for the station, in one request.
+	 */
+	private void prefetch()
+	{
+		SettingsData settings = new SettingsData(this);
+		WeatherRepository repository = WeatherRepository.getInstance(this);
+
+		List<WeatherRequest> requests = new ArrayList<WeatherRequest>();
+		for (String source : SOURCES)
+		{
+			WeatherRequest request = new WeatherRequest(source, settings.wxid);
+			if (repository.needsRefresh(request))
+			{
+				requests.add(request);
+			}
+		}
+		if (requests.size() == 0)
+		{
+			return;
+		}
+
+		Log.i(PrefetchService.class.toString(), "prefetch " + requests);
+		try
+		{
+			List<Object> results = Utils.fetchWeather(settings.baseUrl,
+					requests);
+			long fetched = System.currentTimeMillis();
+			for (int i = 0; i < Math.min(results.size(), requests.size()); ++i)
+			{
+				Object result = results.get(i);
+				if (result instanceof Exception)
+				{
+					Log.i(PrefetchService.class.toString(), "no data for "
+							+ requests.get(i) + ": " + result);
+				} else
+				{
+					repository.keep(requests.get(i), result, fetched);
+				}
+			}
+		} catch (Exception e)
+		{
+			// The screens will ask again when they open.
+			Log.i(PrefetchService.class.toString(), "prefetch failed: " + e);
+		}
+	}
+
+	/**
+	 * Set the alarm for the next prefetch, replacing any set before.
+	 * 
+	 * @param context
+	 *            any context of the app
+	 */
+	private static void setAlarm(Context context)
+	{
+		long time = IssueSchedule.nextIssue(System.currentTimeMillis())
+				+ (long) (random.nextDouble() * MAX_JITTER);
+		AlarmManager alarmManager = (AlarmManager) context
+				.getSystemService(Context.ALARM_SERVICE);
+		alarmManager.set(AlarmManager.RTC, time, PendingIntent.getService(
+				context, 0, new Intent(context, PrefetchService.class),
+				PendingIntent.FLAG_UPDATE_CURRENT));
+	}
+
+	/**
+	 * Get the preferences the prefetch state is kept in.
+	 */
+	private static SharedPreferences getPreferences(Context context)
+	{
+		return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+	}
+}
@@ -0,0 +1,296 @@
+package edu.umn.aerowx;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Collects the requests made within a short window and sends them to the
+ * server as one POST. The server answers with an array in the same order,
+ * which is split back out to each caller.
+ * 
+ * Every radio wake-up costs battery and a round trip costs seconds on a weak
+ * cell signal, so when several screens or stations refresh together it pays
+ * to ask once.
+ */
+public class RequestBatcher
+{
+	/** Default time to wait for more requests before sending (milliseconds) */
+	public static final long DEFAULT_WINDOW = 50;
+
+	/** Most requests sent in one POST */
+	public static final int MAX_BATCH = 8;
+
+	/** The batcher the app uses */
+	private static RequestBatcher instance;
+
+	/** Time to wait for more requests before sending (milliseconds) */
+	private final long window;
+
+	/** Thread(s) that do the waiting and the network I/O */
+	private final ScheduledExecutorService executor;
+
+	/** Delivers results on the UI thread */
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	/** Requests waiting to be sent, by server URL */
+	private final Map<String, List<Entry<?>>> pending = new HashMap<String, List<Entry<?>>>();
+
+	/** Timers that send the waiting requests, by server URL */
+	private final Map<String, ScheduledFuture<?>> timers = new HashMap<String, ScheduledFuture<?>>();
+
+	/**
+	 * Get the batcher the app uses.
+	 * 
+	 * @return the shared RequestBatcher
+	 */
+	public static synchronized RequestBatcher getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new RequestBatcher(DEFAULT_WINDOW);
+		}
+		return instance;
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param window
+	 *            time to wait for more requests before sending (milliseconds)
+	 */
+	public RequestBatcher(long window)
+	{
+		super();
+		this.window = window;
+		executor = Executors.newScheduledThreadPool(2, new ThreadFactory()
+		{
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "RequestBatcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queue a request. It goes out with whatever else is asked for in the
+	 * next few milliseconds.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param request
+	 *            what to ask for
+	 * @param type
+	 *            type of data expected back (MetarData or MavData)
+	 * @param listener
+	 *            called on the UI thread with the decoded data, or the error.
+	 */
+	public <T> void submit(final String baseUrl, WeatherRequest request,
+			Class<T> type, Utils.ResponseListener<T> listener)
+	{
+		Entry<T> entry = new Entry<T>(request, type, listener);
+		List<Entry<?>> batch = null;
+
+		synchronized (pending)
+		{
+			List<Entry<?>> entries = pending.get(baseUrl);
+			if (entries == null)
+			{
+				entries = new ArrayList<Entry<?>>();
+				pending.put(baseUrl, entries);
+				timers.put(baseUrl, executor.schedule(new Runnable()
+				{
+					public void run()
+					{
+						flush(baseUrl);
+					}
+				}, window, TimeUnit.MILLISECONDS));
+			}
+			entries.add(entry);
+
+			// A full batch goes out right away. Its timer mustn't cut short
+			// the window of the next batch.
+			if (entries.size() >= MAX_BATCH)
+			{
+				batch = pending.remove(baseUrl);
+				timers.remove(baseUrl).cancel(false);
+			}
+		}
+
+		if (batch != null)
+		{
+			final List<Entry<?>> fullBatch = batch;
+			executor.execute(new Runnable()
+			{
+				public void run()
+				{
+					send(baseUrl, fullBatch);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Send whatever is waiting for a server.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 */
+	private void flush(String baseUrl)
+	{
+		List<Entry<?>> batch;
+		synchronized (pending)
+		{
+			batch = pending.remove(baseUrl);
+			timers.remove(baseUrl);
+		}
+		if (batch != null)
+		{
+			send(baseUrl, batch);
+		}
+	}
+
+	/**
+	 * Post a batch of requests and hand each caller its part of the response.
+	 * Runs on the executor.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param batch
+	 *            requests to send
+	 */
+	private void send(String baseUrl, List<Entry<?>> batch)
+	{
+		Log.i(RequestBatcher.class.toString(), "sending " + batch.size()
+				+ " request(s) to " + baseUrl);
+
+		List<Object> results;
+		try
+		{
+			List<WeatherRequest> requests = new ArrayList<WeatherRequest>(
+					batch.size());
+			for (Entry<?> entry : batch)
+			{
+				requests.add(entry.request);
+			}
+			results = Utils.fetchWeather(baseUrl, requests);
+		} catch (Exception e)
+		{
+			for (Entry<?> entry : batch)
+			{
+				entry.fail(e);
+			}
+			return;
+		}
+
+		if (results.size() == batch.size())
+		{
+			for (int i = 0; i < batch.size(); ++i)
+			{
+				batch.get(i).complete(results.get(i));
+			}
+		} else if (results.size() == 1)
+		{
+			// The server only answered the first request (older servers do
+			// that). Ask for the rest one at a time.
+			batch.get(0).complete(results.get(0));
+			for (int i = 1; i < batch.size(); ++i)
+			{
+				List<Entry<?>> single = new ArrayList<Entry<?>>(1);
+				single.add(batch.get(i));
+				send(baseUrl, single);
+			}
+		} else
+		{
+			// Can't tell which answer is whose.
+			IOException e = new IOException("Server returned "
+					+ results.size() + " answers for " + batch.size()
+					+ " requests");
+			for (Entry<?> entry : batch)
+			{
+				entry.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * A caller waiting for its part of a batch.
+	 */
+	private class Entry<T>
+	{
+		/** What was asked for */
+		final WeatherRequest request;
+
+		/** Type of data the listener expects */
+		final Class<T> type;
+
+		/** Who to tell */
+		final Utils.ResponseListener<T> listener;
+
+		Entry(WeatherRequest request, Class<T> type,
+				Utils.ResponseListener<T> listener)
+		{
+			this.request = request;
+			this.type = type;
+			this.listener = listener;
+		}
+
+		/**
+		 * Pass on this caller's part of the response.
+		 * 
+		 * @param result
+		 *            decoded data for this request, or an Exception
+		 */
+		void complete(final Object result)
+		{
+			if (result instanceof Exception)
+			{
+				fail((Exception) result);
+				return;
+			}
+			if (!type.isInstance(result))
+			{
+				fail(new Exception("Server returned unexpected data: "
+						+ result));
+				return;
+			}
+			handler.post(new Runnable()
+			{
+				public void run()
+				{
+					listener.onResponse(type.cast(result));
+				}
+			});
+		}
+
+		/**
+		 * Pass on a failure.
+		 * 
+		 * @param e
+		 *            what went wrong
+		 */
+		void fail(final Exception e)
+		{
+			handler.post(new Runnable()
+			{
+				public void run()
+				{
+					listener.onError(e);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,577 @@
+package edu.umn.aerowx;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import android.util.Log;
+
+/**
+ * How hard to try for a response: an overall deadline, a limit on each
+ * attempt, a few retries with jittered exponential backoff when the failure
+ * looks temporary, and optionally a second (hedged) request when the first
+ * one is slower than most.
+ * 
+ * On a weak rural cell link a request can otherwise hang far longer than
+ * anybody will wait for it. The deadline puts a bound on that, the retries get
+ * past a dropped connection, and the hedge cuts off the long tail.
+ * 
+ * A policy remembers how long its recent requests took, to know when a
+ * request is slow enough to hedge.
+ * 
+ * Attempts run on a thread of their own, so the caller gets its answer (or a
+ * SocketTimeoutException) by the deadline even when a server trickles its
+ * response a byte at a time; the socket timeout only bounds the gap between
+ * bytes. An attempt given up on, because the other one answered first or its
+ * time ran out, is aborted, so it doesn't keep hold of a pooled connection:
+ * a transport says what to abort with setAbortable().
+ */
+public class RequestPolicy
+{
+	/** Default time to give up after, all attempts included (milliseconds) */
+	public static final long DEFAULT_DEADLINE = 20 * 1000;
+
+	/** Default time to give one attempt (milliseconds) */
+	public static final int DEFAULT_ATTEMPT_TIMEOUT = 10 * 1000;
+
+	/** Default most attempts */
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+	/** Default pause before the first retry, before jitter (milliseconds) */
+	public static final long DEFAULT_BACKOFF = 500;
+
+	/** Default longest pause between attempts (milliseconds) */
+	public static final long DEFAULT_MAX_BACKOFF = 4 * 1000;
+
+	/** Number of recent request times kept for the hedge percentile */
+	private static final int SAMPLES = 64;
+
+	/** Fewest request times needed before the percentile is believed */
+	private static final int MIN_SAMPLES = 8;
+
+	/** Threads attempts run on */
+	private static final ExecutorService executor = Executors
+			.newCachedThreadPool(new ThreadFactory()
+			{
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "RequestPolicy");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/** What an attempt on each thread is waiting on */
+	private static final ThreadLocal<Handle> handles = new ThreadLocal<Handle>();
+
+	/** Something an attempt is waiting on, that another thread can stop */
+	public interface Abortable
+	{
+		/**
+		 * Stop it. Whatever the attempt is blocked in fails.
+		 */
+		void abort();
+	}
+
+	/**
+	 * Way to abort one running attempt.
+	 */
+	private static class Handle
+	{
+		/** What the attempt is waiting on, or null */
+		private Abortable abortable;
+
+		/** Set once the attempt has finished, or been aborted */
+		private boolean done;
+
+		/**
+		 * Say what the attempt is waiting on. If the attempt has already been
+		 * given up on, it's aborted straight away.
+		 */
+		void set(Abortable abortable)
+		{
+			synchronized (this)
+			{
+				if (!done)
+				{
+					this.abortable = abortable;
+					return;
+				}
+			}
+			abortable.abort();
+		}
+
+		/**
+		 * The attempt is over; there's nothing left to abort.
+		 */
+		synchronized void finish()
+		{
+			done = true;
+			abortable = null;
+		}
+
+		/**
+		 * Give up on the attempt, aborting whatever it's waiting on.
+		 */
+		void abort()
+		{
+			Abortable current;
+			synchronized (this)
+			{
+				if (done)
+				{
+					return;
+				}
+				done = true;
+				current = abortable;
+				abortable = null;
+			}
+			if (current != null)
+			{
+				current.abort();
+			}
+		}
+	}
+
+	/** One try at a request */
+	public interface Attempt<V>
+	{
+		/**
+		 * Make the request.
+		 * 
+		 * @param timeout
+		 *            longest to wait to connect, or between bytes of the
+		 *            response (milliseconds)
+		 * @return the response
+		 * @throws IOException
+		 *             if it failed
+		 */
+		V run(int timeout) throws IOException;
+	}
+
+	/** Time to give up after, all attempts included (milliseconds) */
+	public final long deadline;
+
+	/** Time to give one attempt (milliseconds) */
+	public final int attemptTimeout;
+
+	/** Most attempts */
+	public final int maxAttempts;
+
+	/** Pause before the first retry, before jitter (milliseconds) */
+	public final long backoff;
+
+	/** Longest pause between attempts (milliseconds) */
+	public final long maxBackoff;
+
+	/**
+	 * Request time percentile (0 to 1) after which a second request is sent,
+	 * 0 for never
+	 */
+	public final double hedgePercentile;
+
+	/** Shortest time to wait before sending a second request (milliseconds) */
+	public final long hedgeMinDelay;
+
+	/** Source of jitter */
+	private final Random random = new Random();
+
+	/** Recent request times (milliseconds), used as a ring */
+	private final long samples[] = new long[SAMPLES];
+
+	/** Number of request times recorded */
+	private int sampleCount = 0;
+
+	/**
+	 * Constructor for the default policy, which doesn't hedge.
+	 */
+	public RequestPolicy()
+	{
+		this(DEFAULT_DEADLINE, DEFAULT_ATTEMPT_TIMEOUT, DEFAULT_MAX_ATTEMPTS,
+				DEFAULT_BACKOFF, DEFAULT_MAX_BACKOFF);
+	}
+
+	/**
+	 * Constructor for a policy that doesn't hedge.
+	 * 
+	 * @param deadline
+	 *            time to give up after, all attempts included (milliseconds)
+	 * @param attemptTimeout
+	 *            time to give one attempt (milliseconds)
+	 * @param maxAttempts
+	 *            most attempts
+	 * @param backoff
+	 *            pause before the first retry, before jitter (milliseconds)
+	 * @param maxBackoff
+	 *            longest pause between attempts (milliseconds)
+	 */
+	public RequestPolicy(long deadline, int attemptTimeout, int maxAttempts,
+			long backoff, long maxBackoff)
+	{
+		this(deadline, attemptTimeout, maxAttempts, backoff, maxBackoff, 0, 0);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param deadline
+	 *            time to give up after, all attempts included (milliseconds)
+	 * @param attemptTimeout
+	 *            time to give one attempt (milliseconds)
+	 * @param maxAttempts
+	 *            most attempts
+	 * @param backoff
+	 *            pause before the first retry, before jitter (milliseconds)
+	 * @param maxBackoff
+	 *            longest pause between attempts (milliseconds)
+	 * @param hedgePercentile
+	 *            request time percentile (0 to 1) after which a second request
+	 *            is sent, 0 for never
+	 * @param hedgeMinDelay
+	 *            shortest time to wait before sending a second request
+	 *            (milliseconds)
+	 */
+	public RequestPolicy(long deadline, int attemptTimeout, int maxAttempts,
+			long backoff, long maxBackoff, double hedgePercentile,
+			long hedgeMinDelay)
+	{
+		super();
+		this.deadline = deadline;
+		this.attemptTimeout = attemptTimeout;
+		this.maxAttempts = maxAttempts;
+		this.backoff = backoff;
+		this.maxBackoff = maxBackoff;
+		this.hedgePercentile = hedgePercentile;
+		this.hedgeMinDelay = hedgeMinDelay;
+	}
+
+	/**
+	 * Make a request, following this policy.
+	 * 
+	 * @param attempt
+	 *            the request
+	 * @return the response of the first attempt that worked
+	 * @throws IOException
+	 *             the failure of the last attempt, or SocketTimeoutException
+	 *             if the deadline passed.
+	 */
+	public <V> V call(Attempt<V> attempt) throws IOException
+	{
+		long end = System.currentTimeMillis() + deadline;
+		IOException failure = null;
+
+		for (int i = 0; i < maxAttempts; ++i)
+		{
+			long left = end - System.currentTimeMillis();
+			if (left <= 0)
+			{
+				break;
+			}
+			int timeout = (int) Math.min(attemptTimeout, left);
+
+			try
+			{
+				return runBounded(attempt, timeout,
+						System.currentTimeMillis() + timeout);
+			} catch (IOException e)
+			{
+				failure = e;
+				if (!isTransient(e))
+				{
+					throw e;
+				}
+				Log.i(RequestPolicy.class.toString(), "attempt " + (i + 1)
+						+ " failed: " + e);
+			}
+
+			if (i + 1 < maxAttempts)
+			{
+				long pause = backoff(i);
+				if (System.currentTimeMillis() + pause >= end)
+				{
+					break;
+				}
+				try
+				{
+					Thread.sleep(pause);
+				} catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted during retry");
+				}
+			}
+		}
+
+		if (failure != null)
+		{
+			throw failure;
+		}
+		throw new SocketTimeoutException("No response within " + deadline
+				+ " ms");
+	}
+
+	/**
+	 * Say what the attempt running on this thread is waiting on, so it can be
+	 * aborted if it's given up on. Transports call this once they have
+	 * something to abort; off an attempt's thread it does nothing.
+	 * 
+	 * @param abortable
+	 *            what to abort
+	 */
+	public static void setAbortable(Abortable abortable)
+	{
+		Handle handle = handles.get();
+		if (handle != null)
+		{
+			handle.set(abortable);
+		}
+	}
+
+	/**
+	 * Could this failure go away if the request is tried again? Network and
+	 * socket errors, timeouts (including HttpClient's connect and connection
+	 * pool timeouts), a lookup that failed, a kept-alive connection the server
+	 * had closed, and a response cut short could, and so could server errors.
+	 * Having no network at all won't, nor will other HTTP statuses, nor a
+	 * response that can't be decoded.
+	 * 
+	 * @param e
+	 *            the failure
+	 * @return true if the request is worth retrying
+	 */
+	public static boolean isTransient(IOException e)
+	{
+		if (e instanceof HttpStatusException)
+		{
+			return ((HttpStatusException) e).isTransient();
+		}
+		return e instanceof SocketException
+				|| e instanceof SocketTimeoutException
+				|| e instanceof UnknownHostException
+				|| e instanceof EOFException
+				|| e instanceof ConnectTimeoutException
+				|| e instanceof NoHttpResponseException;
+	}
+
+	/**
+	 * Pick how long to pause after a failed attempt. It's a random time up to
+	 * a limit that doubles with each attempt, so that many phones that lost
+	 * the server at the same moment don't all come back at the same moment.
+	 * 
+	 * @param attempt
+	 *            number of the attempt that failed, starting from 0
+	 * @return pause (milliseconds)
+	 */
+	public long backoff(int attempt)
+	{
+		long limit = maxBackoff;
+		if (attempt < 30)
+		{
+			limit = Math.min(maxBackoff, backoff << attempt);
+		}
+		if (limit <= 0)
+		{
+			return 0;
+		}
+		return (long) (random.nextDouble() * (limit + 1));
+	}
+
+	/**
+	 * Get how long to wait for the first request before sending a second.
+	 * 
+	 * @return delay (milliseconds), or -1 if this policy doesn't hedge.
+	 */
+	public long getHedgeDelay()
+	{
+		if (hedgePercentile <= 0)
+		{
+			return -1;
+		}
+		long sorted[];
+		synchronized (samples)
+		{
+			int count = Math.min(sampleCount, SAMPLES);
+			if (count < MIN_SAMPLES)
+			{
+				return hedgeMinDelay;
+			}
+			sorted = new long[count];
+			System.arraycopy(samples, 0, sorted, 0, count);
+		}
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(hedgePercentile * sorted.length) - 1;
+		index = Math.max(0, Math.min(sorted.length - 1, index));
+		return Math.max(hedgeMinDelay, sorted[index]);
+	}
+
+	/**
+	 * Remember how long a request took that worked.
+	 * 
+	 * @param millis
+	 *            request time (milliseconds)
+	 */
+	public void recordLatency(long millis)
+	{
+		synchronized (samples)
+		{
+			samples[sampleCount % SAMPLES] = millis;
+			++sampleCount;
+		}
+	}
+
+	/**
+	 * Make one attempt on this thread, and remember how long it took.
+	 */
+	private <V> V runTimed(Attempt<V> attempt, int timeout)
+			throws IOException
+	{
+		long start = System.currentTimeMillis();
+		V result = attempt.run(timeout);
+		recordLatency(System.currentTimeMillis() - start);
+		return result;
+	}
+
+	/**
+	 * Make an attempt on another thread, waiting for it no later than its
+	 * time is up (which is never after the deadline). If this policy hedges
+	 * and it hasn't answered by the hedge delay, make a second one alongside
+	 * it. The first to answer wins. Any other attempt still running is
+	 * aborted, as is one whose time ran out.
+	 */
+	private <V> V runBounded(final Attempt<V> attempt, final int timeout,
+			long end) throws IOException
+	{
+		ExecutorCompletionService<V> service = new ExecutorCompletionService<V>(
+				executor);
+		Map<Future<V>, Handle> running = new HashMap<Future<V>, Handle>();
+		try
+		{
+			submit(service, running, attempt, timeout);
+
+			Future<V> done = null;
+			long hedgeDelay = getHedgeDelay();
+			if (hedgeDelay >= 0)
+			{
+				done = service.poll(
+						Math.min(hedgeDelay, end - System.currentTimeMillis()),
+						TimeUnit.MILLISECONDS);
+			}
+			if (done == null && hedgeDelay >= 0)
+			{
+				int hedgeTimeout = (int) Math.min(timeout,
+						end - System.currentTimeMillis());
+				if (hedgeTimeout > 0)
+				{
+					Log.i(RequestPolicy.class.toString(),
+							"slow response, sending hedged request");
+					submit(service, running, attempt, hedgeTimeout);
+				}
+			}
+
+			IOException failure = null;
+			while (true)
+			{
+				if (done == null)
+				{
+					long left = end - System.currentTimeMillis();
+					done = (left > 0) ? service.poll(left,
+							TimeUnit.MILLISECONDS) : null;
+					if (done == null)
+					{
+						throw new SocketTimeoutException("No response within "
+								+ timeout + " ms");
+					}
+				}
+				running.remove(done);
+				try
+				{
+					return done.get();
+				} catch (ExecutionException e)
+				{
+					failure = toIOException(e.getCause());
+				}
+				if (running.size() == 0)
+				{
+					throw failure;
+				}
+				done = null;
+			}
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for response");
+		} finally
+		{
+			// Whatever is still going has lost, or run out of time.
+			for (Handle handle : running.values())
+			{
+				handle.abort();
+			}
+		}
+	}
+
+	/**
+	 * Start an attempt on another thread, with a handle to abort it by.
+	 */
+	private <V> void submit(ExecutorCompletionService<V> service,
+			Map<Future<V>, Handle> running, final Attempt<V> attempt,
+			final int timeout)
+	{
+		final Handle handle = new Handle();
+		running.put(service.submit(new Callable<V>()
+		{
+			public V call() throws Exception
+			{
+				handles.set(handle);
+				try
+				{
+					return runTimed(attempt, timeout);
+				} finally
+				{
+					handle.finish();
+					handles.remove();
+				}
+			}
+		}), handle);
+	}
+
+	/**
+	 * Turn what an attempt threw back into an IOException.
+	 */
+	private static IOException toIOException(Throwable cause)
+	{
+		if (cause instanceof IOException)
+		{
+			return (IOException) cause;
+		}
+		if (cause instanceof RuntimeException)
+		{
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error)
+		{
+			throw (Error) cause;
+		}
+		IOException e = new IOException(String.valueOf(cause));
+		e.initCause(cause);
+		return e;
+	}
+}
@@ -0,0 +1,173 @@
+package edu.umn.aerowx;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the last decoded response for each request along with the
+ * validators (ETag, Last-Modified) the server sent with it. The next time the
+ * same request goes out it carries those validators, and if the server answers
+ * 304 Not Modified the remembered data is handed back without downloading or
+ * parsing anything.
+ * 
+ * METAR data changes about once an hour and MAV four times a day, so most
+ * refreshes come back unchanged.
+ * 
+ * The decoded objects are shared between callers, so they must be treated as
+ * read-only.
+ */
+public class ResponseCache
+{
+	/** Default number of responses remembered */
+	public static final int DEFAULT_SIZE = 32;
+
+	/** Most responses remembered */
+	private final int maxEntries;
+
+	/** Remembered responses, least recently used first */
+	private final LinkedHashMap<String, Entry> entries;
+
+	/**
+	 * A remembered response.
+	 */
+	public static class Entry
+	{
+		/** ETag header from the server, or null */
+		public final String etag;
+
+		/** Last-Modified header from the server, or null */
+		public final String lastModified;
+
+		/** Decoded response: MetarData or MavData, one per request */
+		public final List<Object> results;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param etag
+		 *            ETag header from the server, or null
+		 * @param lastModified
+		 *            Last-Modified header from the server, or null
+		 * @param results
+		 *            decoded response
+		 */
+		public Entry(String etag, String lastModified, List<Object> results)
+		{
+			super();
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.results = results;
+		}
+
+		/**
+		 * Add the conditional request headers for this response.
+		 * 
+		 * @param headers
+		 *            request headers to add to
+		 */
+		public void addValidators(Map<String, String> headers)
+		{
+			if (etag != null)
+			{
+				headers.put("If-None-Match", etag);
+			}
+			if (lastModified != null)
+			{
+				headers.put("If-Modified-Since", lastModified);
+			}
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param maxEntries
+	 *            most responses remembered
+	 */
+	public ResponseCache(int maxEntries)
+	{
+		super();
+		this.maxEntries = maxEntries;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, ResponseCache.Entry> eldest)
+			{
+				return size() > ResponseCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Build the key a request is remembered under.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param body
+	 *            JSON request text
+	 * @return cache key
+	 */
+	public static String key(String baseUrl, String body)
+	{
+		return baseUrl + "\n" + body;
+	}
+
+	/**
+	 * Look up a remembered response.
+	 * 
+	 * @param key
+	 *            from key()
+	 * @return the entry, or null if there isn't one.
+	 */
+	public synchronized Entry get(String key)
+	{
+		return entries.get(key);
+	}
+
+	/**
+	 * Remember a response. Responses without validators can't be revalidated,
+	 * so they are not kept.
+	 * 
+	 * @param key
+	 *            from key()
+	 * @param etag
+	 *            ETag header from the server, or null
+	 * @param lastModified
+	 *            Last-Modified header from the server, or null
+	 * @param results
+	 *            decoded response
+	 */
+	public synchronized void put(String key, String etag,
+			String lastModified, List<Object> results)
+	{
+		if (etag == null && lastModified == null)
+		{
+			entries.remove(key);
+			return;
+		}
+		entries.put(key, new Entry(etag, lastModified, results));
+	}
+
+	/**
+	 * Forget a response.
+	 * 
+	 * @param key
+	 *            from key()
+	 */
+	public synchronized void remove(String key)
+	{
+		entries.remove(key);
+	}
+
+	/**
+	 * Forget everything.
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+	}
+}
@@ -0,0 +1,807 @@
+package edu.umn.aerowx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Append-only record of every response fetched from the server, exactly as
+ * it came in, next to the request that asked for it. It's for looking back:
+ * replaying a response that MetarData or MavData decoded badly, or reading
+ * the last data for a station without asking the server.
+ * 
+ * The journal is a few fixed-size segment files, memory-mapped, so appending
+ * is a copy into memory and reading needs no file I/O calls at all. Each
+ * record is
+ * 
+ * <pre>
+ * int length, int CRC32, long time, short keys, keys (UTF),
+ * int request length, request (UTF-8), int response length, response
+ * </pre>
+ * 
+ * The length is written last, so a record is either all there or not at
+ * all; a zero length marks the end of a segment. A record torn by a crash
+ * fails its CRC and it and everything after it in that segment is dropped
+ * when the journal is opened.
+ * 
+ * When the last segment is full a new one is started. Past maxSegments the
+ * oldest is compacted away: any record in it that is still the latest for
+ * its station and source is copied to the new segment, the rest is dropped.
+ * A copy is indexed only under the stations and sources it's the latest for.
+ * 
+ * Records are indexed by source and station ("metar/kros"), in the order
+ * they were fetched.
+ */
+public class ResponseJournal
+{
+	/** Default size of a segment file */
+	public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+
+	/** Default most segment files kept */
+	public static final int DEFAULT_MAX_SEGMENTS = 4;
+
+	/** Bytes before a record's payload: length and CRC */
+	private static final int HEADER_SIZE = 8;
+
+	/** Segment file name prefix */
+	private static final String PREFIX = "journal-";
+
+	/** Segment file name suffix */
+	private static final String SUFFIX = ".seg";
+
+	/** Directory the segment files are kept in */
+	private final File directory;
+
+	/** Size of each segment file */
+	private final int segmentSize;
+
+	/** Most segment files kept */
+	private final int maxSegments;
+
+	/** Segments, oldest first. The last one is appended to. */
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	/** Where each station and source's records are, oldest first */
+	private final Map<String, List<Location>> index = new HashMap<String, List<Location>>();
+
+	/**
+	 * A record read back from the journal.
+	 */
+	public static class Record
+	{
+		/** When the response was fetched (milliseconds) */
+		public final long time;
+
+		/** Index keys of the request, "source/station" */
+		public final String keys[];
+
+		/** JSON request sent */
+		public final String request;
+
+		/** Response body, as the server sent it */
+		public final byte response[];
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param time
+		 *            when the response was fetched (milliseconds)
+		 * @param keys
+		 *            index keys of the request
+		 * @param request
+		 *            JSON request sent
+		 * @param response
+		 *            response body
+		 */
+		public Record(long time, String keys[], String request,
+				byte response[])
+		{
+			super();
+			this.time = time;
+			this.keys = keys;
+			this.request = request;
+			this.response = response;
+		}
+
+		/**
+		 * Get the response as text.
+		 * 
+		 * @return response body, decoded as UTF-8
+		 */
+		public String getResponseText()
+		{
+			try
+			{
+				return new String(response, "UTF-8");
+			} catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+		}
+
+		/** Quintessential toString method */
+		@Override
+		public String toString()
+		{
+			return "Record [time=" + time + ", keys=" + Arrays.toString(keys)
+					+ ", request=" + request + ", response="
+					+ response.length + " bytes]";
+		}
+	}
+
+	/**
+	 * One mapped segment file.
+	 */
+	private static class Segment
+	{
+		/** Sequence number, from the file name */
+		final long number;
+
+		/** The file */
+		final File file;
+
+		/** The whole file, mapped */
+		final MappedByteBuffer buffer;
+
+		/** Where the next record goes */
+		int end;
+
+		Segment(long number, File file, MappedByteBuffer buffer)
+		{
+			this.number = number;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * Where a record is.
+	 */
+	private static class Location
+	{
+		final Segment segment;
+
+		final int offset;
+
+		final long time;
+
+		Location(Segment segment, int offset, long time)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Input stream that keeps a copy of everything read through it, so a
+	 * response can be decoded as it streams in and journaled afterwards.
+	 */
+	public static class Recorder extends FilterInputStream
+	{
+		/** Everything read so far */
+		private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param in
+		 *            stream to read from
+		 */
+		public Recorder(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int c = super.read();
+			if (c >= 0)
+			{
+				copy.write(c);
+			}
+			return c;
+		}
+
+		@Override
+		public int read(byte buffer[], int offset, int count)
+				throws IOException
+		{
+			int n = super.read(buffer, offset, count);
+			if (n > 0)
+			{
+				copy.write(buffer, offset, n);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			// Read rather than skip, so the copy has no holes.
+			byte buffer[] = new byte[(int) Math.min(n, 4096)];
+			int read = read(buffer, 0, buffer.length);
+			return (read < 0) ? 0 : read;
+		}
+
+		/**
+		 * Get everything read so far.
+		 * 
+		 * @return copy of the bytes read
+		 */
+		public byte[] toByteArray()
+		{
+			return copy.toByteArray();
+		}
+	}
+
+	/**
+	 * Constructor with the default sizes. Opens (or creates) the journal.
+	 * 
+	 * @param directory
+	 *            directory to keep the segment files in
+	 * @throws IOException
+	 *             if the segment files can't be opened
+	 */
+	public ResponseJournal(File directory) throws IOException
+	{
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+	}
+
+	/**
+	 * Constructor. Opens (or creates) the journal.
+	 * 
+	 * @param directory
+	 *            directory to keep the segment files in
+	 * @param segmentSize
+	 *            size of each segment file, which is also the largest record
+	 * @param maxSegments
+	 *            most segment files kept, at least 2
+	 * @throws IOException
+	 *             if the segment files can't be opened
+	 */
+	public ResponseJournal(File directory, int segmentSize, int maxSegments)
+			throws IOException
+	{
+		super();
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = Math.max(2, maxSegments);
+		open();
+	}
+
+	/**
+	 * Add a response to the journal.
+	 * 
+	 * @param time
+	 *            when it was fetched (milliseconds)
+	 * @param request
+	 *            JSON request sent
+	 * @param response
+	 *            response body, as the server sent it
+	 * @throws IOException
+	 *             if the record is too big for a segment, or a new segment
+	 *             can't be made
+	 */
+	public synchronized void append(long time, String request,
+			byte response[]) throws IOException
+	{
+		append(new Record(time, getKeys(request), request, response));
+	}
+
+	/**
+	 * Get the latest record for a station and source.
+	 * 
+	 * @param source
+	 *            WeatherRequest.METAR or WeatherRequest.MAV
+	 * @param location
+	 *            station
+	 * @return the record, or null if there isn't one
+	 */
+	public synchronized Record latest(String source, String location)
+	{
+		List<Location> locations = index.get(getKey(source, location));
+		if (locations == null || locations.size() == 0)
+		{
+			return null;
+		}
+		return read(locations.get(locations.size() - 1));
+	}
+
+	/**
+	 * Get the records for a station and source fetched in a span of time.
+	 * 
+	 * @param source
+	 *            WeatherRequest.METAR or WeatherRequest.MAV
+	 * @param location
+	 *            station
+	 * @param from
+	 *            earliest fetch time (milliseconds, inclusive)
+	 * @param to
+	 *            latest fetch time (milliseconds, exclusive)
+	 * @return the records, oldest first
+	 */
+	public synchronized List<Record> read(String source, String location,
+			long from, long to)
+	{
+		List<Record> records = new ArrayList<Record>();
+		List<Location> locations = index.get(getKey(source, location));
+		if (locations != null)
+		{
+			for (Location where : locations)
+			{
+				if (where.time >= from && where.time < to)
+				{
+					records.add(read(where));
+				}
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Get the number of segment files in use.
+	 * 
+	 * @return number of segments
+	 */
+	public synchronized int segmentCount()
+	{
+		return segments.size();
+	}
+
+	/**
+	 * Write any changes out to the files. The OS does this anyway; this is
+	 * for when it mustn't wait.
+	 */
+	public synchronized void force()
+	{
+		for (Segment segment : segments)
+		{
+			segment.buffer.force();
+		}
+	}
+
+	/**
+	 * Map the segment files and rebuild the index.
+	 */
+	private void open() throws IOException
+	{
+		directory.mkdirs();
+		File files[] = directory.listFiles();
+		List<Long> numbers = new ArrayList<Long>();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				String name = file.getName();
+				if (name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+				{
+					try
+					{
+						numbers.add(Long.valueOf(name.substring(
+								PREFIX.length(), name.length()
+										- SUFFIX.length())));
+					} catch (NumberFormatException e)
+					{
+						// Not one of ours
+					}
+				}
+			}
+		}
+		Collections.sort(numbers);
+
+		for (Long number : numbers)
+		{
+			Segment segment = map(number.longValue());
+			segments.add(segment);
+			scan(segment);
+		}
+		if (segments.size() == 0)
+		{
+			segments.add(map(0));
+		}
+	}
+
+	/**
+	 * Map a segment file, creating it if need be.
+	 * 
+	 * @param number
+	 *            sequence number of the segment
+	 * @return the segment
+	 */
+	private Segment map(long number) throws IOException
+	{
+		File file = new File(directory, PREFIX
+				+ String.format("%08d", Long.valueOf(number)) + SUFFIX);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try
+		{
+			FileChannel channel = randomAccessFile.getChannel();
+			// The mapping stays valid after the file is closed.
+			return new Segment(number, file, channel.map(
+					FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+		} finally
+		{
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Index the records in a segment, and find its end. A torn record and
+	 * anything after it is wiped.
+	 * 
+	 * @param segment
+	 *            segment to scan
+	 */
+	private void scan(Segment segment)
+	{
+		ByteBuffer buffer = segment.buffer;
+		int offset = 0;
+		while (offset + HEADER_SIZE <= segmentSize)
+		{
+			int length = buffer.getInt(offset);
+			if (length == 0)
+			{
+				break;
+			}
+			Record record = null;
+			if (length > 0 && offset + HEADER_SIZE + length <= segmentSize)
+			{
+				record = decode(buffer, offset, length);
+			}
+			if (record == null)
+			{
+				Log.i(ResponseJournal.class.toString(), "torn record in "
+						+ segment.file + " at " + offset);
+				for (int i = offset; i < segmentSize; ++i)
+				{
+					buffer.put(i, (byte) 0);
+				}
+				break;
+			}
+			addToIndex(record, segment, offset);
+			offset += HEADER_SIZE + length;
+		}
+		segment.end = offset;
+	}
+
+	/**
+	 * Write a record at the end of the last segment, starting a new segment
+	 * if it doesn't fit.
+	 * 
+	 * @param record
+	 *            record to write
+	 */
+	private void append(Record record) throws IOException
+	{
+		byte payload[] = encode(record);
+		if (HEADER_SIZE + payload.length > segmentSize)
+		{
+			throw new IOException("Record of " + payload.length
+					+ " bytes is too big for the journal");
+		}
+
+		Segment segment = segments.get(segments.size() - 1);
+		if (segment.end + HEADER_SIZE + payload.length > segmentSize)
+		{
+			segment = roll(segment);
+		}
+		write(segment, record, payload);
+	}
+
+	/**
+	 * Copy a record into a segment that has room for it.
+	 */
+	private void write(Segment segment, Record record, byte payload[])
+	{
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		ByteBuffer buffer = segment.buffer;
+		int offset = segment.end;
+		ByteBuffer body = buffer.duplicate();
+		body.position(offset + HEADER_SIZE);
+		body.put(payload);
+		buffer.putInt(offset + 4, (int) crc.getValue());
+		// The length goes in last; until then the record isn't there.
+		buffer.putInt(offset, payload.length);
+
+		segment.end = offset + HEADER_SIZE + payload.length;
+		addToIndex(record, segment, offset);
+	}
+
+	/**
+	 * Start a new segment. If that makes too many, compact the oldest away.
+	 * 
+	 * @param last
+	 *            the segment that's full
+	 * @return the new segment
+	 */
+	private Segment roll(Segment last) throws IOException
+	{
+		Segment segment = map(last.number + 1);
+		segments.add(segment);
+
+		while (segments.size() > maxSegments)
+		{
+			compact(segments.remove(0), segment);
+		}
+		return segment;
+	}
+
+	/**
+	 * Drop a segment, first copying any record in it that's still the latest
+	 * for its station and source to another segment.
+	 * 
+	 * @param oldest
+	 *            segment to drop
+	 * @param target
+	 *            segment to copy live records to
+	 */
+	private void compact(Segment oldest, Segment target)
+	{
+		// Find the live records before the index changes. A record with
+		// several keys has one Location shared by all of them, but may be
+		// the latest for only some of them.
+		Map<Location, List<String>> latest = new HashMap<Location, List<String>>();
+		for (Map.Entry<String, List<Location>> entry : index.entrySet())
+		{
+			List<Location> locations = entry.getValue();
+			Location last = locations.get(locations.size() - 1);
+			if (last.segment == oldest)
+			{
+				List<String> keys = latest.get(last);
+				if (keys == null)
+				{
+					keys = new ArrayList<String>();
+					latest.put(last, keys);
+				}
+				keys.add(entry.getKey());
+			}
+		}
+		// The copy keeps only the keys it's the latest for. Under the others
+		// there's something newer, and the copy, being written last, would
+		// look newer still.
+		List<Record> live = new ArrayList<Record>();
+		for (Map.Entry<Location, List<String>> entry : latest.entrySet())
+		{
+			Record record = read(entry.getKey());
+			List<String> keys = new ArrayList<String>();
+			for (String key : record.keys)
+			{
+				if (entry.getValue().contains(key))
+				{
+					keys.add(key);
+				}
+			}
+			live.add(new Record(record.time, keys.toArray(new String[keys
+					.size()]), record.request, record.response));
+		}
+
+		// Forget the segment
+		for (List<Location> locations : index.values())
+		{
+			for (int i = locations.size() - 1; i >= 0; --i)
+			{
+				if (locations.get(i).segment == oldest)
+				{
+					locations.remove(i);
+				}
+			}
+		}
+		for (Iterator<List<Location>> i = index.values().iterator(); i
+				.hasNext();)
+		{
+			if (i.next().size() == 0)
+			{
+				i.remove();
+			}
+		}
+		if (!oldest.file.delete())
+		{
+			Log.i(ResponseJournal.class.toString(), "can't delete "
+					+ oldest.file);
+		}
+
+		// Keep the live records, as long as they fit.
+		Collections.sort(live, new Comparator<Record>()
+		{
+			public int compare(Record a, Record b)
+			{
+				return (a.time < b.time) ? -1 : (a.time > b.time ? 1 : 0);
+			}
+		});
+		for (Record record : live)
+		{
+			byte payload[] = encode(record);
+			if (target.end + HEADER_SIZE + payload.length <= segmentSize)
+			{
+				write(target, record, payload);
+			}
+		}
+	}
+
+	/**
+	 * Remember where a record is, under each of its keys.
+	 */
+	private void addToIndex(Record record, Segment segment, int offset)
+	{
+		Location location = new Location(segment, offset, record.time);
+		for (String key : record.keys)
+		{
+			List<Location> locations = index.get(key);
+			if (locations == null)
+			{
+				locations = new ArrayList<Location>();
+				index.put(key, locations);
+			}
+			locations.add(location);
+		}
+	}
+
+	/**
+	 * Read a record back.
+	 */
+	private Record read(Location location)
+	{
+		ByteBuffer buffer = location.segment.buffer;
+		return decode(buffer, location.offset, buffer.getInt(location.offset));
+	}
+
+	/**
+	 * Serialize a record's payload.
+	 */
+	private static byte[] encode(Record record)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					64 + record.request.length() + record.response.length);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeLong(record.time);
+			out.writeShort(record.keys.length);
+			for (String key : record.keys)
+			{
+				out.writeUTF(key);
+			}
+			byte request[] = record.request.getBytes("UTF-8");
+			out.writeInt(request.length);
+			out.write(request);
+			out.writeInt(record.response.length);
+			out.write(record.response);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e)
+		{
+			// Can't happen writing to memory
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read a record at an offset in a segment.
+	 * 
+	 * @return the record, or null if it's damaged
+	 */
+	private static Record decode(ByteBuffer segment, int offset, int length)
+	{
+		ByteBuffer buffer = segment.duplicate();
+		buffer.position(offset + HEADER_SIZE);
+		byte bytes[] = new byte[length];
+		buffer.get(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		if ((int) crc.getValue() != segment.getInt(offset + 4))
+		{
+			return null;
+		}
+
+		try
+		{
+			ByteBuffer in = ByteBuffer.wrap(bytes);
+			long time = in.getLong();
+			String keys[] = new String[in.getShort()];
+			for (int i = 0; i < keys.length; ++i)
+			{
+				byte key[] = new byte[in.getShort() & 0xffff];
+				in.get(key);
+				keys[i] = new String(key, "UTF-8");
+			}
+			byte request[] = new byte[in.getInt()];
+			in.get(request);
+			byte response[] = new byte[in.getInt()];
+			in.get(response);
+			return new Record(time, keys, new String(request, "UTF-8"),
+					response);
+		} catch (RuntimeException e)
+		{
+			// Lengths don't add up
+			return null;
+		} catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Get the index key for a station and source.
+	 */
+	private static String getKey(String source, String location)
+	{
+		return (source + "/" + location).toLowerCase(Locale.US);
+	}
+
+	/**
+	 * Get the index keys for a JSON request: one per station and source
+	 * asked for.
+	 * 
+	 * @param request
+	 *            JSON request array
+	 * @return the keys, none if the request can't be read
+	 */
+	private static String[] getKeys(String request)
+	{
+		List<String> keys = new ArrayList<String>();
+		JsonPullParser parser = new JsonPullParser(new StringReader(request));
+		try
+		{
+			parser.beginArray();
+			while (parser.hasNext())
+			{
+				String source = null;
+				String location = null;
+				parser.beginObject();
+				while (parser.hasNext())
+				{
+					String name = parser.nextName();
+					if (name.equals("source"))
+					{
+						source = parser.nextString();
+					} else if (name.equals("location"))
+					{
+						location = parser.nextString();
+					} else
+					{
+						parser.skipValue();
+					}
+				}
+				parser.endObject();
+				if (source != null && location != null)
+				{
+					String key = getKey(source, location);
+					if (!keys.contains(key))
+					{
+						keys.add(key);
+					}
+				}
+			}
+			parser.endArray();
+		} catch (IOException e)
+		{
+			Log.i(ResponseJournal.class.toString(), "can't index " + request
+					+ ": " + e);
+		}
+		return keys.toArray(new String[keys.size()]);
+	}
+}
@@ -0,0 +1,335 @@
+package edu.umn.aerowx;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+/**
+ * The text last shown on a screen, kept so the screen can be put back the
+ * moment it opens, before any network or JSON work is done.
+ * 
+ * The snapshot is just the text of the views the screen fills in with data,
+ * given by id: a TextView, or a TableRow whose cells after the label in its
+ * first column are data. Labels and buttons are left alone, so they always
+ * come from the current resources (after a change of language, say). Layouts
+ * differ by orientation, so each orientation has its own snapshot. A
+ * snapshot that doesn't fit the layout (after an upgrade, say) is ignored.
+ * 
+ * While a snapshot, or data kept from an earlier fetch, is showing, the
+ * title says when it was fetched, so nobody mistakes it for current weather.
+ */
+public class ScreenSnapshot
+{
+	/** Name of the preferences file snapshots are kept in */
+	public static final String PREFERENCES = "snapshots";
+
+	/** Separates the text of each view (ASCII unit separator) */
+	private static final char SEPARATOR = '\u001f';
+
+	/** Thread that writes snapshots, off the UI thread */
+	private static final ExecutorService writer = Executors
+			.newSingleThreadExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "ScreenSnapshot");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	@SuppressLint("SimpleDateFormat")
+	/** Format for the time a snapshot was saved */
+	private static final SimpleDateFormat sdfSaved = new SimpleDateFormat(
+			"EEE HH:mm");
+
+	/** Station the screen showed */
+	public final String wxid;
+
+	/** When the data the screen showed was fetched */
+	public final long saved;
+
+	/** Text of each data view, in order */
+	public final String texts[];
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param wxid
+	 *            station the screen showed
+	 * @param saved
+	 *            when the data the screen showed was fetched (milliseconds)
+	 * @param texts
+	 *            text of each data view, in order
+	 */
+	public ScreenSnapshot(String wxid, long saved, String texts[])
+	{
+		super();
+		this.wxid = wxid;
+		this.saved = saved;
+		this.texts = texts;
+	}
+
+	/**
+	 * Take a snapshot of what a screen shows now.
+	 * 
+	 * @param activity
+	 *            the screen
+	 * @param dataIds
+	 *            ids of the views it fills in with data
+	 * @param wxid
+	 *            station it shows
+	 * @param saved
+	 *            when the data it shows was fetched (milliseconds)
+	 * @return the snapshot
+	 */
+	public static ScreenSnapshot capture(Activity activity, int dataIds[],
+			String wxid, long saved)
+	{
+		List<TextView> views = findDataViews(activity, dataIds);
+		String texts[] = new String[views.size()];
+		for (int i = 0; i < texts.length; ++i)
+		{
+			CharSequence text = views.get(i).getText();
+			texts[i] = (text == null) ? "" : text.toString();
+		}
+		return new ScreenSnapshot(wxid, saved, texts);
+	}
+
+	/**
+	 * Put the snapshot back on a screen.
+	 * 
+	 * @param activity
+	 *            the screen
+	 * @param dataIds
+	 *            ids of the views it fills in with data
+	 * @return true if it fitted the layout and was shown
+	 */
+	public boolean restore(Activity activity, int dataIds[])
+	{
+		List<TextView> views = findDataViews(activity, dataIds);
+		if (views.size() != texts.length)
+		{
+			return false;
+		}
+		for (int i = 0; i < texts.length; ++i)
+		{
+			views.get(i).setText(texts[i]);
+		}
+		return true;
+	}
+
+	/**
+	 * Put back the snapshot last saved for a screen, if it was of the same
+	 * station, and say in the title when its data was fetched.
+	 * 
+	 * @param activity
+	 *            the screen
+	 * @param dataIds
+	 *            ids of the views it fills in with data
+	 * @param wxid
+	 *            station the screen is to show
+	 * @param titleId
+	 *            the screen's usual title
+	 * @return true if the snapshot is showing
+	 */
+	public static boolean show(Activity activity, int dataIds[], String wxid,
+			int titleId)
+	{
+		ScreenSnapshot snapshot = load(activity);
+		if (snapshot == null || !snapshot.wxid.equals(wxid)
+				|| !snapshot.restore(activity, dataIds))
+		{
+			return false;
+		}
+		showSaved(activity, titleId, snapshot.saved);
+		return true;
+	}
+
+	/**
+	 * Save what a screen shows now, after it has been given data, and set
+	 * its title: the usual one for current data, or one saying when it was
+	 * fetched for a kept copy that's out of date.
+	 * 
+	 * @param activity
+	 *            the screen
+	 * @param dataIds
+	 *            ids of the views it fills in with data
+	 * @param wxid
+	 *            station it shows
+	 * @param titleId
+	 *            the screen's usual title
+	 * @param fetched
+	 *            when the data was fetched (milliseconds)
+	 * @param current
+	 *            false if newer data is out
+	 */
+	public static void keep(Activity activity, int dataIds[], String wxid,
+			int titleId, long fetched, boolean current)
+	{
+		if (current)
+		{
+			activity.setTitle(titleId);
+		} else
+		{
+			showSaved(activity, titleId, fetched);
+		}
+		capture(activity, dataIds, wxid, fetched).save(activity);
+	}
+
+	/**
+	 * Say in a screen's title when what it shows was fetched.
+	 */
+	private static void showSaved(Activity activity, int titleId, long saved)
+	{
+		String text;
+		synchronized (sdfSaved)
+		{
+			text = sdfSaved.format(new Date(saved));
+		}
+		activity.setTitle(activity.getString(R.string.SavedAt,
+				activity.getString(titleId), text));
+	}
+
+	/**
+	 * Read the snapshot last saved for a screen.
+	 * 
+	 * @param activity
+	 *            the screen
+	 * @return the snapshot, or null if there isn't one
+	 */
+	public static ScreenSnapshot load(Activity activity)
+	{
+		SharedPreferences preferences = getPreferences(activity);
+		String key = getKey(activity);
+		String wxid = preferences.getString(key + ".wxid", null);
+		String joined = preferences.getString(key + ".texts", null);
+		if (wxid == null || joined == null)
+		{
+			return null;
+		}
+		long saved = preferences.getLong(key + ".saved", 0);
+		return new ScreenSnapshot(wxid, saved, split(joined));
+	}
+
+	/**
+	 * Save the snapshot for a screen. The write is done in the background.
+	 * 
+	 * @param activity
+	 *            the screen
+	 */
+	public void save(Activity activity)
+	{
+		final SharedPreferences preferences = getPreferences(activity);
+		final String key = getKey(activity);
+		writer.execute(new Runnable()
+		{
+			public void run()
+			{
+				preferences.edit().putString(key + ".wxid", wxid)
+						.putLong(key + ".saved", saved)
+						.putString(key + ".texts", join(texts)).commit();
+			}
+		});
+	}
+
+	/**
+	 * Collect a screen's data views, in the order of their ids. A table row
+	 * gives its cells after the first, which is its label.
+	 */
+	private static List<TextView> findDataViews(Activity activity,
+			int dataIds[])
+	{
+		List<TextView> views = new ArrayList<TextView>();
+		for (int id : dataIds)
+		{
+			View view = activity.findViewById(id);
+			if (view instanceof TextView)
+			{
+				views.add((TextView) view);
+			} else if (view instanceof ViewGroup)
+			{
+				ViewGroup row = (ViewGroup) view;
+				for (int i = 1; i < row.getChildCount(); ++i)
+				{
+					if (row.getChildAt(i) instanceof TextView)
+					{
+						views.add((TextView) row.getChildAt(i));
+					}
+				}
+			}
+		}
+		return views;
+	}
+
+	/**
+	 * Get the preferences snapshots are kept in.
+	 */
+	private static SharedPreferences getPreferences(Activity activity)
+	{
+		return activity.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * Get the name a screen's snapshot is kept under.
+	 */
+	private static String getKey(Activity activity)
+	{
+		return activity.getClass().getSimpleName() + "."
+				+ activity.getResources().getConfiguration().orientation;
+	}
+
+	/**
+	 * Join text into one string.
+	 * 
+	 * @param texts
+	 *            text to join
+	 * @return joined text
+	 */
+	private static String join(String texts[])
+	{
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < texts.length; ++i)
+		{
+			if (i > 0)
+			{
+				builder.append(SEPARATOR);
+			}
+			builder.append(texts[i].replace(SEPARATOR, ' '));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Split text joined by join().
+	 * 
+	 * @param joined
+	 *            joined text
+	 * @return text of each view
+	 */
+	private static String[] split(String joined)
+	{
+		List<String> texts = new ArrayList<String>();
+		int start = 0;
+		int end;
+		while ((end = joined.indexOf(SEPARATOR, start)) >= 0)
+		{
+			texts.add(joined.substring(start, end));
+			start = end + 1;
+		}
+		texts.add(joined.substring(start));
+		return texts.toArray(new String[texts.size()]);
+	}
+}
@@ -1,6 +1,6 @@
 package edu.umn.aerowx;
 
-import android.app.Activity;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
@@ -13,11 +13,11 @@ public class SettingsData
 	/**
 	 * 
 	 */
-	public SettingsData(Activity activity)
+	public SettingsData(Context context)
 	{
 		super();
 
-		settings = PreferenceManager.getDefaultSharedPreferences(activity);
+		settings = PreferenceManager.getDefaultSharedPreferences(context);
 
 		baseUrl = settings.getString("baseURL",
 				"http://aerowx.dccmn.com/get_weather");
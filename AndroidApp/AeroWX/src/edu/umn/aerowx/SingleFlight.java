@@ -0,0 +1,135 @@
+package edu.umn.aerowx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lets callers asking for the same thing at the same time share one request.
+ * The first caller for a key starts the upstream request; anyone who asks for
+ * that key before it finishes just waits for the same answer.
+ * 
+ * Switching between the METAR and MAV screens, or rotating the device,
+ * restarts an activity while its last request may still be out, so the same
+ * station gets asked for twice. With this the second ask costs nothing.
+ * 
+ * @param <K>
+ *            what a request is for (equal keys share a request)
+ * @param <V>
+ *            what comes back
+ */
+public class SingleFlight<K, V>
+{
+	/**
+	 * Where requests really go.
+	 * 
+	 * @param <K>
+	 *            what a request is for
+	 * @param <V>
+	 *            what comes back
+	 */
+	public interface Upstream<K, V>
+	{
+		/**
+		 * Start a request. The listener must be called exactly once.
+		 * 
+		 * @param key
+		 *            what to ask for
+		 * @param listener
+		 *            called with the answer, or the error.
+		 */
+		void request(K key, Utils.ResponseListener<V> listener);
+	}
+
+	/** Where requests really go */
+	private final Upstream<K, V> upstream;
+
+	/** Callers waiting on each request that's out */
+	private final Map<K, List<Utils.ResponseListener<V>>> inFlight = new HashMap<K, List<Utils.ResponseListener<V>>>();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param upstream
+	 *            where requests really go
+	 */
+	public SingleFlight(Upstream<K, V> upstream)
+	{
+		super();
+		this.upstream = upstream;
+	}
+
+	/**
+	 * Ask for something. If the same thing is already being asked for, wait
+	 * for that answer instead of asking again.
+	 * 
+	 * @param key
+	 *            what to ask for
+	 * @param listener
+	 *            called with the answer, or the error, on whatever thread the
+	 *            upstream answers on.
+	 */
+	public void request(final K key, Utils.ResponseListener<V> listener)
+	{
+		synchronized (inFlight)
+		{
+			List<Utils.ResponseListener<V>> waiting = inFlight.get(key);
+			if (waiting != null)
+			{
+				waiting.add(listener);
+				return;
+			}
+			waiting = new ArrayList<Utils.ResponseListener<V>>();
+			waiting.add(listener);
+			inFlight.put(key, waiting);
+		}
+
+		upstream.request(key, new Utils.ResponseListener<V>()
+		{
+			public void onResponse(V response)
+			{
+				for (Utils.ResponseListener<V> waiting : finish(key))
+				{
+					waiting.onResponse(response);
+				}
+			}
+
+			public void onError(Exception e)
+			{
+				for (Utils.ResponseListener<V> waiting : finish(key))
+				{
+					waiting.onError(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get the number of requests that are out.
+	 * 
+	 * @return number of distinct keys being asked for
+	 */
+	public int inFlightCount()
+	{
+		synchronized (inFlight)
+		{
+			return inFlight.size();
+		}
+	}
+
+	/**
+	 * A request is done. Anyone asking after this starts a new one.
+	 * 
+	 * @param key
+	 *            what was asked for
+	 * @return callers waiting on it
+	 */
+	private List<Utils.ResponseListener<V>> finish(K key)
+	{
+		synchronized (inFlight)
+		{
+			return inFlight.remove(key);
+		}
+	}
+}
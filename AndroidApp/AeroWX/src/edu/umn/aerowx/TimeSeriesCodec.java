@@ -0,0 +1,518 @@
+package edu.umn.aerowx;
+
+import java.io.IOException;
+
+/**
+ * Packs a series of observations (a time and a few whole-number values each)
+ * into a small block of bytes, a column at a time.
+ * 
+ * Times are stored as the change in the gap between them (delta-of-delta):
+ * hourly METARs come at the same minute every hour, so most take one bit.
+ * Each value column is stored as the change from the value before, which for
+ * weather is usually nothing or a few tenths, so most values take one to ten
+ * bits. A change is written in the smallest of these:
+ * 
+ * <pre>
+ * 0                   no change
+ * 10    + 7 bits      -64 to 63
+ * 110   + 12 bits     -2048 to 2047
+ * 1110  + 20 bits     about a million either way
+ * 11110 + 32 bits     an int
+ * 11111 + 64 bits     anything
+ * </pre>
+ * 
+ * A block is a version byte, the number of rows, the number of value columns,
+ * the length of each column, then the columns (times first). Both ends
+ * stream: the Encoder takes a row at a time, and the Decoder gives a row at a
+ * time without allocating.
+ */
+public class TimeSeriesCodec
+{
+	/** Version of the block layout */
+	public static final int VERSION = 1;
+
+	/**
+	 * Builds a block a row at a time.
+	 */
+	public static class Encoder
+	{
+		/** Times */
+		private final BitWriter times = new BitWriter();
+
+		/** Each value column */
+		private final BitWriter values[];
+
+		/** Latest value of each column */
+		private final long previous[];
+
+		/** Latest time */
+		private long previousTime;
+
+		/** Latest gap between times */
+		private long previousDelta;
+
+		/** Rows added */
+		private int count;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param columns
+		 *            number of values in each row
+		 */
+		public Encoder(int columns)
+		{
+			super();
+			values = new BitWriter[columns];
+			for (int i = 0; i < columns; ++i)
+			{
+				values[i] = new BitWriter();
+			}
+			previous = new long[columns];
+		}
+
+		/**
+		 * Add a row.
+		 * 
+		 * @param time
+		 *            its time (milliseconds)
+		 * @param row
+		 *            its values, one for each column
+		 */
+		public void add(long time, int row[])
+		{
+			if (row.length != values.length)
+			{
+				throw new IllegalArgumentException(row.length
+						+ " values for " + values.length + " columns");
+			}
+			if (count == 0)
+			{
+				times.write(time, 64);
+			} else
+			{
+				long delta = time - previousTime;
+				times.writeChange(delta - previousDelta);
+				previousDelta = delta;
+			}
+			previousTime = time;
+
+			for (int i = 0; i < row.length; ++i)
+			{
+				values[i].writeChange(row[i] - previous[i]);
+				previous[i] = row[i];
+			}
+			++count;
+		}
+
+		/**
+		 * Get the number of rows added.
+		 * 
+		 * @return number of rows
+		 */
+		public int count()
+		{
+			return count;
+		}
+
+		/**
+		 * Get the block for the rows added so far.
+		 * 
+		 * @return the block
+		 */
+		public byte[] toByteArray()
+		{
+			int length = 1 + varintSize(count) + varintSize(values.length)
+					+ varintSize(times.size()) + times.size();
+			for (BitWriter column : values)
+			{
+				length += varintSize(column.size()) + column.size();
+			}
+
+			byte block[] = new byte[length];
+			block[0] = VERSION;
+			int offset = 1;
+			offset = putVarint(block, offset, count);
+			offset = putVarint(block, offset, values.length);
+			offset = putVarint(block, offset, times.size());
+			for (BitWriter column : values)
+			{
+				offset = putVarint(block, offset, column.size());
+			}
+			offset = times.copyTo(block, offset);
+			for (BitWriter column : values)
+			{
+				offset = column.copyTo(block, offset);
+			}
+			return block;
+		}
+	}
+
+	/**
+	 * Reads a block a row at a time.
+	 */
+	public static class Decoder
+	{
+		/** Times */
+		private final BitReader times;
+
+		/** Each value column */
+		private final BitReader values[];
+
+		/** Current value of each column */
+		private final long current[];
+
+		/** Current time */
+		private long time;
+
+		/** Gap between the current time and the one before */
+		private long delta;
+
+		/** Rows in the block */
+		private final int count;
+
+		/** Rows read */
+		private int index;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param block
+		 *            a block made by Encoder
+		 * @throws IOException
+		 *             if it isn't one
+		 */
+		public Decoder(byte block[]) throws IOException
+		{
+			super();
+			if (block.length == 0 || block[0] != VERSION)
+			{
+				throw new IOException("not a version " + VERSION
+						+ " time series");
+			}
+			int position[] = { 1 };
+			count = getVarint(block, position);
+			int columns = getVarint(block, position);
+			int timesLength = getVarint(block, position);
+			int lengths[] = new int[columns];
+			for (int i = 0; i < columns; ++i)
+			{
+				lengths[i] = getVarint(block, position);
+			}
+
+			int offset = position[0];
+			times = new BitReader(block, offset, timesLength);
+			offset += timesLength;
+			values = new BitReader[columns];
+			for (int i = 0; i < columns; ++i)
+			{
+				values[i] = new BitReader(block, offset, lengths[i]);
+				offset += lengths[i];
+			}
+			current = new long[columns];
+		}
+
+		/**
+		 * Get the number of rows in the block.
+		 * 
+		 * @return number of rows
+		 */
+		public int count()
+		{
+			return count;
+		}
+
+		/**
+		 * Get the number of values in each row.
+		 * 
+		 * @return number of columns
+		 */
+		public int columns()
+		{
+			return values.length;
+		}
+
+		/**
+		 * Move to the next row.
+		 * 
+		 * @return false if there are no more
+		 * @throws IOException
+		 *             if the block is cut short
+		 */
+		public boolean next() throws IOException
+		{
+			if (index == count)
+			{
+				return false;
+			}
+			if (index == 0)
+			{
+				time = times.read(64);
+			} else
+			{
+				delta += times.readChange();
+				time += delta;
+			}
+			for (int i = 0; i < values.length; ++i)
+			{
+				current[i] += values[i].readChange();
+			}
+			++index;
+			return true;
+		}
+
+		/**
+		 * Get the time of the current row.
+		 * 
+		 * @return time (milliseconds)
+		 */
+		public long getTime()
+		{
+			return time;
+		}
+
+		/**
+		 * Get a value of the current row.
+		 * 
+		 * @param column
+		 *            which value
+		 * @return the value
+		 */
+		public int getValue(int column)
+		{
+			return (int) current[column];
+		}
+	}
+
+	/**
+	 * Bits written one after another, high bit first.
+	 */
+	private static class BitWriter
+	{
+		/** Bytes written so far */
+		private byte bytes[] = new byte[32];
+
+		/** Bits written */
+		private long bits;
+
+		/**
+		 * Write the low bits of a number.
+		 */
+		void write(long value, int count)
+		{
+			if (((bits + count + 7) >>> 3) > bytes.length)
+			{
+				byte larger[] = new byte[bytes.length * 2 + 8];
+				System.arraycopy(bytes, 0, larger, 0, bytes.length);
+				bytes = larger;
+			}
+			while (count > 0)
+			{
+				int free = 8 - (int) (bits & 7);
+				int n = Math.min(free, count);
+				int chunk = (int) (value >>> (count - n)) & ((1 << n) - 1);
+				bytes[(int) (bits >>> 3)] |= chunk << (free - n);
+				bits += n;
+				count -= n;
+			}
+		}
+
+		/**
+		 * Write a change in the smallest form it fits.
+		 */
+		void writeChange(long change)
+		{
+			if (change == 0)
+			{
+				write(0, 1);
+			} else if (change >= -64 && change < 64)
+			{
+				write(2, 2);
+				write(change, 7);
+			} else if (change >= -2048 && change < 2048)
+			{
+				write(6, 3);
+				write(change, 12);
+			} else if (change >= -(1 << 19) && change < (1 << 19))
+			{
+				write(14, 4);
+				write(change, 20);
+			} else if (change >= Integer.MIN_VALUE
+					&& change <= Integer.MAX_VALUE)
+			{
+				write(30, 5);
+				write(change, 32);
+			} else
+			{
+				write(31, 5);
+				write(change, 64);
+			}
+		}
+
+		/**
+		 * Get the number of bytes written.
+		 */
+		int size()
+		{
+			return (int) ((bits + 7) >>> 3);
+		}
+
+		/**
+		 * Copy the bytes written into a block.
+		 * 
+		 * @return offset after them
+		 */
+		int copyTo(byte block[], int offset)
+		{
+			System.arraycopy(bytes, 0, block, offset, size());
+			return offset + size();
+		}
+	}
+
+	/**
+	 * Reads what BitWriter wrote.
+	 */
+	private static class BitReader
+	{
+		/** The block */
+		private final byte bytes[];
+
+		/** Bit to read next */
+		private long bit;
+
+		/** Bit after the last one */
+		private final long end;
+
+		BitReader(byte bytes[], int offset, int length) throws IOException
+		{
+			if (offset + length > bytes.length)
+			{
+				throw new IOException("time series cut short");
+			}
+			this.bytes = bytes;
+			bit = (long) offset << 3;
+			end = (long) (offset + length) << 3;
+		}
+
+		/**
+		 * Read a number written by write(), sign-extended.
+		 */
+		long read(int count) throws IOException
+		{
+			if (bit + count > end)
+			{
+				throw new IOException("time series cut short");
+			}
+			long value = 0;
+			int left = count;
+			while (left > 0)
+			{
+				int available = 8 - (int) (bit & 7);
+				int n = Math.min(available, left);
+				int chunk = (bytes[(int) (bit >>> 3)] >>> (available - n))
+						& ((1 << n) - 1);
+				value = (value << n) | chunk;
+				bit += n;
+				left -= n;
+			}
+			return (count == 64) ? value : (value << (64 - count)) >> (64 - count);
+		}
+
+		/**
+		 * Read a change written by writeChange().
+		 */
+		long readChange() throws IOException
+		{
+			int prefix = 0;
+			while (prefix < 5 && readBit() == 1)
+			{
+				++prefix;
+			}
+			switch (prefix)
+			{
+			case 0:
+				return 0;
+			case 1:
+				return read(7);
+			case 2:
+				return read(12);
+			case 3:
+				return read(20);
+			case 4:
+				return read(32);
+			default:
+				return read(64);
+			}
+		}
+
+		private int readBit() throws IOException
+		{
+			if (bit >= end)
+			{
+				throw new IOException("time series cut short");
+			}
+			int value = (bytes[(int) (bit >>> 3)] >>> (7 - (int) (bit & 7))) & 1;
+			++bit;
+			return value;
+		}
+	}
+
+	/**
+	 * Get the number of bytes a varint takes.
+	 */
+	private static int varintSize(int value)
+	{
+		int size = 1;
+		while ((value >>>= 7) != 0)
+		{
+			++size;
+		}
+		return size;
+	}
+
+	/**
+	 * Write a varint (7 bits a byte, low first).
+	 * 
+	 * @return offset after it
+	 */
+	private static int putVarint(byte block[], int offset, int value)
+	{
+		while ((value & ~0x7f) != 0)
+		{
+			block[offset++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		block[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * Read a varint.
+	 * 
+	 * @param position
+	 *            where to read; moved past it
+	 */
+	private static int getVarint(byte block[], int position[])
+			throws IOException
+	{
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7)
+		{
+			if (position[0] >= block.length)
+			{
+				throw new IOException("time series cut short");
+			}
+			int b = block[position[0]++];
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+			{
+				if (value < 0)
+				{
+					break;
+				}
+				return value;
+			}
+		}
+		throw new IOException("bad length in time series");
+	}
+}
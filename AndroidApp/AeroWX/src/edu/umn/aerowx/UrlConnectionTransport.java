@@ -0,0 +1,117 @@
+package edu.umn.aerowx;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Lightweight HttpTransport on top of HttpURLConnection.
+ * 
+ * HttpURLConnection keeps connections alive on its own, in a pool shared by
+ * the whole process and sized by the "http.maxConnections" system property.
+ * This class leaves that property alone, since changing it would change it
+ * for every other connection in the process too.
+ */
+public class UrlConnectionTransport implements HttpTransport
+{
+	/**
+	 * Constructor.
+	 */
+	public UrlConnectionTransport()
+	{
+		super();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see edu.umn.aerowx.HttpTransport#post(java.lang.String, byte[],
+	 * java.util.Map, int)
+	 */
+	public Response post(String url, byte[] body, Map<String, String> headers,
+			int timeout) throws IOException
+	{
+		final HttpURLConnection connection = (HttpURLConnection) new URL(url)
+				.openConnection();
+		RequestPolicy.setAbortable(new RequestPolicy.Abortable()
+		{
+			public void abort()
+			{
+				connection.disconnect();
+			}
+		});
+		try
+		{
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setUseCaches(false);
+			connection.setFixedLengthStreamingMode(body.length);
+			connection.setConnectTimeout(timeout);
+			connection.setReadTimeout(timeout);
+			for (Map.Entry<String, String> header : headers.entrySet())
+			{
+				connection.setRequestProperty(header.getKey(),
+						header.getValue());
+			}
+
+			long start = System.nanoTime();
+			connection.connect();
+			long connected = System.nanoTime();
+
+			OutputStream out = connection.getOutputStream();
+			try
+			{
+				out.write(body);
+			} finally
+			{
+				out.close();
+			}
+
+			int statusCode = connection.getResponseCode();
+			long firstByte = System.nanoTime();
+
+			Map<String, String> responseHeaders = new HashMap<String, String>();
+			for (Map.Entry<String, List<String>> header : connection
+					.getHeaderFields().entrySet())
+			{
+				// The status line comes back with a null name
+				if (header.getKey() != null && header.getValue().size() > 0)
+				{
+					responseHeaders.put(
+							header.getKey().toLowerCase(Locale.US), header
+									.getValue().get(0));
+				}
+			}
+
+			InputStream content = (statusCode >= 400) ? connection
+					.getErrorStream() : connection.getInputStream();
+			if (content == null)
+			{
+				content = new ByteArrayInputStream(new byte[0]);
+			}
+			return new Response(statusCode, responseHeaders, content,
+					connected - start, firstByte - connected);
+		} catch (IOException e)
+		{
+			connection.disconnect();
+			throw e;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see edu.umn.aerowx.HttpTransport#shutdown()
+	 */
+	public void shutdown()
+	{
+		// HttpURLConnection owns its pool; nothing for us to close.
+	}
+}
@@ -3,19 +3,15 @@
  */
 package edu.umn.aerowx;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONTokener;
@@ -32,85 +28,244 @@ import android.util.Log;
 public class Utils
 {
 
-	/** Client to send out HTTP requests with */
-	static HttpClient client = new DefaultHttpClient();
+	/**
+	 * Smallest request body that is gzipped before it is sent, 0 for never.
+	 */
+	private static int requestCompression = 0;
+
+	/** Responses remembered for revalidation */
+	private static final ResponseCache responseCache = new ResponseCache(
+			ResponseCache.DEFAULT_SIZE);
+
+	/** Requests that are out, by server URL */
+	private static final Map<String, SingleFlight<WeatherRequest, Object>> singleFlights = new HashMap<String, SingleFlight<WeatherRequest, Object>>();
+
+	/** Deadline, retries and hedging for requests */
+	private static RequestPolicy requestPolicy = new RequestPolicy();
+
+	/** Transport to send out HTTP requests with */
+	private static HttpTransport transport = new PooledHttpTransport();
+
+	/** Whether the network is there, null to just try */
+	private static ConnectivitySource connectivity;
+
+	/** Where every response is recorded, null for nowhere */
+	private static ResponseJournal journal;
+
+	/**
+	 * Get the transport HTTP requests are sent with.
+	 * 
+	 * @return the current transport
+	 */
+	public static synchronized HttpTransport getTransport()
+	{
+		return transport;
+	}
+
+	/**
+	 * Change the transport HTTP requests are sent with. The old one is shut
+	 * down.
+	 * 
+	 * @param newTransport
+	 *            transport to use from now on
+	 */
+	public static void setTransport(HttpTransport newTransport)
+	{
+		HttpTransport oldTransport;
+		synchronized (Utils.class)
+		{
+			oldTransport = transport;
+			transport = newTransport;
+		}
+		if (oldTransport != null && oldTransport != newTransport)
+		{
+			oldTransport.shutdown();
+		}
+	}
+
+	/**
+	 * Callback for asynchronous requests. Both methods are called on the UI
+	 * thread.
+	 * 
+	 * @param <T>
+	 *            type of data delivered (MetarData or MavData)
+	 */
+	public interface ResponseListener<T>
+	{
+		/**
+		 * Called when the server returned usable data.
+		 * 
+		 * @param response
+		 *            decoded response
+		 */
+		void onResponse(T response);
+
+		/**
+		 * Called when the request failed, or the server returned an error.
+		 * 
+		 * @param e
+		 *            reason for the failure
+		 */
+		void onError(Exception e);
+	}
 
 	/**
 	 * Android 3.0 and above require that network threads be run off the UI
-	 * thread. This class defines a task that will do the network I/O safely.
+	 * thread. This class defines a task that will do the network I/O and the
+	 * decoding safely, then hand the result back on the UI thread.
 	 */
-	static class RequestTask extends AsyncTask<Object, Void, String>
+	static class RequestTask<T> extends AsyncTask<Object, Void, Object>
 	{
+		/** Type of data the listener expects */
+		private final Class<T> type;
+
+		/** Who to tell when we're done */
+		private final ResponseListener<T> listener;
+
+		/** Failure from the background thread, if any */
+		private Exception error;
+
+		RequestTask(Class<T> type, ResponseListener<T> listener)
+		{
+			this.type = type;
+			this.listener = listener;
+		}
+
 		@Override
-		protected String doInBackground(Object... params)
+		protected Object doInBackground(Object... params)
 		{
 			String baseUrl = (String) params[0];
-			StringEntity entity = (StringEntity) params[1];
-
-			HttpPost httpPost = new HttpPost(baseUrl);
-			httpPost.setEntity(entity);
-			httpPost.setHeader("Accept", "application/json");
-			httpPost.setHeader("Content-type", "application/json");
+			JSONArray requestArray = (JSONArray) params[1];
 
-			HttpResponse response;
 			try
 			{
-				response = client.execute(httpPost);
-			} catch (ClientProtocolException e)
-			{
-				return null;
-			} catch (IOException e)
+				Object result = fetchWeather(baseUrl, requestArray).get(0);
+				if (result instanceof Exception)
+				{
+					throw (Exception) result;
+				}
+				return result;
+			} catch (Exception e)
 			{
+				error = e;
 				return null;
 			}
-			StatusLine statusLine = response.getStatusLine();
-
-			int statusCode = statusLine.getStatusCode();
-			Log.i(MetarActivity.class.toString(), "statusCode: " + statusCode);
+		}
 
-			StringBuilder builder = new StringBuilder();
-			if (statusCode != 200)
+		@Override
+		protected void onPostExecute(Object result)
+		{
+			if (error != null)
+			{
+				listener.onError(error);
+			} else if (!type.isInstance(result))
 			{
-				// TODO Issue error return
+				listener.onError(new Exception(
+						"Server returned unexpected data: " + result));
 			} else
 			{
+				listener.onResponse(type.cast(result));
+			}
+		}
+	}
 
-				HttpEntity entity2 = response.getEntity();
-				InputStream content = null;
-				try
-				{
-					content = entity2.getContent();
-				} catch (IllegalStateException e)
-				{
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (IOException e)
-				{
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-				BufferedReader reader = new BufferedReader(
-						new InputStreamReader(content));
-				String line;
-				try
+	/**
+	 * Post a request to the server in the background. The response is decoded
+	 * off the UI thread and handed to the listener on the UI thread.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param requestArray
+	 *            parameters for request
+	 * @param type
+	 *            type of data expected back (MetarData or MavData)
+	 * @param listener
+	 *            called with the decoded data, or the error.
+	 */
+	public static <T> void postJSON(String baseUrl, JSONArray requestArray,
+			Class<T> type, ResponseListener<T> listener)
+	{
+		new RequestTask<T>(type, listener).execute(baseUrl, requestArray);
+	}
+
+	/**
+	 * Ask the server for weather data. Requests made at about the same time
+	 * are sent together in one POST, and a request identical to one that is
+	 * still out shares its answer.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param request
+	 *            what to ask for
+	 * @param type
+	 *            type of data expected back (MetarData or MavData)
+	 * @param listener
+	 *            called on the UI thread with the decoded data, or the error.
+	 */
+	public static <T> void requestWeather(String baseUrl,
+			WeatherRequest request, final Class<T> type,
+			final ResponseListener<T> listener)
+	{
+		getSingleFlight(baseUrl).request(request, new ResponseListener<Object>()
+		{
+			public void onResponse(Object response)
+			{
+				if (type.isInstance(response))
 				{
-					while ((line = reader.readLine()) != null)
-					{
-						builder.append(line);
-					}
-				} catch (IOException e)
+					listener.onResponse(type.cast(response));
+				} else
 				{
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+					listener.onError(new Exception(
+							"Server returned unexpected data: " + response));
 				}
 			}
-			return builder.toString();
+
+			public void onError(Exception e)
+			{
+				listener.onError(e);
+			}
+		});
+	}
+
+	/**
+	 * Get the layer that merges identical requests to a server while they're
+	 * out.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @return SingleFlight sending requests through the RequestBatcher
+	 */
+	static SingleFlight<WeatherRequest, Object> getSingleFlight(
+			final String baseUrl)
+	{
+		synchronized (singleFlights)
+		{
+			SingleFlight<WeatherRequest, Object> singleFlight = singleFlights
+					.get(baseUrl);
+			if (singleFlight == null)
+			{
+				singleFlight = new SingleFlight<WeatherRequest, Object>(
+						new SingleFlight.Upstream<WeatherRequest, Object>()
+						{
+							public void request(WeatherRequest request,
+									ResponseListener<Object> listener)
+							{
+								RequestBatcher.getInstance().submit(baseUrl,
+										request, Object.class, listener);
+							}
+						});
+				singleFlights.put(baseUrl, singleFlight);
+			}
+			return singleFlight;
 		}
 	}
 
 	/**
 	 * Post a request to the server and get a response.
 	 * 
+	 * This does the network I/O on the calling thread, so it must not be
+	 * called from the UI thread. Use the asynchronous version there.
+	 * 
 	 * @param baseUrl
 	 *            URL of server
 	 * @param requestArray
@@ -127,11 +282,9 @@ public class Utils
 		Log.i(Utils.class.toString(), "postJSON(" + baseUrl + ", "
 				+ requestArray + ")");
 
-		StringEntity entity = new StringEntity(requestArray.toString());
-
-		RequestTask requestTask = new RequestTask();
-		requestTask.execute(baseUrl, entity);
-		String response = requestTask.get();
+		String request = requestArray.toString();
+		String response = executePost(baseUrl, request);
+		record(request, response.getBytes("UTF-8"));
 
 		Object object = new JSONTokener(response).nextValue();
 		if (!(object instanceof JSONArray) && !(object instanceof JSONObject))
@@ -143,4 +296,509 @@ public class Utils
 		Log.i(Utils.class.getName(), "JSON response: " + object);
 		return object;
 	}
+
+	/**
+	 * Post requests to the server and decode the response straight from the
+	 * network stream into weather data.
+	 * 
+	 * This does the network I/O on the calling thread, so it must not be
+	 * called from the UI thread.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param requests
+	 *            what to ask for
+	 * @return one entry per element of the response: MetarData, MavData, or
+	 *         an Exception for a request the server couldn't answer.
+	 * @throws Exception
+	 *             on network error, or a bad JSON response.
+	 */
+	public static List<Object> fetchWeather(String baseUrl,
+			List<WeatherRequest> requests) throws Exception
+	{
+		JSONArray requestArray = new JSONArray();
+		for (WeatherRequest request : requests)
+		{
+			requestArray.put(request.toJSONObject());
+		}
+		return fetchWeather(baseUrl, requestArray);
+	}
+
+	/**
+	 * Post a request array to the server and decode the response straight
+	 * from the network stream.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param requestArray
+	 *            parameters for request
+	 * @return one entry per element of the response: MetarData, MavData, or
+	 *         an Exception for a request the server couldn't answer.
+	 * @throws IOException
+	 *             on network error, or a bad JSON response.
+	 */
+	static List<Object> fetchWeather(final String baseUrl,
+			JSONArray requestArray) throws IOException
+	{
+		Log.i(Utils.class.toString(), "fetchWeather(" + baseUrl + ", "
+				+ requestArray + ")");
+
+		final String body = requestArray.toString();
+		final String key = ResponseCache.key(baseUrl, body);
+
+		return getRequestPolicy().call(new RequestPolicy.Attempt<List<Object>>()
+		{
+			public List<Object> run(int timeout) throws IOException
+			{
+				checkConnected();
+				return fetchWeather(baseUrl, body, key, timeout);
+			}
+		});
+	}
+
+	/**
+	 * Make one try at a request, revalidating any cached copy of the
+	 * response.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param body
+	 *            JSON request text
+	 * @param key
+	 *            ResponseCache key for the request
+	 * @param timeout
+	 *            longest to wait to connect, or between bytes of the response
+	 *            (milliseconds)
+	 * @return one entry per element of the response
+	 * @throws IOException
+	 *             on network error, or a bad JSON response.
+	 */
+	private static List<Object> fetchWeather(String baseUrl, String body,
+			String key, int timeout) throws IOException
+	{
+		ResponseCache.Entry cached = responseCache.get(key);
+
+		Map<String, String> conditions = new HashMap<String, String>();
+		if (cached != null)
+		{
+			cached.addValidators(conditions);
+		}
+
+		NetworkMetrics.Timing timing = new NetworkMetrics.Timing();
+		long start = System.nanoTime();
+		HttpTransport.Response response = execute(baseUrl, body, conditions,
+				timeout);
+		timing.set(NetworkMetrics.Phase.CONNECT, response.connectTime);
+		timing.set(NetworkMetrics.Phase.FIRST_BYTE, response.firstByteTime);
+		try
+		{
+			if (response.statusCode == 304)
+			{
+				if (cached == null)
+				{
+					throw new HttpStatusException(304);
+				}
+				Log.i(Utils.class.toString(), "not modified, using cached copy");
+				timing.set(NetworkMetrics.Phase.TOTAL, System.nanoTime() - start);
+				NetworkMetrics.getInstance().record(timing);
+				return cached.results;
+			}
+
+			long decodeStart = System.nanoTime();
+			ResponseJournal.Recorder recorder = null;
+			InputStream content = response.content;
+			if (getJournal() != null)
+			{
+				recorder = new ResponseJournal.Recorder(content);
+				content = recorder;
+			}
+			JsonPullParser parser = new JsonPullParser(content);
+			List<Object> results;
+			try
+			{
+				results = WeatherDecoder.decode(parser);
+			} finally
+			{
+				parser.close();
+				// A response that can't be decoded is the one most worth
+				// replaying, so it's kept too (as far as it was read).
+				if (recorder != null)
+				{
+					record(body, recorder.toByteArray());
+				}
+			}
+			long end = System.nanoTime();
+			timing.set(NetworkMetrics.Phase.BODY, parser.getReadTime());
+			timing.set(NetworkMetrics.Phase.TOKENIZE, parser.getTokenizeTime());
+			timing.set(NetworkMetrics.Phase.MODEL, end - decodeStart
+					- parser.getReadTime() - parser.getTokenizeTime());
+			timing.set(NetworkMetrics.Phase.TOTAL, end - start);
+			NetworkMetrics.getInstance().record(timing);
+
+			// Only keep complete answers, an error should be asked again.
+			boolean complete = true;
+			for (Object result : results)
+			{
+				if (result instanceof Exception)
+				{
+					complete = false;
+				}
+			}
+			if (complete)
+			{
+				responseCache.put(key, response.getHeader("ETag"),
+						response.getHeader("Last-Modified"), results);
+			} else
+			{
+				responseCache.remove(key);
+			}
+			return results;
+		} finally
+		{
+			response.close();
+		}
+	}
+
+	/**
+	 * Send the request body to the server and read back the response.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param body
+	 *            JSON request text
+	 * @return response text
+	 * @throws IOException
+	 *             on network error, or if the server doesn't return OK.
+	 */
+	static String executePost(final String baseUrl, final String body)
+			throws IOException
+	{
+		return getRequestPolicy().call(new RequestPolicy.Attempt<String>()
+		{
+			public String run(int timeout) throws IOException
+			{
+				checkConnected();
+				return executePost(baseUrl, body, timeout);
+			}
+		});
+	}
+
+	/**
+	 * Make one try at sending the request body and reading back the response.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param body
+	 *            JSON request text
+	 * @param timeout
+	 *            longest to wait to connect, or between bytes of the response
+	 *            (milliseconds)
+	 * @return response text
+	 * @throws IOException
+	 *             on network error, or if the server doesn't return OK.
+	 */
+	private static String executePost(String baseUrl, String body, int timeout)
+			throws IOException
+	{
+		HttpTransport.Response response = execute(baseUrl, body, null, timeout);
+		byte buffer[] = BufferPool.getInstance().getBytes();
+		try
+		{
+			String length = response.getHeader("Content-Length");
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					(length != null && length.matches("\\d{1,9}")) ? Integer
+							.parseInt(length) : buffer.length);
+			int count;
+			while ((count = response.content.read(buffer)) >= 0)
+			{
+				out.write(buffer, 0, count);
+			}
+			return out.toString("UTF-8");
+		} finally
+		{
+			BufferPool.getInstance().recycle(buffer);
+			response.close();
+		}
+	}
+
+	/**
+	 * Send the request body to the server. If the extra headers make it a
+	 * conditional request, a 304 Not Modified response is returned rather
+	 * than thrown.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param body
+	 *            JSON request text
+	 * @param conditions
+	 *            extra request headers (If-None-Match, If-Modified-Since), or
+	 *            null
+	 * @param timeout
+	 *            longest to wait to connect, or between bytes of the response
+	 *            (milliseconds)
+	 * @return the response, which the caller must close.
+	 * @throws IOException
+	 *             on network error, or if the server doesn't return OK
+	 *             (HttpStatusException).
+	 */
+	static HttpTransport.Response execute(String baseUrl, String body,
+			Map<String, String> conditions, int timeout) throws IOException
+	{
+		Map<String, String> headers = new HashMap<String, String>();
+		if (conditions != null)
+		{
+			headers.putAll(conditions);
+		}
+		headers.put("Accept", "application/json");
+		headers.put("Accept-Encoding", "gzip");
+		headers.put("Content-type", "application/json");
+
+		byte bytes[] = body.getBytes("UTF-8");
+		int minimumSize = getRequestCompression();
+		if (minimumSize > 0 && bytes.length >= minimumSize)
+		{
+			bytes = gzip(bytes);
+			headers.put("Content-Encoding", "gzip");
+		}
+
+		HttpTransport.Response response = getTransport().post(baseUrl, bytes,
+				headers, timeout);
+
+		int statusCode = response.statusCode;
+		Log.i(Utils.class.toString(), "statusCode: " + statusCode);
+
+		if (statusCode == 304 && conditions != null && !conditions.isEmpty())
+		{
+			return response;
+		}
+		if (statusCode != 200)
+		{
+			response.close();
+			throw new HttpStatusException(statusCode);
+		}
+
+		// Unzip as we read, so the whole body is never held compressed.
+		String encoding = response.getHeader("Content-Encoding");
+		if (encoding != null && encoding.equalsIgnoreCase("gzip"))
+		{
+			try
+			{
+				response = new HttpTransport.Response(response.statusCode,
+						response.headers, new GZIPInputStream(response.content),
+						response.connectTime, response.firstByteTime);
+			} catch (IOException e)
+			{
+				response.close();
+				throw e;
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * Fail straight away if there's no network, rather than waiting for a
+	 * connection attempt to time out.
+	 * 
+	 * @throws OfflineException
+	 *             if there's no network connection
+	 */
+	private static void checkConnected() throws OfflineException
+	{
+		ConnectivitySource source = getConnectivity();
+		if (source != null && !source.isConnected())
+		{
+			throw new OfflineException();
+		}
+	}
+
+	/**
+	 * Add a response to the journal, if there is one. A journal that can't
+	 * take it doesn't stop the response being used.
+	 * 
+	 * @param request
+	 *            JSON request text
+	 * @param response
+	 *            response body
+	 */
+	private static void record(String request, byte response[])
+	{
+		ResponseJournal target = getJournal();
+		if (target == null)
+		{
+			return;
+		}
+		try
+		{
+			target.append(System.currentTimeMillis(), request, response);
+		} catch (IOException e)
+		{
+			Log.i(Utils.class.toString(), "can't journal response: " + e);
+		}
+	}
+
+	/**
+	 * Get where every response is recorded.
+	 * 
+	 * @return the journal, or null if responses aren't recorded
+	 */
+	public static synchronized ResponseJournal getJournal()
+	{
+		return journal;
+	}
+
+	/**
+	 * Change where every response is recorded.
+	 * 
+	 * @param newJournal
+	 *            journal to use from now on, or null to stop recording
+	 */
+	public static synchronized void setJournal(ResponseJournal newJournal)
+	{
+		journal = newJournal;
+	}
+
+	/**
+	 * Get what tells whether the network is there.
+	 * 
+	 * @return the current source, or null if requests are just tried
+	 */
+	public static synchronized ConnectivitySource getConnectivity()
+	{
+		return connectivity;
+	}
+
+	/**
+	 * Change what tells whether the network is there.
+	 * 
+	 * @param source
+	 *            source to use from now on, or null to just try requests
+	 */
+	public static synchronized void setConnectivity(ConnectivitySource source)
+	{
+		connectivity = source;
+	}
+
+	/**
+	 * Get the deadline, retries and hedging requests are made with.
+	 * 
+	 * @return the current policy
+	 */
+	public static synchronized RequestPolicy getRequestPolicy()
+	{
+		return requestPolicy;
+	}
+
+	/**
+	 * Change the deadline, retries and hedging requests are made with.
+	 * 
+	 * @param policy
+	 *            policy to use from now on
+	 */
+	public static synchronized void setRequestPolicy(RequestPolicy policy)
+	{
+		requestPolicy = policy;
+	}
+
+	/**
+	 * Get the responses remembered for revalidation.
+	 * 
+	 * @return the shared ResponseCache
+	 */
+	public static ResponseCache getResponseCache()
+	{
+		return responseCache;
+	}
+
+	/**
+	 * Compress a request body.
+	 * 
+	 * @param bytes
+	 *            request body
+	 * @return gzipped request body
+	 * @throws IOException
+	 *             never, really.
+	 */
+	static byte[] gzip(byte bytes[]) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+		GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+		gzipOut.write(bytes);
+		gzipOut.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Get the smallest request body that is gzipped before it is sent.
+	 * 
+	 * @return size in bytes, or 0 if request bodies are never compressed.
+	 */
+	public static synchronized int getRequestCompression()
+	{
+		return requestCompression;
+	}
+
+	/**
+	 * Set the smallest request body that is gzipped before it is sent. Only
+	 * turn this on for a server that accepts gzipped requests.
+	 * 
+	 * @param minimumSize
+	 *            size in bytes, or 0 to never compress request bodies.
+	 */
+	public static synchronized void setRequestCompression(int minimumSize)
+	{
+		requestCompression = minimumSize;
+	}
+
+	/**
+	 * Turn a server response into weather data.
+	 * 
+	 * If the server returns an array, pluck an object out of it. METAR data
+	 * comes back wrapped in a "metar" object, MAV data in a "mav" object.
+	 * 
+	 * @param responseObject
+	 *            JSONObject or JSONArray returned by the server
+	 * @return MetarData or MavData object
+	 * @throws Exception
+	 *             if the server returned an error, or something we don't
+	 *             understand.
+	 */
+	public static Object decodeWeather(Object responseObject) throws Exception
+	{
+		// At this point, all we know is that we received back a JSONArray or
+		// JSONObject
+		JSONObject object = null;
+		if (responseObject instanceof JSONArray)
+		{
+			JSONArray array = (JSONArray) responseObject;
+			if (array.length() < 1)
+			{
+				throw new Exception("Server returned empty JSON Array");
+			}
+
+			// Grab the first object in the array
+			object = array.getJSONObject(0);
+		} else
+		{
+			// It's just a plain old object.
+			object = (JSONObject) responseObject;
+		}
+
+		// If the object has the key "error", throw up
+		if (object.has("error"))
+		{
+			throw new Exception("Server returned error: "
+					+ object.getString("error"));
+		} else if (object.has("metar"))
+		{
+			return new MetarData(object);
+		} else if (object.has("mav"))
+		{
+			return new MavData(object.getJSONObject("mav"));
+		} else if (object.has("periods"))
+		{
+			// Bare MAV data
+			return new MavData(object);
+		}
+		throw new Exception("Server returned unknown data: " + object);
+	}
 }
@@ -0,0 +1,215 @@
+package edu.umn.aerowx;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+/**
+ * Keeps the last MetarData and MavData for each station on the phone, so
+ * there's something to show the moment a screen opens, even with no signal.
+ * 
+ * There's one small file per station and source. Files are replaced
+ * atomically, so a crash part way through a write leaves the old copy.
+ * 
+ * Each file is when the data was fetched (8 bytes), then the data in
+ * WeatherCodec's binary form, so reading one back builds no JSON at all.
+ */
+public class WeatherCache
+{
+	/** Directory the files are kept in */
+	private final File directory;
+
+	/**
+	 * Data read back from the cache.
+	 */
+	public static class Entry
+	{
+		/** MetarData or MavData */
+		public final Object data;
+
+		/** When it was fetched from the server (milliseconds) */
+		public final long fetched;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param data
+		 *            MetarData or MavData
+		 * @param fetched
+		 *            when it was fetched from the server (milliseconds)
+		 */
+		public Entry(Object data, long fetched)
+		{
+			super();
+			this.data = data;
+			this.fetched = fetched;
+		}
+
+		/**
+		 * Is this still the latest data, or has newer come out since?
+		 * 
+		 * @param source
+		 *            WeatherRequest.METAR or WeatherRequest.MAV
+		 * @param now
+		 *            current time (milliseconds)
+		 * @return true if nothing newer has come out
+		 */
+		public boolean isFresh(String source, long now)
+		{
+			return IssueSchedule.isFresh(source, fetched, now);
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param directory
+	 *            directory to keep the files in. It's created if need be.
+	 */
+	public WeatherCache(File directory)
+	{
+		super();
+		this.directory = directory;
+	}
+
+	/**
+	 * Look up the last data for a request.
+	 * 
+	 * @param request
+	 *            what was asked for
+	 * @return the data, or null if there isn't any (or it can't be read).
+	 */
+	public synchronized Entry get(WeatherRequest request)
+	{
+		AtomicFile file = getFile(request);
+		if (file == null)
+		{
+			return null;
+		}
+
+		try
+		{
+			byte bytes[] = file.readFully();
+			if (bytes.length < 8)
+			{
+				throw new IOException("cut short");
+			}
+			long fetched = 0;
+			for (int i = 0; i < 8; ++i)
+			{
+				fetched = (fetched << 8) | (bytes[i] & 0xff);
+			}
+			return new Entry(WeatherCodec.decode(bytes, 8, bytes.length - 8),
+					fetched);
+		} catch (FileNotFoundException e)
+		{
+			return null;
+		} catch (IOException e)
+		{
+			// Corrupt or from an older version. It'll be replaced.
+			Log.i(WeatherCache.class.toString(), "can't read " + request
+					+ ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Remember the data for a request.
+	 * 
+	 * @param request
+	 *            what was asked for
+	 * @param data
+	 *            MetarData or MavData
+	 * @param fetched
+	 *            when it was fetched from the server (milliseconds)
+	 */
+	public synchronized void put(WeatherRequest request, Object data,
+			long fetched)
+	{
+		AtomicFile file = getFile(request);
+		if (file == null)
+		{
+			return;
+		}
+
+		if (!(data instanceof MetarData || data instanceof MavData))
+		{
+			return;
+		}
+		byte bytes[] = WeatherCodec.encode(data);
+		byte header[] = new byte[8];
+		for (int i = 0; i < 8; ++i)
+		{
+			header[i] = (byte) (fetched >>> (56 - 8 * i));
+		}
+
+		FileOutputStream out = null;
+		try
+		{
+			directory.mkdirs();
+			out = file.startWrite();
+			out.write(header);
+			out.write(bytes);
+			file.finishWrite(out);
+
+			// Left by versions that kept JSON
+			new File(directory, getName(request) + ".json").delete();
+		} catch (IOException e)
+		{
+			Log.i(WeatherCache.class.toString(), "can't write " + request
+					+ ": " + e);
+			if (out != null)
+			{
+				file.failWrite(out);
+			}
+		}
+	}
+
+	/**
+	 * Forget the data for a request.
+	 * 
+	 * @param request
+	 *            what was asked for
+	 */
+	public synchronized void remove(WeatherRequest request)
+	{
+		AtomicFile file = getFile(request);
+		if (file != null)
+		{
+			file.delete();
+			new File(directory, getName(request) + ".json").delete();
+		}
+	}
+
+	/**
+	 * Get the file a request's data is kept in.
+	 * 
+	 * @param request
+	 *            what was asked for
+	 * @return the file, or null if data for this request isn't kept.
+	 */
+	private AtomicFile getFile(WeatherRequest request)
+	{
+		// Only the latest data is kept, not data for a given time.
+		if (request.time.length() > 0 || request.source == null
+				|| request.location == null)
+		{
+			return null;
+		}
+		return new AtomicFile(new File(directory, getName(request) + ".wx"));
+	}
+
+	/**
+	 * Get the name of a request's file, without the extension.
+	 */
+	private static String getName(WeatherRequest request)
+	{
+		return (request.source + "-" + request.location)
+				.toLowerCase(Locale.US).replaceAll("[^a-z0-9-]", "_");
+	}
+}
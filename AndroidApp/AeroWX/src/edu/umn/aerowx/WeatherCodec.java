@@ -0,0 +1,902 @@
+package edu.umn.aerowx;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * A compact binary form of MetarData and MavData, for keeping on the phone or
+ * handing between parts of the app. It's several times smaller than the JSON
+ * and much quicker to read: no names, no JSONObject, no parsing of numbers
+ * back out of text.
+ * 
+ * The layout is a version byte and a kind byte, then fields. Each field
+ * starts with a tag: the field's number shifted left 3, or'd with how its
+ * value is written:
+ * 
+ * <pre>
+ * VARINT   7 bits a byte, low first (enum ordinals, counts)
+ * SIGNED   a varint of the zigzagged value (times, text that's a whole number)
+ * TEXT     a varint length, then UTF-8
+ * NESTED   fields, up to a 0 tag (MAV periods)
+ * </pre>
+ * 
+ * Field numbers never change meaning. A reader skips fields it doesn't know,
+ * so fields can be added without a new version; the version only changes if
+ * the layout does. A null field, or a period number that's MISSING, is left
+ * out. (Version 1 kept period numbers as the server's text, and nested the
+ * wind.)
+ * 
+ * MAV periods are only checked for framing when read; each is decoded the
+ * first time MavData.getPeriod() asks for it, so a layout that shows a few
+ * doesn't pay for the rest. Writing a period that was never decoded copies
+ * its bytes.
+ */
+public class WeatherCodec
+{
+	/** Version of the layout */
+	public static final int VERSION = 2;
+
+	/** Kinds of data */
+	private static final int KIND_METAR = 1;
+	private static final int KIND_MAV = 2;
+
+	/** How a field's value is written (the low 3 bits of its tag) */
+	private static final int VARINT = 0;
+	private static final int SIGNED = 1;
+	private static final int TEXT = 2;
+	private static final int NESTED = 3;
+
+	/** Ends a NESTED value */
+	private static final int END = 0;
+
+	/** MetarData fields */
+	private static final int METAR_WXID = 1;
+	private static final int METAR_TIME = 2;
+	private static final int METAR_TEMP = 3;
+	private static final int METAR_DEWPOINT = 4;
+	private static final int METAR_PRESSURE = 5;
+	private static final int METAR_OBS_TYPE = 6;
+	private static final int METAR_WIND = 7;
+	private static final int METAR_VISIBILITY = 8;
+	private static final int METAR_WEATHER = 9;
+	private static final int METAR_SKY = 10;
+	private static final int METAR_REMARKS = 11;
+
+	/** MavData fields */
+	private static final int MAV_WXID = 1;
+	private static final int MAV_TIME = 2;
+	private static final int MAV_HIGH = 3;
+	private static final int MAV_LOW = 4;
+	/** Number of periods, before them */
+	private static final int MAV_PERIOD_COUNT = 5;
+	private static final int MAV_PERIOD = 6;
+	/** A null period, keeping the place */
+	private static final int MAV_NO_PERIOD = 7;
+
+	/** MavData.Period fields */
+	private static final int PERIOD_TIME = 1;
+	private static final int PERIOD_TEMP = 2;
+	private static final int PERIOD_DEWPOINT = 3;
+	private static final int PERIOD_COVER = 4;
+	private static final int PERIOD_WIND_DIRECTION = 5;
+	private static final int PERIOD_POP6 = 6;
+	private static final int PERIOD_POP12 = 7;
+	private static final int PERIOD_QPF6 = 8;
+	private static final int PERIOD_QPF12 = 9;
+	private static final int PERIOD_THUND6 = 10;
+	private static final int PERIOD_THUND12 = 11;
+	private static final int PERIOD_POPZ = 12;
+	private static final int PERIOD_POPS = 13;
+	private static final int PERIOD_TYPE = 14;
+	private static final int PERIOD_SNOW = 15;
+	private static final int PERIOD_VISIBILITY = 16;
+	private static final int PERIOD_OBSCURITY = 17;
+	private static final int PERIOD_CEILING = 18;
+	private static final int PERIOD_WIND_SPEED = 19;
+	private static final int PERIOD_WIND_GUST = 20;
+	private static final int PERIOD_SEVERE6 = 21;
+	private static final int PERIOD_SEVERE12 = 22;
+
+	/** Enum values by ordinal (values() makes a new array every call) */
+	private static final MavData.Cover COVERS[] = MavData.Cover.values();
+	private static final MavData.Visibility VISIBILITIES[] = MavData.Visibility
+			.values();
+	private static final MavData.Precipitation PRECIPITATIONS[] = MavData.Precipitation
+			.values();
+	private static final MavData.Obscurity OBSCURITIES[] = MavData.Obscurity
+			.values();
+
+	/**
+	 * Write data in binary.
+	 * 
+	 * @param data
+	 *            MetarData or MavData
+	 * @return the bytes
+	 * @throws IllegalArgumentException
+	 *             for any other kind of data
+	 */
+	public static byte[] encode(Object data)
+	{
+		Output out = new Output();
+		out.writeByte(VERSION);
+		if (data instanceof MetarData)
+		{
+			out.writeByte(KIND_METAR);
+			writeMetar(out, (MetarData) data);
+		} else if (data instanceof MavData)
+		{
+			out.writeByte(KIND_MAV);
+			writeMav(out, (MavData) data);
+		} else
+		{
+			throw new IllegalArgumentException("can't encode " + data);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Read data written by encode().
+	 * 
+	 * @param bytes
+	 *            the bytes
+	 * @return MetarData or MavData
+	 * @throws IOException
+	 *             if they aren't data this version can read
+	 */
+	public static Object decode(byte bytes[]) throws IOException
+	{
+		return decode(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Read data written by encode().
+	 * 
+	 * @param bytes
+	 *            holds the data
+	 * @param offset
+	 *            where it starts
+	 * @param length
+	 *            how long it is
+	 * @return MetarData or MavData
+	 * @throws IOException
+	 *             if they aren't data this version can read
+	 */
+	public static Object decode(byte bytes[], int offset, int length)
+			throws IOException
+	{
+		Input in = new Input(bytes, offset, length);
+		int version = in.readByte();
+		if (version != VERSION)
+		{
+			throw new IOException("can't read weather data version " + version);
+		}
+		int kind = in.readByte();
+		Object data;
+		switch (kind)
+		{
+		case KIND_METAR:
+			data = readMetar(in);
+			break;
+		case KIND_MAV:
+			data = readMav(in);
+			break;
+		default:
+			throw new IOException("unknown kind of weather data " + kind);
+		}
+		if (in.remaining() > 0)
+		{
+			throw new IOException("extra bytes after weather data");
+		}
+		return data;
+	}
+
+	/**
+	 * Write a METAR's fields.
+	 */
+	private static void writeMetar(Output out, MetarData metar)
+	{
+		out.writeString(METAR_WXID, metar.wxid);
+		out.writeDate(METAR_TIME, metar.time);
+		out.writeString(METAR_TEMP, metar.temp);
+		out.writeString(METAR_DEWPOINT, metar.dewpoint);
+		out.writeString(METAR_PRESSURE, metar.pressure);
+		out.writeString(METAR_OBS_TYPE, metar.obsType);
+		out.writeString(METAR_WIND, metar.wind);
+		out.writeString(METAR_VISIBILITY, metar.visibility);
+		out.writeString(METAR_WEATHER, metar.weather);
+		out.writeString(METAR_SKY, metar.sky);
+		out.writeString(METAR_REMARKS, metar.remarks);
+	}
+
+	/**
+	 * Read a METAR's fields.
+	 */
+	private static MetarData readMetar(Input in) throws IOException
+	{
+		MetarData metar = new MetarData();
+		while (in.remaining() > 0)
+		{
+			int tag = in.readTag();
+			switch (tag >>> 3)
+			{
+			case METAR_WXID:
+				metar.wxid = in.readString(tag);
+				break;
+			case METAR_TIME:
+				metar.time = in.readDate(tag);
+				break;
+			case METAR_TEMP:
+				metar.temp = in.readString(tag);
+				break;
+			case METAR_DEWPOINT:
+				metar.dewpoint = in.readString(tag);
+				break;
+			case METAR_PRESSURE:
+				metar.pressure = in.readString(tag);
+				break;
+			case METAR_OBS_TYPE:
+				metar.obsType = in.readString(tag);
+				break;
+			case METAR_WIND:
+				metar.wind = in.readString(tag);
+				break;
+			case METAR_VISIBILITY:
+				metar.visibility = in.readString(tag);
+				break;
+			case METAR_WEATHER:
+				metar.weather = in.readString(tag);
+				break;
+			case METAR_SKY:
+				metar.sky = in.readString(tag);
+				break;
+			case METAR_REMARKS:
+				metar.remarks = in.readString(tag);
+				break;
+			default:
+				in.skip(tag);
+			}
+		}
+		metar.parseValues();
+		return metar;
+	}
+
+	/**
+	 * Write a MAV's fields, then its periods.
+	 */
+	private static void writeMav(Output out, MavData mav)
+	{
+		out.writeString(MAV_WXID, mav.wxid);
+		out.writeString(MAV_TIME, mav.time);
+		out.writeString(MAV_HIGH, mav.high);
+		out.writeString(MAV_LOW, mav.low);
+		if (mav.periods != null)
+		{
+			int count = mav.getPeriodCount();
+			out.writeVarint(MAV_PERIOD_COUNT, count);
+			for (int i = 0; i < count; ++i)
+			{
+				MavData.PeriodSource source = mav.getSource(i);
+				if (source instanceof EncodedPeriods
+						&& ((EncodedPeriods) source).copy(out, i))
+				{
+					continue;
+				}
+				MavData.Period period = mav.getPeriod(i);
+				if (period == null)
+				{
+					out.writeVarint(MAV_NO_PERIOD, 0);
+				} else
+				{
+					out.writeTag(MAV_PERIOD, NESTED);
+					writePeriod(out, period);
+					out.writeEnd();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read a MAV's fields, and where its periods are.
+	 */
+	private static MavData readMav(Input in) throws IOException
+	{
+		MavData mav = new MavData();
+		mav.periods = null;
+		int starts[] = null;
+		int ends[] = null;
+		int index = 0;
+		while (in.remaining() > 0)
+		{
+			int tag = in.readTag();
+			switch (tag >>> 3)
+			{
+			case MAV_WXID:
+				mav.wxid = in.readString(tag);
+				break;
+			case MAV_TIME:
+				mav.time = in.readString(tag);
+				break;
+			case MAV_HIGH:
+				mav.high = in.readString(tag);
+				break;
+			case MAV_LOW:
+				mav.low = in.readString(tag);
+				break;
+			case MAV_PERIOD_COUNT:
+				int count = (int) in.readVarint(tag);
+				if (count < 0 || count > in.remaining())
+				{
+					throw new IOException("bad period count " + count);
+				}
+				starts = new int[count];
+				ends = new int[count];
+				index = 0;
+				break;
+			case MAV_PERIOD:
+			case MAV_NO_PERIOD:
+				if (starts == null || index == starts.length)
+				{
+					throw new IOException("more periods than counted");
+				}
+				if ((tag >>> 3) == MAV_PERIOD)
+				{
+					// Just find the END; the fields are read when asked for
+					in.expect(tag, NESTED);
+					starts[index] = in.position();
+					in.skip(tag);
+					ends[index] = in.position();
+				} else
+				{
+					in.readVarint(tag);
+					starts[index] = -1;
+				}
+				++index;
+				break;
+			default:
+				in.skip(tag);
+			}
+		}
+		if (starts != null)
+		{
+			if (index != starts.length)
+			{
+				throw new IOException("fewer periods than counted");
+			}
+			mav.setSource(new EncodedPeriods(in.bytes, starts, ends),
+					starts.length);
+		}
+		return mav;
+	}
+
+	/**
+	 * Write a period's fields, up to but not including the END.
+	 */
+	private static void writePeriod(Output out, MavData.Period period)
+	{
+		if (period.time != MavData.NO_TIME)
+		{
+			out.writeSigned(PERIOD_TIME, period.time);
+		}
+		out.writeNumber(PERIOD_TEMP, period.temp);
+		out.writeNumber(PERIOD_DEWPOINT, period.dewpoint);
+		out.writeEnum(PERIOD_COVER, period.cover);
+		out.writeNumber(PERIOD_WIND_DIRECTION, period.windDirection);
+		out.writeNumber(PERIOD_WIND_SPEED, period.windSpeed);
+		out.writeNumber(PERIOD_WIND_GUST, period.windGust);
+		out.writeNumber(PERIOD_POP6, period.pop6);
+		out.writeNumber(PERIOD_POP12, period.pop12);
+		out.writeNumber(PERIOD_QPF6, period.qpf6);
+		out.writeNumber(PERIOD_QPF12, period.qpf12);
+		out.writeNumber(PERIOD_THUND6, period.thund6);
+		out.writeNumber(PERIOD_SEVERE6, period.severe6);
+		out.writeNumber(PERIOD_THUND12, period.thund12);
+		out.writeNumber(PERIOD_SEVERE12, period.severe12);
+		out.writeNumber(PERIOD_POPZ, period.popz);
+		out.writeNumber(PERIOD_POPS, period.pops);
+		out.writeEnum(PERIOD_TYPE, period.type);
+		out.writeNumber(PERIOD_SNOW, period.snow);
+		out.writeEnum(PERIOD_VISIBILITY, period.visibility);
+		out.writeEnum(PERIOD_OBSCURITY, period.obscurity);
+		out.writeNumber(PERIOD_CEILING, period.ceiling);
+	}
+
+	/**
+	 * Read a period's fields, and the END after them.
+	 */
+	private static MavData.Period readPeriod(Input in) throws IOException
+	{
+		MavData.Period period = new MavData.Period();
+		for (int tag = in.readTag(); tag != END; tag = in.readTag())
+		{
+			switch (tag >>> 3)
+			{
+			case PERIOD_TIME:
+				period.time = in.readSigned(tag);
+				break;
+			case PERIOD_TEMP:
+				period.temp = in.readNumber(tag);
+				break;
+			case PERIOD_DEWPOINT:
+				period.dewpoint = in.readNumber(tag);
+				break;
+			case PERIOD_COVER:
+				int cover = (int) in.readVarint(tag);
+				period.cover = (cover < COVERS.length) ? COVERS[cover]
+						: MavData.Cover.UNKNOWN;
+				break;
+			case PERIOD_WIND_DIRECTION:
+				period.windDirection = in.readNumber(tag);
+				break;
+			case PERIOD_WIND_SPEED:
+				period.windSpeed = in.readNumber(tag);
+				break;
+			case PERIOD_WIND_GUST:
+				period.windGust = in.readNumber(tag);
+				break;
+			case PERIOD_POP6:
+				period.pop6 = in.readNumber(tag);
+				break;
+			case PERIOD_POP12:
+				period.pop12 = in.readNumber(tag);
+				break;
+			case PERIOD_QPF6:
+				period.qpf6 = in.readNumber(tag);
+				break;
+			case PERIOD_QPF12:
+				period.qpf12 = in.readNumber(tag);
+				break;
+			case PERIOD_THUND6:
+				period.thund6 = in.readNumber(tag);
+				break;
+			case PERIOD_SEVERE6:
+				period.severe6 = in.readNumber(tag);
+				break;
+			case PERIOD_THUND12:
+				period.thund12 = in.readNumber(tag);
+				break;
+			case PERIOD_SEVERE12:
+				period.severe12 = in.readNumber(tag);
+				break;
+			case PERIOD_POPZ:
+				period.popz = in.readNumber(tag);
+				break;
+			case PERIOD_POPS:
+				period.pops = in.readNumber(tag);
+				break;
+			case PERIOD_TYPE:
+				int type = (int) in.readVarint(tag);
+				period.type = (type < PRECIPITATIONS.length) ? PRECIPITATIONS[type]
+						: MavData.Precipitation.UNKNOWN;
+				break;
+			case PERIOD_SNOW:
+				period.snow = in.readNumber(tag);
+				break;
+			case PERIOD_VISIBILITY:
+				int visibility = (int) in.readVarint(tag);
+				period.visibility = (visibility < VISIBILITIES.length) ? VISIBILITIES[visibility]
+						: MavData.Visibility.UNKNOWN;
+				break;
+			case PERIOD_OBSCURITY:
+				int obscurity = (int) in.readVarint(tag);
+				period.obscurity = (obscurity < OBSCURITIES.length) ? OBSCURITIES[obscurity]
+						: MavData.Obscurity.UNKNOWN;
+				break;
+			case PERIOD_CEILING:
+				period.ceiling = in.readNumber(tag);
+				break;
+			default:
+				in.skip(tag);
+			}
+		}
+		return period;
+	}
+
+	/**
+	 * A MAV's periods as written by writePeriod(), each decoded when asked
+	 * for. They're copied out of the bytes decode() was given, so the caller
+	 * can reuse those.
+	 */
+	private static class EncodedPeriods implements MavData.PeriodSource
+	{
+		/** The periods' bytes, each ending with its END */
+		private final byte bytes[];
+
+		/** Where each period starts in bytes, or -1 for a null period */
+		private final int starts[];
+
+		/** Where each period ends in bytes */
+		private final int ends[];
+
+		EncodedPeriods(byte source[], int starts[], int ends[])
+		{
+			int first = Integer.MAX_VALUE;
+			int last = 0;
+			for (int i = 0; i < starts.length; ++i)
+			{
+				if (starts[i] >= 0)
+				{
+					first = Math.min(first, starts[i]);
+					last = Math.max(last, ends[i]);
+				}
+			}
+			if (first > last)
+			{
+				first = last;
+			}
+			bytes = new byte[last - first];
+			System.arraycopy(source, first, bytes, 0, bytes.length);
+			for (int i = 0; i < starts.length; ++i)
+			{
+				if (starts[i] >= 0)
+				{
+					starts[i] -= first;
+					ends[i] -= first;
+				}
+			}
+			this.starts = starts;
+			this.ends = ends;
+		}
+
+		@Override
+		public MavData.Period decode(int index) throws IOException
+		{
+			if (starts[index] < 0)
+			{
+				return null;
+			}
+			Input in = new Input(bytes, starts[index], ends[index]
+					- starts[index]);
+			MavData.Period period = readPeriod(in);
+			if (in.remaining() > 0)
+			{
+				throw new IOException("extra bytes after period " + index);
+			}
+			return period;
+		}
+
+		/**
+		 * Write a period straight from its bytes.
+		 * 
+		 * @return false for a null period, which the caller writes
+		 */
+		boolean copy(Output out, int index)
+		{
+			if (starts[index] < 0)
+			{
+				return false;
+			}
+			out.writeTag(MAV_PERIOD, NESTED);
+			out.writeBytes(bytes, starts[index], ends[index] - starts[index]);
+			return true;
+		}
+	}
+
+	/**
+	 * Is some text a whole number written the way Long.toString() would,
+	 * so it can be kept as a number and turned back into the same text?
+	 */
+	private static boolean isWholeNumber(String text)
+	{
+		int length = text.length();
+		int start = (length > 0 && text.charAt(0) == '-') ? 1 : 0;
+		if (length == start || length - start > 18)
+		{
+			return false;
+		}
+		if (text.charAt(start) == '0' && (length > start + 1 || start == 1))
+		{
+			// Leading zero, or "-0"
+			return false;
+		}
+		for (int i = start; i < length; ++i)
+		{
+			char c = text.charAt(i);
+			if (c < '0' || c > '9')
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Bytes being written.
+	 */
+	private static class Output
+	{
+		private byte bytes[] = new byte[256];
+
+		private int size;
+
+		void writeByte(int b)
+		{
+			if (size == bytes.length)
+			{
+				grow(1);
+			}
+			bytes[size++] = (byte) b;
+		}
+
+		void writeRawVarint(long value)
+		{
+			while ((value & ~0x7fL) != 0)
+			{
+				writeByte((int) ((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+			writeByte((int) value);
+		}
+
+		void writeTag(int field, int type)
+		{
+			writeRawVarint((field << 3) | type);
+		}
+
+		void writeEnd()
+		{
+			writeByte(END);
+		}
+
+		void writeVarint(int field, long value)
+		{
+			writeTag(field, VARINT);
+			writeRawVarint(value);
+		}
+
+		void writeSigned(int field, long value)
+		{
+			writeTag(field, SIGNED);
+			writeRawVarint((value << 1) ^ (value >> 63));
+		}
+
+		void writeNumber(int field, short value)
+		{
+			if (value != MavData.MISSING)
+			{
+				writeSigned(field, value);
+			}
+		}
+
+		void writeEnum(int field, Enum<?> value)
+		{
+			if (value != null)
+			{
+				writeVarint(field, value.ordinal());
+			}
+		}
+
+		void writeDate(int field, Date date)
+		{
+			if (date != null)
+			{
+				writeSigned(field, date.getTime());
+			}
+		}
+
+		void writeString(int field, String text)
+		{
+			if (text == null)
+			{
+				return;
+			}
+			if (isWholeNumber(text))
+			{
+				writeSigned(field, Long.parseLong(text));
+				return;
+			}
+			writeTag(field, TEXT);
+
+			// Most of it is ASCII; write that straight in.
+			int length = text.length();
+			boolean ascii = true;
+			for (int i = 0; i < length && ascii; ++i)
+			{
+				ascii = text.charAt(i) < 0x80;
+			}
+			if (ascii)
+			{
+				writeRawVarint(length);
+				if (size + length > bytes.length)
+				{
+					grow(length);
+				}
+				for (int i = 0; i < length; ++i)
+				{
+					bytes[size++] = (byte) text.charAt(i);
+				}
+			} else
+			{
+				byte utf8[];
+				try
+				{
+					utf8 = text.getBytes("UTF-8");
+				} catch (IOException e)
+				{
+					throw new RuntimeException(e);
+				}
+				writeRawVarint(utf8.length);
+				if (size + utf8.length > bytes.length)
+				{
+					grow(utf8.length);
+				}
+				System.arraycopy(utf8, 0, bytes, size, utf8.length);
+				size += utf8.length;
+			}
+		}
+
+		void writeBytes(byte source[], int offset, int length)
+		{
+			if (size + length > bytes.length)
+			{
+				grow(length);
+			}
+			System.arraycopy(source, offset, bytes, size, length);
+			size += length;
+		}
+
+		private void grow(int needed)
+		{
+			byte larger[] = new byte[Math.max(bytes.length * 2, size + needed)];
+			System.arraycopy(bytes, 0, larger, 0, size);
+			bytes = larger;
+		}
+
+		byte[] toByteArray()
+		{
+			byte result[] = new byte[size];
+			System.arraycopy(bytes, 0, result, 0, size);
+			return result;
+		}
+	}
+
+	/**
+	 * Bytes being read.
+	 */
+	private static class Input
+	{
+		private final byte bytes[];
+
+		private int position;
+
+		private final int limit;
+
+		Input(byte bytes[], int offset, int length)
+		{
+			this.bytes = bytes;
+			position = offset;
+			limit = offset + length;
+		}
+
+		int remaining()
+		{
+			return limit - position;
+		}
+
+		int position()
+		{
+			return position;
+		}
+
+		int readByte() throws IOException
+		{
+			if (position >= limit)
+			{
+				throw new IOException("weather data cut short");
+			}
+			return bytes[position++] & 0xff;
+		}
+
+		long readRawVarint() throws IOException
+		{
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7)
+			{
+				int b = readByte();
+				value |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+				{
+					return value;
+				}
+			}
+			throw new IOException("bad varint in weather data");
+		}
+
+		int readTag() throws IOException
+		{
+			long tag = readRawVarint();
+			if (tag > Integer.MAX_VALUE)
+			{
+				throw new IOException("bad tag in weather data");
+			}
+			return (int) tag;
+		}
+
+		void expect(int tag, int type) throws IOException
+		{
+			if ((tag & 7) != type)
+			{
+				throw new IOException("field " + (tag >>> 3)
+						+ " written as type " + (tag & 7));
+			}
+		}
+
+		long readVarint(int tag) throws IOException
+		{
+			expect(tag, VARINT);
+			return readRawVarint();
+		}
+
+		long readSigned(int tag) throws IOException
+		{
+			expect(tag, SIGNED);
+			long value = readRawVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		short readNumber(int tag) throws IOException
+		{
+			long value = readSigned(tag);
+			if (value < Short.MIN_VALUE || value > Short.MAX_VALUE)
+			{
+				throw new IOException("field " + (tag >>> 3) + " out of range");
+			}
+			return (short) value;
+		}
+
+		Date readDate(int tag) throws IOException
+		{
+			return new Date(readSigned(tag));
+		}
+
+		String readString(int tag) throws IOException
+		{
+			if ((tag & 7) == SIGNED)
+			{
+				return Long.toString(readSigned(tag));
+			}
+			expect(tag, TEXT);
+			int length = readLength();
+			String text = new String(bytes, position, length, "UTF-8");
+			position += length;
+			return text;
+		}
+
+		private int readLength() throws IOException
+		{
+			long length = readRawVarint();
+			if (length > remaining())
+			{
+				throw new IOException("weather data cut short");
+			}
+			return (int) length;
+		}
+
+		/**
+		 * Skip a field this version doesn't know.
+		 */
+		void skip(int tag) throws IOException
+		{
+			switch (tag & 7)
+			{
+			case VARINT:
+			case SIGNED:
+				readRawVarint();
+				break;
+			case TEXT:
+				// Not position += readLength(): that adds to the old position
+				int length = readLength();
+				position += length;
+				break;
+			case NESTED:
+				for (int inner = readTag(); inner != END; inner = readTag())
+				{
+					skip(inner);
+				}
+				break;
+			default:
+				throw new IOException("field " + (tag >>> 3)
+						+ " of unknown type " + (tag & 7));
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package edu.umn.aerowx;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes weather server responses straight from the response stream into
+ * MetarData and MavData objects, without building the response as a String
+ * or a tree of JSONObjects first.
+ * 
+ * The server answers with one object, or an array with one element per
+ * request. Each element is {"metar": {...}}, {"mav": {...}}, or an error,
+ * which comes as {"error": "..."} or [{"error": "..."}].
+ */
+public class WeatherDecoder
+{
+	/**
+	 * Decode a whole response.
+	 * 
+	 * @param parser
+	 *            JSON stream of the response
+	 * @return one entry per element of the response: MetarData, MavData, or
+	 *         an Exception describing the error the server returned for that
+	 *         request.
+	 * @throws IOException
+	 *             on read error, or when the JSON is invalid.
+	 */
+	public static List<Object> decode(JsonPullParser parser) throws IOException
+	{
+		List<Object> results = new ArrayList<Object>();
+
+		if (parser.peek() == JsonPullParser.Token.BEGIN_ARRAY)
+		{
+			parser.beginArray();
+			while (parser.hasNext())
+			{
+				results.add(decodeElement(parser));
+			}
+			parser.endArray();
+		} else
+		{
+			results.add(decodeElement(parser));
+		}
+		parser.endDocument();
+
+		if (results.isEmpty())
+		{
+			throw new IOException("Server returned empty JSON Array");
+		}
+		return results;
+	}
+
+	/**
+	 * Decode the answer to one request.
+	 * 
+	 * @param parser
+	 *            JSON stream positioned at the element
+	 * @return MetarData, MavData, or an Exception for an error
+	 * @throws IOException
+	 *             on read error, or when the JSON is invalid.
+	 */
+	static Object decodeElement(JsonPullParser parser) throws IOException
+	{
+		if (parser.peek() == JsonPullParser.Token.BEGIN_ARRAY)
+		{
+			// Errors come back wrapped in an array. Use the first element.
+			parser.beginArray();
+			Object result = new Exception("Server returned empty JSON Array");
+			if (parser.hasNext())
+			{
+				result = decodeElement(parser);
+			}
+			while (parser.hasNext())
+			{
+				parser.skipValue();
+			}
+			parser.endArray();
+			return result;
+		}
+
+		Object result = null;
+		parser.beginObject();
+		while (parser.hasNext())
+		{
+			String name = parser.nextName();
+			if (name.equals("metar"))
+			{
+				result = new MetarData(parser);
+			} else if (name.equals("mav"))
+			{
+				result = new MavData(parser);
+			} else if (name.equals("error"))
+			{
+				result = new Exception("Server returned error: "
+						+ parser.nextString());
+			} else
+			{
+				parser.skipValue();
+			}
+		}
+		parser.endObject();
+
+		if (result == null)
+		{
+			result = new Exception("Server returned unknown data");
+		}
+		return result;
+	}
+}
@@ -0,0 +1,948 @@
+package edu.umn.aerowx;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Where the screens get their weather data. The copy kept on the phone is
+ * shown straight away, and if newer data has come out since it was fetched
+ * it's refreshed from the server in the background (stale-while-revalidate).
+ * 
+ * On a field with one bar of signal that's the difference between a screen
+ * with last hour's METAR on it and an error dialog.
+ * 
+ * Decoded data is also kept in memory for the life of the process, so
+ * flipping between the current and forecast screens doesn't read or parse
+ * anything at all. The memory cache is a bounded LRU; MAV data counts for
+ * more than METAR data since it carries a couple of dozen periods.
+ * 
+ * With no network, nothing is sent. Kept copies are still shown, and the
+ * refreshes wait until the network comes back, when they all go out together.
+ * A waiting refresh is kept once per request, whoever asked for it. The
+ * listeners waiting for it are kept apart, and a screen drops its own with
+ * cancel() when it stops, so a closed screen isn't held on to.
+ * 
+ * Every METAR seen is also added to its station's history (see HistoryStore),
+ * for trend displays. The app's repository keeps the histories on the phone
+ * as well, written in the background.
+ * 
+ * With co-fetching on, refreshing one source for a station also fetches the
+ * other if it's out of date, in the same POST, so switching between the
+ * current and forecast screens never waits on the network.
+ */
+public class WeatherRepository
+{
+	/** Name of the cache directory, under the app's cache directory */
+	public static final String CACHE_DIRECTORY = "weather";
+
+	/** Name of the journal directory, under the app's cache directory */
+	public static final String JOURNAL_DIRECTORY = "journal";
+
+	/** Name of the history directory, under the app's cache directory */
+	public static final String HISTORY_DIRECTORY = "history";
+
+	/** Default size of the memory cache, in METAR data (or MAV periods) */
+	public static final int DEFAULT_MEMORY_SIZE = 200;
+
+	/** Most refreshes kept waiting for the network */
+	public static final int MAX_QUEUED = 32;
+
+	/** The repository the app uses */
+	private static WeatherRepository instance;
+
+	/** Data kept on the phone */
+	private final WeatherCache cache;
+
+	/** Data kept in memory, by request */
+	private final LruCache<WeatherRequest, WeatherCache.Entry> memory;
+
+	/** Longest data is used for, by source, on top of the issue schedule */
+	private final Map<String, Long> maxAges = new HashMap<String, Long>();
+
+	/** Recent observations, by station */
+	private final HistoryStore history = new HistoryStore();
+
+	/** Whether a refresh also fetches the station's other source */
+	private volatile boolean coFetch;
+
+	/** Whether the network is there, null to just try */
+	private ConnectivitySource connectivity;
+
+	/** Refreshes waiting for the network, oldest first */
+	private final Map<WeatherRequest, Queued<?>> queued = new LinkedHashMap<WeatherRequest, Queued<?>>();
+
+	/** Listeners waiting for the answer to a refresh that's waiting */
+	private final Map<WeatherRequest, List<Waiter<?>>> waiting = new HashMap<WeatherRequest, List<Waiter<?>>>();
+
+	/** Thread that reads and writes the cache, off the UI thread */
+	private final ExecutorService diskExecutor;
+
+	/** Delivers results on the UI thread */
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * Listener that's also told when the data it gets was fetched from the
+	 * server, and whether that's still current, so a screen showing a kept
+	 * copy can say how old it is.
+	 * 
+	 * @param <T>
+	 *            type of data delivered (MetarData or MavData)
+	 */
+	public static abstract class Listener<T> implements
+			Utils.ResponseListener<T>
+	{
+		/**
+		 * Called with data that's just been fetched.
+		 */
+		public void onResponse(T response)
+		{
+			onResponse(response, System.currentTimeMillis(), true);
+		}
+
+		/**
+		 * Called when there's data to show.
+		 * 
+		 * @param response
+		 *            the data
+		 * @param fetched
+		 *            when it was fetched from the server (milliseconds)
+		 * @param current
+		 *            false if newer data is out, and being asked for
+		 */
+		public abstract void onResponse(T response, long fetched,
+				boolean current);
+	}
+
+	/**
+	 * A refresh waiting for the network. Just the request, not who asked.
+	 */
+	private static class Queued<T>
+	{
+		final String baseUrl;
+
+		final Class<T> type;
+
+		Queued(String baseUrl, Class<T> type)
+		{
+			this.baseUrl = baseUrl;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * A listener waiting for a refresh that's waiting for the network.
+	 */
+	private static class Waiter<T>
+	{
+		final Utils.ResponseListener<T> listener;
+
+		final Class<T> type;
+
+		Waiter(Utils.ResponseListener<T> listener, Class<T> type)
+		{
+			this.listener = listener;
+			this.type = type;
+		}
+
+		void respond(Object data, long fetched, boolean current)
+		{
+			if (type.isInstance(data))
+			{
+				WeatherRepository.respond(listener, type.cast(data), fetched,
+						current);
+			}
+		}
+	}
+
+	/**
+	 * Hands the answer to a refresh that waited for the network to whoever
+	 * is still waiting for it.
+	 */
+	private class Waiters<T> extends Listener<T>
+	{
+		private final WeatherRequest request;
+
+		Waiters(WeatherRequest request)
+		{
+			this.request = request;
+		}
+
+		@Override
+		public void onResponse(T response, long fetched, boolean current)
+		{
+			for (Waiter<?> waiter : takeWaiting(request))
+			{
+				waiter.respond(response, fetched, current);
+			}
+		}
+
+		public void onError(Exception e)
+		{
+			if (e instanceof OfflineException)
+			{
+				// Gone again, and queued again; keep waiting.
+				return;
+			}
+			for (Waiter<?> waiter : takeWaiting(request))
+			{
+				waiter.listener.onError(e);
+			}
+		}
+	}
+
+	/**
+	 * Get the repository the app uses.
+	 * 
+	 * @param context
+	 *            any context of the app
+	 * @return the shared WeatherRepository
+	 */
+	public static synchronized WeatherRepository getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			File directory = new File(context.getApplicationContext()
+					.getCacheDir(), CACHE_DIRECTORY);
+			instance = new WeatherRepository(new WeatherCache(directory));
+
+			ConnectivitySource connectivity = new AndroidConnectivitySource(
+					context);
+			Utils.setConnectivity(connectivity);
+			instance.setConnectivity(connectivity);
+			instance.setCoFetch(true);
+
+			instance.openJournal(new File(context.getApplicationContext()
+					.getCacheDir(), JOURNAL_DIRECTORY));
+			instance.openHistory(new File(context.getApplicationContext()
+					.getCacheDir(), HISTORY_DIRECTORY));
+		}
+		return instance;
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param cache
+	 *            data kept on the phone
+	 */
+	public WeatherRepository(WeatherCache cache)
+	{
+		this(cache, DEFAULT_MEMORY_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param cache
+	 *            data kept on the phone
+	 * @param memorySize
+	 *            size of the memory cache, in METAR data (or MAV periods)
+	 */
+	public WeatherRepository(WeatherCache cache, int memorySize)
+	{
+		super();
+		this.cache = cache;
+		memory = new LruCache<WeatherRequest, WeatherCache.Entry>(memorySize)
+		{
+			@Override
+			protected int sizeOf(WeatherRequest key, WeatherCache.Entry value)
+			{
+				if (value.data instanceof MavData)
+				{
+					return 1 + ((MavData) value.data).getPeriodCount();
+				}
+				return 1;
+			}
+		};
+		diskExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "WeatherRepository");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Start recording every response in a journal. The journal is opened in
+	 * the background; responses before then aren't recorded.
+	 * 
+	 * @param directory
+	 *            directory to keep the journal in
+	 */
+	private void openJournal(final File directory)
+	{
+		diskExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					Utils.setJournal(new ResponseJournal(directory));
+				} catch (IOException e)
+				{
+					Log.i(WeatherRepository.class.toString(),
+							"can't open journal: " + e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Read back the observation history kept on the phone, and keep it
+	 * there from now on. It's read in the background.
+	 * 
+	 * @param directory
+	 *            directory to keep the history in
+	 */
+	public void openHistory(final File directory)
+	{
+		diskExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				history.load(directory);
+			}
+		});
+	}
+
+	/**
+	 * Get weather data.
+	 * 
+	 * If there's a copy in memory or on the phone the listener gets it right
+	 * away; from memory that's before request() returns. If that copy is out
+	 * of date (or there isn't one) the server is asked, and the listener gets
+	 * the answer too. So onResponse() may be called twice: first with the
+	 * kept copy, then with fresh data. A WeatherRepository.Listener is also
+	 * told when each was fetched.
+	 * 
+	 * onError() is only called when there's nothing at all to show. A failed
+	 * refresh of a kept copy is just logged.
+	 * 
+	 * With no network and nothing to show, onError() gets an OfflineException
+	 * straight away. The request still waits for the network, so onResponse()
+	 * may follow.
+	 * 
+	 * Call this on the UI thread.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param request
+	 *            what to ask for
+	 * @param type
+	 *            type of data expected back (MetarData or MavData)
+	 * @param listener
+	 *            called on the UI thread with the data, or the error.
+	 */
+	public <T> void request(final String baseUrl,
+			final WeatherRequest request, final Class<T> type,
+			final Utils.ResponseListener<T> listener)
+	{
+		WeatherCache.Entry entry = memory.get(request);
+		if (entry != null && type.isInstance(entry.data))
+		{
+			boolean fresh = isFresh(request, entry);
+			respond(listener, type.cast(entry.data), entry.fetched, fresh);
+			if (!fresh)
+			{
+				refresh(baseUrl, request, type, listener, true);
+			}
+			return;
+		}
+
+		diskExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				WeatherCache.Entry entry = cache.get(request);
+				boolean cached = entry != null && type.isInstance(entry.data);
+				if (cached)
+				{
+					memory.put(request, entry);
+					remember(entry.data);
+					boolean fresh = isFresh(request, entry);
+					deliver(listener, type.cast(entry.data), entry.fetched,
+							fresh);
+					if (fresh)
+					{
+						return;
+					}
+				}
+				if (coFetch)
+				{
+					// So coFetch() can decide from memory alone
+					load(companionOf(request));
+				}
+				refresh(baseUrl, request, type, listener, cached);
+			}
+		});
+	}
+
+	/**
+	 * Is there newer data out than what's kept for a request? This reads the
+	 * phone's storage, so don't call it on the UI thread.
+	 * 
+	 * @param request
+	 *            what to ask for
+	 * @return true if nothing is kept, or it's out of date
+	 */
+	public boolean needsRefresh(WeatherRequest request)
+	{
+		WeatherCache.Entry entry = memory.get(request);
+		if (entry == null)
+		{
+			entry = cache.get(request);
+			if (entry != null)
+			{
+				memory.put(request, entry);
+				remember(entry.data);
+			}
+		}
+		return entry == null || !isFresh(request, entry);
+	}
+
+	/**
+	 * Keep data fetched some other way than request(), in memory and on the
+	 * phone. This writes the phone's storage, so don't call it on the UI
+	 * thread.
+	 * 
+	 * @param request
+	 *            what was asked for
+	 * @param data
+	 *            MetarData or MavData
+	 * @param fetched
+	 *            when it was fetched from the server (milliseconds)
+	 */
+	public void keep(WeatherRequest request, Object data, long fetched)
+	{
+		memory.put(request, new WeatherCache.Entry(data, fetched));
+		remember(data);
+		cache.put(request, data, fetched);
+	}
+
+	/**
+	 * Get the recent observations of each station seen.
+	 * 
+	 * @return the history
+	 */
+	public HistoryStore getHistory()
+	{
+		return history;
+	}
+
+	/**
+	 * Set the longest data from a source is used before asking the server
+	 * again, even if the issue schedule says nothing newer is out yet.
+	 * 
+	 * @param source
+	 *            WeatherRequest.METAR or WeatherRequest.MAV
+	 * @param maxAge
+	 *            longest age (milliseconds), or a negative number to go by
+	 *            the issue schedule alone.
+	 */
+	public synchronized void setMaxAge(String source, long maxAge)
+	{
+		if (maxAge < 0)
+		{
+			maxAges.remove(source);
+		} else
+		{
+			maxAges.put(source, Long.valueOf(maxAge));
+		}
+	}
+
+	/**
+	 * Set whether refreshing one source for a station also fetches the other
+	 * (METAR with MAV, and MAV with METAR) in the same request, if what's
+	 * kept of it is out of date.
+	 * 
+	 * @param coFetch
+	 *            true to fetch both together
+	 */
+	public void setCoFetch(boolean coFetch)
+	{
+		this.coFetch = coFetch;
+	}
+
+	/**
+	 * Set what tells whether the network is there. Refreshes wait while it's
+	 * not, and go out when it comes back.
+	 * 
+	 * @param source
+	 *            source to use from now on, or null to just try requests
+	 */
+	public void setConnectivity(ConnectivitySource source)
+	{
+		synchronized (this)
+		{
+			connectivity = source;
+		}
+		if (source != null)
+		{
+			source.addListener(new ConnectivitySource.Listener()
+			{
+				public void onConnectivityChanged(boolean connected)
+				{
+					if (connected)
+					{
+						flush();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stop giving a listener the answers to refreshes that are waiting for
+	 * the network. Screens call this when they stop.
+	 * 
+	 * @param listener
+	 *            the listener, or null to do nothing
+	 */
+	public synchronized void cancel(Utils.ResponseListener<?> listener)
+	{
+		Iterator<List<Waiter<?>>> lists = waiting.values().iterator();
+		while (lists.hasNext())
+		{
+			List<Waiter<?>> waiters = lists.next();
+			Iterator<Waiter<?>> i = waiters.iterator();
+			while (i.hasNext())
+			{
+				if (i.next().listener == listener)
+				{
+					i.remove();
+				}
+			}
+			if (waiters.size() == 0)
+			{
+				lists.remove();
+			}
+		}
+	}
+
+	/**
+	 * Get the number of refreshes waiting for the network.
+	 * 
+	 * @return number waiting
+	 */
+	public synchronized int queuedCount()
+	{
+		return queued.size();
+	}
+
+	/**
+	 * Forget the data for a request, in memory and on the phone.
+	 * 
+	 * @param request
+	 *            what was asked for
+	 */
+	public void remove(final WeatherRequest request)
+	{
+		memory.remove(request);
+		diskExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				cache.remove(request);
+			}
+		});
+	}
+
+	/**
+	 * Drop everything kept in memory, when the system is short of it. The
+	 * copies on the phone are left alone.
+	 */
+	public void trimMemory()
+	{
+		memory.evictAll();
+	}
+
+	/**
+	 * Is kept data still good enough to use without asking the server?
+	 * 
+	 * @param request
+	 *            what was asked for
+	 * @param entry
+	 *            data kept for it
+	 * @return true if it's fresh
+	 */
+	private boolean isFresh(WeatherRequest request, WeatherCache.Entry entry)
+	{
+		long now = System.currentTimeMillis();
+		Long maxAge;
+		synchronized (this)
+		{
+			maxAge = maxAges.get(request.source);
+		}
+		if (maxAge != null && now - entry.fetched >= maxAge.longValue())
+		{
+			return false;
+		}
+		return entry.isFresh(request.source, now);
+	}
+
+	/**
+	 * Ask the server for new data, and keep it.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param request
+	 *            what to ask for
+	 * @param type
+	 *            type of data expected back (MetarData or MavData)
+	 * @param listener
+	 *            called on the UI thread with the data, or the error.
+	 * @param cached
+	 *            true if the listener already has a kept copy
+	 */
+	private <T> void refresh(final String baseUrl,
+			final WeatherRequest request, final Class<T> type,
+			final Utils.ResponseListener<T> listener, final boolean cached)
+	{
+		if (!isConnected())
+		{
+			// Don't wait for a timeout we know is coming.
+			queue(baseUrl, request, type, listener);
+			if (!cached)
+			{
+				handler.post(new Runnable()
+				{
+					public void run()
+					{
+						listener.onError(new OfflineException());
+					}
+				});
+			}
+			return;
+		}
+
+		if (coFetch)
+		{
+			coFetch(baseUrl, request);
+		}
+		Utils.requestWeather(baseUrl, request, type,
+				new Utils.ResponseListener<T>()
+				{
+					public void onResponse(final T response)
+					{
+						respond(listener, response, store(request, response),
+								true);
+					}
+
+					public void onError(Exception e)
+					{
+						if (cached)
+						{
+							Log.i(WeatherRepository.class.toString(),
+									"refresh of " + request + " failed: " + e);
+						} else
+						{
+							listener.onError(e);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Get the other source for a request's station: the MAV for a METAR, and
+	 * the METAR for a MAV.
+	 * 
+	 * @param request
+	 *            what's being refreshed
+	 * @return the other request, or null if there isn't one
+	 */
+	private static WeatherRequest companionOf(WeatherRequest request)
+	{
+		if (request.time.length() > 0)
+		{
+			return null;
+		}
+		if (WeatherRequest.METAR.equals(request.source))
+		{
+			return new WeatherRequest(WeatherRequest.MAV, request.location);
+		} else if (WeatherRequest.MAV.equals(request.source))
+		{
+			return new WeatherRequest(WeatherRequest.METAR, request.location);
+		}
+		return null;
+	}
+
+	/**
+	 * Read what's kept on the phone for a request into memory, if it isn't
+	 * there already. This reads the phone's storage, so don't call it on the
+	 * UI thread.
+	 * 
+	 * @param request
+	 *            what was asked for, or null to do nothing
+	 */
+	private void load(WeatherRequest request)
+	{
+		if (request != null && memory.get(request) == null)
+		{
+			WeatherCache.Entry entry = cache.get(request);
+			if (entry != null)
+			{
+				memory.put(request, entry);
+				remember(entry.data);
+			}
+		}
+	}
+
+	/**
+	 * Fetch the other source for a request's station along with it, if what's
+	 * kept of it in memory is out of date (or there's none). It's decided and
+	 * asked for straight away, next to the request itself, so both are in
+	 * RequestBatcher's window and go out in one POST. Nothing is read from
+	 * the phone here: request() has already put any kept copy in memory.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param request
+	 *            what's being refreshed
+	 */
+	private void coFetch(String baseUrl, WeatherRequest request)
+	{
+		final WeatherRequest companion = companionOf(request);
+		if (companion == null)
+		{
+			return;
+		}
+		final Class<?> type = WeatherRequest.METAR.equals(companion.source)
+				? MetarData.class : MavData.class;
+		WeatherCache.Entry entry = memory.get(companion);
+		if (entry != null && isFresh(companion, entry))
+		{
+			return;
+		}
+
+		Utils.requestWeather(baseUrl, companion, Object.class,
+				new Utils.ResponseListener<Object>()
+				{
+					public void onResponse(Object response)
+					{
+						if (type.isInstance(response))
+						{
+							store(companion, response);
+						} else
+						{
+							onError(new Exception(
+									"Server returned unexpected data: "
+											+ response));
+						}
+					}
+
+					public void onError(Exception e)
+					{
+						Log.i(WeatherRepository.class.toString(), "co-fetch of "
+								+ companion + " failed: " + e);
+					}
+				});
+	}
+
+	/**
+	 * Keep data just fetched, in memory now and on the phone in the
+	 * background.
+	 * 
+	 * @param request
+	 *            what was asked for
+	 * @param data
+	 *            MetarData or MavData
+	 * @return when it was fetched (milliseconds)
+	 */
+	private long store(final WeatherRequest request, final Object data)
+	{
+		final long fetched = System.currentTimeMillis();
+		memory.put(request, new WeatherCache.Entry(data, fetched));
+		remember(data);
+		diskExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				cache.put(request, data, fetched);
+			}
+		});
+		return fetched;
+	}
+
+	/**
+	 * Add an observation to the history, and write the station's history
+	 * out in the background if it's new.
+	 * 
+	 * @param data
+	 *            data from the cache or server; anything but MetarData is
+	 *            ignored
+	 */
+	private void remember(Object data)
+	{
+		if (data instanceof MetarData && history.add((MetarData) data))
+		{
+			final String wxid = ((MetarData) data).wxid;
+			diskExecutor.execute(new Runnable()
+			{
+				public void run()
+				{
+					history.save(wxid);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Can the network be used right now?
+	 * 
+	 * @return true if it can, or if there's no way to tell
+	 */
+	private boolean isConnected()
+	{
+		ConnectivitySource source;
+		synchronized (this)
+		{
+			source = connectivity;
+		}
+		return source == null || source.isConnected();
+	}
+
+	/**
+	 * Keep a refresh until the network comes back. A request already waiting
+	 * isn't added again.
+	 * 
+	 * @param baseUrl
+	 *            URL of server
+	 * @param request
+	 *            what to ask for
+	 * @param type
+	 *            type of data expected back (MetarData or MavData)
+	 * @param listener
+	 *            to be given the answer, until it's cancelled
+	 */
+	private <T> void queue(String baseUrl, WeatherRequest request,
+			Class<T> type, Utils.ResponseListener<T> listener)
+	{
+		synchronized (this)
+		{
+			if (!queued.containsKey(request) && queued.size() >= MAX_QUEUED)
+			{
+				WeatherRequest oldest = queued.keySet().iterator().next();
+				queued.remove(oldest);
+				waiting.remove(oldest);
+			}
+			queued.put(request, new Queued<T>(baseUrl, type));
+
+			if (!(listener instanceof Waiters))
+			{
+				List<Waiter<?>> waiters = waiting.get(request);
+				if (waiters == null)
+				{
+					waiters = new ArrayList<Waiter<?>>();
+					waiting.put(request, waiters);
+				}
+				boolean found = false;
+				for (Waiter<?> waiter : waiters)
+				{
+					found |= waiter.listener == listener;
+				}
+				if (!found)
+				{
+					waiters.add(new Waiter<T>(listener, type));
+				}
+			}
+		}
+		// The network may have come back while we weren't looking.
+		if (isConnected())
+		{
+			flush();
+		}
+	}
+
+	/**
+	 * Send all the refreshes that were waiting for the network. They're sent
+	 * within the RequestBatcher's window, so they go out in one POST (or as
+	 * few as it takes), and identical ones are merged by SingleFlight.
+	 */
+	private void flush()
+	{
+		Map<WeatherRequest, Queued<?>> refreshes;
+		synchronized (this)
+		{
+			refreshes = new LinkedHashMap<WeatherRequest, Queued<?>>(queued);
+			queued.clear();
+		}
+		if (refreshes.size() > 0)
+		{
+			Log.i(WeatherRepository.class.toString(), "network back, sending "
+					+ refreshes.size() + " refreshes");
+		}
+		for (Map.Entry<WeatherRequest, Queued<?>> refresh : refreshes
+				.entrySet())
+		{
+			send(refresh.getKey(), refresh.getValue());
+		}
+	}
+
+	/**
+	 * Send a refresh that waited for the network.
+	 */
+	private <T> void send(WeatherRequest request, Queued<T> refresh)
+	{
+		refresh(refresh.baseUrl, request, refresh.type, new Waiters<T>(
+				request), memory.get(request) != null);
+	}
+
+	/**
+	 * Take the listeners waiting for a refresh.
+	 * 
+	 * @return them, perhaps none
+	 */
+	private synchronized List<Waiter<?>> takeWaiting(WeatherRequest request)
+	{
+		List<Waiter<?>> waiters = waiting.remove(request);
+		return (waiters == null) ? new ArrayList<Waiter<?>>() : waiters;
+	}
+
+	/**
+	 * Hand data to a listener on the UI thread.
+	 */
+	private <T> void deliver(final Utils.ResponseListener<T> listener,
+			final T data, final long fetched, final boolean current)
+	{
+		handler.post(new Runnable()
+		{
+			public void run()
+			{
+				respond(listener, data, fetched, current);
+			}
+		});
+	}
+
+	/**
+	 * Hand data to a listener, with when it was fetched if it wants that.
+	 */
+	private static <T> void respond(Utils.ResponseListener<T> listener,
+			T data, long fetched, boolean current)
+	{
+		if (listener instanceof Listener)
+		{
+			((Listener<T>) listener).onResponse(data, fetched, current);
+		} else
+		{
+			listener.onResponse(data);
+		}
+	}
+}
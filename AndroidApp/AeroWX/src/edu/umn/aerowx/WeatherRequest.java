@@ -0,0 +1,143 @@
+package edu.umn.aerowx;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * One request to the weather server: which product (source) for which
+ * station (location) at what time. An empty time means the latest data.
+ */
+public class WeatherRequest
+{
+	/** Source for current observations */
+	public static final String METAR = "metar";
+
+	/** Source for GFS MOS MAV forecasts */
+	public static final String MAV = "mav";
+
+	/** Weather product, METAR or MAV */
+	public final String source;
+
+	/** Weather Station ID (4 letters) */
+	public final String location;
+
+	/** Time of data wanted, empty for the latest */
+	public final String time;
+
+	/**
+	 * Constructor for a request for the latest data.
+	 * 
+	 * @param source
+	 *            METAR or MAV
+	 * @param location
+	 *            weather station ID
+	 */
+	public WeatherRequest(String source, String location)
+	{
+		this(source, location, "");
+	}
+
+	/**
+	 * Constructor for a request for data at a given time.
+	 * 
+	 * @param source
+	 *            METAR or MAV
+	 * @param location
+	 *            weather station ID
+	 * @param time
+	 *            time of data wanted, empty for the latest
+	 */
+	public WeatherRequest(String source, String location, String time)
+	{
+		super();
+		this.source = source;
+		this.location = location;
+		this.time = (time == null) ? "" : time;
+	}
+
+	/**
+	 * Serialize the request the way the server wants it.
+	 * 
+	 * @return JSONObject containing all the stuff.
+	 * 
+	 * @throws JSONException
+	 *             When JSON barfs on bad data.
+	 */
+	public JSONObject toJSONObject() throws JSONException
+	{
+		JSONObject object = new JSONObject();
+		object.put("location", location);
+		object.put("time", time);
+		object.put("source", source);
+		return object;
+	}
+
+	/** Quintessential toString method */
+	@Override
+	public String toString()
+	{
+		return "WeatherRequest [source=" + source + ", location=" + location
+				+ ", time=" + time + "]";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = 1;
+		result = prime * result
+				+ ((location == null) ? 0 : location.hashCode());
+		result = prime * result + ((source == null) ? 0 : source.hashCode());
+		result = prime * result + time.hashCode();
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+		{
+			return true;
+		}
+		if (obj == null)
+		{
+			return false;
+		}
+		if (getClass() != obj.getClass())
+		{
+			return false;
+		}
+		WeatherRequest other = (WeatherRequest) obj;
+		if (location == null)
+		{
+			if (other.location != null)
+			{
+				return false;
+			}
+		} else if (!location.equals(other.location))
+		{
+			return false;
+		}
+		if (source == null)
+		{
+			if (other.source != null)
+			{
+				return false;
+			}
+		} else if (!source.equals(other.source))
+		{
+			return false;
+		}
+		return time.equals(other.time);
+	}
+}
@@ -0,0 +1,297 @@
+package edu.umn.aerowx;
+
+/**
+ * Reads the times the weather server sends, straight into milliseconds since
+ * the epoch:
+ * 
+ * <pre>
+ * METAR  "Fri Oct 18 09:53:00 2013" (Python's ctime(), UTC)
+ * MAV    "OCT 18" and "12" (a period's date and hour, UTC, no year)
+ * </pre>
+ * 
+ * The formats are fixed, so this is plain arithmetic on the characters: no
+ * SimpleDateFormat, Calendar or TimeZone, and nothing allocated. There's no
+ * shared state, so it's safe from any thread (a shared SimpleDateFormat
+ * isn't).
+ */
+public class WeatherTime
+{
+	/** What's returned for text that isn't a time */
+	public static final long INVALID = Long.MIN_VALUE;
+
+	private static final long MINUTE = 60 * 1000;
+
+	private static final long HOUR = 60 * MINUTE;
+
+	private static final long DAY = 24 * HOUR;
+
+	/** Days from 0000-03-01 to 1970-01-01 (see daysFromCivil()) */
+	private static final int EPOCH_DAYS = 719468;
+
+	/** Days in 400 years of the Gregorian calendar */
+	private static final int ERA_DAYS = 146097;
+
+	/**
+	 * Read a METAR time, like "Fri Oct 18 09:53:00 2013". The day of the
+	 * week is skipped, and the day of the month may be padded with a space.
+	 * 
+	 * @param text
+	 *            time from the server, or null
+	 * @return milliseconds, or INVALID
+	 */
+	public static long parseMetar(String text)
+	{
+		if (text == null)
+		{
+			return INVALID;
+		}
+		int length = text.length();
+
+		// Day of the week
+		int i = skipLetters(text, 0);
+		i = skipSpaces(text, i);
+
+		int month = parseMonth(text, i);
+		i = skipSpaces(text, skipLetters(text, i));
+
+		int end = skipDigits(text, i);
+		int day = parseNumber(text, i, end);
+		i = skipSpaces(text, end);
+
+		end = skipDigits(text, i);
+		int hour = parseNumber(text, i, end);
+		if (end >= length || text.charAt(end) != ':')
+		{
+			return INVALID;
+		}
+		i = end + 1;
+		end = skipDigits(text, i);
+		int minute = parseNumber(text, i, end);
+		int second = 0;
+		if (end < length && text.charAt(end) == ':')
+		{
+			i = end + 1;
+			end = skipDigits(text, i);
+			second = parseNumber(text, i, end);
+		}
+		i = skipSpaces(text, end);
+
+		end = skipDigits(text, i);
+		int year = parseNumber(text, i, end);
+		if (end != length || year < 0 || second < 0 || second > 59)
+		{
+			return INVALID;
+		}
+		return toMillis(year, month, day, hour, minute, second);
+	}
+
+	/**
+	 * Read a MAV period's time, like "OCT 18" and "12". The MAV doesn't give
+	 * the year, so it's the one that puts the time nearest to now: a
+	 * forecast made on December 31st runs into January.
+	 * 
+	 * @param date
+	 *            month and day from the server, or null
+	 * @param hour
+	 *            hour from the server, or null
+	 * @param now
+	 *            time the forecast was read; callers reading many periods
+	 *            look it up once
+	 * @return milliseconds, or INVALID
+	 */
+	public static long parseMav(String date, String hour, long now)
+	{
+		if (date == null || hour == null)
+		{
+			return INVALID;
+		}
+		int month = parseMonth(date, 0);
+		int i = skipSpaces(date, skipLetters(date, 0));
+		int end = skipDigits(date, i);
+		int day = parseNumber(date, i, end);
+		if (end != date.length())
+		{
+			return INVALID;
+		}
+
+		end = skipDigits(hour, 0);
+		int hours = parseNumber(hour, 0, end);
+		if (end != hour.length())
+		{
+			return INVALID;
+		}
+
+		int year = yearOf(now);
+		long best = INVALID;
+		for (int y = year - 1; y <= year + 1; ++y)
+		{
+			// INVALID for February 29th in the years either side
+			long time = toMillis(y, month, day, hours, 0, 0);
+			if (time != INVALID
+					&& (best == INVALID || Math.abs(time - now) < Math
+							.abs(best - now)))
+			{
+				best = time;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Find the year (UTC) a time is in.
+	 * 
+	 * @param millis
+	 *            milliseconds since the epoch
+	 * @return the year
+	 */
+	public static int yearOf(long millis)
+	{
+		long days = millis / DAY;
+		if (millis % DAY < 0)
+		{
+			--days;
+		}
+		// See Howard Hinnant's civil_from_days(); years start on March 1st
+		long z = days + EPOCH_DAYS;
+		long era = ((z >= 0) ? z : z - (ERA_DAYS - 1)) / ERA_DAYS;
+		long dayOfEra = z - era * ERA_DAYS;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra
+				/ (ERA_DAYS - 1)) / 365;
+		long dayOfYear = dayOfEra
+				- (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long marchMonth = (5 * dayOfYear + 2) / 153;
+		long year = yearOfEra + era * 400;
+		return (int) ((marchMonth >= 10) ? year + 1 : year);
+	}
+
+	/**
+	 * Put a UTC date and time together.
+	 * 
+	 * @return milliseconds, or INVALID if any part is out of range
+	 */
+	private static long toMillis(int year, int month, int day, int hour,
+			int minute, int second)
+	{
+		if (month < 1 || day < 1 || day > daysInMonth(year, month)
+				|| hour < 0 || hour > 23 || minute < 0 || minute > 59
+				|| second < 0)
+		{
+			return INVALID;
+		}
+		return daysFromCivil(year, month, day) * DAY + hour * HOUR + minute
+				* MINUTE + second * 1000L;
+	}
+
+	/**
+	 * Count days from 1970-01-01 to a date (Howard Hinnant's
+	 * days_from_civil()). Counting years from March puts the leap day last.
+	 */
+	private static long daysFromCivil(int year, int month, int day)
+	{
+		int y = (month <= 2) ? year - 1 : year;
+		int era = ((y >= 0) ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * ((month > 2) ? month - 3 : month + 9) + 2)
+				/ 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return (long) era * ERA_DAYS + dayOfEra - EPOCH_DAYS;
+	}
+
+	private static int daysInMonth(int year, int month)
+	{
+		switch (month)
+		{
+		case 2:
+			boolean leap = (year % 4 == 0 && year % 100 != 0)
+					|| year % 400 == 0;
+			return leap ? 29 : 28;
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		}
+		return 31;
+	}
+
+	/**
+	 * Read a month from the first three letters of its name, in any case
+	 * ("Oct", "OCT", "SEPT").
+	 * 
+	 * @return 1 to 12, or 0 if it isn't a month
+	 */
+	private static int parseMonth(String text, int start)
+	{
+		if (start + 3 > text.length())
+		{
+			return 0;
+		}
+		int key = (Character.toLowerCase(text.charAt(start)) << 16)
+				| (Character.toLowerCase(text.charAt(start + 1)) << 8)
+				| Character.toLowerCase(text.charAt(start + 2));
+		switch (key)
+		{
+		case ('j' << 16) | ('a' << 8) | 'n': return 1;
+		case ('f' << 16) | ('e' << 8) | 'b': return 2;
+		case ('m' << 16) | ('a' << 8) | 'r': return 3;
+		case ('a' << 16) | ('p' << 8) | 'r': return 4;
+		case ('m' << 16) | ('a' << 8) | 'y': return 5;
+		case ('j' << 16) | ('u' << 8) | 'n': return 6;
+		case ('j' << 16) | ('u' << 8) | 'l': return 7;
+		case ('a' << 16) | ('u' << 8) | 'g': return 8;
+		case ('s' << 16) | ('e' << 8) | 'p': return 9;
+		case ('o' << 16) | ('c' << 8) | 't': return 10;
+		case ('n' << 16) | ('o' << 8) | 'v': return 11;
+		case ('d' << 16) | ('e' << 8) | 'c': return 12;
+		}
+		return 0;
+	}
+
+	/**
+	 * Read the digits from start to end.
+	 * 
+	 * @return the number, or -1 if there are none (or too many)
+	 */
+	private static int parseNumber(String text, int start, int end)
+	{
+		if (end == start || end - start > 4)
+		{
+			return -1;
+		}
+		int value = 0;
+		for (int i = start; i < end; ++i)
+		{
+			value = value * 10 + text.charAt(i) - '0';
+		}
+		return value;
+	}
+
+	private static int skipLetters(String text, int i)
+	{
+		while (i < text.length() && Character.isLetter(text.charAt(i)))
+		{
+			++i;
+		}
+		return i;
+	}
+
+	private static int skipDigits(String text, int i)
+	{
+		while (i < text.length() && text.charAt(i) >= '0'
+				&& text.charAt(i) <= '9')
+		{
+			++i;
+		}
+		return i;
+	}
+
+	private static int skipSpaces(String text, int i)
+	{
+		while (i < text.length() && text.charAt(i) == ' ')
+		{
+			++i;
+		}
+		return i;
+	}
+}
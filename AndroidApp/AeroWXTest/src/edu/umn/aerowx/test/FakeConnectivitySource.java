@@ -0,0 +1,62 @@
+package edu.umn.aerowx.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.umn.aerowx.ConnectivitySource;
+
+/**
+ * Connectivity the test switches on and off itself, so offline behaviour can
+ * be checked without touching the radio. Listeners are called on the thread
+ * that calls setConnected().
+ */
+public class FakeConnectivitySource implements ConnectivitySource
+{
+	private final List<Listener> listeners = new ArrayList<Listener>();
+
+	private boolean connected;
+
+	public FakeConnectivitySource(boolean connected)
+	{
+		this.connected = connected;
+	}
+
+	public synchronized boolean isConnected()
+	{
+		return connected;
+	}
+
+	public synchronized void addListener(Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	public synchronized void removeListener(Listener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Bring the network up or take it down, and tell the listeners.
+	 * 
+	 * @param connected
+	 *            true for up
+	 */
+	public void setConnected(boolean connected)
+	{
+		List<Listener> toTell;
+		synchronized (this)
+		{
+			if (this.connected == connected)
+			{
+				return;
+			}
+			this.connected = connected;
+			toTell = new ArrayList<Listener>(listeners);
+		}
+		for (Listener listener : toTell)
+		{
+			listener.onConnectivityChanged(connected);
+		}
+	}
+}
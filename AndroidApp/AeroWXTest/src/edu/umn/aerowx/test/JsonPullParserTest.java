@@ -0,0 +1,334 @@
+package edu.umn.aerowx.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+import edu.umn.aerowx.BufferPool;
+import edu.umn.aerowx.JsonPullParser;
+
+public class JsonPullParserTest extends TestCase
+{
+	/**
+	 * Stream that hands out at most a few bytes per read, to split UTF-8
+	 * sequences across reads.
+	 */
+	private static class TrickleInputStream extends ByteArrayInputStream
+	{
+		private final int chunk;
+
+		TrickleInputStream(byte bytes[], int chunk)
+		{
+			super(bytes);
+			this.chunk = chunk;
+		}
+
+		@Override
+		public synchronized int read(byte b[], int off, int len)
+		{
+			return super.read(b, off, Math.min(len, chunk));
+		}
+	}
+
+	/**
+	 * Read the only string of a one element array.
+	 */
+	private static String readOnlyString(JsonPullParser parser)
+			throws IOException
+	{
+		parser.beginArray();
+		String value = parser.nextString();
+		parser.endArray();
+		assertEquals(JsonPullParser.Token.END_DOCUMENT, parser.peek());
+		parser.close();
+		return value;
+	}
+
+	/**
+	 * Test that UTF-8 from a stream decodes the same as the JDK decodes it,
+	 * however the bytes are split up.
+	 */
+	public void testUtf8() throws IOException
+	{
+		// ASCII, Latin-1, three byte, and a supplementary character
+		String text = "KMSP 10\u00b0C \u2192 caf\u00e9 \ud83c\udf27 end";
+		byte bytes[] = ("[\"" + text + "\"]").getBytes("UTF-8");
+
+		for (int chunk = 1; chunk <= 8; ++chunk)
+		{
+			InputStream in = new TrickleInputStream(bytes, chunk);
+			assertEquals("chunk " + chunk, text,
+					readOnlyString(new JsonPullParser(in)));
+		}
+	}
+
+	/**
+	 * Test a string longer than a buffer, with multibyte characters across
+	 * the buffer boundary.
+	 */
+	public void testLongString() throws IOException
+	{
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < BufferPool.BUFFER_SIZE * 3)
+		{
+			builder.append("abc\u00e9\u2192\ud83c\udf27");
+		}
+		String text = builder.toString();
+		byte bytes[] = ("[\"" + text + "\"]").getBytes("UTF-8");
+
+		assertEquals(text, readOnlyString(new JsonPullParser(
+				new ByteArrayInputStream(bytes))));
+		assertEquals(text, readOnlyString(new JsonPullParser(
+				new StringReader("[\"" + text + "\"]"))));
+	}
+
+	/**
+	 * Test that bytes that aren't UTF-8 become replacement characters.
+	 */
+	public void testInvalidUtf8() throws IOException
+	{
+		byte bytes[] = { '[', '"', 'a', (byte) 0x80, 'b', (byte) 0xc3, 'c',
+				(byte) 0xc0, (byte) 0x80, '"', ']' };
+		String value = readOnlyString(new JsonPullParser(
+				new ByteArrayInputStream(bytes)));
+		assertEquals("a\ufffdb\ufffdc\ufffd\ufffd", value);
+	}
+
+	/**
+	 * Test that closing the parser hands its buffers back for reuse.
+	 */
+	public void testBuffersRecycled() throws IOException
+	{
+		BufferPool pool = BufferPool.getInstance();
+		for (int i = 0; i < 10; ++i)
+		{
+			JsonPullParser parser = new JsonPullParser(
+					new ByteArrayInputStream("[\"x\"]".getBytes("UTF-8")));
+			readOnlyString(parser);
+		}
+		assertTrue(pool.size() >= 2);
+		assertTrue(pool.size() <= 2 * BufferPool.MAX_POOLED);
+	}
+
+	/**
+	 * Test that input cut short anywhere is an EOFException, while
+	 * malformed input is a plain IOException.
+	 */
+	public void testCutShort() throws IOException
+	{
+		String text = "{\"a\": [\"x\\n\", 1], \"b\": \"y\"}";
+		for (int length = 0; length < text.length(); ++length)
+		{
+			JsonPullParser parser = new JsonPullParser(new StringReader(
+					text.substring(0, length)));
+			try
+			{
+				parser.skipValue();
+				fail("expected EOFException at " + length);
+			} catch (EOFException e)
+			{
+				// expected
+			}
+			parser.close();
+		}
+
+		JsonPullParser parser = new JsonPullParser(new StringReader(
+				"[\"x\" \"y\"]"));
+		try
+		{
+			parser.skipValue();
+			fail("expected IOException");
+		} catch (EOFException e)
+		{
+			fail("not cut short");
+		} catch (IOException e)
+		{
+			// expected
+		}
+		parser.close();
+	}
+
+	/**
+	 * Make a parser for some JSON text.
+	 */
+	private static JsonPullParser parser(String text)
+	{
+		return new JsonPullParser(new StringReader(text));
+	}
+
+	/**
+	 * Check that reading the only string of the text fails.
+	 */
+	private static void assertMalformed(String text)
+	{
+		JsonPullParser parser = parser(text);
+		try
+		{
+			readOnlyString(parser);
+			fail("expected IOException for " + text);
+		} catch (IOException e)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Test string escapes, including \\u sequences and surrogate pairs.
+	 */
+	public void testEscapes() throws IOException
+	{
+		assertEquals("a\"b\\c/d\b\f\n\r\te",
+				readOnlyString(parser("[\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\te\"]")));
+		assertEquals("\u00b0C \u2192 \ud83c\udf27",
+				readOnlyString(parser("[\"\\u00b0C \\u2192 \\ud83c\\udf27\"]")));
+		assertEquals("\u00e9\u00c9",
+				readOnlyString(parser("[\"\\u00e9\\u00C9\"]")));
+		assertEquals("", readOnlyString(parser("[\"\"]")));
+
+		assertMalformed("[\"\\u00g0\"]");
+		assertMalformed("[\"\\u00\"]");
+	}
+
+	/**
+	 * Test reading nested objects and arrays.
+	 */
+	public void testNesting() throws IOException
+	{
+		JsonPullParser parser = parser(
+				"{\"a\": [[], {}, [1, [\"x\"]]], \"b\": {\"c\": {\"d\": null}}}");
+		parser.beginObject();
+		assertEquals("a", parser.nextName());
+		parser.beginArray();
+		parser.beginArray();
+		assertFalse(parser.hasNext());
+		parser.endArray();
+		parser.beginObject();
+		assertFalse(parser.hasNext());
+		parser.endObject();
+		parser.beginArray();
+		assertEquals(JsonPullParser.Token.NUMBER, parser.peek());
+		assertEquals("1", parser.nextString());
+		parser.beginArray();
+		assertEquals("x", parser.nextString());
+		parser.endArray();
+		parser.endArray();
+		assertFalse(parser.hasNext());
+		parser.endArray();
+		assertEquals("b", parser.nextName());
+		parser.beginObject();
+		assertEquals("c", parser.nextName());
+		parser.beginObject();
+		assertEquals("d", parser.nextName());
+		assertNull(parser.nextString());
+		parser.endObject();
+		parser.endObject();
+		parser.endObject();
+		parser.endDocument();
+		parser.close();
+	}
+
+	/**
+	 * Test that skipValue() skips whole values, nested or not, and leaves the
+	 * parser at whatever follows them.
+	 */
+	public void testSkipValue() throws IOException
+	{
+		JsonPullParser parser = parser("[1, \"a\\\"]\", {\"b\": [{}, [2]], "
+				+ "\"c\": {\"d\": \"}\"}}, [[[]]], true, null, \"last\"]");
+		parser.beginArray();
+		for (int i = 0; i < 6; ++i)
+		{
+			parser.skipValue();
+		}
+		assertEquals("last", parser.nextString());
+		parser.endArray();
+		parser.endDocument();
+		parser.close();
+
+		// Skipping part way through an object
+		parser = parser("{\"a\": {\"x\": [1, 2]}, \"b\": 3}");
+		parser.beginObject();
+		assertEquals("a", parser.nextName());
+		parser.skipValue();
+		assertEquals("b", parser.nextName());
+		assertEquals("3", parser.nextString());
+		parser.endObject();
+		parser.endDocument();
+		parser.close();
+	}
+
+	/**
+	 * Test that only JSON numbers are taken as numbers.
+	 */
+	public void testNumbers() throws IOException
+	{
+		String numbers[] = { "0", "-0", "7", "-30", "1.5", "-0.25", "1e5",
+				"1E+5", "2.5e-3" };
+		for (String number : numbers)
+		{
+			JsonPullParser parser = parser("[" + number + "]");
+			parser.beginArray();
+			assertEquals(number, JsonPullParser.Token.NUMBER, parser.peek());
+			assertEquals(number, parser.nextString());
+			parser.endArray();
+			parser.endDocument();
+			parser.close();
+		}
+
+		String malformed[] = { "01", "-", "1.", ".5", "1e", "1e+", "+1",
+				"1-2", "0x10", "1.2.3", "12abc", "NaN", "nul", "True" };
+		for (String text : malformed)
+		{
+			assertMalformed("[" + text + "]");
+		}
+	}
+
+	/**
+	 * Test that anything after the top-level value is rejected.
+	 */
+	public void testEndDocument() throws IOException
+	{
+		JsonPullParser parser = parser(" [\"x\"] \r\n");
+		parser.beginArray();
+		parser.nextString();
+		parser.endArray();
+		parser.endDocument();
+		parser.close();
+
+		String trailing[] = { "[\"x\"] ]", "[\"x\"] [\"y\"]", "[\"x\"],",
+				"[\"x\"] garbage" };
+		for (String text : trailing)
+		{
+			parser = parser(text);
+			parser.beginArray();
+			parser.nextString();
+			parser.endArray();
+			try
+			{
+				parser.endDocument();
+				fail("expected IOException for " + text);
+			} catch (IOException e)
+			{
+				// expected
+			}
+			parser.close();
+		}
+
+		// Not finished yet
+		parser = parser("[\"x\", \"y\"]");
+		parser.beginArray();
+		parser.nextString();
+		try
+		{
+			parser.endDocument();
+			fail("expected IOException");
+		} catch (IOException e)
+		{
+			// expected
+		}
+		parser.close();
+	}
+}
@@ -1,23 +1,57 @@
 package edu.umn.aerowx.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import edu.umn.aerowx.JsonPullParser;
 import edu.umn.aerowx.MavData;
 import edu.umn.aerowx.MetarActivity;
+import edu.umn.aerowx.WeatherCodec;
+import edu.umn.aerowx.WeatherDecoder;
 
 public class MavDataTest extends
 		ActivityInstrumentationTestCase2<MetarActivity>
 {
 
+	private static final String PERIOD = "{\"date\": \"OCT 18\", \"hour\": \"12\", "
+			+ "\"temp\": \"45\", \"dewpoint\": \" 40\", "
+			+ "\"cover\": \"scattered > 2 to 4 octas\", "
+			+ "\"wind\": {\"direction\": \"27\", \"speed\": \"10\", "
+			+ "\"gust\": \"None\"}, \"pop6\": \"5\", \"pop12\": \"None\", "
+			+ "\"qpf12\": \"None\", \"thund6\": \"2\", \"thund12\": \"None\", "
+			+ "\"popz\": \"0\", \"pops\": \"0\", \"type\": \"None\", "
+			+ "\"snow\": \"None\", \"visibility\": \"3 - 5 miles\", "
+			+ "\"obscurity\": \"none\", \"ceiling\": \"2,000 - 3,000 feet\"}";
+
 	public MavDataTest()
 	{
 		super(MetarActivity.class);
 	}
 
+	/**
+	 * Make a MAV message with some number of periods.
+	 */
+	private static String mav(int periods)
+	{
+		StringBuilder builder = new StringBuilder(
+				"{\"wxid\": \"KROS\", \"time\": \"10/18/2013  0600 UTC\", "
+						+ "\"high\": \"50\", \"low\": \"30\", \"periods\": [");
+		for (int i = 0; i < periods; ++i)
+		{
+			builder.append((i == 0) ? "" : ", ").append(PERIOD);
+		}
+		return builder.append("]}").toString();
+	}
+
 	/**
 	 * Test conversion of minimal GFSMOSMAVData.
 	 * 
@@ -35,26 +69,22 @@ public class MavDataTest extends
 
 		for (int i = 0; i < 4; ++i)
 		{
-			gfsMosMavData.periods[i]=gfsMosMavData.new Period();
-			gfsMosMavData.periods[i].time = new Date();
-			gfsMosMavData.periods[i].temp = "27";
-			gfsMosMavData.periods[i].dewpoint = "27";
+			gfsMosMavData.periods[i]=new MavData.Period();
+			gfsMosMavData.periods[i].time = new Date().getTime();
+			gfsMosMavData.periods[i].temp = 27;
+			gfsMosMavData.periods[i].dewpoint = -27;
 			gfsMosMavData.periods[i].cover = MavData.Cover.BROKEN;
-			gfsMosMavData.periods[i].wind.direction = "S";
-			gfsMosMavData.periods[i].wind.speed = "-20";
-			gfsMosMavData.periods[i].pop6 = "";
-			gfsMosMavData.periods[i].pop12 = "";
-			gfsMosMavData.periods[i].qpf6 = "";
-			gfsMosMavData.periods[i].qpf12 = "";
-			gfsMosMavData.periods[i].thund6 = "";
-			gfsMosMavData.periods[i].thund12 = "";
-			gfsMosMavData.periods[i].popz = "";
-			gfsMosMavData.periods[i].pops = "";
-			gfsMosMavData.periods[i].type = "";
-			gfsMosMavData.periods[i].snow = "";
+			gfsMosMavData.periods[i].windDirection = 180;
+			gfsMosMavData.periods[i].windSpeed = 20;
+			gfsMosMavData.periods[i].qpf12 = 3;
+			gfsMosMavData.periods[i].thund6 = 12;
+			gfsMosMavData.periods[i].severe6 = 3;
+			gfsMosMavData.periods[i].thund12 = 20;
+			gfsMosMavData.periods[i].type = MavData.Precipitation.RAIN;
+			gfsMosMavData.periods[i].snow = 0;
 			gfsMosMavData.periods[i].visibility = MavData.Visibility.V3;
-			gfsMosMavData.periods[i].obscurity = "";
-			gfsMosMavData.periods[i].ceiling = "";
+			gfsMosMavData.periods[i].obscurity = MavData.Obscurity.NONE;
+			gfsMosMavData.periods[i].ceiling = 8;
 		}
 		
 		System.out.println("original GfsMosMavData: "+gfsMosMavData);
@@ -80,4 +110,370 @@ public class MavDataTest extends
 		assertTrue("JSON data doesn't match",
 				equals2);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Test that period numbers and categories are parsed from the server's
+	 * text once, as it's read.
+	 * 
+	 * @throws Exception on error 
+	 */
+	public void testGFSMOSMAVDataPeriod() throws Exception
+	{
+		String json = PERIOD.replace("\"thund6\": \"2\"",
+				"\"thund6\": \"12/3\"").replace("\"qpf12\": \"None\"",
+				"\"qpf12\": \"0.25 to 0.49 inches\"").replace(
+				"\"snow\": \"None\"", "\"snow\": \"4 to 6 inches\"").replace(
+				"\"type\": \"None\"",
+				"\"type\": \"pure snow or snow grains\"");
+		MavData.Period period = new MavData.Period(new JSONObject(json));
+
+		assertEquals(45, period.temp);
+		assertEquals(40, period.dewpoint);
+		assertEquals(-3, new MavData.Period(new JSONObject(PERIOD.replace(
+				"\"temp\": \"45\"", "\"temp\": \" -3 \""))).temp);
+		assertEquals(270, period.windDirection);
+		assertEquals(10, period.windSpeed);
+		assertEquals(MavData.MISSING, period.windGust);
+		assertEquals(5, period.pop6);
+		assertEquals(MavData.MISSING, period.pop12);
+		assertEquals(MavData.MISSING, period.qpf6);
+		assertEquals(3, period.qpf12);
+		assertEquals(12, period.thund6);
+		assertEquals(3, period.severe6);
+		assertEquals(MavData.MISSING, period.thund12);
+		assertEquals(MavData.MISSING, period.severe12);
+		assertEquals(0, period.popz);
+		assertEquals(MavData.Precipitation.SNOW, period.type);
+		assertEquals(4, period.snow);
+		assertEquals(MavData.Obscurity.NONE, period.obscurity);
+		assertEquals(5, period.ceiling);
+
+		// The stream gives the same, and so does what it writes back
+		MavData.Period streamed = new MavData.Period(new JsonPullParser(
+				new StringReader(json)));
+		assertEquals(period, streamed);
+		assertEquals(period, new MavData.Period(new JSONObject(period
+				.toJSONObject().toString())));
+	}
+
+	/**
+	 * Test that every text the server sends for cover, visibility,
+	 * precipitation type and obscurity, and every name kept on the phone,
+	 * maps to the right value, and anything else to UNKNOWN.
+	 */
+	public void testConvertTable()
+	{
+		Object table[][] = {
+				{ "clear", MavData.Cover.CLEAR },
+				{ "few > 0 to 2 octas", MavData.Cover.FEW },
+				{ "scattered > 2 to 4 octas", MavData.Cover.SCATTERED },
+				{ "broken > 4 to < 8 octas", MavData.Cover.BROKEN },
+				{ "overcast", MavData.Cover.OVERCAST },
+				{ "< 1/2 miles", MavData.Visibility.V1 },
+				{ "1/2 - < 1 miles", MavData.Visibility.V2 },
+				{ "1 - < 2 miles", MavData.Visibility.V3 },
+				{ "2 - < 3 miles", MavData.Visibility.V4 },
+				{ "3 - 5 miles", MavData.Visibility.V5 },
+				{ "6 miles", MavData.Visibility.V6 },
+				{ "> 6 miles", MavData.Visibility.V7 },
+				{ "pure snow or snow grains", MavData.Precipitation.SNOW },
+				{ "freezing rain/drizzle, ice pellets, or anything mixed "
+						+ "with freezing precip",
+						MavData.Precipitation.FREEZING },
+				{ "pure rain/drizzle or rain mixed with snow",
+						MavData.Precipitation.RAIN },
+				{ "none", MavData.Obscurity.NONE },
+				{ "haze, smoke, dust", MavData.Obscurity.HAZE },
+				{ "mist (fog with visibility >= 5/8 mile)",
+						MavData.Obscurity.MIST },
+				{ "fog or ground fog (visibility < 5/8 mile)",
+						MavData.Obscurity.FOG },
+				{ "blowing dust, sand, snow", MavData.Obscurity.BLOWING } };
+		for (Object row[] : table)
+		{
+			String text = (String) row[0];
+			assertEquals(text, row[1], convert(row[1], text));
+			assertEquals(text, row[1], convert(row[1], ((Enum<?>) row[1])
+					.name()));
+		}
+
+		// Nothing else, not even text that contains a server string
+		String others[] = { null, "", "None", "Clear", "partly clear",
+				"about 6 miles", " overcast", "UNKNOWN" };
+		for (String text : others)
+		{
+			assertEquals(text, MavData.Cover.UNKNOWN, MavData.Cover
+					.convert(text));
+			assertEquals(text, MavData.Visibility.UNKNOWN,
+					MavData.Visibility.convert(text));
+			assertEquals(text, MavData.Precipitation.UNKNOWN,
+					MavData.Precipitation.convert(text));
+			assertEquals(text, MavData.Obscurity.UNKNOWN, MavData.Obscurity
+					.convert(text));
+		}
+	}
+
+	/**
+	 * Convert some text with the convert() of the enum a value belongs to.
+	 */
+	private static Object convert(Object value, String text)
+	{
+		if (value instanceof MavData.Cover)
+		{
+			return MavData.Cover.convert(text);
+		} else if (value instanceof MavData.Visibility)
+		{
+			return MavData.Visibility.convert(text);
+		} else if (value instanceof MavData.Precipitation)
+		{
+			return MavData.Precipitation.convert(text);
+		}
+		return MavData.Obscurity.convert(text);
+	}
+
+	/**
+	 * Test that decoding straight from the stream gives the same MavData as
+	 * going through a JSONObject.
+	 * 
+	 * @throws Exception on error 
+	 */
+	public void testGFSMOSMAVDataStream() throws Exception
+	{
+		String mav = mav(2);
+
+		MavData fromJSON = new MavData(new JSONObject(mav));
+
+		List<Object> results = WeatherDecoder.decode(new JsonPullParser(
+				new StringReader("{\"mav\": " + mav + "}")));
+		assertEquals(1, results.size());
+		assertEquals("gfsMosMav data doesn't match", fromJSON, results.get(0));
+	}
+
+	/**
+	 * Test conversion of GFSMOSMAVData to binary and back, including null
+	 * periods and fields.
+	 * 
+	 * @throws Exception
+	 *             on error
+	 */
+	public void testGFSMOSMAVDataBinary() throws Exception
+	{
+		MavData gfsMosMavData = new MavData(new JSONObject(mav(21)));
+		gfsMosMavData.getPeriod(3).windGust = 25;
+		gfsMosMavData.getPeriod(4).cover = null;
+		gfsMosMavData.getPeriod(5).windSpeed = MavData.MISSING;
+		gfsMosMavData.setPeriod(6, null);
+		gfsMosMavData.high = null;
+
+		MavData newGfsMosMavData = (MavData) WeatherCodec.decode(WeatherCodec
+				.encode(gfsMosMavData));
+		assertEquals("gfsMosMav data doesn't match", gfsMosMavData,
+				newGfsMosMavData);
+		assertEquals(MavData.Cover.SCATTERED,
+				newGfsMosMavData.getPeriod(0).cover);
+		assertEquals(MavData.Visibility.V5,
+				newGfsMosMavData.getPeriod(0).visibility);
+		assertEquals(gfsMosMavData.getPeriod(1).time,
+				newGfsMosMavData.getPeriod(1).time);
+		assertEquals(MavData.MISSING, newGfsMosMavData.getPeriod(5).windSpeed);
+		assertEquals(25, newGfsMosMavData.getPeriod(3).windGust);
+		assertNull(newGfsMosMavData.getPeriod(6));
+
+		// No periods at all is kept apart from none
+		gfsMosMavData.periods = null;
+		assertNull(((MavData) WeatherCodec.decode(WeatherCodec
+				.encode(gfsMosMavData))).periods);
+		gfsMosMavData.periods = new MavData.Period[0];
+		assertEquals(0, ((MavData) WeatherCodec.decode(WeatherCodec
+				.encode(gfsMosMavData))).getPeriodCount());
+	}
+
+	/**
+	 * Test that periods are decoded as they're asked for, and only then.
+	 * 
+	 * @throws Exception
+	 *             on error
+	 */
+	public void testGFSMOSMAVDataLazy() throws Exception
+	{
+		MavData fromJSON = new MavData(new JSONObject(mav(21)));
+		fromJSON.setPeriod(6, null);
+		assertEquals(21, fromJSON.getPeriodCount());
+		assertNull(fromJSON.periods[2]);
+		assertEquals(270, fromJSON.getPeriod(2).windDirection);
+		assertSame(fromJSON.periods[2], fromJSON.getPeriod(2));
+		assertNull(fromJSON.periods[3]);
+
+		byte bytes[] = WeatherCodec.encode(fromJSON);
+		MavData fromBinary = (MavData) WeatherCodec.decode(bytes);
+		assertEquals(21, fromBinary.getPeriodCount());
+		assertNull(fromBinary.periods[0]);
+		assertEquals(MavData.Cover.SCATTERED, fromBinary.getPeriod(0).cover);
+		assertNull(fromBinary.periods[1]);
+		assertNull(fromBinary.getPeriod(6));
+
+		// Periods never decoded are written back just as they were read
+		byte again[] = WeatherCodec.encode(fromBinary);
+		assertEquals(bytes.length, again.length);
+		for (int i = 0; i < bytes.length; ++i)
+		{
+			assertEquals(bytes[i], again[i]);
+		}
+		assertNull(fromBinary.periods[1]);
+
+		// The bytes decoded from can be reused
+		Arrays.fill(bytes, (byte) 0);
+		assertEquals(fromJSON, fromBinary);
+
+		// A period that can't be read is left out, not the whole MAV
+		JSONObject object = new JSONObject(mav(2));
+		object.getJSONArray("periods").getJSONObject(1).put("wind", "None");
+		MavData damaged = new MavData(object);
+		assertNotNull(damaged.getPeriod(0));
+		assertNull(damaged.getPeriod(1));
+
+		// ...and written back as null, keeping the other's place
+		JSONObject written = damaged.toJSONObject();
+		assertEquals(JSONObject.NULL, written.getJSONArray("periods").opt(1));
+		assertNull(new MavData(written).getPeriod(1));
+		MavData streamed = (MavData) WeatherDecoder.decode(
+				new JsonPullParser(new StringReader("{\"mav\": " + written
+						+ "}"))).get(0);
+		assertEquals(2, streamed.getPeriodCount());
+		assertNull(streamed.getPeriod(1));
+		assertEquals(damaged, streamed);
+
+		// Logging a MAV doesn't decode its periods
+		MavData logged = new MavData(new JSONObject(mav(21)));
+		assertTrue(logged.toString().contains("periods=21"));
+		logged.hashCode();
+		assertNull(logged.periods[0]);
+	}
+
+	/**
+	 * Test that a period count that doesn't match the periods is refused.
+	 * 
+	 * @throws Exception
+	 *             on error
+	 */
+	public void testGFSMOSMAVDataBinaryDamaged() throws Exception
+	{
+		MavData gfsMosMavData = new MavData(new JSONObject(mav(2)));
+		byte bytes[] = WeatherCodec.encode(gfsMosMavData);
+
+		// Drop the last period's END, and everything after
+		byte cut[] = new byte[bytes.length - 1];
+		System.arraycopy(bytes, 0, cut, 0, cut.length);
+		try
+		{
+			WeatherCodec.decode(cut);
+			fail("expected IOException");
+		} catch (IOException e)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Time reading a MAV from binary and showing the first 4 periods, as the
+	 * phone's portrait layout does, against reading it and all 21.
+	 * 
+	 * @throws Exception
+	 *             on error
+	 */
+	public void testGFSMOSMAVDataLazyBenchmark() throws Exception
+	{
+		byte binary[] = WeatherCodec.encode(new MavData(new JSONObject(
+				mav(21))));
+		int passes = 2000;
+		long checksum = 0;
+
+		long start = System.nanoTime();
+		for (int pass = 0; pass < passes; ++pass)
+		{
+			MavData gfs = (MavData) WeatherCodec.decode(binary);
+			for (int i = 0; i < gfs.getPeriodCount(); ++i)
+			{
+				checksum += gfs.getPeriod(i).temp;
+			}
+		}
+		long all = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int pass = 0; pass < passes; ++pass)
+		{
+			MavData gfs = (MavData) WeatherCodec.decode(binary);
+			for (int i = 0; i < Math.min(4, gfs.getPeriodCount()); ++i)
+			{
+				checksum += gfs.getPeriod(i).temp;
+			}
+		}
+		long portrait = System.nanoTime() - start;
+		assertTrue(checksum != 0);
+
+		Log.i(MavDataTest.class.toString(), String.format(
+				"MAV from binary: %.1f us for 21 periods, "
+						+ "%.1f us for the 4 a phone shows (%.1fx)", all
+						/ 1000.0 / passes, portrait / 1000.0 / passes,
+				(double) all / portrait));
+	}
+
+	/**
+	 * Compare the size of GFSMOSMAVData in binary and JSON, and the time to
+	 * write and read each.
+	 * 
+	 * @throws Exception
+	 *             on error
+	 */
+	public void testGFSMOSMAVDataBinaryBenchmark() throws Exception
+	{
+		MavData gfsMosMavData = new MavData(new JSONObject(mav(21)));
+		byte binary[] = WeatherCodec.encode(gfsMosMavData);
+		byte json[] = ("{\"mav\": " + gfsMosMavData.toJSONObject() + "}")
+				.getBytes("UTF-8");
+		assertTrue(binary.length * 3 < json.length);
+
+		int passes = 2000;
+		long start = System.nanoTime();
+		for (int i = 0; i < passes; ++i)
+		{
+			WeatherCodec.encode(gfsMosMavData);
+		}
+		long binaryWrite = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < passes; ++i)
+		{
+			gfsMosMavData.toJSONObject().toString();
+		}
+		long jsonWrite = System.nanoTime() - start;
+
+		// Every period, as the JSON is read (see the lazy benchmark)
+		start = System.nanoTime();
+		for (int i = 0; i < passes; ++i)
+		{
+			MavData gfs = (MavData) WeatherCodec.decode(binary);
+			for (int period = 0; period < gfs.getPeriodCount(); ++period)
+			{
+				gfs.getPeriod(period);
+			}
+		}
+		long binaryRead = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < passes; ++i)
+		{
+			WeatherDecoder.decode(new JsonPullParser(new ByteArrayInputStream(
+					json)));
+		}
+		long jsonRead = System.nanoTime() - start;
+
+		Log.i(MavDataTest.class.toString(), String.format(
+				"MAV, 21 periods: %d bytes binary, %d JSON; "
+						+ "write %.1f us binary, %.1f us JSON; "
+						+ "read %.1f us binary, %.1f us JSON", binary.length,
+				json.length, binaryWrite / 1000.0 / passes, jsonWrite
+						/ 1000.0 / passes, binaryRead / 1000.0 / passes,
+				jsonRead / 1000.0 / passes));
+	}
+}
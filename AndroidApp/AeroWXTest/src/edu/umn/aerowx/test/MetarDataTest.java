@@ -1,18 +1,36 @@
 package edu.umn.aerowx.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.Date;
+import java.util.List;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import edu.umn.aerowx.JsonPullParser;
 import edu.umn.aerowx.MetarData;
 import edu.umn.aerowx.MetarActivity;
+import edu.umn.aerowx.WeatherCodec;
+import edu.umn.aerowx.WeatherDecoder;
 
 public class MetarDataTest extends
 		ActivityInstrumentationTestCase2<MetarActivity>
 {
 
+	private static final String METAR = "{\"metar\": {\"station\": \"KROS\", "
+			+ "\"type\": \"routine report\", "
+			+ "\"time\": \"Fri Oct 18 09:53:00 2013\", "
+			+ "\"temperature\": \"12.0 C\", \"dew point\": \"8.0 C\", "
+			+ "\"wind\": \"ESE at 6 knots\", \"peak wind\": \"None\", "
+			+ "\"visibility\": \"10 miles\", \"pressure\": \"1013.0 mb\", "
+			+ "\"weather\": \"None\", "
+			+ "\"sky\": \"a few clouds at 4000 feet\", "
+			+ "\"remarks\": \"automated station\"}}";
+
 	public MetarDataTest()
 	{
 		super(MetarActivity.class);
@@ -67,4 +85,212 @@ public class MetarDataTest extends
 				+ newJsonMetarData, equals2);
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Test that decoding straight from the stream gives the same METARData as
+	 * going through a JSONObject.
+	 * 
+	 * @throws Exception
+	 *             on error
+	 */
+	public void testMETARDataStream() throws Exception
+	{
+		String json = METAR;
+
+		MetarData fromJSON = new MetarData(new JSONObject(json));
+
+		List<Object> results = WeatherDecoder.decode(new JsonPullParser(
+				new StringReader("[" + json + "]")));
+		assertEquals(1, results.size());
+		assertEquals("METAR data doesn't match", fromJSON, results.get(0));
+
+		// Anything after the response means it isn't the response we think
+		try
+		{
+			WeatherDecoder.decode(new JsonPullParser(new StringReader("["
+					+ json + "]]")));
+			fail("expected IOException");
+		} catch (IOException e)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Test that the numbers are read out of the server's text as it's
+	 * decoded.
+	 * 
+	 * @throws Exception
+	 *             on error
+	 */
+	public void testMETARDataValues() throws Exception
+	{
+		MetarData metarData = new MetarData(new JSONObject(METAR));
+		assertEquals(120, metarData.tempTenths);
+		assertEquals(80, metarData.dewpointTenths);
+		assertEquals(10130, metarData.pressureTenths);
+		assertEquals(113, metarData.windDirection);
+		assertEquals(6, metarData.windSpeed);
+		assertEquals(MetarData.MISSING, metarData.windGust);
+		assertEquals(1000, metarData.visibilityHundredths);
+		assertEquals(1, metarData.skyCover.length);
+		assertEquals(MetarData.SkyCover.FEW, metarData.skyCover[0]);
+		assertEquals(40, metarData.skyBase[0]);
+		assertEquals(MetarData.MISSING, metarData.getCeiling());
+
+		// The binary form gives the same
+		MetarData newMetarData = (MetarData) WeatherCodec.decode(WeatherCodec
+				.encode(metarData));
+		assertEquals(metarData.windDirection, newMetarData.windDirection);
+		assertEquals(metarData.skyBase[0], newMetarData.skyBase[0]);
+
+		metarData.wind = "variable at 4 knots, gusting to 15 knots";
+		metarData.visibility = "1 1/2 miles";
+		metarData.sky = "a few clouds at 1500 feet\n     "
+				+ "broken cumulus at 3000 feet\n     overcast at 8000 feet";
+		metarData.parseValues();
+		assertEquals(MetarData.MISSING, metarData.windDirection);
+		assertEquals(4, metarData.windSpeed);
+		assertEquals(15, metarData.windGust);
+		assertEquals(150, metarData.visibilityHundredths);
+		assertEquals(3, metarData.skyCover.length);
+		assertEquals(MetarData.SkyCover.OVERCAST, metarData.skyCover[2]);
+		assertEquals(80, metarData.skyBase[2]);
+		assertEquals(30, metarData.getCeiling());
+
+		metarData.wind = "calm";
+		metarData.visibility = "less than 1/4 miles";
+		metarData.sky = "indefinite ceiling, visibility to 200 feet";
+		metarData.parseValues();
+		assertEquals(0, metarData.windSpeed);
+		assertEquals(25, metarData.visibilityHundredths);
+		assertEquals(2, metarData.getCeiling());
+
+		metarData.wind = "missing";
+		metarData.visibility = "9999 meters";
+		metarData.sky = "clear";
+		metarData.temp = null;
+		metarData.parseValues();
+		assertEquals(MetarData.MISSING, metarData.windSpeed);
+		assertEquals(621, metarData.visibilityHundredths);
+		assertEquals(MetarData.SkyCover.CLEAR, metarData.skyCover[0]);
+		assertEquals(MetarData.MISSING, metarData.skyBase[0]);
+		assertEquals(MetarData.MISSING, metarData.tempTenths);
+	}
+
+	/**
+	 * Test conversion of METARData to binary and back, including fields left
+	 * null and text that isn't ASCII.
+	 * 
+	 * @throws Exception
+	 *             on error
+	 */
+	public void testMETARDataBinary() throws Exception
+	{
+		MetarData metarData = new MetarData(new JSONObject(METAR));
+		MetarData newMetarData = (MetarData) WeatherCodec.decode(WeatherCodec
+				.encode(metarData));
+		assertEquals("METAR data doesn't match", metarData, newMetarData);
+		assertEquals(metarData.time, newMetarData.time);
+
+		metarData = new MetarData();
+		metarData.wxid = "kros";
+		metarData.temp = "-27";
+		metarData.dewpoint = "007";
+		metarData.pressure = "0";
+		metarData.remarks = "\u00b0 \ud83c\udf27";
+		newMetarData = (MetarData) WeatherCodec.decode(WeatherCodec
+				.encode(metarData));
+		assertEquals("METAR data doesn't match", metarData, newMetarData);
+		assertNull(newMetarData.time);
+		assertNull(newMetarData.sky);
+	}
+
+	/**
+	 * Test that binary data from another version, or damaged, is refused.
+	 * 
+	 * @throws Exception
+	 *             on error
+	 */
+	public void testMETARDataBinaryDamaged() throws Exception
+	{
+		byte bytes[] = WeatherCodec.encode(new MetarData(new JSONObject(
+				METAR)));
+
+		byte cut[] = new byte[bytes.length - 4];
+		System.arraycopy(bytes, 0, cut, 0, cut.length);
+		try
+		{
+			WeatherCodec.decode(cut);
+			fail("expected IOException");
+		} catch (IOException e)
+		{
+			// expected
+		}
+
+		bytes[0] = WeatherCodec.VERSION + 1;
+		try
+		{
+			WeatherCodec.decode(bytes);
+			fail("expected IOException");
+		} catch (IOException e)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Test that fields this version doesn't know are skipped.
+	 * 
+	 * @throws Exception
+	 *             on error
+	 */
+	public void testMETARDataBinaryUnknownField() throws Exception
+	{
+		MetarData metarData = new MetarData(new JSONObject(METAR));
+		byte bytes[] = WeatherCodec.encode(metarData);
+
+		// Field 100 as text, then field 101 nested around field 1 as a varint
+		byte extra[] = { (byte) 0xa2, 0x06, 2, 'h', 'i', (byte) 0xab, 0x06,
+				0x08, 5, 0 };
+		byte longer[] = new byte[bytes.length + extra.length];
+		System.arraycopy(bytes, 0, longer, 0, bytes.length);
+		System.arraycopy(extra, 0, longer, bytes.length, extra.length);
+		assertEquals(metarData, WeatherCodec.decode(longer));
+	}
+
+	/**
+	 * Compare the size of METARData in binary and JSON, and the time to read
+	 * each back.
+	 * 
+	 * @throws Exception
+	 *             on error
+	 */
+	public void testMETARDataBinaryBenchmark() throws Exception
+	{
+		MetarData metarData = new MetarData(new JSONObject(METAR));
+		byte binary[] = WeatherCodec.encode(metarData);
+		byte json[] = metarData.toJSONObject().toString().getBytes("UTF-8");
+		assertTrue(binary.length < json.length);
+
+		int passes = 20000;
+		long start = System.nanoTime();
+		for (int i = 0; i < passes; ++i)
+		{
+			WeatherCodec.decode(binary);
+		}
+		long binaryTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < passes; ++i)
+		{
+			WeatherDecoder.decode(new JsonPullParser(
+					new ByteArrayInputStream(json)));
+		}
+		long jsonTime = System.nanoTime() - start;
+
+		Log.i(MetarDataTest.class.toString(), String.format(
+				"METAR: %d bytes binary, %d JSON; read %.1f us binary, "
+						+ "%.1f us JSON", binary.length, json.length,
+				binaryTime / 1000.0 / passes, jsonTime / 1000.0 / passes));
+	}
+}
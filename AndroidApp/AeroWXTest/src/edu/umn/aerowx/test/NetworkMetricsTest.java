@@ -0,0 +1,102 @@
+package edu.umn.aerowx.test;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+import edu.umn.aerowx.JsonPullParser;
+import edu.umn.aerowx.NetworkMetrics;
+import edu.umn.aerowx.WeatherDecoder;
+
+public class NetworkMetricsTest extends TestCase
+{
+	private static final long MS = 1000 * 1000;
+
+	/**
+	 * Test the percentiles of a histogram.
+	 */
+	public void testPercentiles()
+	{
+		NetworkMetrics.Histogram histogram = new NetworkMetrics.Histogram(100);
+		assertEquals(0, histogram.getPercentile(0.5));
+
+		// 1 to 100 ms, out of order
+		for (int i = 0; i < 100; ++i)
+		{
+			histogram.add(((i * 37) % 100 + 1) * MS);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(50 * MS, histogram.getPercentile(0.50));
+		assertEquals(95 * MS, histogram.getPercentile(0.95));
+		assertEquals(99 * MS, histogram.getPercentile(0.99));
+	}
+
+	/**
+	 * Test that old times roll out of the window.
+	 */
+	public void testRollingWindow()
+	{
+		NetworkMetrics.Histogram histogram = new NetworkMetrics.Histogram(10);
+		for (int i = 0; i < 10; ++i)
+		{
+			histogram.add(1000 * MS);
+		}
+		for (int i = 0; i < 10; ++i)
+		{
+			histogram.add(MS);
+		}
+		assertEquals(20, histogram.getCount());
+		assertEquals(MS, histogram.getPercentile(0.99));
+	}
+
+	/**
+	 * Test that a request's phases land in their own histograms, and missing
+	 * phases are left out.
+	 */
+	public void testRecordTiming()
+	{
+		NetworkMetrics metrics = new NetworkMetrics(16);
+		NetworkMetrics.Timing timing = new NetworkMetrics.Timing();
+		timing.set(NetworkMetrics.Phase.CONNECT, 30 * MS);
+		timing.set(NetworkMetrics.Phase.FIRST_BYTE, 200 * MS);
+		metrics.record(timing);
+
+		assertSame(timing, metrics.getLastTiming());
+		assertEquals(30 * MS, metrics.getHistogram(NetworkMetrics.Phase.CONNECT)
+				.getPercentile(0.5));
+		assertEquals(1, metrics.getHistogram(NetworkMetrics.Phase.FIRST_BYTE)
+				.getCount());
+		assertEquals(0, metrics.getHistogram(NetworkMetrics.Phase.BODY)
+				.getCount());
+		assertTrue(metrics.toString().contains("CONNECT"));
+
+		metrics.reset();
+		assertEquals(0, metrics.getHistogram(NetworkMetrics.Phase.CONNECT)
+				.getCount());
+		assertNull(metrics.getLastTiming());
+	}
+
+	/**
+	 * Test that the parser accounts for its time.
+	 */
+	public void testParserTiming() throws Exception
+	{
+		String json = "[{\"metar\": {\"station\": \"KROS\", "
+				+ "\"type\": \"routine report\", "
+				+ "\"time\": \"Fri Oct 18 09:53:00 2013\", "
+				+ "\"temperature\": \"12.0 C\", \"dew point\": \"8.0 C\", "
+				+ "\"wind\": \"ESE at 6 knots\", \"peak wind\": \"None\", "
+				+ "\"visibility\": \"10 miles\", \"pressure\": \"1013.0 mb\", "
+				+ "\"weather\": \"None\", "
+				+ "\"sky\": \"a few clouds at 4000 feet\", "
+				+ "\"remarks\": \"automated station\"}}]";
+
+		JsonPullParser parser = new JsonPullParser(new StringReader(json));
+		long start = System.nanoTime();
+		WeatherDecoder.decode(parser);
+		long elapsed = System.nanoTime() - start;
+
+		assertTrue(parser.getReadTime() >= 0);
+		assertTrue(parser.getTokenizeTime() > 0);
+		assertTrue(parser.getReadTime() + parser.getTokenizeTime() <= elapsed);
+	}
+}
@@ -0,0 +1,207 @@
+package edu.umn.aerowx.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import junit.framework.TestCase;
+import edu.umn.aerowx.HistoryStore;
+import edu.umn.aerowx.MetarData;
+import edu.umn.aerowx.ObservationHistory;
+import edu.umn.aerowx.ObservationHistory.Field;
+
+public class ObservationHistoryTest extends TestCase
+{
+	private static final long HOUR = 60 * 60 * 1000;
+
+	private static MetarData metar(String wxid, long time, String temp,
+			String pressure, String wind)
+	{
+		MetarData metar = new MetarData();
+		metar.wxid = wxid;
+		metar.time = new Date(time);
+		metar.temp = temp;
+		metar.dewpoint = "-1.0 C";
+		metar.pressure = pressure;
+		metar.wind = wind;
+		metar.parseValues();
+		return metar;
+	}
+
+	/**
+	 * Test that the server's text is read into numbers.
+	 */
+	public void testValues()
+	{
+		ObservationHistory history = new ObservationHistory("KROS", 4);
+		assertTrue(history.add(metar("KROS", HOUR, "12.0 C", "1013.2 mb",
+				"ESE at 6 knots, gusting to 15 knots")));
+		assertTrue(history.add(metar("KROS", 2 * HOUR, "-3.5 C", "missing",
+				"calm")));
+		assertTrue(history.add(metar("KROS", 3 * HOUR, null, "998.0 mb",
+				"variable at greater than 99 knots")));
+
+		assertEquals(3, history.size());
+		assertEquals(120, history.get(Field.TEMPERATURE, 0));
+		assertEquals(-10, history.get(Field.DEWPOINT, 0));
+		assertEquals(130, history.get(Field.SPREAD, 0));
+		assertEquals(10132, history.get(Field.PRESSURE, 0));
+		assertEquals(113, history.get(Field.WIND_DIRECTION, 0));
+		assertEquals(60, history.get(Field.WIND_SPEED, 0));
+		assertEquals(150, history.get(Field.WIND_GUST, 0));
+
+		assertEquals(-35, history.get(Field.TEMPERATURE, 1));
+		assertEquals(ObservationHistory.MISSING,
+				history.get(Field.PRESSURE, 1));
+		assertEquals(0, history.get(Field.WIND_SPEED, 1));
+		assertEquals(ObservationHistory.MISSING,
+				history.get(Field.WIND_DIRECTION, 1));
+
+		assertEquals(ObservationHistory.MISSING,
+				history.get(Field.SPREAD, 2));
+		assertEquals(9980, history.get(Field.PRESSURE, 2));
+		assertEquals(990, history.get(Field.WIND_SPEED, 2));
+		assertEquals(ObservationHistory.MISSING,
+				history.get(Field.WIND_GUST, 2));
+	}
+
+	/**
+	 * Test that the oldest observations are overwritten once it's full, and
+	 * repeats are ignored.
+	 */
+	public void testWrap()
+	{
+		ObservationHistory history = new ObservationHistory("KROS", 3);
+		for (int i = 1; i <= 5; ++i)
+		{
+			assertTrue(history.add(metar("KROS", i * HOUR, i + ".0 C",
+					"1000.0 mb", "N at 5 knots")));
+		}
+		assertFalse(history.add(metar("KROS", 5 * HOUR, "9.0 C",
+				"1000.0 mb", "N at 5 knots")));
+
+		assertEquals(3, history.size());
+		assertEquals(3, history.capacity());
+		assertEquals(3 * HOUR, history.getTime(0));
+		assertEquals(5 * HOUR, history.getTime(2));
+		assertEquals(30, history.get(Field.TEMPERATURE, 0));
+		assertEquals(50, history.get(Field.TEMPERATURE, 2));
+		try
+		{
+			history.getTime(3);
+			fail("expected IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Test reading a window of observations for a trend.
+	 */
+	public void testWindow()
+	{
+		ObservationHistory history = new ObservationHistory("KROS", 8);
+		for (int i = 1; i <= 10; ++i)
+		{
+			history.add(metar("KROS", i * HOUR, "0.0 C", (1010 - i) + ".0 mb",
+					"calm"));
+		}
+
+		long times[] = new long[8];
+		int values[] = new int[8];
+		int n = history.copy(Field.PRESSURE, 7 * HOUR, times, values);
+		assertEquals(4, n);
+		assertEquals(7 * HOUR, times[0]);
+		assertEquals(10030, values[0]);
+		assertEquals(10000, values[3]);
+
+		// Limited by the arrays given
+		n = history.copy(Field.PRESSURE, 0, null, new int[2]);
+		assertEquals(2, n);
+
+		assertEquals(0, history.copy(Field.PRESSURE, 11 * HOUR, times, values));
+		assertEquals(-30, history.getChange(Field.PRESSURE, 7 * HOUR));
+		assertEquals(ObservationHistory.MISSING,
+				history.getChange(Field.PRESSURE, 10 * HOUR));
+		assertEquals(ObservationHistory.MISSING,
+				history.getChange(Field.WIND_GUST, 0));
+	}
+
+	/**
+	 * Test that the store keeps each station apart, and drops the least
+	 * recently used.
+	 */
+	public void testStore()
+	{
+		HistoryStore store = new HistoryStore(2, 4);
+		assertTrue(store.add(metar("KROS", HOUR, "1.0 C", "1000.0 mb", "calm")));
+		assertTrue(store.add(metar("kmsp", HOUR, "2.0 C", "1000.0 mb", "calm")));
+		assertFalse(store.add(metar("KMSP", HOUR, "2.0 C", "1000.0 mb", "calm")));
+		assertEquals(1, store.size("KROS"));
+		assertEquals(1, store.size("KMSP"));
+
+		// Use KROS, so KMSP goes
+		assertEquals(1, store.size("KROS"));
+		store.add(metar("KSTP", HOUR, "3.0 C", "1000.0 mb", "calm"));
+		assertEquals(2, store.stationCount());
+		assertEquals(0, store.size("KMSP"));
+		assertEquals(1, store.size("KROS"));
+
+		int values[] = new int[4];
+		assertEquals(1, store.copy("KSTP", Field.TEMPERATURE, 0, null, values));
+		assertEquals(30, values[0]);
+	}
+
+	/**
+	 * Test that the store's histories are written to the phone and read back,
+	 * and that stations that no longer fit lose their files.
+	 */
+	public void testStoreSaved() throws IOException
+	{
+		File directory = File.createTempFile("history", "");
+		directory.delete();
+		try
+		{
+			HistoryStore store = new HistoryStore(2, 4);
+			store.load(directory);
+			store.add(metar("KROS", HOUR, "1.0 C", "1000.0 mb", "calm"));
+			store.add(metar("KROS", 2 * HOUR, "1.5 C", "1001.0 mb", "calm"));
+			store.save("KROS");
+			store.add(metar("KMSP", HOUR, "2.0 C", "1000.0 mb", "calm"));
+			store.save("KMSP");
+			store.add(metar("K-?", HOUR, "4.0 C", "1000.0 mb", "calm"));
+			store.save("K-?");
+			assertEquals(2, directory.listFiles().length);
+
+			HistoryStore loaded = new HistoryStore(2, 4);
+			loaded.load(directory);
+			assertEquals(2, loaded.size("KROS"));
+			assertEquals(1, loaded.size("KMSP"));
+			long times[] = new long[4];
+			int values[] = new int[4];
+			assertEquals(2, loaded.copy("KROS", Field.TEMPERATURE, 0, times,
+					values));
+			assertEquals(2 * HOUR, times[1]);
+			assertEquals(15, values[1]);
+			assertEquals(10, loaded.getChange("KROS", Field.PRESSURE, HOUR));
+
+			// One station left room for
+			HistoryStore smaller = new HistoryStore(1, 4);
+			smaller.load(directory);
+			assertEquals(1, smaller.stationCount());
+			assertEquals(1, directory.listFiles().length);
+		} finally
+		{
+			File files[] = directory.listFiles();
+			if (files != null)
+			{
+				for (File file : files)
+				{
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+}
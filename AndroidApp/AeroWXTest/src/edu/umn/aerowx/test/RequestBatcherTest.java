@@ -0,0 +1,306 @@
+package edu.umn.aerowx.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import edu.umn.aerowx.MetarData;
+import edu.umn.aerowx.RequestBatcher;
+import edu.umn.aerowx.Utils;
+import edu.umn.aerowx.WeatherRequest;
+
+public class RequestBatcherTest extends TestCase
+{
+	/** Finds the stations in a request body */
+	private static final Pattern LOCATION = Pattern
+			.compile("\"location\":\\s*\"(\\w+)\"");
+
+	/**
+	 * Server on localhost that answers each request with a METAR for each
+	 * station asked for, in order, or with a set number of answers.
+	 */
+	private static class StubServer extends Thread
+	{
+		final ServerSocket serverSocket;
+
+		/** Stations asked for in each request, in the order they came */
+		final List<List<String>> batches = Collections
+				.synchronizedList(new ArrayList<List<String>>());
+
+		/** When each request came (milliseconds) */
+		final List<Long> times = Collections
+				.synchronizedList(new ArrayList<Long>());
+
+		/** Number of answers to give, -1 for one per station */
+		volatile int answers = -1;
+
+		StubServer() throws IOException
+		{
+			serverSocket = new ServerSocket(0);
+			setDaemon(true);
+		}
+
+		String getUrl()
+		{
+			return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+		}
+
+		@Override
+		public void run()
+		{
+			while (!serverSocket.isClosed())
+			{
+				try
+				{
+					Socket socket = serverSocket.accept();
+					try
+					{
+						answer(socket);
+					} finally
+					{
+						socket.close();
+					}
+				} catch (IOException e)
+				{
+					return;
+				}
+			}
+		}
+
+		void answer(Socket socket) throws IOException
+		{
+			String body = readBody(socket.getInputStream());
+			times.add(Long.valueOf(System.currentTimeMillis()));
+			List<String> stations = new ArrayList<String>();
+			for (Matcher matcher = LOCATION.matcher(body); matcher.find();)
+			{
+				stations.add(matcher.group(1));
+			}
+			batches.add(stations);
+
+			int count = (answers < 0) ? stations.size() : answers;
+			StringBuilder reply = new StringBuilder("[");
+			for (int i = 0; i < count; ++i)
+			{
+				if (i > 0)
+				{
+					reply.append(", ");
+				}
+				String station = stations.get(Math.min(i, stations.size() - 1));
+				reply.append("{\"metar\": {\"station\": \"" + station
+						+ "\", \"temperature\": \"1.0 C\"}}");
+			}
+			reply.append("]");
+			byte bytes[] = reply.toString().getBytes("UTF-8");
+			OutputStream out = socket.getOutputStream();
+			out.write(("HTTP/1.1 200 OK\r\n"
+					+ "Content-Type: application/json\r\n"
+					+ "Content-Length: " + bytes.length + "\r\n"
+					+ "Connection: close\r\n\r\n").getBytes("UTF-8"));
+			out.write(bytes);
+			out.flush();
+		}
+
+		/** Read the headers and return the body of a request */
+		String readBody(InputStream in) throws IOException
+		{
+			ByteArrayOutputStream headers = new ByteArrayOutputStream();
+			int matched = 0;
+			while (matched < 4)
+			{
+				int c = in.read();
+				if (c < 0)
+				{
+					return "";
+				}
+				headers.write(c);
+				matched = (c == "\r\n\r\n".charAt(matched)) ? matched + 1
+						: (c == '\r' ? 1 : 0);
+			}
+			int length = 0;
+			for (String line : headers.toString("UTF-8").split("\r\n"))
+			{
+				if (line.toLowerCase().startsWith("content-length:"))
+				{
+					length = Integer.parseInt(line.substring(15).trim());
+				}
+			}
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			for (int i = 0; i < length; ++i)
+			{
+				int c = in.read();
+				if (c < 0)
+				{
+					break;
+				}
+				body.write(c);
+			}
+			return body.toString("UTF-8");
+		}
+	}
+
+	/**
+	 * Listener that remembers what it was told.
+	 */
+	private static class Recorder implements Utils.ResponseListener<MetarData>
+	{
+		final CountDownLatch latch;
+
+		final List<String> stations = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		final List<Exception> errors = Collections
+				.synchronizedList(new ArrayList<Exception>());
+
+		Recorder(int count)
+		{
+			latch = new CountDownLatch(count);
+		}
+
+		public void onResponse(MetarData response)
+		{
+			stations.add(response.wxid);
+			latch.countDown();
+		}
+
+		public void onError(Exception e)
+		{
+			errors.add(e);
+			latch.countDown();
+		}
+
+		void await() throws InterruptedException
+		{
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+		}
+	}
+
+	private StubServer server;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		server = new StubServer();
+		server.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		server.serverSocket.close();
+		super.tearDown();
+	}
+
+	private static WeatherRequest metar(String station)
+	{
+		return new WeatherRequest(WeatherRequest.METAR, station);
+	}
+
+	/**
+	 * Test that requests made together go out in one POST, and each caller
+	 * gets its own answer.
+	 */
+	public void testBatchAndSplit() throws InterruptedException
+	{
+		RequestBatcher batcher = new RequestBatcher(100);
+		String stations[] = { "KROS", "KMSP", "KSTP" };
+		Recorder recorders[] = new Recorder[stations.length];
+		for (int i = 0; i < stations.length; ++i)
+		{
+			recorders[i] = new Recorder(1);
+			batcher.submit(server.getUrl(), metar(stations[i]),
+					MetarData.class, recorders[i]);
+		}
+		for (int i = 0; i < stations.length; ++i)
+		{
+			recorders[i].await();
+			assertEquals(0, recorders[i].errors.size());
+			assertEquals(Collections.singletonList(stations[i]),
+					recorders[i].stations);
+		}
+		assertEquals(1, server.batches.size());
+		assertEquals(3, server.batches.get(0).size());
+	}
+
+	/**
+	 * Test that when the server answers only the first request, the rest are
+	 * asked for one at a time.
+	 */
+	public void testOnlyFirstAnswered() throws InterruptedException
+	{
+		server.answers = 1;
+		RequestBatcher batcher = new RequestBatcher(100);
+		Recorder first = new Recorder(1);
+		Recorder second = new Recorder(1);
+		batcher.submit(server.getUrl(), metar("KROS"), MetarData.class, first);
+		batcher.submit(server.getUrl(), metar("KMSP"), MetarData.class,
+				second);
+		first.await();
+		second.await();
+		assertEquals(Collections.singletonList("KROS"), first.stations);
+		assertEquals(Collections.singletonList("KMSP"), second.stations);
+		assertEquals(2, server.batches.size());
+		assertEquals(Collections.singletonList("KMSP"), server.batches.get(1));
+	}
+
+	/**
+	 * Test that an answer count that doesn't match fails every request
+	 * rather than guessing whose answer is whose.
+	 */
+	public void testTooManyAnswers() throws InterruptedException
+	{
+		server.answers = 3;
+		RequestBatcher batcher = new RequestBatcher(100);
+		Recorder recorder = new Recorder(2);
+		batcher.submit(server.getUrl(), metar("KROS"), MetarData.class,
+				recorder);
+		batcher.submit(server.getUrl(), metar("KMSP"), MetarData.class,
+				recorder);
+		recorder.await();
+		assertEquals(0, recorder.stations.size());
+		assertEquals(2, recorder.errors.size());
+		assertEquals(1, server.batches.size());
+	}
+
+	/**
+	 * Test that a full batch goes out at once, and the next batch still gets
+	 * its whole window.
+	 */
+	public void testFullBatch() throws InterruptedException
+	{
+		long window = 400;
+		RequestBatcher batcher = new RequestBatcher(window);
+		Recorder full = new Recorder(RequestBatcher.MAX_BATCH);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < RequestBatcher.MAX_BATCH; ++i)
+		{
+			batcher.submit(server.getUrl(), metar("K" + (char) ('A' + i)
+					+ "AA"), MetarData.class, full);
+		}
+		full.await();
+		assertEquals(0, full.errors.size());
+		assertTrue(server.times.get(0).longValue() - start < window);
+
+		Thread.sleep(Math.max(0, start + window / 2
+				- System.currentTimeMillis()));
+		Recorder next = new Recorder(1);
+		long submitted = System.currentTimeMillis();
+		batcher.submit(server.getUrl(), metar("KROS"), MetarData.class, next);
+		next.await();
+		assertEquals(2, server.batches.size());
+		long waited = server.times.get(1).longValue() - submitted;
+		assertTrue("waited " + waited + " ms", waited >= window - 50);
+	}
+}
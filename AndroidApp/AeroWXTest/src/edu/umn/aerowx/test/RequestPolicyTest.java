@@ -0,0 +1,492 @@
+package edu.umn.aerowx.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import junit.framework.TestCase;
+import edu.umn.aerowx.HttpStatusException;
+import edu.umn.aerowx.HttpTransport;
+import edu.umn.aerowx.OfflineException;
+import edu.umn.aerowx.PooledHttpTransport;
+import edu.umn.aerowx.RequestPolicy;
+import edu.umn.aerowx.UrlConnectionTransport;
+
+public class RequestPolicyTest extends TestCase
+{
+	/**
+	 * Server on localhost that answers each connection with the next canned
+	 * reply, after that reply's delay.
+	 */
+	private static class StubServer extends Thread
+	{
+		final ServerSocket serverSocket;
+
+		final AtomicInteger connections = new AtomicInteger();
+
+		/** Pairs of {delay (ms), HTTP status} */
+		final LinkedList<int[]> replies = new LinkedList<int[]>();
+
+		StubServer() throws IOException
+		{
+			serverSocket = new ServerSocket(0);
+			setDaemon(true);
+		}
+
+		String getUrl()
+		{
+			return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+		}
+
+		synchronized void reply(int delay, int status)
+		{
+			replies.add(new int[] { delay, status });
+		}
+
+		synchronized int[] nextReply()
+		{
+			return replies.isEmpty() ? new int[] { 0, 200 } : replies
+					.removeFirst();
+		}
+
+		@Override
+		public void run()
+		{
+			while (!serverSocket.isClosed())
+			{
+				try
+				{
+					final Socket socket = serverSocket.accept();
+					connections.incrementAndGet();
+					final int reply[] = nextReply();
+					new Thread()
+					{
+						@Override
+						public void run()
+						{
+							answer(socket, reply[0], reply[1]);
+						}
+					}.start();
+				} catch (IOException e)
+				{
+					return;
+				}
+			}
+		}
+
+		void answer(Socket socket, int delay, int status)
+		{
+			try
+			{
+				readRequest(socket.getInputStream());
+				Thread.sleep(delay);
+				byte body[] = ("{\"status\": " + status + "}")
+						.getBytes("UTF-8");
+				OutputStream out = socket.getOutputStream();
+				out.write(("HTTP/1.1 " + status + " Stub\r\n"
+						+ "Content-Type: application/json\r\n"
+						+ "Content-Length: " + body.length + "\r\n"
+						+ "Connection: close\r\n\r\n").getBytes("UTF-8"));
+				out.write(body);
+				out.flush();
+			} catch (Exception e)
+			{
+				// the client gave up
+			} finally
+			{
+				try
+				{
+					socket.close();
+				} catch (IOException e)
+				{
+					// nothing to do
+				}
+			}
+		}
+
+		/** Read the headers and the body of a request */
+		void readRequest(InputStream in) throws IOException
+		{
+			ByteArrayOutputStream headers = new ByteArrayOutputStream();
+			int matched = 0;
+			while (matched < 4)
+			{
+				int c = in.read();
+				if (c < 0)
+				{
+					return;
+				}
+				headers.write(c);
+				matched = (c == "\r\n\r\n".charAt(matched)) ? matched + 1
+						: (c == '\r' ? 1 : 0);
+			}
+			int length = 0;
+			for (String line : headers.toString("UTF-8").split("\r\n"))
+			{
+				if (line.toLowerCase().startsWith("content-length:"))
+				{
+					length = Integer.parseInt(line.substring(15).trim());
+				}
+			}
+			for (int i = 0; i < length && in.read() >= 0; ++i)
+			{
+				// skip the body
+			}
+		}
+
+		void shutdown() throws IOException
+		{
+			serverSocket.close();
+		}
+	}
+
+	private StubServer server;
+
+	private HttpTransport transport;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		server = new StubServer();
+		server.start();
+		transport = new UrlConnectionTransport();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		server.shutdown();
+		transport.shutdown();
+		super.tearDown();
+	}
+
+	/**
+	 * One POST to the stub server, returning the status it answered with.
+	 */
+	private RequestPolicy.Attempt<Integer> post()
+	{
+		return new RequestPolicy.Attempt<Integer>()
+		{
+			public Integer run(int timeout) throws IOException
+			{
+				HttpTransport.Response response = transport.post(
+						server.getUrl(), "[]".getBytes("UTF-8"),
+						new HashMap<String, String>(), timeout);
+				try
+				{
+					if (response.statusCode != 200)
+					{
+						throw new HttpStatusException(response.statusCode);
+					}
+					while (response.content.read() >= 0)
+					{
+						// read it all
+					}
+					return response.statusCode;
+				} finally
+				{
+					response.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Test that a server that never answers is given up on at the deadline.
+	 */
+	public void testDeadline() throws IOException
+	{
+		server.reply(5000, 200);
+		server.reply(5000, 200);
+		RequestPolicy policy = new RequestPolicy(600, 400, 3, 50, 100);
+
+		long start = System.currentTimeMillis();
+		try
+		{
+			policy.call(post());
+			fail("should have timed out");
+		} catch (SocketTimeoutException e)
+		{
+			// expected
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("took " + elapsed + " ms", elapsed < 1500);
+	}
+
+	/**
+	 * Test that a server error is retried, and the retry's answer returned.
+	 */
+	public void testRetryServerError() throws IOException
+	{
+		server.reply(0, 503);
+		server.reply(0, 503);
+		server.reply(0, 200);
+		RequestPolicy policy = new RequestPolicy(5000, 1000, 3, 20, 100);
+
+		assertEquals(Integer.valueOf(200), policy.call(post()));
+		assertEquals(3, server.connections.get());
+	}
+
+	/**
+	 * Test that a client error isn't retried.
+	 */
+	public void testNoRetryClientError() throws IOException
+	{
+		server.reply(0, 404);
+		RequestPolicy policy = new RequestPolicy(5000, 1000, 3, 20, 100);
+
+		try
+		{
+			policy.call(post());
+			fail("should have failed");
+		} catch (HttpStatusException e)
+		{
+			assertEquals(404, e.statusCode);
+		}
+		assertEquals(1, server.connections.get());
+	}
+
+	/**
+	 * Test that retries stop after the most attempts.
+	 */
+	public void testMaxAttempts() throws IOException
+	{
+		for (int i = 0; i < 5; ++i)
+		{
+			server.reply(0, 500);
+		}
+		RequestPolicy policy = new RequestPolicy(5000, 1000, 2, 20, 100);
+
+		try
+		{
+			policy.call(post());
+			fail("should have failed");
+		} catch (HttpStatusException e)
+		{
+			assertEquals(500, e.statusCode);
+		}
+		assertEquals(2, server.connections.get());
+	}
+
+	/**
+	 * Test that a slow first request is beaten by a hedged second one.
+	 */
+	public void testHedge() throws IOException
+	{
+		server.reply(3000, 200);
+		server.reply(0, 200);
+		RequestPolicy policy = new RequestPolicy(5000, 4000, 1, 20, 100, 0.95,
+				200);
+
+		long start = System.currentTimeMillis();
+		assertEquals(Integer.valueOf(200), policy.call(post()));
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("took " + elapsed + " ms", elapsed < 1500);
+		assertEquals(2, server.connections.get());
+	}
+
+	/**
+	 * Test that the hedge delay follows the percentile of recent requests.
+	 */
+	public void testHedgeDelay()
+	{
+		RequestPolicy policy = new RequestPolicy(5000, 4000, 1, 20, 100, 0.9,
+				50);
+		assertEquals(50, policy.getHedgeDelay());
+		for (int i = 1; i <= 10; ++i)
+		{
+			policy.recordLatency(i * 100);
+		}
+		assertEquals(900, policy.getHedgeDelay());
+		assertEquals(-1, new RequestPolicy().getHedgeDelay());
+	}
+
+	/**
+	 * Test that an attempt that keeps going past the deadline (a server
+	 * trickling its response, say) is given up on at the deadline.
+	 */
+	public void testDeadlineWithinAttempt() throws IOException
+	{
+		RequestPolicy policy = new RequestPolicy(300, 10000, 1, 50, 100);
+		long start = System.currentTimeMillis();
+		try
+		{
+			policy.call(new RequestPolicy.Attempt<Integer>()
+			{
+				public Integer run(int timeout) throws IOException
+				{
+					try
+					{
+						Thread.sleep(3000);
+					} catch (InterruptedException e)
+					{
+						// given up on
+					}
+					return Integer.valueOf(200);
+				}
+			});
+			fail("should have timed out");
+		} catch (SocketTimeoutException e)
+		{
+			// expected
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("took " + elapsed + " ms", elapsed < 1500);
+	}
+
+	/**
+	 * Test that a network failure is retried but a response that can't be
+	 * decoded isn't.
+	 */
+	public void testRetryOnlyNetworkErrors() throws IOException
+	{
+		RequestPolicy policy = new RequestPolicy(5000, 1000, 3, 10, 20);
+		final AtomicInteger attempts = new AtomicInteger();
+		try
+		{
+			policy.call(new RequestPolicy.Attempt<Integer>()
+			{
+				public Integer run(int timeout) throws IOException
+				{
+					attempts.incrementAndGet();
+					throw new IOException("Period has no wind");
+				}
+			});
+			fail("expected IOException");
+		} catch (IOException e)
+		{
+			assertEquals("Period has no wind", e.getMessage());
+		}
+		assertEquals(1, attempts.get());
+
+		attempts.set(0);
+		try
+		{
+			policy.call(new RequestPolicy.Attempt<Integer>()
+			{
+				public Integer run(int timeout) throws IOException
+				{
+					attempts.incrementAndGet();
+					throw new SocketException("Connection reset");
+				}
+			});
+			fail("expected SocketException");
+		} catch (SocketException e)
+		{
+			// expected
+		}
+		assertEquals(3, attempts.get());
+		assertFalse(RequestPolicy.isTransient(new OfflineException()));
+		assertTrue(RequestPolicy.isTransient(new EOFException()));
+		assertTrue(RequestPolicy.isTransient(new ConnectTimeoutException()));
+		assertTrue(RequestPolicy.isTransient(new NoHttpResponseException(
+				"The target server failed to respond")));
+	}
+
+	/**
+	 * Test that with the pooled transport, waiting too long for a connection
+	 * is retried rather than failing the request.
+	 */
+	public void testPoolTimeoutRetried() throws Exception
+	{
+		transport = new PooledHttpTransport(1);
+		server.reply(800, 200);
+		final RequestPolicy slow = new RequestPolicy(5000, 3000, 1, 20, 100);
+		Thread holder = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					slow.call(post());
+				} catch (IOException e)
+				{
+					// seen below as a missing connection
+				}
+			}
+		};
+		holder.start();
+		Thread.sleep(200);
+
+		// The only connection is taken
+		try
+		{
+			transport.post(server.getUrl(), "[]".getBytes("UTF-8"),
+					new HashMap<String, String>(), 100);
+			fail("expected a timeout");
+		} catch (IOException e)
+		{
+			assertTrue(e.toString(), RequestPolicy.isTransient(e));
+		}
+
+		RequestPolicy policy = new RequestPolicy(5000, 300, 5, 50, 100);
+		assertEquals(Integer.valueOf(200), policy.call(post()));
+		holder.join();
+		assertEquals(2, server.connections.get());
+	}
+
+	/**
+	 * Test that the slower of two hedged attempts is aborted once the other
+	 * answers, rather than holding its connection until it finishes.
+	 */
+	public void testHedgeLoserAborted() throws Exception
+	{
+		transport = new PooledHttpTransport();
+		server.reply(3000, 200);
+		server.reply(0, 200);
+		RequestPolicy policy = new RequestPolicy(5000, 4000, 1, 20, 100, 0.95,
+				200);
+
+		final RequestPolicy.Attempt<Integer> post = post();
+		final CountDownLatch finished = new CountDownLatch(2);
+		assertEquals(Integer.valueOf(200),
+				policy.call(new RequestPolicy.Attempt<Integer>()
+				{
+					public Integer run(int timeout) throws IOException
+					{
+						try
+						{
+							return post.run(timeout);
+						} finally
+						{
+							finished.countDown();
+						}
+					}
+				}));
+		long start = System.currentTimeMillis();
+		assertTrue(finished.await(1000, TimeUnit.MILLISECONDS));
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("took " + elapsed + " ms", elapsed < 1000);
+	}
+
+	/**
+	 * Test that the backoff stays within its doubling limit.
+	 */
+	public void testBackoff()
+	{
+		RequestPolicy policy = new RequestPolicy(5000, 1000, 5, 100, 300);
+		for (int i = 0; i < 100; ++i)
+		{
+			assertTrue(policy.backoff(0) <= 100);
+			assertTrue(policy.backoff(1) <= 200);
+			assertTrue(policy.backoff(5) <= 300);
+			assertTrue(policy.backoff(40) <= 300);
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package edu.umn.aerowx.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import edu.umn.aerowx.HttpTransport;
+import edu.umn.aerowx.RequestPolicy;
+import edu.umn.aerowx.ResponseJournal;
+import edu.umn.aerowx.Utils;
+import edu.umn.aerowx.WeatherRequest;
+
+public class ResponseJournalTest extends TestCase
+{
+	private static final String KROS = "[{\"location\": \"KROS\", \"time\": \"\", \"source\": \"metar\"}, "
+			+ "{\"location\": \"KROS\", \"time\": \"\", \"source\": \"mav\"}]";
+
+	private static final String KMSP = "[{\"location\": \"KMSP\", \"time\": \"\", \"source\": \"metar\"}]";
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		File files[] = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		directory.delete();
+		super.tearDown();
+	}
+
+	private static byte[] response(int n) throws IOException
+	{
+		return ("[{\"metar\": {\"station\": \"KROS\", \"temperature\": \"" + n
+				+ ".0 C\"}}]").getBytes("UTF-8");
+	}
+
+	/**
+	 * Test that records come back by station, source and time.
+	 */
+	public void testAppendAndRead() throws IOException
+	{
+		ResponseJournal journal = new ResponseJournal(directory);
+		journal.append(1000, KROS, response(1));
+		journal.append(2000, KMSP, response(2));
+		journal.append(3000, KROS, response(3));
+
+		ResponseJournal.Record latest = journal.latest("metar", "KROS");
+		assertEquals(3000, latest.time);
+		assertEquals(KROS, latest.request);
+		assertTrue(Arrays.equals(response(3), latest.response));
+		assertEquals(3000, journal.latest("MAV", "kros").time);
+		assertEquals(2000, journal.latest("metar", "KMSP").time);
+		assertNull(journal.latest("mav", "KMSP"));
+
+		List<ResponseJournal.Record> records = journal.read("metar", "KROS",
+				0, 3000);
+		assertEquals(1, records.size());
+		assertEquals(1000, records.get(0).time);
+		assertEquals(2, journal.read("mav", "KROS", 0, Long.MAX_VALUE).size());
+	}
+
+	/**
+	 * Test that the journal is all there when opened again.
+	 */
+	public void testReopen() throws IOException
+	{
+		ResponseJournal journal = new ResponseJournal(directory);
+		journal.append(1000, KROS, response(1));
+		journal.append(2000, KMSP, response(2));
+		journal.force();
+
+		journal = new ResponseJournal(directory);
+		assertEquals(1000, journal.latest("mav", "KROS").time);
+		assertEquals(2000, journal.latest("metar", "KMSP").time);
+		assertEquals("[{\"metar\": {\"station\": \"KROS\", "
+				+ "\"temperature\": \"2.0 C\"}}]", journal.latest("metar",
+				"KMSP").getResponseText());
+	}
+
+	/**
+	 * Test that a record half written when the app died is dropped, and the
+	 * journal carries on after it.
+	 */
+	public void testTornRecord() throws IOException
+	{
+		ResponseJournal journal = new ResponseJournal(directory, 4096, 4);
+		journal.append(1000, KROS, response(1));
+		journal.append(2000, KMSP, response(2));
+		journal.force();
+
+		// A length with no record behind it
+		File segment = directory.listFiles()[0];
+		int end = 0;
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		for (int length = file.readInt(); length != 0; length = file
+				.readInt())
+		{
+			end += 8 + length;
+			file.seek(end);
+		}
+		file.seek(end);
+		file.writeInt(100);
+		file.writeInt(12345);
+		file.write(new byte[] { 1, 2, 3 });
+		file.close();
+
+		journal = new ResponseJournal(directory, 4096, 4);
+		assertEquals(2000, journal.latest("metar", "KMSP").time);
+		journal.append(3000, KMSP, response(3));
+
+		journal = new ResponseJournal(directory, 4096, 4);
+		assertEquals(2, journal.read("metar", "KMSP", 0, Long.MAX_VALUE)
+				.size());
+		assertEquals(1, journal.read("metar", "KROS", 0, Long.MAX_VALUE)
+				.size());
+		assertEquals(3000, journal.latest("metar", "KMSP").time);
+	}
+
+	/**
+	 * Test that the journal stays bounded, and compaction keeps the latest
+	 * record for each station.
+	 */
+	public void testRolloverAndCompaction() throws IOException
+	{
+		ResponseJournal journal = new ResponseJournal(directory, 1024, 2);
+		journal.append(1, KMSP, response(0));
+		for (int i = 1; i <= 50; ++i)
+		{
+			journal.append(1000 * i, KROS, response(i));
+		}
+		assertEquals(2, journal.segmentCount());
+		assertEquals(2, directory.listFiles().length);
+
+		// Old KROS records are gone, the newest are there
+		assertEquals(50000, journal.latest("metar", "KROS").time);
+		assertEquals(0, journal.read("metar", "KROS", 0, 1001).size());
+
+		// The only KMSP record was carried forward
+		assertEquals(1, journal.latest("metar", "KMSP").time);
+
+		journal = new ResponseJournal(directory, 1024, 2);
+		assertEquals(1, journal.latest("metar", "KMSP").time);
+		assertEquals(50000, journal.latest("mav", "KROS").time);
+	}
+
+	/**
+	 * Test that a record for two sources, compacted while it's the latest for
+	 * only one of them, doesn't come back as the latest for the other.
+	 */
+	public void testCompactionTwoKeys() throws IOException
+	{
+		String metarOnly = "[{\"location\": \"KROS\", \"time\": \"\", "
+				+ "\"source\": \"metar\"}]";
+		ResponseJournal journal = new ResponseJournal(directory, 1024, 2);
+		journal.append(1000, KROS, response(1));
+		// Fill the first segment, so the newer METAR goes in the second
+		long time = 1000;
+		while (journal.segmentCount() == 1)
+		{
+			journal.append(++time, KMSP, response(0));
+		}
+		long filled = time;
+		journal.append(5000, metarOnly, response(2));
+		// Then go on until the first segment is compacted away
+		time = 5000;
+		while (journal.read("metar", "KMSP", 0, filled).size() > 0)
+		{
+			journal.append(++time, KMSP, response(0));
+		}
+
+		for (int pass = 0; pass < 2; ++pass)
+		{
+			assertEquals(1000, journal.latest("mav", "KROS").time);
+			assertEquals(5000, journal.latest("metar", "KROS").time);
+			List<ResponseJournal.Record> records = journal.read("metar",
+					"KROS", 0, Long.MAX_VALUE);
+			for (int i = 1; i < records.size(); ++i)
+			{
+				assertTrue(records.get(i - 1).time <= records.get(i).time);
+			}
+			assertEquals(5000, records.get(records.size() - 1).time);
+
+			journal = new ResponseJournal(directory, 1024, 2);
+		}
+	}
+
+	/**
+	 * Test that a record too big for a segment is refused.
+	 */
+	public void testTooBig() throws IOException
+	{
+		ResponseJournal journal = new ResponseJournal(directory, 1024, 2);
+		try
+		{
+			journal.append(1, KROS, new byte[2000]);
+			fail("expected IOException");
+		} catch (IOException e)
+		{
+			// expected
+		}
+		assertNull(journal.latest("metar", "KROS"));
+	}
+
+	/**
+	 * Test that the recorder copies what is read through it.
+	 */
+	public void testRecorder() throws IOException
+	{
+		byte bytes[] = response(42);
+		ResponseJournal.Recorder recorder = new ResponseJournal.Recorder(
+				new ByteArrayInputStream(bytes));
+		assertEquals(bytes[0], recorder.read());
+		byte buffer[] = new byte[bytes.length];
+		int n = recorder.read(buffer, 0, buffer.length);
+		assertEquals(bytes.length - 1, n);
+		assertEquals(-1, recorder.read());
+		assertTrue(Arrays.equals(bytes, recorder.toByteArray()));
+	}
+
+	/**
+	 * Test that a response that can't be decoded is still recorded.
+	 */
+	public void testUndecodableResponse() throws Exception
+	{
+		final byte body[] = "[{\"metar\": {\"wxid\": \"KROS\""
+				.getBytes("UTF-8");
+		ResponseJournal journal = new ResponseJournal(directory);
+		HttpTransport oldTransport = Utils.getTransport();
+		RequestPolicy oldPolicy = Utils.getRequestPolicy();
+		ResponseJournal oldJournal = Utils.getJournal();
+		Utils.setTransport(new HttpTransport()
+		{
+			public Response post(String url, byte[] request,
+					Map<String, String> headers, int timeout)
+			{
+				return new Response(200, new HashMap<String, String>(),
+						new ByteArrayInputStream(body));
+			}
+
+			public void shutdown()
+			{
+			}
+		});
+		Utils.setRequestPolicy(new RequestPolicy(5000, 5000, 1, 0, 0));
+		Utils.setJournal(journal);
+		try
+		{
+			Utils.fetchWeather("http://127.0.0.1:1/", Collections
+					.singletonList(new WeatherRequest(WeatherRequest.METAR,
+							"KMSP")));
+			fail("expected IOException");
+		} catch (IOException e)
+		{
+			// expected
+		} finally
+		{
+			Utils.setJournal(oldJournal);
+			Utils.setRequestPolicy(oldPolicy);
+			Utils.setTransport(oldTransport);
+		}
+		assertTrue(Arrays.equals(body, journal.latest("metar", "KMSP").response));
+	}
+}
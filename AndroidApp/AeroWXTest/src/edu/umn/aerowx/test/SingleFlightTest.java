@@ -0,0 +1,200 @@
+package edu.umn.aerowx.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import edu.umn.aerowx.SingleFlight;
+import edu.umn.aerowx.Utils;
+import edu.umn.aerowx.WeatherRequest;
+
+public class SingleFlightTest extends TestCase
+{
+	/** Number of callers asking at once */
+	private static final int CALLERS = 16;
+
+	/**
+	 * Upstream that counts requests and holds them until told to answer.
+	 */
+	private static class CountingUpstream implements
+			SingleFlight.Upstream<WeatherRequest, String>
+	{
+		final AtomicInteger calls = new AtomicInteger();
+
+		final List<Utils.ResponseListener<String>> pending = new ArrayList<Utils.ResponseListener<String>>();
+
+		public void request(WeatherRequest key,
+				Utils.ResponseListener<String> listener)
+		{
+			calls.incrementAndGet();
+			synchronized (pending)
+			{
+				pending.add(listener);
+			}
+		}
+
+		void answer(String response)
+		{
+			List<Utils.ResponseListener<String>> listeners;
+			synchronized (pending)
+			{
+				listeners = new ArrayList<Utils.ResponseListener<String>>(
+						pending);
+				pending.clear();
+			}
+			for (Utils.ResponseListener<String> listener : listeners)
+			{
+				listener.onResponse(response);
+			}
+		}
+
+		void fail(Exception e)
+		{
+			List<Utils.ResponseListener<String>> listeners;
+			synchronized (pending)
+			{
+				listeners = new ArrayList<Utils.ResponseListener<String>>(
+						pending);
+				pending.clear();
+			}
+			for (Utils.ResponseListener<String> listener : listeners)
+			{
+				listener.onError(e);
+			}
+		}
+	}
+
+	/**
+	 * Listener that remembers what it was told.
+	 */
+	private static class RecordingListener implements
+			Utils.ResponseListener<String>
+	{
+		final List<Object> received = new ArrayList<Object>();
+
+		public synchronized void onResponse(String response)
+		{
+			received.add(response);
+		}
+
+		public synchronized void onError(Exception e)
+		{
+			received.add(e);
+		}
+	}
+
+	/**
+	 * Start CALLERS threads that all ask for the same thing at once.
+	 */
+	private List<RecordingListener> requestConcurrently(
+			final SingleFlight<WeatherRequest, String> singleFlight,
+			final WeatherRequest request) throws InterruptedException
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(CALLERS);
+		final List<RecordingListener> listeners = new ArrayList<RecordingListener>();
+
+		for (int i = 0; i < CALLERS; ++i)
+		{
+			final RecordingListener listener = new RecordingListener();
+			listeners.add(listener);
+			new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+						singleFlight.request(request, listener);
+					} catch (InterruptedException e)
+					{
+						// fall through, the count will be off
+					} finally
+					{
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		start.countDown();
+		done.await();
+		return listeners;
+	}
+
+	/**
+	 * Test that concurrent callers for the same station share one request.
+	 */
+	public void testConcurrentCallersShareOneRequest()
+			throws InterruptedException
+	{
+		CountingUpstream upstream = new CountingUpstream();
+		SingleFlight<WeatherRequest, String> singleFlight = new SingleFlight<WeatherRequest, String>(
+				upstream);
+
+		List<RecordingListener> listeners = requestConcurrently(singleFlight,
+				new WeatherRequest(WeatherRequest.METAR, "kmsp"));
+
+		assertEquals(1, upstream.calls.get());
+		assertEquals(1, singleFlight.inFlightCount());
+
+		upstream.answer("data");
+
+		assertEquals(0, singleFlight.inFlightCount());
+		for (RecordingListener listener : listeners)
+		{
+			assertEquals(1, listener.received.size());
+			assertEquals("data", listener.received.get(0));
+		}
+	}
+
+	/**
+	 * Test that an error reaches every caller.
+	 */
+	public void testErrorReachesEveryCaller() throws InterruptedException
+	{
+		CountingUpstream upstream = new CountingUpstream();
+		SingleFlight<WeatherRequest, String> singleFlight = new SingleFlight<WeatherRequest, String>(
+				upstream);
+
+		List<RecordingListener> listeners = requestConcurrently(singleFlight,
+				new WeatherRequest(WeatherRequest.MAV, "kmsp"));
+
+		Exception error = new Exception("no data");
+		upstream.fail(error);
+
+		assertEquals(1, upstream.calls.get());
+		for (RecordingListener listener : listeners)
+		{
+			assertEquals(1, listener.received.size());
+			assertSame(error, listener.received.get(0));
+		}
+	}
+
+	/**
+	 * Test that different stations and sources are not merged, and that a
+	 * request after the answer goes out again.
+	 */
+	public void testDistinctAndLaterRequests()
+	{
+		CountingUpstream upstream = new CountingUpstream();
+		SingleFlight<WeatherRequest, String> singleFlight = new SingleFlight<WeatherRequest, String>(
+				upstream);
+
+		singleFlight.request(new WeatherRequest(WeatherRequest.METAR, "kmsp"),
+				new RecordingListener());
+		singleFlight.request(new WeatherRequest(WeatherRequest.MAV, "kmsp"),
+				new RecordingListener());
+		singleFlight.request(new WeatherRequest(WeatherRequest.METAR, "kros"),
+				new RecordingListener());
+		assertEquals(3, upstream.calls.get());
+
+		upstream.answer("data");
+		singleFlight.request(new WeatherRequest(WeatherRequest.METAR, "kmsp"),
+				new RecordingListener());
+		assertEquals(4, upstream.calls.get());
+	}
+}
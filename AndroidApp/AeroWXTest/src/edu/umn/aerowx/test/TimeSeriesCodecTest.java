@@ -0,0 +1,223 @@
+package edu.umn.aerowx.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+
+import android.util.Log;
+import edu.umn.aerowx.MetarData;
+import edu.umn.aerowx.ObservationHistory;
+import edu.umn.aerowx.ObservationHistory.Field;
+import edu.umn.aerowx.TimeSeriesCodec;
+
+public class TimeSeriesCodecTest extends TestCase
+{
+	private static final long HOUR = 60 * 60 * 1000;
+
+	/**
+	 * Test that rows come back as they went in, including changes too big for
+	 * the small forms.
+	 */
+	public void testRoundTrip() throws IOException
+	{
+		long times[] = { 1362009180000L, 1362012780000L, 1362016380000L,
+				1362016500000L, 1362019980000L, Long.MAX_VALUE / 2, 0 };
+		int values[][] = { { 0, 10132 }, { 0, 10132 }, { -5, 10130 },
+				{ 63, 10190 }, { -2048, ObservationHistory.MISSING },
+				{ Integer.MAX_VALUE, 7 }, { Integer.MIN_VALUE, 0 } };
+
+		TimeSeriesCodec.Encoder encoder = new TimeSeriesCodec.Encoder(2);
+		for (int i = 0; i < times.length; ++i)
+		{
+			encoder.add(times[i], values[i]);
+		}
+		assertEquals(times.length, encoder.count());
+
+		TimeSeriesCodec.Decoder decoder = new TimeSeriesCodec.Decoder(
+				encoder.toByteArray());
+		assertEquals(times.length, decoder.count());
+		assertEquals(2, decoder.columns());
+		for (int i = 0; i < times.length; ++i)
+		{
+			assertTrue(decoder.next());
+			assertEquals(times[i], decoder.getTime());
+			assertEquals(values[i][0], decoder.getValue(0));
+			assertEquals(values[i][1], decoder.getValue(1));
+		}
+		assertFalse(decoder.next());
+
+		// Empty
+		decoder = new TimeSeriesCodec.Decoder(
+				new TimeSeriesCodec.Encoder(3).toByteArray());
+		assertEquals(0, decoder.count());
+		assertFalse(decoder.next());
+	}
+
+	/**
+	 * Test that a damaged block is refused.
+	 */
+	public void testDamaged() throws IOException
+	{
+		TimeSeriesCodec.Encoder encoder = new TimeSeriesCodec.Encoder(1);
+		for (int i = 0; i < 10; ++i)
+		{
+			encoder.add(i * HOUR, new int[] { i * 1000 });
+		}
+		byte block[] = encoder.toByteArray();
+
+		byte cut[] = new byte[block.length - 3];
+		System.arraycopy(block, 0, cut, 0, cut.length);
+		try
+		{
+			new TimeSeriesCodec.Decoder(cut);
+			fail("expected IOException");
+		} catch (IOException e)
+		{
+			// expected
+		}
+
+		block[0] = 99;
+		try
+		{
+			new TimeSeriesCodec.Decoder(block);
+			fail("expected IOException");
+		} catch (IOException e)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Test that a station's history packs and unpacks.
+	 */
+	public void testHistory() throws IOException
+	{
+		List<MetarData> corpus = corpus(60);
+		ObservationHistory history = new ObservationHistory("KROS", 48);
+		for (MetarData metar : corpus)
+		{
+			history.add(metar);
+		}
+
+		ObservationHistory copy = new ObservationHistory("KROS", 48);
+		assertEquals(48, copy.addAll(history.toByteArray()));
+		assertEquals(0, copy.addAll(history.toByteArray()));
+		for (int i = 0; i < 48; ++i)
+		{
+			assertEquals(history.getTime(i), copy.getTime(i));
+			for (Field field : Field.values())
+			{
+				assertEquals(history.get(field, i), copy.get(field, i));
+			}
+		}
+	}
+
+	/**
+	 * Compare the packed size of three months of hourly observations with
+	 * the JSON the app keeps, and time decoding it.
+	 */
+	public void testBenchmark() throws IOException, JSONException
+	{
+		List<MetarData> corpus = corpus(90 * 24);
+		ObservationHistory history = new ObservationHistory("KROS",
+				corpus.size());
+		int json = 0;
+		for (MetarData metar : corpus)
+		{
+			history.add(metar);
+			json += metar.toJSONObject().toString().getBytes("UTF-8").length;
+		}
+		byte block[] = history.toByteArray();
+
+		// Time plus the six stored fields, as plain long and ints
+		int raw = history.size() * (8 + 6 * 4);
+		assertTrue("packed " + block.length + " of " + raw,
+				block.length * 4 < raw);
+
+		int rows = 0;
+		long checksum = 0;
+		long start = System.nanoTime();
+		for (int pass = 0; pass < 50; ++pass)
+		{
+			TimeSeriesCodec.Decoder decoder = new TimeSeriesCodec.Decoder(
+					block);
+			while (decoder.next())
+			{
+				checksum += decoder.getTime() + decoder.getValue(3);
+				++rows;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		assertEquals(50 * history.size(), rows);
+		assertTrue(checksum != 0);
+
+		Log.i(TimeSeriesCodecTest.class.toString(), String.format(
+				"%d observations: %d bytes packed, %d raw (%.1fx), "
+						+ "%d JSON (%.1fx); decode %.0f rows/s",
+				history.size(), block.length, raw, (double) raw
+						/ block.length, json, (double) json / block.length,
+				rows * 1e9 / elapsed));
+	}
+
+	/**
+	 * Make hourly observations that change like weather does: temperature
+	 * following the sun, pressure drifting, wind shifting now and then, and
+	 * the odd special observation between the hourly ones.
+	 */
+	private static List<MetarData> corpus(int hours)
+	{
+		Random random = new Random(42);
+		String compass[] = { "N", "NNE", "NE", "ENE", "E", "ESE", "SE", "SSE",
+				"S", "SSW", "SW", "WSW", "W", "WNW", "NW", "NNW" };
+		List<MetarData> corpus = new ArrayList<MetarData>();
+		long time = 1362009180000L; // 2013-02-27 23:53Z
+		double pressure = 1013.0;
+		int direction = 10;
+		int speed = 8;
+		for (int hour = 0; hour < hours; ++hour)
+		{
+			double temp = -5 + 6 * Math.sin(2 * Math.PI * (hour % 24) / 24)
+					+ random.nextGaussian() * 0.3;
+			pressure += random.nextGaussian() * 0.4;
+			if (random.nextInt(4) == 0)
+			{
+				direction = (direction + random.nextInt(3) + 15) % 16;
+				speed = Math.max(0, speed + random.nextInt(5) - 2);
+			}
+
+			MetarData metar = new MetarData();
+			metar.wxid = "KROS";
+			metar.time = new Date(time + hour * HOUR);
+			metar.temp = String.format("%.1f C", temp);
+			metar.dewpoint = String.format("%.1f C", temp - 3);
+			metar.pressure = String.format("%.1f mb", pressure);
+			metar.wind = (speed == 0) ? "calm" : compass[direction] + " at "
+					+ speed + " knots";
+			metar.obsType = "automatic";
+			metar.parseValues();
+			corpus.add(metar);
+
+			if (random.nextInt(20) == 0)
+			{
+				MetarData special = new MetarData();
+				special.wxid = metar.wxid;
+				special.time = new Date(metar.time.getTime() + 20 * 60 * 1000);
+				special.temp = metar.temp;
+				special.dewpoint = metar.dewpoint;
+				special.pressure = metar.pressure;
+				special.wind = metar.wind + ", gusting to " + (speed + 10)
+						+ " knots";
+				special.obsType = "automatic";
+				special.parseValues();
+				corpus.add(special);
+			}
+		}
+		return corpus;
+	}
+}
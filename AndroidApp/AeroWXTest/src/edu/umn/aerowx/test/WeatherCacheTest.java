@@ -0,0 +1,195 @@
+package edu.umn.aerowx.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import junit.framework.TestCase;
+import edu.umn.aerowx.IssueSchedule;
+import edu.umn.aerowx.JsonPullParser;
+import edu.umn.aerowx.MavData;
+import edu.umn.aerowx.MetarData;
+import edu.umn.aerowx.WeatherCache;
+import edu.umn.aerowx.WeatherDecoder;
+import edu.umn.aerowx.WeatherRequest;
+
+public class WeatherCacheTest extends TestCase
+{
+	private static final long MINUTE = 60 * 1000;
+
+	private static final long HOUR = 60 * MINUTE;
+
+	/** 2013-10-18 00:00Z */
+	private static final long MIDNIGHT = 1382054400000L;
+
+	private static final String METAR = "{\"metar\": {\"station\": \"KROS\", "
+			+ "\"type\": \"routine report\", "
+			+ "\"time\": \"Fri Oct 18 09:53:00 2013\", "
+			+ "\"temperature\": \"12.0 C\", \"dew point\": \"8.0 C\", "
+			+ "\"wind\": \"ESE at 6 knots\", \"peak wind\": \"None\", "
+			+ "\"visibility\": \"10 miles\", \"pressure\": \"1013.0 mb\", "
+			+ "\"weather\": \"None\", "
+			+ "\"sky\": \"a few clouds at 4000 feet\", "
+			+ "\"remarks\": \"automated station\"}}";
+
+	private static final String PERIOD = "{\"date\": \"OCT 18\", \"hour\": \"12\", "
+			+ "\"temp\": \"45\", \"dewpoint\": \"40\", "
+			+ "\"cover\": \"scattered > 2 to 4 octas\", "
+			+ "\"wind\": {\"direction\": \"27\", \"speed\": \"10\", "
+			+ "\"gust\": \"None\"}, \"pop6\": \"5\", \"pop12\": \"None\", "
+			+ "\"qpf12\": \"None\", \"thund6\": \"2\", \"thund12\": \"None\", "
+			+ "\"popz\": \"0\", \"pops\": \"0\", \"type\": \"None\", "
+			+ "\"snow\": \"None\", \"visibility\": \"3 - 5 miles\", "
+			+ "\"obscurity\": \"none\", \"ceiling\": \"2,000 - 3,000 feet\"}";
+
+	private static final String MAV = "{\"mav\": {\"wxid\": \"KROS\", "
+			+ "\"time\": \"10/18/2013  0600 UTC\", \"high\": \"50\", "
+			+ "\"low\": \"30\", \"periods\": [" + PERIOD + ", " + PERIOD
+			+ "]}}";
+
+	private File directory;
+
+	private WeatherCache cache;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		directory = File.createTempFile("weather", "");
+		directory.delete();
+		cache = new WeatherCache(directory);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		File files[] = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		directory.delete();
+		super.tearDown();
+	}
+
+	private static Object decode(String json) throws IOException
+	{
+		List<Object> results = WeatherDecoder.decode(new JsonPullParser(
+				new StringReader(json)));
+		return results.get(0);
+	}
+
+	/**
+	 * Test that METAR data comes back as it went in.
+	 */
+	public void testMetar() throws IOException
+	{
+		MetarData metar = (MetarData) decode(METAR);
+		WeatherRequest request = new WeatherRequest(WeatherRequest.METAR,
+				"KROS");
+
+		assertNull(cache.get(request));
+		cache.put(request, metar, 1234L);
+
+		WeatherCache.Entry entry = new WeatherCache(directory).get(request);
+		assertNotNull(entry);
+		assertEquals(1234L, entry.fetched);
+		assertEquals(metar, entry.data);
+
+		// The other source for the station is kept apart.
+		assertNull(cache.get(new WeatherRequest(WeatherRequest.MAV, "KROS")));
+	}
+
+	/**
+	 * Test that MAV data, periods and all, comes back as it went in.
+	 */
+	public void testMav() throws IOException
+	{
+		MavData mav = (MavData) decode(MAV);
+		WeatherRequest request = new WeatherRequest(WeatherRequest.MAV, "KROS");
+
+		cache.put(request, mav, 5678L);
+
+		WeatherCache.Entry entry = cache.get(request);
+		assertNotNull(entry);
+		assertEquals(mav, entry.data);
+		assertEquals(MavData.Cover.SCATTERED,
+				((MavData) entry.data).getPeriod(0).cover);
+		assertEquals(mav.getPeriod(1).time,
+				((MavData) entry.data).getPeriod(1).time);
+	}
+
+	/**
+	 * Test that a damaged file is ignored rather than thrown.
+	 */
+	public void testCorrupt() throws IOException
+	{
+		WeatherRequest request = new WeatherRequest(WeatherRequest.METAR,
+				"KROS");
+		cache.put(request, decode(METAR), 1L);
+
+		File files[] = directory.listFiles();
+		assertEquals(1, files.length);
+		FileOutputStream out = new FileOutputStream(files[0]);
+		out.write("{\"fetched\": 1, \"data\": {\"met".getBytes("UTF-8"));
+		out.close();
+
+		assertNull(cache.get(request));
+	}
+
+	/**
+	 * Test that requests for a given time aren't kept.
+	 */
+	public void testTimedRequestNotKept() throws IOException
+	{
+		WeatherRequest request = new WeatherRequest(WeatherRequest.METAR,
+				"KROS", "2013-10-18 09:53");
+		cache.put(request, decode(METAR), 1L);
+		assertNull(cache.get(request));
+	}
+
+	/**
+	 * Test when each source next comes out.
+	 */
+	public void testIssueSchedule()
+	{
+		// METAR at :55 every hour
+		assertEquals(MIDNIGHT + 55 * MINUTE, IssueSchedule.nextIssue(
+				WeatherRequest.METAR, MIDNIGHT));
+		assertEquals(MIDNIGHT + HOUR + 55 * MINUTE, IssueSchedule.nextIssue(
+				WeatherRequest.METAR, MIDNIGHT + 55 * MINUTE));
+		assertEquals(MIDNIGHT - 5 * MINUTE, IssueSchedule.lastIssue(
+				WeatherRequest.METAR, MIDNIGHT));
+
+		// MAV at 04, 10, 16 and 22Z
+		assertEquals(MIDNIGHT + 4 * HOUR, IssueSchedule.nextIssue(
+				WeatherRequest.MAV, MIDNIGHT));
+		assertEquals(MIDNIGHT + 10 * HOUR, IssueSchedule.nextIssue(
+				WeatherRequest.MAV, MIDNIGHT + 4 * HOUR));
+		assertEquals(MIDNIGHT - 2 * HOUR, IssueSchedule.lastIssue(
+				WeatherRequest.MAV, MIDNIGHT));
+
+		// Whichever comes first
+		assertEquals(MIDNIGHT + 55 * MINUTE, IssueSchedule.nextIssue(MIDNIGHT));
+		assertEquals(MIDNIGHT + 4 * HOUR, IssueSchedule.nextIssue(MIDNIGHT + 3
+				* HOUR + 56 * MINUTE));
+
+		// METAR fetched at :50 is stale at :56, but fresh at :54
+		long fetched = MIDNIGHT + 50 * MINUTE;
+		assertTrue(IssueSchedule.isFresh(WeatherRequest.METAR, fetched,
+				MIDNIGHT + 54 * MINUTE));
+		assertFalse(IssueSchedule.isFresh(WeatherRequest.METAR, fetched,
+				MIDNIGHT + 56 * MINUTE));
+		// MAV fetched at 05Z is fresh until 10Z
+		fetched = MIDNIGHT + 5 * HOUR;
+		assertTrue(IssueSchedule.isFresh(WeatherRequest.MAV, fetched,
+				MIDNIGHT + 9 * HOUR));
+		assertFalse(IssueSchedule.isFresh(WeatherRequest.MAV, fetched,
+				MIDNIGHT + 10 * HOUR));
+	}
+}
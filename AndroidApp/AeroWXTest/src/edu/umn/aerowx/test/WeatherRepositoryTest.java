@@ -0,0 +1,616 @@
+package edu.umn.aerowx.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import edu.umn.aerowx.HttpTransport;
+import edu.umn.aerowx.MavData;
+import edu.umn.aerowx.MetarData;
+import edu.umn.aerowx.OfflineException;
+import edu.umn.aerowx.UrlConnectionTransport;
+import edu.umn.aerowx.Utils;
+import edu.umn.aerowx.WeatherCache;
+import edu.umn.aerowx.WeatherRepository;
+import edu.umn.aerowx.WeatherRequest;
+
+public class WeatherRepositoryTest extends TestCase
+{
+	/** Server that's never asked, since everything is fresh */
+	private static final String BASE_URL = "http://127.0.0.1:1/get_weather";
+
+	private File directory;
+
+	private WeatherCache cache;
+
+	private WeatherRequest request;
+
+	private MetarData metar;
+
+	/**
+	 * Listener that remembers the last response.
+	 */
+	private static class Recorder implements Utils.ResponseListener<MetarData>
+	{
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		volatile MetarData response;
+
+		public void onResponse(MetarData response)
+		{
+			this.response = response;
+			latch.countDown();
+		}
+
+		volatile Exception error;
+
+		public void onError(Exception e)
+		{
+			error = e;
+			latch.countDown();
+		}
+
+		MetarData await() throws InterruptedException
+		{
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertNull(error);
+			return response;
+		}
+	}
+
+	/**
+	 * Server on localhost that remembers each request body and answers with
+	 * the same METAR (or MAV) for every request in it.
+	 */
+	private static class StubServer extends Thread
+	{
+		final ServerSocket serverSocket;
+
+		final List<String> bodies = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		StubServer() throws IOException
+		{
+			serverSocket = new ServerSocket(0);
+			setDaemon(true);
+		}
+
+		String getUrl()
+		{
+			return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+		}
+
+		@Override
+		public void run()
+		{
+			while (!serverSocket.isClosed())
+			{
+				try
+				{
+					Socket socket = serverSocket.accept();
+					try
+					{
+						answer(socket);
+					} finally
+					{
+						socket.close();
+					}
+				} catch (IOException e)
+				{
+					return;
+				}
+			}
+		}
+
+		void answer(Socket socket) throws IOException
+		{
+			String body = readBody(socket.getInputStream());
+			bodies.add(body);
+			StringBuilder reply = new StringBuilder("[");
+			for (int i = body.indexOf("\"source\""); i >= 0; i = body
+					.indexOf("\"source\"", i + 1))
+			{
+				if (reply.length() > 1)
+				{
+					reply.append(", ");
+				}
+				if (body.substring(i).matches("\"source\":\\s*\"mav\".*"))
+				{
+					reply.append("{\"mav\": {\"wxid\": \"KROS\", "
+							+ "\"time\": \"10/18/2013  0600 UTC\", "
+							+ "\"periods\": []}}");
+				} else
+				{
+					reply.append("{\"metar\": {\"station\": \"KROS\", "
+							+ "\"temperature\": \"14.0 C\"}}");
+				}
+			}
+			reply.append("]");
+			byte bytes[] = reply.toString().getBytes("UTF-8");
+			OutputStream out = socket.getOutputStream();
+			out.write(("HTTP/1.1 200 OK\r\n"
+					+ "Content-Type: application/json\r\n"
+					+ "Content-Length: " + bytes.length + "\r\n"
+					+ "Connection: close\r\n\r\n").getBytes("UTF-8"));
+			out.write(bytes);
+			out.flush();
+		}
+
+		/** Read the headers and return the body of a request */
+		String readBody(InputStream in) throws IOException
+		{
+			ByteArrayOutputStream headers = new ByteArrayOutputStream();
+			int matched = 0;
+			while (matched < 4)
+			{
+				int c = in.read();
+				if (c < 0)
+				{
+					return "";
+				}
+				headers.write(c);
+				matched = (c == "\r\n\r\n".charAt(matched)) ? matched + 1
+						: (c == '\r' ? 1 : 0);
+			}
+			int length = 0;
+			for (String line : headers.toString("UTF-8").split("\r\n"))
+			{
+				if (line.toLowerCase().startsWith("content-length:"))
+				{
+					length = Integer.parseInt(line.substring(15).trim());
+				}
+			}
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			for (int i = 0; i < length; ++i)
+			{
+				int c = in.read();
+				if (c < 0)
+				{
+					break;
+				}
+				body.write(c);
+			}
+			return body.toString("UTF-8");
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		directory = File.createTempFile("weather", "");
+		directory.delete();
+		cache = new WeatherCache(directory);
+
+		request = new WeatherRequest(WeatherRequest.METAR, "KROS");
+		metar = new MetarData();
+		metar.wxid = "KROS";
+		metar.temp = "12.0 C";
+		cache.put(request, metar, System.currentTimeMillis());
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		Utils.setConnectivity(null);
+		File files[] = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		directory.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * Test that the second request is answered from memory, straight away.
+	 */
+	public void testMemoryHit() throws InterruptedException
+	{
+		WeatherRepository repository = new WeatherRepository(cache);
+
+		Recorder first = new Recorder();
+		repository.request(BASE_URL, request, MetarData.class, first);
+		assertEquals(metar, first.await());
+
+		// Gone from the phone, but still in memory
+		cache.remove(request);
+		Recorder second = new Recorder();
+		repository.request(BASE_URL, request, MetarData.class, second);
+		assertSame(first.response, second.response);
+	}
+
+	/**
+	 * Test that trimming memory falls back to the copy on the phone.
+	 */
+	public void testTrimMemory() throws InterruptedException
+	{
+		WeatherRepository repository = new WeatherRepository(cache);
+
+		Recorder first = new Recorder();
+		repository.request(BASE_URL, request, MetarData.class, first);
+		first.await();
+
+		repository.trimMemory();
+		Recorder second = new Recorder();
+		repository.request(BASE_URL, request, MetarData.class, second);
+		MetarData response = second.await();
+		assertEquals(metar, response);
+		assertNotSame(first.response, response);
+	}
+
+	/**
+	 * Test that the memory cache is bounded.
+	 */
+	public void testEviction() throws InterruptedException
+	{
+		WeatherRepository repository = new WeatherRepository(cache, 1);
+		WeatherRequest other = new WeatherRequest(WeatherRequest.METAR, "KMSP");
+		cache.put(other, metar, System.currentTimeMillis());
+
+		Recorder first = new Recorder();
+		repository.request(BASE_URL, request, MetarData.class, first);
+		first.await();
+		Recorder second = new Recorder();
+		repository.request(BASE_URL, other, MetarData.class, second);
+		second.await();
+
+		// KMSP pushed KROS out of memory, so this has to go to the phone
+		Recorder third = new Recorder();
+		repository.request(BASE_URL, request, MetarData.class, third);
+		assertNotSame(first.response, third.await());
+	}
+
+	/**
+	 * Test what the prefetch asks about and keeps.
+	 */
+	public void testNeedsRefresh()
+	{
+		WeatherRepository repository = new WeatherRepository(cache);
+		WeatherRequest other = new WeatherRequest(WeatherRequest.MAV, "KROS");
+
+		assertFalse(repository.needsRefresh(request));
+		assertTrue(repository.needsRefresh(other));
+
+		repository.keep(request, metar, 0L);
+		assertTrue(repository.needsRefresh(request));
+		assertEquals(0L, new WeatherCache(directory).get(request).fetched);
+	}
+
+	/**
+	 * Wait for the repository to queue refreshes.
+	 */
+	private static void awaitQueued(WeatherRepository repository, int count)
+			throws InterruptedException
+	{
+		for (int i = 0; i < 100 && repository.queuedCount() != count; ++i)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(count, repository.queuedCount());
+	}
+
+	/**
+	 * Test that with no network the kept copy is shown and the refresh waits.
+	 */
+	public void testOfflineServesCache() throws InterruptedException
+	{
+		cache.put(request, metar, 0L);
+		WeatherRepository repository = new WeatherRepository(cache);
+		repository.setConnectivity(new FakeConnectivitySource(false));
+
+		Recorder recorder = new Recorder();
+		repository.request(BASE_URL, request, MetarData.class, recorder);
+		assertEquals(metar, recorder.await());
+		awaitQueued(repository, 1);
+	}
+
+	/**
+	 * Test that asking again while offline doesn't queue the request again,
+	 * and that a cancelled listener isn't kept.
+	 */
+	public void testOfflineQueuesOnce() throws Exception
+	{
+		StubServer server = new StubServer();
+		server.start();
+		HttpTransport oldTransport = Utils.getTransport();
+		Utils.setTransport(new UrlConnectionTransport());
+		try
+		{
+			cache.put(request, metar, 0L);
+			WeatherRepository repository = new WeatherRepository(cache);
+			FakeConnectivitySource connectivity = new FakeConnectivitySource(
+					false);
+			repository.setConnectivity(connectivity);
+
+			// Each screen start asks again, with a new listener
+			Recorder stopped = new Recorder();
+			repository.request(server.getUrl(), request, MetarData.class,
+					stopped);
+			stopped.await();
+			repository.trimMemory();
+			final CountDownLatch fresh = new CountDownLatch(1);
+			Utils.ResponseListener<MetarData> started = new Utils.ResponseListener<MetarData>()
+			{
+				public void onResponse(MetarData response)
+				{
+					if ("14.0 C".equals(response.temp))
+					{
+						fresh.countDown();
+					}
+				}
+
+				public void onError(Exception e)
+				{
+					fail("unexpected error " + e);
+				}
+			};
+			repository.request(server.getUrl(), request, MetarData.class,
+					started);
+			repository.request(server.getUrl(), request, MetarData.class,
+					started);
+			awaitQueued(repository, 1);
+			Thread.sleep(100);
+			assertEquals(1, repository.queuedCount());
+			repository.cancel(stopped);
+
+			connectivity.setConnected(true);
+			assertTrue(fresh.await(5, TimeUnit.SECONDS));
+			assertEquals(1, server.bodies.size());
+			Thread.sleep(100);
+			assertEquals("12.0 C", stopped.response.temp);
+		} finally
+		{
+			Utils.setTransport(oldTransport);
+			server.serverSocket.close();
+		}
+	}
+
+	/**
+	 * Test that a kept copy comes with when it was fetched, not when it was
+	 * shown, and whether it's current.
+	 */
+	public void testFetchedTime() throws InterruptedException
+	{
+		cache.put(request, metar, 1000L);
+		WeatherRepository repository = new WeatherRepository(cache);
+		repository.setConnectivity(new FakeConnectivitySource(false));
+
+		final long fetched[] = { -1, -1 };
+		final boolean current[] = new boolean[2];
+		final CountDownLatch latch = new CountDownLatch(1);
+		WeatherRepository.Listener<MetarData> listener = new WeatherRepository.Listener<MetarData>()
+		{
+			private int calls;
+
+			@Override
+			public void onResponse(MetarData response, long time,
+					boolean fresh)
+			{
+				fetched[calls] = time;
+				current[calls] = fresh;
+				++calls;
+				latch.countDown();
+			}
+
+			public void onError(Exception e)
+			{
+				fail("unexpected error " + e);
+			}
+		};
+		repository.request(BASE_URL, request, MetarData.class, listener);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(1000L, fetched[0]);
+		assertFalse(current[0]);
+
+		// From memory this time, and fresh
+		repository.keep(request, metar, System.currentTimeMillis() - 1);
+		repository.request(BASE_URL, request, MetarData.class, listener);
+		assertTrue(fetched[1] > 1000L);
+		assertTrue(current[1]);
+	}
+
+	/**
+	 * Test that with no network and nothing kept the screen hears about it
+	 * straight away.
+	 */
+	public void testOfflineWithoutCache() throws InterruptedException
+	{
+		WeatherRepository repository = new WeatherRepository(cache);
+		repository.setConnectivity(new FakeConnectivitySource(false));
+
+		Recorder recorder = new Recorder();
+		repository.request(BASE_URL, new WeatherRequest(WeatherRequest.METAR,
+				"KMSP"), MetarData.class, recorder);
+		assertTrue(recorder.latch.await(1, TimeUnit.SECONDS));
+		assertTrue(recorder.error instanceof OfflineException);
+		awaitQueued(repository, 1);
+	}
+
+	/**
+	 * Test that the waiting refreshes go out together when the network comes
+	 * back.
+	 */
+	public void testFlushOnReconnect() throws Exception
+	{
+		StubServer server = new StubServer();
+		server.start();
+		HttpTransport oldTransport = Utils.getTransport();
+		Utils.setTransport(new UrlConnectionTransport());
+		try
+		{
+			WeatherRequest other = new WeatherRequest(WeatherRequest.METAR,
+					"KMSP");
+			cache.put(request, metar, 0L);
+			cache.put(other, metar, 0L);
+			WeatherRepository repository = new WeatherRepository(cache);
+			FakeConnectivitySource connectivity = new FakeConnectivitySource(
+					false);
+			repository.setConnectivity(connectivity);
+
+			final CountDownLatch fresh = new CountDownLatch(2);
+			Utils.ResponseListener<MetarData> listener = new Utils.ResponseListener<MetarData>()
+			{
+				public void onResponse(MetarData response)
+				{
+					if ("14.0 C".equals(response.temp))
+					{
+						fresh.countDown();
+					}
+				}
+
+				public void onError(Exception e)
+				{
+					fail("unexpected error " + e);
+				}
+			};
+			repository.request(server.getUrl(), request, MetarData.class,
+					listener);
+			repository.request(server.getUrl(), other, MetarData.class,
+					listener);
+			awaitQueued(repository, 2);
+			assertEquals(0, server.bodies.size());
+
+			connectivity.setConnected(true);
+			assertTrue(fresh.await(5, TimeUnit.SECONDS));
+			assertEquals(0, repository.queuedCount());
+			assertEquals(1, server.bodies.size());
+			assertTrue(server.bodies.get(0).indexOf("KROS") >= 0);
+			assertTrue(server.bodies.get(0).indexOf("KMSP") >= 0);
+		} finally
+		{
+			Utils.setTransport(oldTransport);
+			server.serverSocket.close();
+		}
+	}
+
+	/**
+	 * Test that with co-fetching, opening the METAR fetches the MAV in the
+	 * same POST, and the MAV is then there without asking again.
+	 */
+	public void testCoFetch() throws Exception
+	{
+		StubServer server = new StubServer();
+		server.start();
+		HttpTransport oldTransport = Utils.getTransport();
+		Utils.setTransport(new UrlConnectionTransport());
+		try
+		{
+			cache.remove(request);
+			WeatherRepository repository = new WeatherRepository(cache);
+			repository.setCoFetch(true);
+			Recorder recorder = new Recorder();
+			repository.request(server.getUrl(), request, MetarData.class,
+					recorder);
+			assertEquals("14.0 C", recorder.await().temp);
+
+			WeatherRequest mavRequest = new WeatherRequest(
+					WeatherRequest.MAV, "KROS");
+			long deadline = System.currentTimeMillis() + 5000;
+			while (repository.needsRefresh(mavRequest)
+					&& System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			assertEquals(1, server.bodies.size());
+			assertTrue(server.bodies.get(0).indexOf("\"mav\"") >= 0);
+			assertTrue(server.bodies.get(0).indexOf("\"metar\"") >= 0);
+
+			// From memory, straight away
+			final MavData mav[] = new MavData[1];
+			repository.request(server.getUrl(), mavRequest, MavData.class,
+					new Utils.ResponseListener<MavData>()
+					{
+						public void onResponse(MavData response)
+						{
+							mav[0] = response;
+						}
+
+						public void onError(Exception e)
+						{
+							fail("unexpected error " + e);
+						}
+					});
+			assertNotNull(mav[0]);
+			assertEquals("KROS", mav[0].wxid);
+			assertEquals(1, server.bodies.size());
+		} finally
+		{
+			Utils.setTransport(oldTransport);
+			server.serverSocket.close();
+		}
+	}
+
+	/**
+	 * Test that co-fetching leaves out the other source when the copy kept
+	 * on the phone is fresh.
+	 */
+	public void testCoFetchKeptFresh() throws Exception
+	{
+		StubServer server = new StubServer();
+		server.start();
+		HttpTransport oldTransport = Utils.getTransport();
+		Utils.setTransport(new UrlConnectionTransport());
+		try
+		{
+			MavData mav = new MavData();
+			mav.wxid = "KROS";
+			cache.put(new WeatherRequest(WeatherRequest.MAV, "KROS"), mav,
+					System.currentTimeMillis());
+			cache.remove(request);
+			WeatherRepository repository = new WeatherRepository(cache);
+			repository.setCoFetch(true);
+			Recorder recorder = new Recorder();
+			repository.request(server.getUrl(), request, MetarData.class,
+					recorder);
+			assertEquals("14.0 C", recorder.await().temp);
+			assertEquals(1, server.bodies.size());
+			assertTrue(server.bodies.get(0).indexOf("\"mav\"") < 0);
+		} finally
+		{
+			Utils.setTransport(oldTransport);
+			server.serverSocket.close();
+		}
+	}
+
+	/**
+	 * Test that with no network a request fails at once, without trying.
+	 */
+	public void testFailFast() throws Exception
+	{
+		StubServer server = new StubServer();
+		server.start();
+		try
+		{
+			Utils.setConnectivity(new FakeConnectivitySource(false));
+			long start = System.currentTimeMillis();
+			try
+			{
+				Utils.fetchWeather(server.getUrl(),
+						Collections.singletonList(request));
+				fail("expected OfflineException");
+			} catch (OfflineException e)
+			{
+				// expected
+			}
+			assertTrue(System.currentTimeMillis() - start < 1000);
+			assertEquals(0, server.bodies.size());
+		} finally
+		{
+			server.serverSocket.close();
+		}
+	}
+}
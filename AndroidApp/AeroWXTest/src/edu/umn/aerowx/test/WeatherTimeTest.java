@@ -0,0 +1,186 @@
+package edu.umn.aerowx.test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import android.util.Log;
+import edu.umn.aerowx.WeatherTime;
+
+public class WeatherTimeTest extends TestCase
+{
+	private static final long HOUR = 60 * 60 * 1000;
+
+	private static final long DAY = 24 * HOUR;
+
+	/** 2013-10-18 09:53Z */
+	private static final long OBSERVED = 1382089980000L;
+
+	private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+	/**
+	 * Test METAR times against SimpleDateFormat, a few days apart over more
+	 * than one leap year.
+	 */
+	public void testMetar() throws ParseException
+	{
+		assertEquals(OBSERVED, WeatherTime
+				.parseMetar("Fri Oct 18 09:53:00 2013"));
+		// ctime() pads the day with a space
+		assertEquals(OBSERVED - 10 * DAY, WeatherTime
+				.parseMetar("Tue Oct  8 09:53:00 2013"));
+
+		SimpleDateFormat format = new SimpleDateFormat(
+				"EEE MMM dd HH:mm:ss yyyy", Locale.US);
+		format.setTimeZone(GMT);
+		for (long time = 946684800000L; time < 1420070400000L; time += 3 * DAY
+				+ 7 * HOUR + 61000)
+		{
+			String text = format.format(new Date(time));
+			assertEquals(text, time, WeatherTime.parseMetar(text));
+		}
+	}
+
+	/**
+	 * Test MAV times, including the year a forecast runs into.
+	 */
+	public void testMav()
+	{
+		assertEquals(OBSERVED + 2 * HOUR + 7 * 60000, WeatherTime.parseMav(
+				"OCT 18", "12", OBSERVED));
+		assertEquals(OBSERVED - 9 * HOUR - 53 * 60000 + DAY, WeatherTime
+				.parseMav("OCT  19", "00", OBSERVED));
+
+		// Made on New Year's Eve, running into January
+		long newYearsEve = 1388491200000L; // 2013-12-31 12:00Z
+		assertEquals(newYearsEve + DAY, WeatherTime.parseMav("JAN 1", "12",
+				newYearsEve));
+		// Read just after New Year, made in December
+		assertEquals(newYearsEve, WeatherTime.parseMav("DEC 31", "12",
+				newYearsEve + DAY));
+		// Leap day, and "SEPT"
+		assertEquals(1330516800000L, WeatherTime.parseMav("FEB 29", "12",
+				1330516800000L));
+		assertEquals(1379505600000L, WeatherTime.parseMav("SEPT 18", "12",
+				OBSERVED));
+
+		assertEquals(2013, WeatherTime.yearOf(OBSERVED));
+		assertEquals(1969, WeatherTime.yearOf(-1));
+		assertEquals(2000, WeatherTime.yearOf(951782400000L)); // 2000-02-29
+	}
+
+	/**
+	 * Test that text that isn't a time is refused.
+	 */
+	public void testInvalid()
+	{
+		String metars[] = { null, "", "None", "Fri Oct 18 09:53:00",
+				"Fri Okt 18 09:53:00 2013", "Fri Oct 32 09:53:00 2013",
+				"Fri Oct 18 24:53:00 2013", "Fri Oct 18 09:53:00 2013 GMT",
+				"Fri Feb 29 09:53:00 2013" };
+		for (String text : metars)
+		{
+			assertEquals(text, WeatherTime.INVALID, WeatherTime
+					.parseMetar(text));
+		}
+		assertEquals(WeatherTime.INVALID, WeatherTime.parseMav("None",
+				"None", OBSERVED));
+		assertEquals(WeatherTime.INVALID, WeatherTime.parseMav("OCT 18",
+				"None", OBSERVED));
+		assertEquals(WeatherTime.INVALID, WeatherTime.parseMav(null, "12",
+				OBSERVED));
+	}
+
+	/**
+	 * Test that threads parsing at once all get the right answer.
+	 */
+	public void testThreads() throws InterruptedException
+	{
+		final AtomicInteger wrong = new AtomicInteger();
+		Thread threads[] = new Thread[8];
+		for (int t = 0; t < threads.length; ++t)
+		{
+			final int offset = t;
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					String text = "Fri Oct 1" + offset + " 09:53:00 2013";
+					long expected = OBSERVED + (offset - 8) * DAY;
+					for (int i = 0; i < 20000; ++i)
+					{
+						if (WeatherTime.parseMetar(text) != expected)
+						{
+							wrong.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		assertEquals(0, wrong.get());
+	}
+
+	/**
+	 * Compare with the SimpleDateFormat code this replaced, for a METAR and
+	 * a MAV of 21 periods.
+	 */
+	public void testBenchmark() throws ParseException
+	{
+		SimpleDateFormat sdfMetar = new SimpleDateFormat(
+				"EEE MMM dd HH:mm:ss yyyy zzz");
+		SimpleDateFormat sdfMav = new SimpleDateFormat(
+				"MMMMM dd HH:mm yyyy zzz");
+		TimeZone timeZone = TimeZone.getTimeZone("GMT");
+		String metar = "Fri Oct 18 09:53:00 2013";
+		String dates[] = { "OCT 18", "OCT 19", "OCT 20", "OCT 21" };
+		String hours[] = { "00", "06", "12", "18" };
+		int passes = 2000;
+
+		long checksum = 0;
+		long start = System.nanoTime();
+		for (int pass = 0; pass < passes; ++pass)
+		{
+			checksum += sdfMetar.parse(metar + " GMT").getTime();
+			for (int i = 0; i < 21; ++i)
+			{
+				Calendar currentDate = Calendar.getInstance(timeZone);
+				checksum += sdfMav.parse(
+						dates[i / 4 % 4] + " " + hours[i % 4] + ":00 "
+								+ currentDate.get(Calendar.YEAR) + " GMT")
+						.getTime();
+			}
+		}
+		long before = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int pass = 0; pass < passes; ++pass)
+		{
+			checksum += WeatherTime.parseMetar(metar);
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < 21; ++i)
+			{
+				checksum += WeatherTime.parseMav(dates[i / 4 % 4],
+						hours[i % 4], now);
+			}
+		}
+		long after = System.nanoTime() - start;
+		assertTrue(checksum != 0);
+
+		Log.i(WeatherTimeTest.class.toString(), String.format(
+				"METAR + 21 MAV periods: %.1f us SimpleDateFormat, "
+						+ "%.1f us WeatherTime (%.0fx)", before / 1000.0
+						/ passes, after / 1000.0 / passes, (double) before
+						/ after));
+	}
+}
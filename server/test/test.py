@@ -32,6 +32,17 @@ def test_2():
 	pprint.pprint(issue_request(data))
 
 
+def test_batch():
+	# Build a batched METAR + MAV request
+	print "# Build a batched METAR + MAV request"
+	data = [{"source" : "metar", 
+             "location" : "kros",
+             "datetime" : ""},
+            {"source" : "mav", 
+             "location" : "kros",
+             "datetime" : ""}]
+	pprint.pprint(issue_request(data))
+
 def test_error_handling():
 	print """
 For the following tests expect an error JSON response
@@ -85,4 +96,5 @@ This is testing the error handling, we should not see unhandled exceptions
 # Run tests
 #test_1()
 test_2()
+#test_batch()
 #test_error_handling()
\ No newline at end of file